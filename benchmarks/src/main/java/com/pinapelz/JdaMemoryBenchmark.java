@@ -0,0 +1,85 @@
+package com.pinapelz;
+
+import net.dv8tion.jda.api.JDA;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares startup time and retained heap of the {@code default} and
+ * {@code lean} JDA profiles against the configured bot token. Each run logs
+ * in from a fresh JVM so that one profile's garbage does not skew the other.
+ * Usage: {@code JdaMemoryBenchmark [runs]}.
+ */
+public class JdaMemoryBenchmark {
+
+    private static final String[] PROFILES = {"default", "lean"};
+    private static final String RESULT_PREFIX = "RESULT ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--run")) {
+            runProfile(args[1]);
+            return;
+        }
+
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        System.out.printf("%-8s %12s %12s%n", "profile", "startup ms", "heap MB");
+        for (String profile : PROFILES) {
+            List<long[]> results = new ArrayList<>();
+            for (int i = 0; i < runs; i++) results.add(fork(profile));
+            for (long[] r : results)
+                System.out.printf("%-8s %12d %12.1f%n", profile, r[0], r[1] / (1024.0 * 1024.0));
+            System.out.printf("%-8s %12d %12.1f  (median)%n", profile,
+                    median(results, 0), median(results, 1) / (1024.0 * 1024.0));
+        }
+        System.exit(0);
+    }
+
+    private static long[] fork(String profile) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                JdaMemoryBenchmark.class.getName(), "--run", profile)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        long[] result = null;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (!line.startsWith(RESULT_PREFIX)) continue;
+                String[] parts = line.substring(RESULT_PREFIX.length()).split(" ");
+                result = new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+            }
+        }
+        if (process.waitFor() != 0 || result == null)
+            throw new IllegalStateException("Benchmark run for profile " + profile + " failed");
+        return result;
+    }
+
+    private static void runProfile(String profile) throws Exception {
+        long start = System.nanoTime();
+        JDA jda = Main.createJdaBuilder(profile, Main.readSetting("BOT_TOKEN")).build().awaitReady();
+        long startupMs = (System.nanoTime() - start) / 1_000_000;
+
+        // Let the caches settle, then measure what survives collection
+        Thread.sleep(5_000);
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        System.out.println(RESULT_PREFIX + startupMs + " " + heap);
+        jda.shutdownNow();
+        System.exit(0);
+    }
+
+    private static long median(List<long[]> results, int column) {
+        long[] values = results.stream().mapToLong(r -> r[column]).sorted().toArray();
+        return values[values.length / 2];
+    }
+}
@@ -0,0 +1,153 @@
+package com.pinapelz;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Postgres row mappers behind directory listings, fed from an in-memory
+ * H2 table with the same column order. {@code scanOnly} walks the same rows
+ * without mapping them; the difference is the mapping cost.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RowMappingBenchmark {
+
+    // Column order matches the listing queries in PostgresDatabase
+    private static final String FILES = """
+        SELECT file_id, file_name, file_description, size, mime_type, created_at FROM files
+    """;
+    private static final String DIRECTORIES = """
+        SELECT directory_id, parent_id, name, path, created_at, file_count FROM directories
+    """;
+    private static final String LOGICAL_FILES = """
+        SELECT logical_file_id, directory_id, original_filename, file_description, mime_type,
+               total_size, part_count, codec, checksum_sha256, created_at
+        FROM logical_files
+    """;
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private Connection connection;
+
+    @Setup
+    public void createTables() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:rows" + rows + ";DB_CLOSE_DELAY=-1");
+        try (Statement s = connection.createStatement()) {
+            s.execute("""
+                CREATE TABLE files (file_id INT, file_name VARCHAR, file_description VARCHAR,
+                                    size BIGINT, mime_type VARCHAR, created_at TIMESTAMP WITH TIME ZONE)
+            """);
+            s.execute("""
+                CREATE TABLE directories (directory_id INT, parent_id INT, name VARCHAR, path VARCHAR,
+                                          created_at TIMESTAMP WITH TIME ZONE, file_count INT)
+            """);
+            s.execute("""
+                CREATE TABLE logical_files (logical_file_id BIGINT, directory_id INT, original_filename VARCHAR,
+                                            file_description VARCHAR, mime_type VARCHAR, total_size BIGINT,
+                                            part_count INT, codec VARCHAR, checksum_sha256 VARCHAR,
+                                            created_at TIMESTAMP WITH TIME ZONE)
+            """);
+        }
+
+        OffsetDateTime created = OffsetDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        try (PreparedStatement f = connection.prepareStatement("INSERT INTO files VALUES (?, ?, ?, ?, ?, ?)");
+             PreparedStatement d = connection.prepareStatement("INSERT INTO directories VALUES (?, ?, ?, ?, ?, ?)");
+             PreparedStatement l = connection.prepareStatement(
+                     "INSERT INTO logical_files VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            for (int i = 1; i <= rows; i++) {
+                OffsetDateTime at = created.plusMinutes(i);
+                f.setInt(1, i);
+                f.setString(2, "file-" + i + ".bin");
+                f.setString(3, i % 3 == 0 ? null : "Description " + i);
+                f.setLong(4, i * 4099L);
+                f.setString(5, "application/octet-stream");
+                f.setObject(6, at);
+                f.addBatch();
+
+                d.setInt(1, i);
+                d.setInt(2, i / 10);
+                d.setString(3, "dir-" + i);
+                d.setString(4, "parent/dir-" + i);
+                d.setObject(5, at);
+                d.setInt(6, i % 100);
+                d.addBatch();
+
+                l.setLong(1, i);
+                l.setInt(2, i / 10);
+                l.setString(3, "split-" + i + ".mkv");
+                l.setString(4, null);
+                l.setString(5, "video/x-matroska");
+                l.setLong(6, i * 10485760L);
+                l.setInt(7, 1 + i % 50);
+                l.setString(8, "raw");
+                l.setString(9, "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+                l.setObject(10, at);
+                l.addBatch();
+            }
+            f.executeBatch();
+            d.executeBatch();
+            l.executeBatch();
+        }
+    }
+
+    @TearDown
+    public void close() throws SQLException {
+        try (Statement s = connection.createStatement()) {
+            s.execute("DROP ALL OBJECTS");
+        }
+        connection.close();
+    }
+
+    @Benchmark
+    public void scanOnly(Blackhole bh) throws SQLException {
+        try (PreparedStatement p = connection.prepareStatement(FILES);
+             ResultSet r = p.executeQuery()) {
+            while (r.next()) bh.consume(r.getInt(1));
+        }
+    }
+
+    @Benchmark
+    public List<Database.FileEntry> mapFiles() throws SQLException {
+        try (PreparedStatement p = connection.prepareStatement(FILES);
+             ResultSet r = p.executeQuery()) {
+            List<Database.FileEntry> out = new ArrayList<>();
+            while (r.next()) out.add(PostgresDatabase.mapFileEntry(r));
+            return out;
+        }
+    }
+
+    @Benchmark
+    public List<Database.DirectoryEntry> mapDirectories() throws SQLException {
+        try (PreparedStatement p = connection.prepareStatement(DIRECTORIES);
+             ResultSet r = p.executeQuery()) {
+            return PostgresDatabase.mapDirectories(r);
+        }
+    }
+
+    @Benchmark
+    public List<Database.LogicalFileEntry> mapLogicalFiles() throws SQLException {
+        try (PreparedStatement p = connection.prepareStatement(LOGICAL_FILES);
+             ResultSet r = p.executeQuery()) {
+            List<Database.LogicalFileEntry> out = new ArrayList<>();
+            while (r.next()) out.add(PostgresDatabase.mapLogicalFile(r));
+            return out;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.pinapelz.frontend;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a directory listing into the file table fragment. The output
+ * buffer is reused, so the score and {@code -prof gc} figures are the
+ * template's own cost per listing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileTableRenderBenchmark {
+
+    private static final String[] MIME_TYPES = {
+            "image/png", "video/mp4", "application/pdf", "text/plain", "application/zip"
+    };
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private List<FileRow> files;
+    private StringBuilder out;
+
+    @Setup
+    public void createRows() {
+        files = new ArrayList<>(rows);
+        OffsetDateTime created = OffsetDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        for (int i = 0; i < rows; i++) {
+            // Every tenth row is a split file, which renders without a preview
+            String id = i % 10 == 0 ? "partial:" + i : Integer.toString(i);
+            files.add(new FileRow(id, "file <" + i + "> & notes.bin", i % 3 == 0 ? null : "Description " + i,
+                    i * 4099L, MIME_TYPES[i % MIME_TYPES.length], created.plusMinutes(i)));
+        }
+        out = new StringBuilder(rows * 1024);
+    }
+
+    @Benchmark
+    public int renderFileTable() {
+        out.setLength(0);
+        HtmlTemplates.INSTANCE.writeFileTable(out, files, "", "");
+        return out.length();
+    }
+}
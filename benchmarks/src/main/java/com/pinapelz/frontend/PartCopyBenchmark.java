@@ -0,0 +1,68 @@
+package com.pinapelz.frontend;
+
+import com.pinapelz.Retriever;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying one part from the CDN into a response, as {@code /api/reassemble}
+ * does for each part, against a loopback HTTP server that serves the part
+ * from memory. Network latency is left out on purpose: the score is the
+ * copy path's own overhead, including the thread hand-off and watching
+ * for a hedge that {@link HedgedPartFetch} adds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PartCopyBenchmark {
+
+    @Param({"1", "10"})
+    public int partMb;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String url;
+
+    @Setup
+    public void startServer() throws IOException {
+        byte[] part = new byte[partMb * 1024 * 1024];
+        new Random(42).nextBytes(part);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/part", exchange -> {
+            exchange.getRequestBody().close();
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, part.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(part);
+            }
+        });
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/part";
+    }
+
+    @TearDown
+    public void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long copyPart() {
+        return new HedgedPartFetch(new Retriever.AttachmentUrls(url, url), OutputStream.nullOutputStream(), 0).run();
+    }
+}
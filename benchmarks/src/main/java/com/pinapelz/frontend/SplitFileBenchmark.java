@@ -0,0 +1,89 @@
+package com.pinapelz.frontend;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to split an upload into webhook-sized parts on disk, the same way
+ * {@code /api/split} does. Each invocation streams a whole file, so the
+ * score is seconds per file; divide {@code sizeMb} by it for MB/s. Run with
+ * {@code -prof gc} for the bytes allocated per split.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+@State(Scope.Benchmark)
+public class SplitFileBenchmark {
+
+    @Param({"100", "1024", "4096"})
+    public int sizeMb;
+
+    private byte[] pattern;
+    private Path workingDir;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        // Random bytes so the parts cost what real, incompressible uploads do
+        pattern = new byte[1024 * 1024 + 7];
+        new Random(42).nextBytes(pattern);
+    }
+
+    @Setup(Level.Invocation)
+    public void createWorkingDir() throws IOException {
+        workingDir = Files.createTempDirectory("split-bench-");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteParts() {
+        File[] parts = workingDir.toFile().listFiles();
+        if (parts != null) for (File part : parts) part.delete();
+        workingDir.toFile().delete();
+    }
+
+    @Benchmark
+    public SplitFileResult splitBySize() throws IOException {
+        long size = sizeMb * 1024L * 1024L;
+        return MultipartFileManagerKt.splitFile(new PatternInputStream(pattern, size), "bench.bin", size,
+                new SplitConfig.BySize(10 * 1024 * 1024L), "bench", workingDir);
+    }
+
+    /** [size] bytes of [pattern], repeated, without holding more than the pattern in memory. */
+    static final class PatternInputStream extends InputStream {
+        private final byte[] pattern;
+        private long remaining;
+        private int offset;
+
+        PatternInputStream(byte[] pattern, long size) {
+            this.pattern = pattern;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) return -1;
+            remaining--;
+            int b = pattern[offset] & 0xFF;
+            offset = (offset + 1) % pattern.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) return -1;
+            int n = (int) Math.min(Math.min(len, remaining), pattern.length - offset);
+            System.arraycopy(pattern, offset, b, off, n);
+            offset = (offset + n) % pattern.length;
+            remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.pinapelz.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** {@code --name value} command line options. */
+final class Args {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    Args(String[] argv) {
+        for (int i = 0; i < argv.length; i++) {
+            if (!argv[i].startsWith("--") || i + 1 >= argv.length)
+                throw new IllegalArgumentException("Expected --option value, got " + argv[i]);
+            values.put(argv[i], argv[++i]);
+        }
+    }
+
+    String value(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    long longValue(String name, long defaultValue) {
+        String v = values.get(name);
+        return v == null ? defaultValue : Long.parseLong(v);
+    }
+
+    double doubleValue(String name, double defaultValue) {
+        String v = values.get(name);
+        return v == null ? defaultValue : Double.parseDouble(v);
+    }
+}
@@ -0,0 +1,563 @@
+package com.pinapelz.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.UploadedFile;
+import io.javalin.websocket.WsContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * A local stand-in for the parts of Discord that Nitro-FS talks to, so that
+ * uploads and downloads can be load-tested without a bot token or Discord's
+ * rate limits. It serves:
+ *
+ * <ul>
+ *   <li>the REST calls JDA makes to log in and {@code retrieveMessageById}</li>
+ *   <li>a gateway that announces one guild with one storage channel</li>
+ *   <li>webhook {@code POST}s, stored as messages in that channel</li>
+ *   <li>CDN and media proxy attachment downloads, with {@code Range}</li>
+ * </ul>
+ *
+ * Every request can be slowed down, rate limited or failed at random, see
+ * {@link Faults}. {@code POST /standin/messages?count=&size=&content=} posts
+ * messages with one attachment each as a user, which the bot then ingests
+ * like a real upload.
+ *
+ * <p>Point the app at it with {@code DISCORD_API_URL=http://localhost:<port>/api/v10/},
+ * any {@code BOT_TOKEN}, and webhook URLs from {@code GET /standin/webhooks}.
+ * Usage: {@code DiscordStandIn [--port 9000] [--data dir] [--webhooks 3]} plus
+ * the {@link Faults} options.
+ */
+public class DiscordStandIn {
+
+    static final long GUILD_ID = 100_000_000_000_000_001L;
+    static final long CHANNEL_ID = 100_000_000_000_000_002L;
+    static final long BOT_ID = 100_000_000_000_000_003L;
+    static final long USER_ID = 100_000_000_000_000_004L;
+    static final long WEBHOOK_ID = 100_000_000_000_000_100L;
+
+    /** Latency, 429s and failures injected into every request, configured from the command line. */
+    static final class Faults {
+        long latencyMs;
+        long jitterMs;
+        double rateLimitRate;
+        double errorRate;
+        // Per-connection bandwidth for attachment downloads, 0 for unlimited
+        long cdnBytesPerSecond;
+        // Share of attachment downloads that stall once, at a random point, for cdnStallMs
+        double cdnStallRate;
+        long cdnStallMs;
+
+        static Faults parse(Args args) {
+            Faults f = new Faults();
+            f.latencyMs = args.longValue("--latency-ms", 0);
+            f.jitterMs = args.longValue("--jitter-ms", 0);
+            f.rateLimitRate = args.doubleValue("--rate-limit-rate", 0);
+            f.errorRate = args.doubleValue("--error-rate", 0);
+            f.cdnBytesPerSecond = args.longValue("--cdn-kbps", 0) * 1024;
+            f.cdnStallRate = args.doubleValue("--cdn-stall-rate", 0);
+            f.cdnStallMs = args.longValue("--cdn-stall-ms", 20_000);
+            return f;
+        }
+
+        void delay() throws InterruptedException {
+            long ms = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+            if (ms > 0) Thread.sleep(ms);
+        }
+
+        boolean rateLimited() {
+            return rateLimitRate > 0 && ThreadLocalRandom.current().nextDouble() < rateLimitRate;
+        }
+
+        boolean failed() {
+            return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+        }
+
+        /** The byte offset a download stalls at, or -1 if it does not; 0 stalls before the first byte. */
+        long stallAt(long length) {
+            if (cdnStallRate <= 0 || ThreadLocalRandom.current().nextDouble() >= cdnStallRate) return -1;
+            return ThreadLocalRandom.current().nextLong(length);
+        }
+    }
+
+    private record Attachment(long id, String fileName, long size, String contentType, Path path) {}
+
+    private record StoredMessage(long id, long authorId, boolean webhook, String content, OffsetDateTime createdAt,
+                                 List<Attachment> attachments) {}
+
+    private final Gson gson = new Gson();
+    private final Faults faults;
+    private final Path dataDir;
+    private final int webhookCount;
+    private String baseUrl;
+
+    private final Map<Long, StoredMessage> messages = new ConcurrentHashMap<>();
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+
+    private static final class Session {
+        final WsContext ws;
+        final Deflater deflater;
+        final AtomicLong seq = new AtomicLong();
+
+        Session(WsContext ws, boolean compressed) {
+            this.ws = ws;
+            this.deflater = compressed ? new Deflater() : null;
+        }
+    }
+
+    public DiscordStandIn(Faults faults, Path dataDir, int webhookCount) {
+        this.faults = faults;
+        this.dataDir = dataDir;
+        this.webhookCount = webhookCount;
+    }
+
+    public static void main(String[] argv) throws IOException {
+        Args args = new Args(argv);
+        int port = (int) args.longValue("--port", 9000);
+        Path data = Path.of(args.value("--data", "standin-data"));
+        Files.createDirectories(data);
+        DiscordStandIn standIn = new DiscordStandIn(Faults.parse(args), data, (int) args.longValue("--webhooks", 3));
+        standIn.start(port);
+    }
+
+    public Javalin start(int port) {
+        baseUrl = "http://localhost:" + port;
+        Javalin app = Javalin.create(config -> config.showJavalinBanner = false);
+
+        app.get("/api/v10/users/@me", ctx -> rest(ctx, () -> json(ctx, user(BOT_ID, "standin-bot", true))));
+        app.get("/api/v10/gateway/bot", ctx -> rest(ctx, () -> {
+            JsonObject limit = new JsonObject();
+            limit.addProperty("total", 1000);
+            limit.addProperty("remaining", 1000);
+            limit.addProperty("reset_after", 0);
+            limit.addProperty("max_concurrency", 1);
+            JsonObject body = new JsonObject();
+            body.addProperty("url", "ws://localhost:" + port + "/gateway");
+            body.addProperty("shards", 1);
+            body.add("session_start_limit", limit);
+            json(ctx, body);
+        }));
+        app.get("/api/v10/gateway", ctx -> json(ctx, Map.of("url", "ws://localhost:" + port + "/gateway")));
+        app.get("/api/v10/channels/{channel}/messages/{message}", ctx -> rest(ctx, () -> {
+            StoredMessage m = messages.get(Long.parseLong(ctx.pathParam("message")));
+            if (m == null || Long.parseLong(ctx.pathParam("channel")) != CHANNEL_ID) {
+                json(ctx.status(404), Map.of("message", "Unknown Message", "code", 10008));
+                return;
+            }
+            json(ctx, message(m, false));
+        }));
+
+        app.post("/api/webhooks/{id}/{token}", ctx -> rest(ctx, () -> postWebhook(ctx)));
+        app.get("/attachments/{channel}/{message}/{name}", this::download);
+        app.get("/proxy/attachments/{channel}/{message}/{name}", this::download);
+
+        app.get("/standin/webhooks", ctx -> {
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < webhookCount; i++)
+                out.append(baseUrl).append("/api/webhooks/").append(WEBHOOK_ID + i).append("/token").append(i)
+                        .append("?wait=true\n");
+            ctx.contentType("text/plain").result(out.toString());
+        });
+        app.post("/standin/messages", this::postUserMessages);
+        app.get("/standin/stats", ctx -> {
+            Map<String, Object> stats = new java.util.TreeMap<>();
+            requests.forEach((k, v) -> stats.put(k, v.get()));
+            stats.put("messages", messages.size());
+            stats.put("gatewaySessions", sessions.size());
+            json(ctx, stats);
+        });
+
+        app.ws("/gateway", ws -> {
+            ws.onConnect(ctx -> {
+                ctx.session.setIdleTimeout(java.time.Duration.ZERO);
+                Session session = new Session(ctx, "zlib-stream".equals(ctx.queryParam("compress")));
+                sessions.add(session);
+                JsonObject hello = new JsonObject();
+                hello.addProperty("heartbeat_interval", 41_250);
+                send(session, 10, null, hello);
+            });
+            ws.onMessage(ctx -> onGatewayMessage(ctx, ctx.message()));
+            ws.onBinaryMessage(ctx -> onGatewayMessage(ctx, new String(ctx.data(), ctx.offset(), ctx.length(),
+                    StandardCharsets.UTF_8)));
+            ws.onClose(ctx -> sessions.removeIf(s -> s.ws.sessionId().equals(ctx.sessionId())));
+        });
+
+        app.start(port);
+        System.out.println("Discord stand-in listening on " + baseUrl + " (guild " + GUILD_ID
+                + ", channel " + CHANNEL_ID + "), webhooks at " + baseUrl + "/standin/webhooks");
+        return app;
+    }
+
+    // REST and webhook requests share Discord's failure modes: latency, 429s and 5xx
+    private void rest(Context ctx, ThrowingRunnable handler) throws Exception {
+        count(ctx.method() + " " + ctx.endpointHandlerPath());
+        faults.delay();
+        if (faults.rateLimited()) {
+            count("429");
+            ctx.header("Retry-After", "1");
+            ctx.header("X-RateLimit-Limit", "5");
+            ctx.header("X-RateLimit-Remaining", "0");
+            ctx.header("X-RateLimit-Reset-After", "0.5");
+            ctx.header("X-RateLimit-Scope", "user");
+            json(ctx.status(429), Map.of("message", "You are being rate limited.", "retry_after", 0.5, "global", false));
+            return;
+        }
+        if (faults.failed()) {
+            count("5xx");
+            ctx.status(502).result("Bad Gateway");
+            return;
+        }
+        handler.run();
+    }
+
+    private void json(Context ctx, Object body) {
+        ctx.contentType("application/json").result(gson.toJson(body));
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+    private void count(String key) {
+        requests.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private void postWebhook(Context ctx) throws IOException {
+        long webhookId = Long.parseLong(ctx.pathParam("id"));
+        long messageId = nextId();
+        Path dir = Files.createDirectories(dataDir.resolve(Long.toString(messageId)));
+        List<Attachment> attachments = new java.util.ArrayList<>();
+        for (UploadedFile file : ctx.uploadedFiles()) {
+            Path path = dir.resolve(file.filename());
+            try (InputStream in = file.content()) {
+                Files.copy(in, path);
+            }
+            attachments.add(new Attachment(nextId(), file.filename(), Files.size(path),
+                    file.contentType() == null ? "application/octet-stream" : file.contentType(), path));
+        }
+        String content = ctx.formParam("content");
+        StoredMessage m = new StoredMessage(messageId, webhookId, true, content == null ? "" : content,
+                OffsetDateTime.now(ZoneOffset.UTC), attachments);
+        messages.put(messageId, m);
+        dispatch("MESSAGE_CREATE", message(m, true));
+        json(ctx, message(m, false));
+    }
+
+    /** Posts messages as a regular user, which the bot ingests like an upload from the Discord client. */
+    private void postUserMessages(Context ctx) throws IOException {
+        int count = Integer.parseInt(ctx.queryParamAsClass("count", String.class).getOrDefault("1"));
+        long size = Long.parseLong(ctx.queryParamAsClass("size", String.class).getOrDefault("1048576"));
+        String content = ctx.queryParamAsClass("content", String.class).getOrDefault("loadtest: seeded by the stand-in");
+        byte[] chunk = new byte[64 * 1024];
+        new Random().nextBytes(chunk);
+        for (int i = 0; i < count; i++) {
+            long messageId = nextId();
+            Path dir = Files.createDirectories(dataDir.resolve(Long.toString(messageId)));
+            String name = "seed-" + messageId + ".bin";
+            Path path = dir.resolve(name);
+            try (OutputStream out = Files.newOutputStream(path)) {
+                for (long left = size; left > 0; left -= chunk.length)
+                    out.write(chunk, 0, (int) Math.min(chunk.length, left));
+            }
+            StoredMessage m = new StoredMessage(messageId, USER_ID, false, content, OffsetDateTime.now(ZoneOffset.UTC),
+                    List.of(new Attachment(nextId(), name, size, "application/octet-stream", path)));
+            messages.put(messageId, m);
+            dispatch("MESSAGE_CREATE", message(m, true));
+        }
+        json(ctx, Map.of("posted", count));
+    }
+
+    private void download(Context ctx) throws Exception {
+        count("GET attachment");
+        faults.delay();
+        if (faults.failed()) {
+            count("5xx");
+            ctx.status(503).result("Service Unavailable");
+            return;
+        }
+        StoredMessage m = messages.get(Long.parseLong(ctx.pathParam("message")));
+        Attachment a = m == null ? null : m.attachments().stream()
+                .filter(x -> x.fileName().equals(ctx.pathParam("name"))).findFirst().orElse(null);
+        if (a == null) {
+            ctx.status(404).result("Not Found");
+            return;
+        }
+
+        long from = 0;
+        long to = a.size() - 1;
+        String range = ctx.header("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring(6).split("-", 2);
+            if (bounds[0].isEmpty()) {
+                from = Math.max(0, a.size() - Long.parseLong(bounds[1]));
+            } else {
+                from = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) to = Math.min(to, Long.parseLong(bounds[1]));
+            }
+            if (from > to) {
+                ctx.status(416).header("Content-Range", "bytes */" + a.size());
+                return;
+            }
+            ctx.status(206).header("Content-Range", "bytes " + from + "-" + to + "/" + a.size());
+        }
+        long length = to - from + 1;
+        ctx.contentType(a.contentType());
+        ctx.header("Accept-Ranges", "bytes");
+        ctx.header("Content-Length", Long.toString(length));
+
+        try (InputStream in = Files.newInputStream(a.path())) {
+            in.skipNBytes(from);
+            OutputStream out = ctx.res().getOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long start = System.nanoTime();
+            long sent = 0;
+            long stallAt = faults.stallAt(length);
+            while (sent < length) {
+                if (stallAt >= 0 && sent >= stallAt) {
+                    count("cdnStalls");
+                    Thread.sleep(faults.cdnStallMs);
+                    stallAt = -1;
+                }
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, length - sent));
+                if (n < 0) break;
+                out.write(buffer, 0, n);
+                sent += n;
+                if (faults.cdnBytesPerSecond > 0) {
+                    long due = start + sent * 1_000_000_000L / faults.cdnBytesPerSecond;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+            }
+        }
+    }
+
+    private void onGatewayMessage(WsContext ctx, String text) {
+        JsonObject payload = gson.fromJson(text, JsonObject.class);
+        Session session = sessions.stream().filter(s -> s.ws.sessionId().equals(ctx.sessionId())).findFirst().orElse(null);
+        if (session == null) return;
+        int op = payload.get("op").getAsInt();
+        if (op == 1) {
+            send(session, 11, null, null);
+        } else if (op == 2 || op == 6) {
+            // Resumes are answered like a fresh login: there are no missed events to replay
+            send(session, 0, "READY", ready());
+            send(session, 0, "GUILD_CREATE", guild());
+        }
+    }
+
+    private void dispatch(String event, JsonObject data) {
+        for (Session s : sessions) send(s, 0, event, data);
+    }
+
+    private void send(Session session, int op, String event, JsonObject data) {
+        JsonObject payload = new JsonObject();
+        payload.addProperty("op", op);
+        payload.add("d", data);
+        if (op == 0) {
+            payload.addProperty("s", session.seq.incrementAndGet());
+            payload.addProperty("t", event);
+        }
+        byte[] json = gson.toJson(payload).getBytes(StandardCharsets.UTF_8);
+        synchronized (session) {
+            if (!session.ws.session.isOpen()) return;
+            if (session.deflater == null) {
+                session.ws.send(new String(json, StandardCharsets.UTF_8));
+                return;
+            }
+            // zlib-stream: one deflate context per connection, each payload ending in a sync flush
+            session.deflater.setInput(json);
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream(json.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            int n;
+            do {
+                n = session.deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, n);
+            } while (n == buffer.length);
+            session.ws.send(ByteBuffer.wrap(out.toByteArray()));
+        }
+    }
+
+    private JsonObject ready() {
+        JsonObject unavailable = new JsonObject();
+        unavailable.addProperty("id", Long.toString(GUILD_ID));
+        unavailable.addProperty("unavailable", true);
+        JsonArray guilds = new JsonArray();
+        guilds.add(unavailable);
+
+        JsonObject application = new JsonObject();
+        application.addProperty("id", Long.toString(BOT_ID));
+        application.addProperty("flags", 0);
+
+        JsonObject d = new JsonObject();
+        d.addProperty("v", 10);
+        d.add("user", user(BOT_ID, "standin-bot", true));
+        d.add("guilds", guilds);
+        d.addProperty("session_id", "standin-" + sequence.incrementAndGet());
+        d.addProperty("resume_gateway_url", baseUrl.replace("http://", "ws://") + "/gateway");
+        d.add("application", application);
+        d.add("private_channels", new JsonArray());
+        d.add("relationships", new JsonArray());
+        d.add("presences", new JsonArray());
+        return d;
+    }
+
+    private JsonObject guild() {
+        JsonObject everyone = new JsonObject();
+        everyone.addProperty("id", Long.toString(GUILD_ID));
+        everyone.addProperty("name", "@everyone");
+        everyone.addProperty("permissions", "1071698660929");
+        everyone.addProperty("position", 0);
+        everyone.addProperty("color", 0);
+        JsonObject colors = new JsonObject();
+        colors.addProperty("primary_color", 0);
+        colors.add("secondary_color", null);
+        colors.add("tertiary_color", null);
+        everyone.add("colors", colors);
+        everyone.addProperty("hoist", false);
+        everyone.addProperty("managed", false);
+        everyone.addProperty("mentionable", false);
+        everyone.addProperty("flags", 0);
+        JsonArray roles = new JsonArray();
+        roles.add(everyone);
+
+        JsonObject channel = new JsonObject();
+        channel.addProperty("id", Long.toString(CHANNEL_ID));
+        channel.addProperty("type", 0);
+        channel.addProperty("guild_id", Long.toString(GUILD_ID));
+        channel.addProperty("name", "storage");
+        channel.addProperty("position", 0);
+        channel.add("permission_overwrites", new JsonArray());
+        channel.addProperty("nsfw", false);
+        channel.addProperty("rate_limit_per_user", 0);
+        channel.addProperty("flags", 0);
+        JsonArray channels = new JsonArray();
+        channels.add(channel);
+
+        JsonObject self = new JsonObject();
+        self.add("user", user(BOT_ID, "standin-bot", true));
+        self.add("roles", new JsonArray());
+        self.addProperty("joined_at", OffsetDateTime.now(ZoneOffset.UTC).toString());
+        self.addProperty("deaf", false);
+        self.addProperty("mute", false);
+        self.addProperty("flags", 0);
+        JsonArray members = new JsonArray();
+        members.add(self);
+
+        JsonObject g = new JsonObject();
+        g.addProperty("id", Long.toString(GUILD_ID));
+        g.addProperty("name", "Nitro-FS stand-in");
+        g.addProperty("owner_id", Long.toString(USER_ID));
+        g.addProperty("afk_timeout", 300);
+        g.addProperty("verification_level", 0);
+        g.addProperty("default_message_notifications", 0);
+        g.addProperty("explicit_content_filter", 0);
+        g.addProperty("mfa_level", 0);
+        g.addProperty("nsfw_level", 0);
+        g.addProperty("premium_tier", 0);
+        g.addProperty("preferred_locale", "en-US");
+        g.addProperty("member_count", 2);
+        g.addProperty("large", false);
+        g.addProperty("unavailable", false);
+        g.addProperty("joined_at", OffsetDateTime.now(ZoneOffset.UTC).toString());
+        g.add("roles", roles);
+        g.add("channels", channels);
+        g.add("members", members);
+        for (String empty : new String[]{"emojis", "stickers", "features", "threads", "voice_states", "presences",
+                "stage_instances", "guild_scheduled_events", "soundboard_sounds"})
+            g.add(empty, new JsonArray());
+        return g;
+    }
+
+    private JsonObject message(StoredMessage m, boolean event) {
+        JsonObject o = new JsonObject();
+        o.addProperty("id", Long.toString(m.id()));
+        o.addProperty("channel_id", Long.toString(CHANNEL_ID));
+        o.add("author", m.webhook() ? user(m.authorId(), "standin-webhook", true) : user(m.authorId(), "uploader", false));
+        if (m.webhook()) o.addProperty("webhook_id", Long.toString(m.authorId()));
+        o.addProperty("content", m.content());
+        o.addProperty("timestamp", m.createdAt().toString());
+        o.add("edited_timestamp", null);
+        o.addProperty("tts", false);
+        o.addProperty("mention_everyone", false);
+        o.add("mentions", new JsonArray());
+        o.add("mention_roles", new JsonArray());
+        o.add("embeds", new JsonArray());
+        o.add("components", new JsonArray());
+        o.addProperty("pinned", false);
+        o.addProperty("type", 0);
+        o.addProperty("flags", 0);
+
+        JsonArray attachments = new JsonArray();
+        for (Attachment a : m.attachments()) {
+            String path = "/attachments/" + CHANNEL_ID + "/" + m.id() + "/" + a.fileName()
+                    + "?ex=" + Long.toHexString(Instant.now().getEpochSecond() + 86_400);
+            JsonObject json = new JsonObject();
+            json.addProperty("id", Long.toString(a.id()));
+            json.addProperty("filename", a.fileName());
+            json.addProperty("size", a.size());
+            json.addProperty("content_type", a.contentType());
+            json.addProperty("url", baseUrl + path);
+            json.addProperty("proxy_url", baseUrl + "/proxy" + path);
+            attachments.add(json);
+        }
+        o.add("attachments", attachments);
+
+        if (event) {
+            o.addProperty("guild_id", Long.toString(GUILD_ID));
+            if (!m.webhook()) {
+                JsonObject member = new JsonObject();
+                member.add("roles", new JsonArray());
+                member.addProperty("joined_at", m.createdAt().toString());
+                member.addProperty("deaf", false);
+                member.addProperty("mute", false);
+                member.addProperty("flags", 0);
+                o.add("member", member);
+            }
+        }
+        return o;
+    }
+
+    private static JsonObject user(long id, String name, boolean bot) {
+        JsonObject u = new JsonObject();
+        u.addProperty("id", Long.toString(id));
+        u.addProperty("username", name);
+        u.addProperty("discriminator", "0");
+        u.addProperty("global_name", name);
+        u.add("avatar", null);
+        u.addProperty("bot", bot);
+        u.addProperty("flags", 0);
+        u.addProperty("public_flags", 0);
+        u.addProperty("verified", true);
+        u.addProperty("mfa_enabled", false);
+        return u;
+    }
+
+    // Snowflakes with the current time, so the app's time-based lookups see plausible IDs
+    private long nextId() {
+        long millis = System.currentTimeMillis() - 1_420_070_400_000L;
+        return (millis << 22) | (sequence.incrementAndGet() & 0x3FFFFF);
+    }
+}
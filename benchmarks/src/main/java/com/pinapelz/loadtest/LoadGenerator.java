@@ -0,0 +1,324 @@
+package com.pinapelz.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drives a running Nitro-FS frontend, usually backed by {@link DiscordStandIn},
+ * with {@code concurrency} clients per scenario and reports throughput and
+ * latency percentiles. Scenarios run one after another:
+ *
+ * <ul>
+ *   <li>{@code split}: uploads a random file through {@code /api/split} with webhooks</li>
+ *   <li>{@code reassemble}: downloads split files through {@code /api/reassemble}</li>
+ *   <li>{@code fetch}: follows {@code /fetch} to the attachment and downloads it</li>
+ *   <li>{@code files}: renders a directory listing through {@code /api/files}</li>
+ * </ul>
+ *
+ * {@code reassemble} downloads the split files in {@code --dir}, so running
+ * {@code split} first is enough to give it something to read. {@code fetch}
+ * needs ingested files; with {@code --standin} it posts some through the
+ * stand-in when there are none.
+ *
+ * <p>{@code --json} writes the results for regression tracking, and
+ * {@code --max-p99-ms} / {@code --max-error-rate} make the run exit with
+ * status 1 when any scenario is over budget, for use as a CI gate.
+ */
+public class LoadGenerator {
+
+    private static final String[] ALL_SCENARIOS = {"split", "reassemble", "fetch", "files"};
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    private final Gson gson = new Gson();
+    private final String target;
+    private final int directoryId;
+    private final byte[] upload;
+
+    private List<Long> logicalFileIds = List.of();
+    private List<Long> fileIds = List.of();
+
+    /** Latencies and bytes of one scenario, merged from every client. */
+    static final class Result {
+        final String scenario;
+        final List<Long> latencies = new ArrayList<>();
+        long errors;
+        long bytes;
+        long elapsedNanos;
+        String lastError;
+
+        Result(String scenario) {
+            this.scenario = scenario;
+        }
+
+        synchronized void merge(List<Long> clientLatencies, long clientErrors, long clientBytes, String error) {
+            latencies.addAll(clientLatencies);
+            errors += clientErrors;
+            bytes += clientBytes;
+            if (error != null) lastError = error;
+        }
+
+        long requests() {
+            return latencies.size() + errors;
+        }
+
+        double percentileMs(long[] sorted, double q) {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(q * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+
+        Map<String, Object> summary() {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            double seconds = elapsedNanos / 1e9;
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("scenario", scenario);
+            s.put("requests", requests());
+            s.put("errors", errors);
+            s.put("errorRate", requests() == 0 ? 0 : (double) errors / requests());
+            s.put("requestsPerSecond", requests() / seconds);
+            s.put("megabytesPerSecond", bytes / seconds / (1024 * 1024));
+            s.put("p50Ms", percentileMs(sorted, 0.50));
+            s.put("p90Ms", percentileMs(sorted, 0.90));
+            s.put("p99Ms", percentileMs(sorted, 0.99));
+            s.put("maxMs", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+            if (lastError != null) s.put("lastError", lastError);
+            return s;
+        }
+    }
+
+    LoadGenerator(String target, int directoryId, int uploadBytes) {
+        this.target = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+        this.directoryId = directoryId;
+        this.upload = new byte[uploadBytes];
+        new Random(42).nextBytes(upload);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Args args = new Args(argv);
+        String[] scenarios = args.value("--scenarios", String.join(",", ALL_SCENARIOS)).split(",");
+        int concurrency = (int) args.longValue("--concurrency", 8);
+        long durationSeconds = args.longValue("--duration", 30);
+        long warmupSeconds = args.longValue("--warmup", 5);
+        double maxP99Ms = args.doubleValue("--max-p99-ms", 0);
+        double maxErrorRate = args.doubleValue("--max-error-rate", -1);
+        String standIn = args.value("--standin", null);
+
+        LoadGenerator generator = new LoadGenerator(args.value("--target", "http://localhost:7070"),
+                (int) args.longValue("--dir", 1), (int) args.longValue("--split-bytes", 25L * 1024 * 1024));
+
+        List<Map<String, Object>> summaries = new ArrayList<>();
+        for (String scenario : scenarios) {
+            generator.prepare(scenario.trim(), standIn);
+            if (warmupSeconds > 0) generator.run(scenario.trim(), concurrency, warmupSeconds);
+            Result result = generator.run(scenario.trim(), concurrency, durationSeconds);
+            summaries.add(result.summary());
+        }
+
+        System.out.printf("%n%-11s %9s %7s %9s %9s %9s %9s %9s %9s%n", "scenario", "requests", "errors",
+                "req/s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        boolean failed = false;
+        for (Map<String, Object> s : summaries) {
+            System.out.printf("%-11s %9d %7d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n", s.get("scenario"),
+                    s.get("requests"), s.get("errors"), s.get("requestsPerSecond"), s.get("megabytesPerSecond"),
+                    s.get("p50Ms"), s.get("p90Ms"), s.get("p99Ms"), s.get("maxMs"));
+            if (s.containsKey("lastError")) System.out.println("            last error: " + s.get("lastError"));
+            if (maxP99Ms > 0 && (double) s.get("p99Ms") > maxP99Ms) {
+                System.out.println("            FAIL: p99 over " + maxP99Ms + " ms");
+                failed = true;
+            }
+            if (maxErrorRate >= 0 && (double) s.get("errorRate") > maxErrorRate) {
+                System.out.println("            FAIL: error rate over " + maxErrorRate);
+                failed = true;
+            }
+        }
+
+        String json = args.value("--json", null);
+        if (json != null) {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("target", generator.target);
+            report.put("concurrency", concurrency);
+            report.put("durationSeconds", durationSeconds);
+            report.put("scenarios", summaries);
+            Files.writeString(Path.of(json), new GsonBuilder().setPrettyPrinting().create().toJson(report));
+            System.out.println("Results written to " + json);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /** Finds the IDs a scenario reads, seeding files through the stand-in if there are none. */
+    private void prepare(String scenario, String standIn) throws Exception {
+        switch (scenario) {
+            case "split", "files" -> {
+            }
+            case "reassemble" -> {
+                logicalFileIds = listIds("/api/v1/logical-files?dir=" + directoryId);
+                if (logicalFileIds.isEmpty())
+                    throw new IllegalStateException("No split files in directory " + directoryId
+                            + " to reassemble; run the split scenario first");
+            }
+            case "fetch" -> {
+                fileIds = listIds("/api/v1/files?dir=" + directoryId);
+                if (fileIds.isEmpty() && standIn != null) {
+                    String content = URLEncoder.encode("loadtest: seeded by the load generator", StandardCharsets.UTF_8);
+                    send(HttpRequest.newBuilder(URI.create(standIn + "/standin/messages?count=50&size=1048576&content="
+                            + content)).POST(HttpRequest.BodyPublishers.noBody()).build());
+                    // Ingestion is write-behind, give it a moment to flush
+                    for (int i = 0; i < 20 && fileIds.isEmpty(); i++) {
+                        Thread.sleep(500);
+                        fileIds = listIds("/api/v1/files?dir=" + directoryIdOf("loadtest"));
+                    }
+                }
+                if (fileIds.isEmpty())
+                    throw new IllegalStateException("No files in directory " + directoryId
+                            + " to fetch; pass --standin to seed some");
+            }
+            default -> throw new IllegalArgumentException("Unknown scenario " + scenario
+                    + ", expected one of " + Arrays.toString(ALL_SCENARIOS));
+        }
+    }
+
+    private Result run(String scenario, int concurrency, long seconds) throws Exception {
+        Result result = new Result(scenario);
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            futures.add(clients.submit(() -> {
+                List<Long> latencies = new ArrayList<>();
+                long errors = 0;
+                long bytes = 0;
+                String lastError = null;
+                while (System.nanoTime() < deadline) {
+                    long begin = System.nanoTime();
+                    try {
+                        bytes += request(scenario);
+                        latencies.add(System.nanoTime() - begin);
+                    } catch (Exception e) {
+                        errors++;
+                        lastError = e.getMessage();
+                    }
+                }
+                result.merge(latencies, errors, bytes, lastError);
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) f.get();
+        result.elapsedNanos = System.nanoTime() - start;
+        clients.shutdown();
+        return result;
+    }
+
+    /** Makes one request of {@code scenario}, returning the bytes moved. Throws on any failure. */
+    private long request(String scenario) throws Exception {
+        return switch (scenario) {
+            case "split" -> split();
+            case "reassemble" -> download("/api/reassemble?id=" + pick(logicalFileIds));
+            case "fetch" -> download("/fetch?fileId=" + pick(fileIds));
+            case "files" -> download("/api/files?dir=" + directoryId);
+            default -> throw new IllegalArgumentException(scenario);
+        };
+    }
+
+    private long split() throws Exception {
+        String boundary = "----loadtest" + UUID.randomUUID().toString().replace("-", "");
+        String name = "loadtest-" + UUID.randomUUID() + ".bin";
+        String head = field(boundary, "use-webhook", "true")
+                + field(boundary, "directory-id", Integer.toString(directoryId))
+                + "--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"" + name
+                + "\"\r\nContent-Type: application/octet-stream\r\n\r\n";
+        String tail = "\r\n--" + boundary + "--\r\n";
+        HttpRequest request = HttpRequest.newBuilder(URI.create(target + "/api/split"))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArrays(List.of(
+                        head.getBytes(StandardCharsets.UTF_8), upload, tail.getBytes(StandardCharsets.UTF_8))))
+                .build();
+        JsonObject response = gson.fromJson(send(request), JsonObject.class);
+        if (!response.get("success").getAsBoolean())
+            throw new IOException("Split failed: " + response.get("message").getAsString());
+        return upload.length;
+    }
+
+    private static String field(String boundary, String name, String value) {
+        return "--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value + "\r\n";
+    }
+
+    private long download(String path) throws Exception {
+        HttpResponse<InputStream> response = client.send(HttpRequest.newBuilder(URI.create(target + path)).build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        long bytes = 0;
+        try (InputStream body = response.body()) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = body.read(buffer)) >= 0) bytes += n;
+        }
+        if (response.statusCode() >= 400) throw new IOException("HTTP " + response.statusCode() + " for " + path);
+        return bytes;
+    }
+
+    private String send(HttpRequest request) throws Exception {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() >= 400)
+            throw new IOException("HTTP " + response.statusCode() + " for " + request.uri().getPath());
+        return response.body();
+    }
+
+    /** IDs of the first pages of a v1 listing, up to 1000. */
+    private List<Long> listIds(String path) throws Exception {
+        List<Long> ids = new ArrayList<>();
+        String after = null;
+        while (ids.size() < 1000) {
+            JsonObject page = gson.fromJson(send(HttpRequest.newBuilder(URI.create(target + path
+                    + (after == null ? "" : "&after=" + after))).build()), JsonObject.class);
+            JsonArray items = page.getAsJsonArray("items");
+            for (JsonElement item : items) ids.add(item.getAsJsonObject().get("id").getAsLong());
+            JsonElement next = page.get("next");
+            if (next == null || next.isJsonNull()) break;
+            after = next.getAsString();
+        }
+        return ids;
+    }
+
+    private int directoryIdOf(String path) throws Exception {
+        JsonObject page = gson.fromJson(send(HttpRequest.newBuilder(URI.create(target + "/api/v1/directories?limit=1000"))
+                .build()), JsonObject.class);
+        for (JsonElement item : page.getAsJsonArray("items")) {
+            JsonObject d = item.getAsJsonObject();
+            if (d.get("path").getAsString().equals(path)) return d.get("id").getAsInt();
+        }
+        return directoryId;
+    }
+
+    private static long pick(List<Long> ids) {
+        return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+    }
+}
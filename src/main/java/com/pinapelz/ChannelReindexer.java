@@ -0,0 +1,255 @@
+package com.pinapelz;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageHistory;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds file metadata from the message history of storage channels, for
+ * when the index was lost or the bot missed messages while offline.
+ * <p>
+ * Each channel gets its own worker that pages from the newest message back
+ * to where the previous run finished. JDA queues requests per rate-limit
+ * bucket and message history is bucketed per channel, so workers only share
+ * the global limit. Every page is upserted in one batch and checkpointed, so
+ * an interrupted run resumes from its last page.
+ * <p>
+ * Usage: {@code ChannelReindexer [channelId...]}, defaulting to the
+ * comma-separated {@code REINDEX_CHANNELS} setting.
+ */
+public class ChannelReindexer {
+
+    private static final Logger log = LoggerFactory.getLogger(ChannelReindexer.class);
+    private static final int PAGE_SIZE = 100;
+    private static final int ROOT_DIRECTORY = 1;
+
+    private final JDA jda;
+    private final Database database;
+    private final Map<String, Integer> directories = new ConcurrentHashMap<>();
+
+    private final AtomicLong messagesScanned = new AtomicLong();
+    private final AtomicLong filesIndexed = new AtomicLong();
+    private final AtomicLong partsIndexed = new AtomicLong();
+
+    public ChannelReindexer(JDA jda, Database database) {
+        this.jda = jda;
+        this.database = database;
+    }
+
+    public long getMessagesScanned() {
+        return messagesScanned.get();
+    }
+
+    public long getFilesIndexed() {
+        return filesIndexed.get();
+    }
+
+    public long getPartsIndexed() {
+        return partsIndexed.get();
+    }
+
+    /** Reindexes all channels in parallel and returns once every worker has finished. */
+    public void reindex(List<Long> channelIds) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(channelIds.size(), r -> {
+            Thread t = new Thread(r, "nitro-fs-reindex");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (long channelId : channelIds) {
+                futures.add(workers.submit(() -> {
+                    reindexChannel(channelId);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    log.error("Reindex of channel {} failed, rerun to resume", channelIds.get(i), e.getCause());
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void reindexChannel(long channelId) throws SQLException {
+        MessageChannel channel = jda.getChannelById(MessageChannel.class, channelId);
+        if (channel == null) {
+            throw new IllegalArgumentException("Channel " + channelId + " not found or not a message channel");
+        }
+
+        Database.ReindexCheckpoint checkpoint = database.getReindexCheckpoint(channelId);
+        long syncedUpTo = checkpoint == null ? 0 : checkpoint.syncedUpTo();
+        long head = checkpoint == null ? 0 : checkpoint.scanHead();
+        long cursor = checkpoint == null ? 0 : checkpoint.cursor();
+
+        if (head == 0) {
+            List<Message> latest = channel.getHistory().retrievePast(1).complete();
+            if (latest.isEmpty() || latest.get(0).getIdLong() <= syncedUpTo) {
+                log.info("Channel {} is up to date", channelId);
+                return;
+            }
+            head = latest.get(0).getIdLong();
+            // before= is exclusive, so start just past the newest message
+            cursor = head + 1;
+            database.saveReindexCheckpoint(new Database.ReindexCheckpoint(channelId, syncedUpTo, head, cursor));
+        } else {
+            log.info("Resuming channel {} before message {}", channelId, cursor);
+        }
+
+        long scanned = 0;
+        while (true) {
+            List<Message> page = MessageHistory.getHistoryBefore(channel, Long.toUnsignedString(cursor))
+                    .limit(PAGE_SIZE).complete().getRetrievedHistory();
+
+            List<Message> fresh = new ArrayList<>(page.size());
+            for (Message m : page) {
+                if (m.getIdLong() > syncedUpTo) fresh.add(m);
+            }
+            index(channelId, fresh);
+            scanned += fresh.size();
+            messagesScanned.addAndGet(fresh.size());
+
+            // Older messages were covered by the previous run
+            if (fresh.size() < PAGE_SIZE) break;
+
+            cursor = page.get(page.size() - 1).getIdLong();
+            database.saveReindexCheckpoint(new Database.ReindexCheckpoint(channelId, syncedUpTo, head, cursor));
+            if ((scanned / PAGE_SIZE) % 50 == 0) {
+                log.info("Channel {}: {} messages scanned, now at {}", channelId, scanned, Snowflakes.timestampOf(cursor));
+            }
+        }
+
+        database.saveReindexCheckpoint(new Database.ReindexCheckpoint(channelId, head, 0, 0));
+        log.info("Channel {} done, {} messages scanned", channelId, scanned);
+    }
+
+    private void index(long channelId, List<Message> messages) throws SQLException {
+        List<Database.NewFileRecord> records = new ArrayList<>();
+        Map<Message, PartManifest> manifests = new LinkedHashMap<>();
+        for (Message message : messages) {
+            if (message.getAttachments().isEmpty()) continue;
+
+            if (message.isWebhookMessage()) {
+                PartManifest manifest = PartManifest.parse(message.getContentRaw());
+                if (manifest != null) manifests.put(message, manifest);
+                continue;
+            }
+
+            String content = message.getContentRaw();
+            if (content.contains("nitro-fs-ignore")) continue;
+            if (message.getAuthor().isBot() || message.getAuthor().isSystem()) continue;
+
+            MessageListener.DirectoryInfo dirInfo = MessageListener.parseDirectoryFromMessage(content);
+            int directoryId = resolveDirectory(dirInfo.path);
+            for (Message.Attachment attachment : message.getAttachments()) {
+                records.add(new Database.NewFileRecord(
+                        message.getChannelIdLong(),
+                        message.getIdLong(),
+                        directoryId,
+                        attachment.getFileName(),
+                        dirInfo.description,
+                        attachment.getSize(),
+                        attachment.getContentType()
+                ));
+            }
+        }
+        filesIndexed.addAndGet(database.upsertFiles(records));
+
+        // A part already indexed may belong to a file moved since; upserting its
+        // file by the manifest's directory would recreate it where it started
+        Set<Long> indexed = database.findIndexedPartMessages(channelId,
+                manifests.keySet().stream().map(Message::getIdLong).toList());
+        List<Database.NewPartialRecord> parts = new ArrayList<>();
+        Map<String, Long> logicalIds = new HashMap<>();
+        for (Map.Entry<Message, PartManifest> e : manifests.entrySet()) {
+            if (!indexed.contains(e.getKey().getIdLong())) parts.add(partRecord(e.getKey(), e.getValue(), logicalIds));
+        }
+        partsIndexed.addAndGet(database.upsertFilePartials(parts));
+    }
+
+    // Workers for different channels can meet the same split file, so its row is upserted, once per page
+    private Database.NewPartialRecord partRecord(Message message, PartManifest manifest, Map<String, Long> logicalIds)
+            throws SQLException {
+        Message.Attachment attachment = message.getAttachments().get(0);
+        int directoryId = resolveDirectory(manifest.directory());
+        String key = directoryId + "/" + manifest.originalFilename();
+        Long logicalFileId = logicalIds.get(key);
+        if (logicalFileId == null) {
+            logicalFileId = database.upsertLogicalFile(directoryId, manifest.originalFilename(),
+                    manifest.description(), manifest.mimeType(), manifest.totalSize(), manifest.partCount(),
+                    manifest.codec(), manifest.checksum());
+            logicalIds.put(key, logicalFileId);
+        }
+        return new Database.NewPartialRecord(logicalFileId, message.getChannelIdLong(), message.getIdLong(),
+                directoryId, attachment.getFileName(), manifest.partNumber(), attachment.getSize(),
+                manifest.originalFilename(), manifest.description(), manifest.mimeType(), manifest.partChecksum());
+    }
+
+    /**
+     * A failure propagates rather than falling back to the root, so the page
+     * is not checkpointed and a rerun files its messages where they belong.
+     */
+    private int resolveDirectory(String path) throws SQLException {
+        if (path == null || path.isBlank()) return ROOT_DIRECTORY;
+        Integer id = directories.get(path);
+        if (id == null) {
+            // createDirectory returns the existing directory, so racing workers agree
+            id = database.createDirectory(path);
+            directories.put(path, id);
+        }
+        return id;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Long> channelIds = new ArrayList<>();
+        if (args.length > 0) {
+            for (String arg : args) channelIds.add(Long.parseLong(arg));
+        } else {
+            String setting = Main.readSetting("REINDEX_CHANNELS");
+            if (setting != null) {
+                for (String id : setting.split(","))
+                    if (!id.isBlank()) channelIds.add(Long.parseLong(id.trim()));
+            }
+        }
+        if (channelIds.isEmpty()) {
+            System.err.println("Usage: ChannelReindexer <channelId...> (or set REINDEX_CHANNELS)");
+            System.exit(1);
+        }
+
+        Database database = Main.openDatabase(Main.readSetting("METADATA_BACKEND"));
+        JDA jda = Main.createJdaBuilder("lean", Main.readSetting("BOT_TOKEN"))
+                .build()
+                .awaitReady();
+
+        ChannelReindexer reindexer = new ChannelReindexer(jda, database);
+        long start = System.currentTimeMillis();
+        reindexer.reindex(channelIds);
+
+        log.info("Scanned {} messages in {} channels, indexed {} files and {} parts in {} ms",
+                reindexer.getMessagesScanned(), channelIds.size(), reindexer.getFilesIndexed(),
+                reindexer.getPartsIndexed(), System.currentTimeMillis() - start);
+        jda.shutdown();
+        System.exit(0);
+    }
+}
@@ -1,22 +1,20 @@
 package com.pinapelz;
 
-import com.zaxxer.hikari.HikariConfig;
-import com.zaxxer.hikari.HikariDataSource;
-
-import javax.sql.DataSource;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.sql.*;
+import java.sql.SQLException;
 import java.time.OffsetDateTime;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
-public class Database {
+/**
+ * Metadata store for directories, files and split files. {@link PostgresDatabase}
+ * is the shared multi-node backend; {@link EmbeddedDatabase} keeps everything
+ * in-process for single-node deployments.
+ */
+public interface Database {
 
-    private final DataSource ds;
-
-    public record FileEntry(
+    record FileEntry(
             int fileId,
             String fileName,
             String description,
@@ -25,389 +23,304 @@ public class Database {
             OffsetDateTime createdAt
     ) {}
 
-    public record DirectoryEntry(
+    record NewFileRecord(
+            long channelId,
+            long messageId,
+            int directoryId,
+            String fileName,
+            String description,
+            int size,
+            String mimeType
+    ) {}
+
+    /** A part of a split file to insert, see {@link #upsertFilePartials}. */
+    record NewPartialRecord(
+            long logicalFileId,
+            long channelId,
+            long messageId,
+            int directoryId,
+            String partName,
+            int partNumber,
+            long partSize,
+            String originalFilename,
+            String description,
+            String mimeType,
+            String checksum
+    ) {}
+
+    /**
+     * A directory in the tree. {@code parentId} is 0 for the root, {@code name}
+     * is the directory's own name and {@code path} the slash-joined names from
+     * the root down ({@code ""} for the root itself).
+     */
+    record DirectoryEntry(
             int directoryId,
+            int parentId,
+            String name,
             String path,
             OffsetDateTime createdAt,
             int fileCount
     ) {}
 
-    public record FilePartialEntry(
+    /** Rollup over a directory and all of its descendants. Split files count as one file each. */
+    record SubtreeStats(
+            int directoryCount,
+            long fileCount,
+            long totalSize
+    ) {}
+
+    record FilePartialEntry(
             long partialId,
-            String channelId,
-            String messageId,
+            long channelId,
+            long messageId,
             String partName,
             int partNumber,
             long partSize,
             String originalFilename,
             String mimeType,
             boolean uploadedViaWebhook,
+            long logicalFileId,
+            String checksum,
             OffsetDateTime createdAt
     ) {}
 
-    public record PartialGroupEntry(
+    record LogicalFileEntry(
+            long logicalFileId,
+            int directoryId,
             String originalFilename,
+            String description,
             String mimeType,
+            long totalSize,
+            int partCount,
+            String codec,
+            String checksum,
+            OffsetDateTime createdAt
+    ) {}
+
+    /** Complete {@code files} row, used when copying between backends. */
+    record FileRecord(
+            int fileId,
+            long channelId,
+            long messageId,
             int directoryId,
-            OffsetDateTime createdAt,
+            String fileName,
+            String description,
             long size,
-            String description
+            String mimeType,
+            OffsetDateTime createdAt
+    ) {}
+
+    /** Complete {@code file_partials} row, used when copying between backends. */
+    record FilePartialRecord(
+            long partialId,
+            long logicalFileId,
+            long channelId,
+            long messageId,
+            int directoryId,
+            String partName,
+            int partNumber,
+            long partSize,
+            String originalFilename,
+            String description,
+            String mimeType,
+            boolean uploadedViaWebhook,
+            String checksum,
+            OffsetDateTime createdAt
     ) {}
 
-    public Database(String host, String user, String password, String db) {
-        try {
-            ds = createDataSource(host, user, password, db);
-            try (Connection c = ds.getConnection();
-                 Statement s = c.createStatement()) {
-                s.execute(Files.readString(Path.of("schema.sql")));
-            }
-        } catch (IOException | SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static DataSource createDataSource(String host, String user, String pass, String db) {
-        HikariConfig c = new HikariConfig();
-        c.setJdbcUrl("jdbc:postgresql://" + host + "/" + db + "?sslmode=require&channel_binding=require");
-        c.setUsername(user);
-        c.setPassword(pass);
-        c.setMaximumPoolSize(3);
-        c.setMinimumIdle(1);
-        c.setIdleTimeout(60_000);
-        c.setMaxLifetime(600_000);
-        c.addDataSourceProperty("reWriteBatchedInserts", "true");
-        return new HikariDataSource(c);
-    }
-
-    public void recordFileMetadata(
-            String channelId, String messageId, int dirId,
+    /**
+     * Outcome of a bulk operation: the IDs that were changed, and for moves
+     * the IDs skipped because the target directory already has that name.
+     * Requested IDs in neither set did not exist.
+     */
+    record BulkResult(
+            Set<Integer> fileIds,
+            Set<Long> logicalFileIds,
+            Set<Integer> conflictingFileIds,
+            Set<Long> conflictingLogicalFileIds
+    ) {}
+
+    /**
+     * Progress of a channel history reindex. Every message up to
+     * {@code syncedUpTo} is indexed. While a scan is running, {@code scanHead}
+     * is the newest message it started from and {@code cursor} the oldest
+     * message it has finished; both are 0 between scans.
+     */
+    record ReindexCheckpoint(
+            long channelId,
+            long syncedUpTo,
+            long scanHead,
+            long cursor
+    ) {}
+
+    record Snapshot(
+            List<DirectoryEntry> directories,
+            List<FileRecord> files,
+            List<LogicalFileEntry> logicalFiles,
+            List<FilePartialRecord> partials
+    ) {}
+
+    void addInvalidationListener(Consumer<String> listener);
+
+    void recordFileMetadata(
+            long channelId, long messageId, int dirId,
             String name, String desc, int size, String mime
-    ) throws SQLException {
-
-        String sql = """
-            INSERT INTO files
-            (disc_channel_id, disc_message_id, directory_id,
-             file_name, file_description, size, mime_type)
-            VALUES (?, ?, ?, ?, ?, ?, ?)
-        """;
-
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(sql)) {
-
-            p.setString(1, channelId);
-            p.setString(2, messageId);
-            p.setInt(3, dirId);
-            p.setString(4, name);
-            p.setString(5, desc);
-            p.setInt(6, size);
-            p.setString(7, mime);
-            p.executeUpdate();
-        }
-    }
-
-    public String[] getFileById(int fileId) {
-        String sql = """
-            SELECT disc_channel_id, disc_message_id, file_name
-            FROM files WHERE file_id = ?
-        """;
-
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(sql)) {
-
-            p.setInt(1, fileId);
-            try (ResultSet r = p.executeQuery()) {
-                if (!r.next()) throw new RuntimeException();
-                return new String[]{ r.getString(1), r.getString(2), r.getString(3) };
-            }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public List<FileEntry> getFilesByDirectoryId(
-            int dirId, String search, String mime, String sort
-    ) {
-
-        StringBuilder q = new StringBuilder("""
-            SELECT file_id, file_name, file_description,
-                   size, mime_type, created_at
-            FROM files WHERE directory_id = ?
-        """);
-
-        if (search != null && !search.isBlank())
-            q.append(" AND (LOWER(file_name) LIKE ? OR LOWER(file_description) LIKE ?)");
-        if (mime != null && !mime.isBlank())
-            q.append(" AND mime_type LIKE ?");
-
-        q.append(" ORDER BY ")
-                .append("size".equals(sort) ? "size DESC" :
-                        "file_name".equals(sort) ? "file_name ASC" :
-                                "created_at DESC");
-
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(q.toString())) {
-
-            int i = 1;
-            p.setInt(i++, dirId);
-
-            if (search != null && !search.isBlank()) {
-                String s = "%" + search.toLowerCase() + "%";
-                p.setString(i++, s);
-                p.setString(i++, s);
-            }
-
-            if (mime != null && !mime.isBlank())
-                p.setString(i++, mime + "%");
-
-            List<FileEntry> out = new ArrayList<>();
-            try (ResultSet r = p.executeQuery()) {
-                while (r.next())
-                    out.add(new FileEntry(
-                            r.getInt(1), r.getString(2), r.getString(3),
-                            r.getLong(4), r.getString(5),
-                            r.getObject(6, OffsetDateTime.class)
-                    ));
-            }
-            return out;
-
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public boolean deleteFile(int fileId) throws SQLException {
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement("DELETE FROM files WHERE file_id = ?")) {
-            p.setInt(1, fileId);
-            return p.executeUpdate() > 0;
-        }
-    }
-
-    public List<DirectoryEntry> getAllDirectories() {
-        String sql = """
-            SELECT d.directory_id, d.path, d.created_at,
-                   COUNT(f.file_id)
-            FROM directories d
-            LEFT JOIN files f USING (directory_id)
-            GROUP BY d.directory_id
-            ORDER BY d.path
-        """;
-
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(sql);
-             ResultSet r = p.executeQuery()) {
-
-            List<DirectoryEntry> out = new ArrayList<>();
-            while (r.next())
-                out.add(new DirectoryEntry(
-                        r.getInt(1), r.getString(2),
-                        r.getObject(3, OffsetDateTime.class),
-                        r.getInt(4)
-                ));
-            return out;
-
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public DirectoryEntry getDirectoryById(int id) {
-        String sql = """
-            SELECT d.directory_id, d.path, d.created_at,
-                   COUNT(f.file_id)
-            FROM directories d
-            LEFT JOIN files f USING (directory_id)
-            WHERE d.directory_id = ?
-            GROUP BY d.directory_id
-        """;
-
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(sql)) {
-
-            p.setInt(1, id);
-            try (ResultSet r = p.executeQuery()) {
-                if (!r.next()) throw new RuntimeException();
-                return new DirectoryEntry(
-                        r.getInt(1), r.getString(2),
-                        r.getObject(3, OffsetDateTime.class),
-                        r.getInt(4)
-                );
-            }
-
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public int createDirectory(String path) throws SQLException {
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement("""
-                 INSERT INTO directories (path)
-                 VALUES (?)
-                 ON CONFLICT (path) DO UPDATE SET path = EXCLUDED.path
-                 RETURNING directory_id
-             """)) {
-
-            p.setString(1, path);
-            try (ResultSet r = p.executeQuery()) {
-                r.next();
-                return r.getInt(1);
-            }
-        }
-    }
-
-    public boolean deleteDirectory(int directoryId) throws SQLException {
-        if (directoryId == 1) throw new SQLException();
-
-        try (Connection c = ds.getConnection()) {
-            try (PreparedStatement check = c.prepareStatement(
-                    "SELECT COUNT(*) FROM files WHERE directory_id = ?")) {
-                check.setInt(1, directoryId);
-                try (ResultSet r = check.executeQuery()) {
-                    r.next();
-                    if (r.getInt(1) > 0) throw new SQLException();
-                }
-            }
-
-            try (PreparedStatement del = c.prepareStatement(
-                    "DELETE FROM directories WHERE directory_id = ?")) {
-                del.setInt(1, directoryId);
-                return del.executeUpdate() > 0;
-            }
-        }
-    }
-
-    public long recordFilePartial(
-            String channelId, String messageId, int dirId,
+    ) throws SQLException;
+
+    boolean[] recordFileMetadataBatch(List<NewFileRecord> records) throws SQLException;
+
+    /**
+     * Inserts the records that are not indexed yet, in one transaction. A record
+     * is skipped if its message already has a file of that name (wherever it
+     * has been moved since) or its directory already has a file of that name.
+     * Returns the number of rows inserted.
+     */
+    int upsertFiles(List<NewFileRecord> records) throws SQLException;
+
+    /** The file's row, or null if it does not exist. */
+    FileRecord getFileById(int fileId);
+
+    List<FileEntry> getFilesByDirectoryId(int dirId, String search, String mime, String sort);
+
+    /**
+     * Files in a directory whose Discord message was posted in {@code [from, to]},
+     * newest first. The range is taken from the message snowflakes, see {@link Snowflakes}.
+     */
+    List<FileEntry> getFilesBetween(int dirId, OffsetDateTime from, OffsetDateTime to);
+
+    boolean deleteFile(int fileId) throws SQLException;
+
+    List<DirectoryEntry> getAllDirectories();
+
+    DirectoryEntry getDirectoryById(int id);
+
+    /** Creates every missing directory along a slash-separated path and returns the last one. */
+    int createDirectory(String path) throws SQLException;
+
+    int createDirectory(int parentId, String name) throws SQLException;
+
+    /**
+     * Re-parents and/or renames a directory. Only the directory's own row
+     * changes; descendants follow implicitly. Returns false if the directory
+     * does not exist, is the root, or the move would create a cycle.
+     */
+    boolean moveDirectory(int directoryId, int newParentId, String newName) throws SQLException;
+
+    List<DirectoryEntry> getChildDirectories(int parentId);
+
+    /** The directory itself followed by all of its descendants, ordered by path. */
+    List<DirectoryEntry> getSubtree(int directoryId);
+
+    SubtreeStats getSubtreeStats(int directoryId);
+
+    boolean deleteDirectory(int directoryId) throws SQLException;
+
+    long createLogicalFile(
+            int dirId, String original, String desc, String mime,
+            long totalSize, int partCount, String codec, String checksum
+    ) throws SQLException;
+
+    long recordFilePartial(
+            long logicalFileId, long channelId, long messageId, int dirId,
             String partName, int partNumber, long partSize,
-            String original, String desc, String mime
-    ) throws SQLException {
-
-        String sql = """
-            INSERT INTO file_partials
-            (disc_channel_id, disc_message_id, directory_id,
-             part_name, part_number, part_size,
-             original_filename, file_description, mime_type,
-             uploaded_via_webhook)
-            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, true)
-            RETURNING partial_id
-        """;
-
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(sql)) {
-
-            p.setString(1, channelId);
-            p.setString(2, messageId);
-            p.setInt(3, dirId);
-            p.setString(4, partName);
-            p.setInt(5, partNumber);
-            p.setLong(6, partSize);
-            p.setString(7, original);
-            p.setString(8, desc);
-            p.setString(9, mime);
-
-            try (ResultSet r = p.executeQuery()) {
-                r.next();
-                return r.getLong(1);
-            }
-        }
-    }
-
-    public boolean checkPartialExists(String partName, int dirId) throws SQLException {
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(
-                     "SELECT COUNT(*) FROM file_partials WHERE part_name = ? AND directory_id = ?")) {
-            p.setString(1, partName);
-            p.setInt(2, dirId);
-            try (ResultSet r = p.executeQuery()) {
-                r.next();
-                return r.getInt(1) > 0;
-            }
-        }
-    }
-
-    public boolean deleteFilePartials(String original, int dirId) throws SQLException {
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(
-                     "DELETE FROM file_partials WHERE original_filename = ? AND directory_id = ?")) {
-            p.setString(1, original);
-            p.setInt(2, dirId);
-            return p.executeUpdate() > 0;
-        }
-    }
-
-    public List<FilePartialEntry> getFilePartialsByOriginalFilename(String original, int dirId) {
-        String sql = """
-            SELECT partial_id, disc_channel_id, disc_message_id,
-                   part_name, part_number, part_size,
-                   original_filename, mime_type,
-                   uploaded_via_webhook, created_at
-            FROM file_partials
-            WHERE original_filename = ? AND directory_id = ?
-            ORDER BY part_number
-        """;
-
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(sql)) {
-
-            p.setString(1, original);
-            p.setInt(2, dirId);
-
-            List<FilePartialEntry> out = new ArrayList<>();
-            try (ResultSet r = p.executeQuery()) {
-                while (r.next())
-                    out.add(new FilePartialEntry(
-                            r.getLong(1), r.getString(2), r.getString(3),
-                            r.getString(4), r.getInt(5), r.getLong(6),
-                            r.getString(7), r.getString(8),
-                            r.getBoolean(9),
-                            r.getObject(10, OffsetDateTime.class)
-                    ));
-            }
-            return out;
-
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    public List<PartialGroupEntry> getUniqueOriginalFilesFromPartials(int dirId, String search) {
-        StringBuilder q = new StringBuilder("""
-            SELECT original_filename, mime_type, directory_id,
-                   MAX(created_at), SUM(part_size), MAX(file_description)
-            FROM file_partials
-            WHERE directory_id = ?
-        """);
-
-        if (search != null && !search.isBlank())
-            q.append(" AND LOWER(original_filename) LIKE ?");
-
-        q.append(" GROUP BY original_filename, mime_type, directory_id ORDER BY original_filename");
-
-        try (Connection c = ds.getConnection();
-             PreparedStatement p = c.prepareStatement(q.toString())) {
-
-            int i = 1;
-            p.setInt(i++, dirId);
-            if (search != null && !search.isBlank())
-                p.setString(i++, "%" + search.toLowerCase() + "%");
-
-            List<PartialGroupEntry> out = new ArrayList<>();
-            try (ResultSet r = p.executeQuery()) {
-                while (r.next())
-                    out.add(new PartialGroupEntry(
-                            r.getString(1),
-                            r.getString(2),
-                            r.getInt(3),
-                            r.getObject(4, OffsetDateTime.class),
-                            r.getLong(5),
-                            r.getString(6)
-                    ));
-            }
-            return out;
-
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
+            String original, String desc, String mime, String checksum
+    ) throws SQLException;
+
+    /**
+     * The id of the directory's split file named {@code original}, created with
+     * the given details if there is none yet. Unlike a lookup followed by
+     * {@link #createLogicalFile}, concurrent callers always get the same file.
+     */
+    long upsertLogicalFile(
+            int dirId, String original, String desc, String mime,
+            long totalSize, int partCount, String codec, String checksum
+    ) throws SQLException;
+
+    /**
+     * Inserts the parts that are not indexed yet, in one transaction. A part
+     * is skipped if its message already has a part of that name (wherever its
+     * file has been moved since) or its directory already has a part of that
+     * name. Returns the number of rows inserted.
+     */
+    int upsertFilePartials(List<NewPartialRecord> records) throws SQLException;
+
+    /**
+     * The messages among {@code messageIds} in the channel that already have
+     * a part indexed, wherever its split file has been moved since.
+     */
+    Set<Long> findIndexedPartMessages(long channelId, Collection<Long> messageIds) throws SQLException;
+
+    /**
+     * Records a split file with its parts in one transaction, so a failure
+     * leaves nothing behind. Fails with a unique violation if the directory
+     * already has a split file of that name. The parts' {@code logicalFileId}
+     * is ignored. Returns the new file's ID.
+     */
+    long createLogicalFile(
+            int dirId, String original, String desc, String mime,
+            long totalSize, String codec, String checksum, List<NewPartialRecord> parts
+    ) throws SQLException;
+
+    /**
+     * Records a split file with its parts in one transaction, first removing
+     * any split file or plain file of the same name in the directory, so
+     * readers see either the old file or the complete new one. The parts'
+     * {@code logicalFileId} is ignored. Returns the new file's ID.
+     */
+    long replaceLogicalFile(
+            int dirId, String original, String desc, String mime,
+            long totalSize, String codec, String checksum, List<NewPartialRecord> parts
+    ) throws SQLException;
+
+    boolean checkPartialExists(String partName, int dirId) throws SQLException;
+
+    /** Deletes files and split files in one transaction. */
+    BulkResult deleteFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds) throws SQLException;
+
+    /** Moves files and split files (with their parts) into a directory in one transaction. */
+    BulkResult moveFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds, int targetDirId) throws SQLException;
+
+    /** Sets the description of files and split files in one transaction. */
+    BulkResult describeFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds, String description) throws SQLException;
+
+    boolean deleteLogicalFile(long logicalFileId) throws SQLException;
+
+    List<FilePartialEntry> getFilePartialsByOriginalFilename(String original, int dirId);
+
+    List<FilePartialEntry> getFilePartialsByLogicalFileId(long logicalFileId);
+
+    LogicalFileEntry getLogicalFileById(long logicalFileId);
+
+    LogicalFileEntry getLogicalFileByName(String original, int dirId);
+
+    List<LogicalFileEntry> getLogicalFilesByDirectoryId(int dirId, String search);
+
+    /*
+     * Keyset-paged walks for the JSON API. Each passes up to {@code limit}
+     * rows with an ID above {@code afterId}, in ID order, to {@code sink} and
+     * returns how many it passed. The sink runs after the page has been read,
+     * with no connection held. A directory or logical file ID of 0 means no
+     * filter.
+     */
+
+    int streamFiles(int dirId, int afterId, int limit, Consumer<FileRecord> sink);
+
+    int streamLogicalFiles(int dirId, long afterId, int limit, Consumer<LogicalFileEntry> sink);
+
+    int streamFilePartials(long logicalFileId, long afterId, int limit, Consumer<FilePartialRecord> sink);
+
+    int streamDirectories(int afterId, int limit, Consumer<DirectoryEntry> sink);
+
+    /** The channel's reindex progress, or null if it was never reindexed. */
+    ReindexCheckpoint getReindexCheckpoint(long channelId);
+
+    void saveReindexCheckpoint(ReindexCheckpoint checkpoint) throws SQLException;
+
+    Snapshot exportSnapshot() throws SQLException;
+
+    /**
+     * Inserts every row of the snapshot, keeping IDs where they are free. How
+     * rows that clash with existing metadata are handled depends on the backend.
+     */
+    void importSnapshot(Snapshot snapshot) throws SQLException;
 }
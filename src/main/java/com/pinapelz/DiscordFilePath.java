@@ -4,4 +4,5 @@ public class DiscordFilePath{
     public long channelId;
     public long messageId;
     public String fileName;
+    public String mimeType;
 }
@@ -0,0 +1,1300 @@
+package com.pinapelz;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Single-node metadata store. All rows live in in-memory indexes and every
+ * mutation is appended to {@code metadata.log} as one JSON line before it is
+ * applied. Startup replays the log, and the log is compacted once dead
+ * entries outnumber live rows.
+ */
+public class EmbeddedDatabase implements Database {
+
+    private static final String LOG_FILE = "metadata.log";
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    private final Path logPath;
+    private FileChannel log;
+    private OutputStream logOut;
+
+    private record Dir(int id, int parentId, String name, OffsetDateTime createdAt) {}
+
+    // Rows are kept in ID order so the paged streams can seek with tailMap
+    private final NavigableMap<Integer, Dir> directories = new TreeMap<>();
+    private final Map<Integer, TreeMap<String, Integer>> children = new HashMap<>();
+    private final NavigableMap<Integer, FileRecord> files = new TreeMap<>();
+    private final Map<Integer, Map<String, Integer>> filesByDirectory = new HashMap<>();
+    private final Map<Long, List<Integer>> filesByMessage = new HashMap<>();
+    private final NavigableMap<Long, LogicalFileEntry> logicalFiles = new TreeMap<>();
+    private final Map<Integer, TreeMap<String, Long>> logicalByDirectory = new HashMap<>();
+    private final NavigableMap<Long, FilePartialRecord> partials = new TreeMap<>();
+    private final Map<Long, List<Long>> partialsByLogical = new HashMap<>();
+    private final Map<Long, List<Long>> partialsByMessage = new HashMap<>();
+    private final Map<Integer, Set<String>> partNamesByDirectory = new HashMap<>();
+    private final Map<Long, ReindexCheckpoint> reindexCheckpoints = new HashMap<>();
+
+    private boolean tornTail;
+    // Directories replayed from mkdir entries written before the directory tree
+    private final List<Integer> legacyDirectories = new ArrayList<>();
+
+    private int nextDirectoryId = 1;
+    private int nextFileId = 1;
+    private long nextLogicalFileId = 1;
+    private long nextPartialId = 1;
+
+    private final List<Consumer<String>> invalidationListeners = new CopyOnWriteArrayList<>();
+
+    public EmbeddedDatabase(Path dataDir) {
+        this.logPath = dataDir.resolve(LOG_FILE);
+        try {
+            Files.createDirectories(dataDir);
+            long entries = replay();
+            boolean nested = nestLegacyDirectories();
+            if (nested || tornTail || entries > 2L * liveRows() + 1000) compact();
+            openLog();
+            if (!directories.containsKey(1)) {
+                Dir root = new Dir(1, 0, "", OffsetDateTime.now());
+                append(directoryOp(root));
+                applyDirectory(root);
+            }
+        } catch (IOException | SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Applies every entry in the log. Only the final line may be unreadable,
+     * and only if it has no newline: that is an append cut short by a crash.
+     * Any other unreadable line means the log is damaged, and startup fails
+     * rather than compacting away every entry after it.
+     */
+    private long replay() throws IOException {
+        if (!Files.exists(logPath)) return 0;
+        long entries = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(logPath))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long offset = 0;
+            long lineStart = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                offset++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                if (replayLine(line, lineStart, true)) entries++;
+                line.reset();
+                lineStart = offset;
+            }
+            if (line.size() > 0 && replayLine(line, lineStart, false)) entries++;
+        }
+        return entries;
+    }
+
+    private boolean replayLine(ByteArrayOutputStream bytes, long offset, boolean terminated) throws IOException {
+        String line = bytes.toString(StandardCharsets.UTF_8);
+        if (line.isBlank()) return false;
+        // Compaction rewrites the log, so later appends start on a fresh line
+        if (!terminated) tornTail = true;
+        JsonObject op;
+        try {
+            op = JsonParser.parseString(line).getAsJsonObject();
+        } catch (RuntimeException e) {
+            if (terminated)
+                throw new IOException("Metadata log " + logPath + " is corrupt at byte " + offset + ": " + e.getMessage(), e);
+            System.err.println("Ignoring torn final metadata log entry at byte " + offset + ": " + e.getMessage());
+            return false;
+        }
+        applyOp(op);
+        return true;
+    }
+
+    private void openLog() throws IOException {
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logOut = Channels.newOutputStream(log);
+    }
+
+    private void append(JsonObject... ops) throws SQLException {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (JsonObject op : ops) sb.append(op).append('\n');
+            logOut.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            log.force(false);
+        } catch (IOException e) {
+            throw new SQLException("Failed to write metadata log", e);
+        }
+    }
+
+    /**
+     * Splits legacy flat paths such as {@code a/b}, which replay as a single
+     * directory named after the whole path, into nested directories. Missing
+     * parents are created, and a path that already exists in the tree is
+     * merged into that directory. Returns whether anything changed, in which
+     * case the log must be compacted so the new IDs are recorded.
+     */
+    private boolean nestLegacyDirectories() throws IOException {
+        boolean changed = false;
+        for (int id : legacyDirectories) {
+            Dir d = directories.get(id);
+            if (d == null || !d.name().contains("/")) continue;
+            String[] segments = Arrays.stream(d.name().split("/")).filter(n -> !n.isEmpty()).toArray(String[]::new);
+
+            int parent = d.parentId();
+            for (int i = 0; i < segments.length - 1; i++) {
+                Integer next = children.getOrDefault(parent, new TreeMap<>()).get(segments[i]);
+                if (next == null) {
+                    next = nextDirectoryId;
+                    applyDirectory(new Dir(next, parent, segments[i], d.createdAt()));
+                }
+                parent = next;
+            }
+
+            Integer existing = segments.length == 0
+                    ? Integer.valueOf(parent)
+                    : children.getOrDefault(parent, new TreeMap<>()).get(segments[segments.length - 1]);
+            if (existing == null) applyMoveDirectory(id, parent, segments[segments.length - 1]);
+            else mergeDirectory(id, existing);
+            changed = true;
+        }
+        legacyDirectories.clear();
+        return changed;
+    }
+
+    /** Moves everything in directory {@code from} into {@code to} and drops {@code from}. */
+    private void mergeDirectory(int from, int to) throws IOException {
+        for (Map.Entry<String, Integer> child : new ArrayList<>(children.getOrDefault(from, new TreeMap<>()).entrySet())) {
+            Integer clash = children.getOrDefault(to, new TreeMap<>()).get(child.getKey());
+            if (clash != null) mergeDirectory(child.getValue(), clash);
+            else applyMoveDirectory(child.getValue(), to, child.getKey());
+        }
+        for (int fileId : new ArrayList<>(filesByDirectory.getOrDefault(from, Map.of()).values())) {
+            FileRecord f = files.get(fileId);
+            if (filesByDirectory.getOrDefault(to, Map.of()).containsKey(f.fileName()))
+                throw new IOException("Cannot merge legacy directory " + pathOf(from) + ": "
+                        + pathOf(to) + " already has a file named " + f.fileName());
+            applyFile(new FileRecord(f.fileId(), f.channelId(), f.messageId(), to, f.fileName(),
+                    f.description(), f.size(), f.mimeType(), f.createdAt()));
+        }
+        for (long logicalId : new ArrayList<>(logicalByDirectory.getOrDefault(from, new TreeMap<>()).values())) {
+            LogicalFileEntry l = logicalFiles.get(logicalId);
+            if (logicalByDirectory.getOrDefault(to, new TreeMap<>()).containsKey(l.originalFilename()))
+                throw new IOException("Cannot merge legacy directory " + pathOf(from) + ": "
+                        + pathOf(to) + " already has a file named " + l.originalFilename());
+            applyLogicalFile(new LogicalFileEntry(l.logicalFileId(), to, l.originalFilename(), l.description(),
+                    l.mimeType(), l.totalSize(), l.partCount(), l.codec(), l.checksum(), l.createdAt()));
+        }
+        for (FilePartialRecord p : new ArrayList<>(partials.values())) {
+            if (p.directoryId() != from) continue;
+            if (partNamesByDirectory.getOrDefault(to, Set.of()).contains(p.partName()))
+                throw new IOException("Cannot merge legacy directory " + pathOf(from) + ": "
+                        + pathOf(to) + " already has a part named " + p.partName());
+            applyPartial(withPartial(p, to, p.description()));
+        }
+        applyDeleteDirectory(from);
+    }
+
+    private long liveRows() {
+        return directories.size() + files.size() + logicalFiles.size() + partials.size();
+    }
+
+    private void compact() throws IOException {
+        Path tmp = logPath.resolveSibling(LOG_FILE + ".compact");
+        try (CompactionWriter w = new CompactionWriter(tmp)) {
+            // Parents must be replayed before their children
+            for (Dir d : sortedDirectories()) w.write(directoryOp(d));
+            for (FileRecord f : files.values()) w.write(fileOp(f));
+            for (LogicalFileEntry l : logicalFiles.values()) w.write(logicalOp(l));
+            for (FilePartialRecord p : partials.values()) w.write(partialOp(p));
+            for (ReindexCheckpoint c : reindexCheckpoints.values()) w.write(checkpointOp(c));
+        }
+        Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class CompactionWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final BufferedWriter writer;
+
+        CompactionWriter(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+        }
+
+        void write(JsonObject op) throws IOException {
+            writer.write(op.toString());
+            writer.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.flush();
+            channel.force(true);
+            writer.close();
+        }
+    }
+
+    private void applyOp(JsonObject op) {
+        switch (op.get("op").getAsString()) {
+            case "mkdir" -> {
+                int id = op.get("id").getAsInt();
+                if (op.has("parent")) {
+                    applyDirectory(new Dir(id, op.get("parent").getAsInt(), str(op, "name"), time(op)));
+                } else {
+                    // Logs written before the directory tree stored flat paths; they are
+                    // replayed under the root and split up by nestLegacyDirectories
+                    String path = str(op, "path");
+                    applyDirectory(new Dir(id, path.isEmpty() ? 0 : 1, path, time(op)));
+                    if (!path.isEmpty()) legacyDirectories.add(id);
+                }
+            }
+            case "mvdir" -> applyMoveDirectory(op.get("id").getAsInt(), op.get("parent").getAsInt(), str(op, "name"));
+            case "rmdir" -> applyDeleteDirectory(op.get("id").getAsInt());
+            // Older logs stored snowflakes as strings; getAsLong() reads both forms
+            case "file" -> applyFile(new FileRecord(
+                    op.get("id").getAsInt(), op.get("channel").getAsLong(), op.get("message").getAsLong(),
+                    op.get("dir").getAsInt(), str(op, "name"), str(op, "desc"),
+                    op.get("size").getAsLong(), str(op, "mime"), time(op)));
+            case "rmfile" -> applyDeleteFile(op.get("id").getAsInt());
+            case "logical" -> applyLogicalFile(new LogicalFileEntry(
+                    op.get("id").getAsLong(), op.get("dir").getAsInt(), str(op, "name"),
+                    str(op, "desc"), str(op, "mime"), op.get("size").getAsLong(),
+                    op.get("parts").getAsInt(), str(op, "codec"), str(op, "checksum"), time(op)));
+            case "rmlogical" -> applyDeleteLogicalFile(op.get("id").getAsLong());
+            case "partial" -> applyPartial(new FilePartialRecord(
+                    op.get("id").getAsLong(), op.get("logical").getAsLong(),
+                    op.get("channel").getAsLong(), op.get("message").getAsLong(), op.get("dir").getAsInt(),
+                    str(op, "name"), op.get("number").getAsInt(), op.get("size").getAsLong(),
+                    str(op, "original"), str(op, "desc"), str(op, "mime"),
+                    op.get("webhook").getAsBoolean(), str(op, "checksum"), time(op)));
+            case "checkpoint" -> applyCheckpoint(new ReindexCheckpoint(
+                    op.get("channel").getAsLong(), op.get("synced").getAsLong(),
+                    op.get("head").getAsLong(), op.get("cursor").getAsLong()));
+            default -> throw new IllegalStateException("Unknown metadata log op: " + op);
+        }
+    }
+
+    private static String str(JsonObject op, String key) {
+        return op.has(key) && !op.get(key).isJsonNull() ? op.get(key).getAsString() : null;
+    }
+
+    private static OffsetDateTime time(JsonObject op) {
+        return OffsetDateTime.parse(op.get("created").getAsString());
+    }
+
+    private static JsonObject op(String name) {
+        JsonObject o = new JsonObject();
+        o.addProperty("op", name);
+        return o;
+    }
+
+    private static JsonObject directoryOp(Dir d) {
+        JsonObject o = op("mkdir");
+        o.addProperty("id", d.id());
+        o.addProperty("parent", d.parentId());
+        o.addProperty("name", d.name());
+        o.addProperty("created", d.createdAt().toString());
+        return o;
+    }
+
+    private static JsonObject moveDirectoryOp(int id, int parentId, String name) {
+        JsonObject o = op("mvdir");
+        o.addProperty("id", id);
+        o.addProperty("parent", parentId);
+        o.addProperty("name", name);
+        return o;
+    }
+
+    private static JsonObject fileOp(FileRecord f) {
+        JsonObject o = op("file");
+        o.addProperty("id", f.fileId());
+        o.addProperty("channel", f.channelId());
+        o.addProperty("message", f.messageId());
+        o.addProperty("dir", f.directoryId());
+        o.addProperty("name", f.fileName());
+        o.addProperty("desc", f.description());
+        o.addProperty("size", f.size());
+        o.addProperty("mime", f.mimeType());
+        o.addProperty("created", f.createdAt().toString());
+        return o;
+    }
+
+    private static JsonObject logicalOp(LogicalFileEntry l) {
+        JsonObject o = op("logical");
+        o.addProperty("id", l.logicalFileId());
+        o.addProperty("dir", l.directoryId());
+        o.addProperty("name", l.originalFilename());
+        o.addProperty("desc", l.description());
+        o.addProperty("mime", l.mimeType());
+        o.addProperty("size", l.totalSize());
+        o.addProperty("parts", l.partCount());
+        o.addProperty("codec", l.codec());
+        o.addProperty("checksum", l.checksum());
+        o.addProperty("created", l.createdAt().toString());
+        return o;
+    }
+
+    private static JsonObject partialOp(FilePartialRecord p) {
+        JsonObject o = op("partial");
+        o.addProperty("id", p.partialId());
+        o.addProperty("logical", p.logicalFileId());
+        o.addProperty("channel", p.channelId());
+        o.addProperty("message", p.messageId());
+        o.addProperty("dir", p.directoryId());
+        o.addProperty("name", p.partName());
+        o.addProperty("number", p.partNumber());
+        o.addProperty("size", p.partSize());
+        o.addProperty("original", p.originalFilename());
+        o.addProperty("desc", p.description());
+        o.addProperty("mime", p.mimeType());
+        o.addProperty("webhook", p.uploadedViaWebhook());
+        o.addProperty("checksum", p.checksum());
+        o.addProperty("created", p.createdAt().toString());
+        return o;
+    }
+
+    private static JsonObject checkpointOp(ReindexCheckpoint c) {
+        JsonObject o = op("checkpoint");
+        o.addProperty("channel", c.channelId());
+        o.addProperty("synced", c.syncedUpTo());
+        o.addProperty("head", c.scanHead());
+        o.addProperty("cursor", c.cursor());
+        return o;
+    }
+
+    private static JsonObject deleteOp(String name, long id) {
+        JsonObject o = op(name);
+        o.addProperty("id", id);
+        return o;
+    }
+
+    private void applyDirectory(Dir d) {
+        directories.put(d.id(), d);
+        if (d.parentId() != 0)
+            children.computeIfAbsent(d.parentId(), k -> new TreeMap<>()).put(d.name(), d.id());
+        nextDirectoryId = Math.max(nextDirectoryId, d.id() + 1);
+    }
+
+    private void applyDeleteDirectory(int id) {
+        Dir d = directories.remove(id);
+        if (d != null && d.parentId() != 0) children.get(d.parentId()).remove(d.name());
+    }
+
+    private void applyMoveDirectory(int id, int parentId, String name) {
+        Dir d = directories.get(id);
+        children.get(d.parentId()).remove(d.name());
+        Dir moved = new Dir(id, parentId, name, d.createdAt());
+        directories.put(id, moved);
+        children.computeIfAbsent(parentId, k -> new TreeMap<>()).put(name, id);
+    }
+
+    private String pathOf(int id) {
+        Dir d = directories.get(id);
+        if (d.parentId() == 0) return "";
+        String parent = pathOf(d.parentId());
+        return parent.isEmpty() ? d.name() : parent + "/" + d.name();
+    }
+
+    private List<Dir> sortedDirectories() {
+        List<Dir> out = new ArrayList<>();
+        collectSubtree(1, out);
+        return out;
+    }
+
+    private void collectSubtree(int id, List<Dir> out) {
+        Dir d = directories.get(id);
+        if (d == null) return;
+        out.add(d);
+        for (int child : children.getOrDefault(id, new TreeMap<>()).values())
+            collectSubtree(child, out);
+    }
+
+    // Re-applying an existing ID replaces the row, which is how moves and edits are logged
+    private void applyFile(FileRecord f) {
+        applyDeleteFile(f.fileId());
+        files.put(f.fileId(), f);
+        filesByDirectory.computeIfAbsent(f.directoryId(), k -> new HashMap<>()).put(f.fileName(), f.fileId());
+        filesByMessage.computeIfAbsent(f.messageId(), k -> new ArrayList<>(1)).add(f.fileId());
+        nextFileId = Math.max(nextFileId, f.fileId() + 1);
+    }
+
+    private void applyDeleteFile(int id) {
+        FileRecord f = files.remove(id);
+        if (f == null) return;
+        filesByDirectory.get(f.directoryId()).remove(f.fileName());
+        List<Integer> siblings = filesByMessage.get(f.messageId());
+        siblings.remove((Integer) id);
+        if (siblings.isEmpty()) filesByMessage.remove(f.messageId());
+    }
+
+    private void applyCheckpoint(ReindexCheckpoint c) {
+        reindexCheckpoints.put(c.channelId(), c);
+    }
+
+    private void applyLogicalFile(LogicalFileEntry l) {
+        LogicalFileEntry old = logicalFiles.put(l.logicalFileId(), l);
+        if (old != null) logicalByDirectory.get(old.directoryId()).remove(old.originalFilename());
+        logicalByDirectory.computeIfAbsent(l.directoryId(), k -> new TreeMap<>())
+                .put(l.originalFilename(), l.logicalFileId());
+        nextLogicalFileId = Math.max(nextLogicalFileId, l.logicalFileId() + 1);
+    }
+
+    private void applyDeleteLogicalFile(long id) {
+        LogicalFileEntry l = logicalFiles.remove(id);
+        if (l == null) return;
+        logicalByDirectory.get(l.directoryId()).remove(l.originalFilename());
+        List<Long> parts = partialsByLogical.remove(id);
+        if (parts == null) return;
+        for (long partialId : parts) {
+            FilePartialRecord p = partials.remove(partialId);
+            unindexPartialMessage(p);
+            partNamesByDirectory.get(p.directoryId()).remove(p.partName());
+        }
+    }
+
+    private void applyPartial(FilePartialRecord p) {
+        FilePartialRecord old = partials.put(p.partialId(), p);
+        if (old != null) {
+            partNamesByDirectory.get(old.directoryId()).remove(old.partName());
+            unindexPartialMessage(old);
+        } else {
+            partialsByLogical.computeIfAbsent(p.logicalFileId(), k -> new ArrayList<>()).add(p.partialId());
+        }
+        partialsByMessage.computeIfAbsent(p.messageId(), k -> new ArrayList<>(1)).add(p.partialId());
+        partNamesByDirectory.computeIfAbsent(p.directoryId(), k -> new HashSet<>()).add(p.partName());
+        nextPartialId = Math.max(nextPartialId, p.partialId() + 1);
+    }
+
+    private void unindexPartialMessage(FilePartialRecord p) {
+        List<Long> siblings = partialsByMessage.get(p.messageId());
+        siblings.remove((Long) p.partialId());
+        if (siblings.isEmpty()) partialsByMessage.remove(p.messageId());
+    }
+
+    private int fileCount(int dirId) {
+        Map<String, Integer> m = filesByDirectory.get(dirId);
+        return m == null ? 0 : m.size();
+    }
+
+    private DirectoryEntry toEntry(Dir d) {
+        return new DirectoryEntry(d.id(), d.parentId(), d.name(), pathOf(d.id()), d.createdAt(), fileCount(d.id()));
+    }
+
+    private static FilePartialEntry toEntry(FilePartialRecord p) {
+        return new FilePartialEntry(
+                p.partialId(), p.channelId(), p.messageId(), p.partName(), p.partNumber(),
+                p.partSize(), p.originalFilename(), p.mimeType(), p.uploadedViaWebhook(),
+                p.logicalFileId(), p.checksum(), p.createdAt());
+    }
+
+    private static boolean contains(String haystack, String needle) {
+        return haystack != null && haystack.toLowerCase().contains(needle);
+    }
+
+    @Override
+    public void addInvalidationListener(Consumer<String> listener) {
+        invalidationListeners.add(listener);
+    }
+
+    private void publish(String... events) {
+        for (String event : events)
+            for (Consumer<String> l : invalidationListeners)
+                l.accept(event);
+    }
+
+    @Override
+    public void recordFileMetadata(long channelId, long messageId, int dirId,
+                                   String name, String desc, int size, String mime) throws SQLException {
+        synchronized (this) {
+            insertFile(new NewFileRecord(channelId, messageId, dirId, name, desc, size, mime));
+        }
+        publish("directory:" + dirId);
+    }
+
+    private void insertFile(NewFileRecord n) throws SQLException {
+        if (!directories.containsKey(n.directoryId()))
+            throw new SQLException("Directory " + n.directoryId() + " does not exist");
+        Map<String, Integer> names = filesByDirectory.get(n.directoryId());
+        if (names != null && names.containsKey(n.fileName()))
+            throw new SQLException("File " + n.fileName() + " already exists in this directory", UNIQUE_VIOLATION);
+        FileRecord f = new FileRecord(nextFileId, n.channelId(), n.messageId(), n.directoryId(),
+                n.fileName(), n.description(), n.size(), n.mimeType(), OffsetDateTime.now());
+        append(fileOp(f));
+        applyFile(f);
+    }
+
+    @Override
+    public boolean[] recordFileMetadataBatch(List<NewFileRecord> records) {
+        boolean[] results = new boolean[records.size()];
+        Set<String> events = new HashSet<>();
+        synchronized (this) {
+            for (int i = 0; i < records.size(); i++) {
+                try {
+                    insertFile(records.get(i));
+                    results[i] = true;
+                    events.add("directory:" + records.get(i).directoryId());
+                } catch (SQLException e) {
+                    System.err.println("Insert failed for " + records.get(i).fileName() + ": " + e.getMessage());
+                }
+            }
+        }
+        publish(events.toArray(String[]::new));
+        return results;
+    }
+
+    @Override
+    public int upsertFiles(List<NewFileRecord> records) throws SQLException {
+        List<FileRecord> inserted = new ArrayList<>();
+        Set<String> events = new HashSet<>();
+        synchronized (this) {
+            Set<String> taken = new HashSet<>();
+            for (NewFileRecord n : records) {
+                if (!directories.containsKey(n.directoryId()) || indexed(n)) continue;
+                if (filesByDirectory.getOrDefault(n.directoryId(), Map.of()).containsKey(n.fileName())) continue;
+                if (!taken.add(n.directoryId() + "/" + n.fileName())) continue;
+                inserted.add(new FileRecord(nextFileId + inserted.size(), n.channelId(), n.messageId(),
+                        n.directoryId(), n.fileName(), n.description(), n.size(), n.mimeType(),
+                        OffsetDateTime.now()));
+                events.add("directory:" + n.directoryId());
+            }
+            if (inserted.isEmpty()) return 0;
+            append(inserted.stream().map(EmbeddedDatabase::fileOp).toArray(JsonObject[]::new));
+            inserted.forEach(this::applyFile);
+        }
+        publish(events.toArray(String[]::new));
+        return inserted.size();
+    }
+
+    private boolean indexed(NewFileRecord n) {
+        for (int id : filesByMessage.getOrDefault(n.messageId(), List.of())) {
+            FileRecord f = files.get(id);
+            if (f.channelId() == n.channelId() && f.fileName().equals(n.fileName())) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized ReindexCheckpoint getReindexCheckpoint(long channelId) {
+        return reindexCheckpoints.get(channelId);
+    }
+
+    @Override
+    public synchronized void saveReindexCheckpoint(ReindexCheckpoint checkpoint) throws SQLException {
+        append(checkpointOp(checkpoint));
+        applyCheckpoint(checkpoint);
+    }
+
+    @Override
+    public synchronized FileRecord getFileById(int fileId) {
+        return files.get(fileId);
+    }
+
+    @Override
+    public synchronized List<FileEntry> getFilesByDirectoryId(int dirId, String search, String mime, String sort) {
+        String s = search == null || search.isBlank() ? null : search.toLowerCase();
+        String m = mime == null || mime.isBlank() ? null : mime;
+
+        List<FileRecord> matches = new ArrayList<>();
+        Map<String, Integer> names = filesByDirectory.getOrDefault(dirId, Map.of());
+        for (int id : names.values()) {
+            FileRecord f = files.get(id);
+            if (s != null && !contains(f.fileName(), s) && !contains(f.description(), s)) continue;
+            if (m != null && (f.mimeType() == null || !f.mimeType().startsWith(m))) continue;
+            matches.add(f);
+        }
+
+        matches.sort("size".equals(sort) ? Comparator.comparingLong(FileRecord::size).reversed() :
+                "file_name".equals(sort) ? Comparator.comparing(FileRecord::fileName) :
+                        Comparator.comparingLong(FileRecord::messageId).reversed());
+        return toFileEntries(matches);
+    }
+
+    @Override
+    public synchronized List<FileEntry> getFilesBetween(int dirId, OffsetDateTime from, OffsetDateTime to) {
+        long lo = Snowflakes.lowerBound(from);
+        long hi = Snowflakes.upperBound(to);
+
+        List<FileRecord> matches = new ArrayList<>();
+        for (int id : filesByDirectory.getOrDefault(dirId, Map.of()).values()) {
+            FileRecord f = files.get(id);
+            if (f.messageId() >= lo && f.messageId() <= hi) matches.add(f);
+        }
+        matches.sort(Comparator.comparingLong(FileRecord::messageId).reversed());
+        return toFileEntries(matches);
+    }
+
+    private static List<FileEntry> toFileEntries(List<FileRecord> records) {
+        List<FileEntry> out = new ArrayList<>(records.size());
+        for (FileRecord f : records)
+            out.add(new FileEntry(f.fileId(), f.fileName(), f.description(), f.size(), f.mimeType(), f.createdAt()));
+        return out;
+    }
+
+    @Override
+    public boolean deleteFile(int fileId) throws SQLException {
+        int dirId;
+        synchronized (this) {
+            FileRecord f = files.get(fileId);
+            if (f == null) return false;
+            dirId = f.directoryId();
+            append(deleteOp("rmfile", fileId));
+            applyDeleteFile(fileId);
+        }
+        publish("file:" + fileId, "directory:" + dirId);
+        return true;
+    }
+
+    @Override
+    public synchronized List<DirectoryEntry> getAllDirectories() {
+        return getSubtree(1);
+    }
+
+    @Override
+    public synchronized DirectoryEntry getDirectoryById(int id) {
+        Dir d = directories.get(id);
+        if (d == null) throw new RuntimeException();
+        return toEntry(d);
+    }
+
+    @Override
+    public synchronized List<DirectoryEntry> getChildDirectories(int parentId) {
+        List<DirectoryEntry> out = new ArrayList<>();
+        for (int id : children.getOrDefault(parentId, new TreeMap<>()).values())
+            out.add(toEntry(directories.get(id)));
+        return out;
+    }
+
+    @Override
+    public synchronized List<DirectoryEntry> getSubtree(int directoryId) {
+        List<Dir> dirs = new ArrayList<>();
+        collectSubtree(directoryId, dirs);
+        List<DirectoryEntry> out = new ArrayList<>();
+        for (Dir d : dirs) out.add(toEntry(d));
+        out.sort(Comparator.comparing(DirectoryEntry::path));
+        return out;
+    }
+
+    @Override
+    public synchronized SubtreeStats getSubtreeStats(int directoryId) {
+        List<Dir> dirs = new ArrayList<>();
+        collectSubtree(directoryId, dirs);
+        long count = 0;
+        long size = 0;
+        for (Dir d : dirs) {
+            for (int fileId : filesByDirectory.getOrDefault(d.id(), Map.of()).values()) {
+                count++;
+                size += files.get(fileId).size();
+            }
+            for (long logicalId : logicalByDirectory.getOrDefault(d.id(), new TreeMap<>()).values()) {
+                count++;
+                size += logicalFiles.get(logicalId).totalSize();
+            }
+        }
+        return new SubtreeStats(dirs.size(), count, size);
+    }
+
+    @Override
+    public int createDirectory(String path) throws SQLException {
+        int id = 1;
+        synchronized (this) {
+            for (String name : path.split("/")) {
+                if (name.isBlank()) continue;
+                id = insertDirectory(id, name.trim());
+            }
+        }
+        publish("directory:" + id);
+        return id;
+    }
+
+    @Override
+    public int createDirectory(int parentId, String name) throws SQLException {
+        int id;
+        synchronized (this) {
+            id = insertDirectory(parentId, name);
+        }
+        publish("directory:" + id);
+        return id;
+    }
+
+    private int insertDirectory(int parentId, String name) throws SQLException {
+        if (!directories.containsKey(parentId))
+            throw new SQLException("Directory " + parentId + " does not exist");
+        Integer existing = children.getOrDefault(parentId, new TreeMap<>()).get(name);
+        if (existing != null) return existing;
+        Dir d = new Dir(nextDirectoryId, parentId, name, OffsetDateTime.now());
+        append(directoryOp(d));
+        applyDirectory(d);
+        return d.id();
+    }
+
+    @Override
+    public boolean moveDirectory(int directoryId, int newParentId, String newName) throws SQLException {
+        synchronized (this) {
+            Dir d = directories.get(directoryId);
+            if (d == null || d.parentId() == 0 || !directories.containsKey(newParentId)) return false;
+            for (int up = newParentId; up != 0; up = directories.get(up).parentId())
+                if (up == directoryId) return false;
+            Integer clash = children.getOrDefault(newParentId, new TreeMap<>()).get(newName);
+            if (clash != null && clash != directoryId)
+                throw new SQLException("Directory " + newName + " already exists there", UNIQUE_VIOLATION);
+            append(moveDirectoryOp(directoryId, newParentId, newName));
+            applyMoveDirectory(directoryId, newParentId, newName);
+        }
+        publish("directory:" + directoryId);
+        return true;
+    }
+
+    @Override
+    public boolean deleteDirectory(int directoryId) throws SQLException {
+        if (directoryId == 1) throw new SQLException();
+        synchronized (this) {
+            if (!directories.containsKey(directoryId)) return false;
+            if (fileCount(directoryId) > 0
+                    || !logicalByDirectory.getOrDefault(directoryId, new TreeMap<>()).isEmpty()
+                    || !children.getOrDefault(directoryId, new TreeMap<>()).isEmpty())
+                throw new SQLException();
+            append(deleteOp("rmdir", directoryId));
+            applyDeleteDirectory(directoryId);
+        }
+        publish("directory:" + directoryId);
+        return true;
+    }
+
+    @Override
+    public long createLogicalFile(int dirId, String original, String desc, String mime,
+                                  long totalSize, int partCount, String codec, String checksum) throws SQLException {
+        long id;
+        synchronized (this) {
+            if (!directories.containsKey(dirId))
+                throw new SQLException("Directory " + dirId + " does not exist");
+            if (logicalByDirectory.getOrDefault(dirId, new TreeMap<>()).containsKey(original))
+                throw new SQLException("File " + original + " already exists in this directory", UNIQUE_VIOLATION);
+            LogicalFileEntry l = new LogicalFileEntry(nextLogicalFileId, dirId, original, desc, mime,
+                    totalSize, partCount, codec, checksum, OffsetDateTime.now());
+            append(logicalOp(l));
+            applyLogicalFile(l);
+            id = l.logicalFileId();
+        }
+        publish("directory:" + dirId);
+        return id;
+    }
+
+    @Override
+    public long recordFilePartial(long logicalFileId, long channelId, long messageId, int dirId,
+                                  String partName, int partNumber, long partSize,
+                                  String original, String desc, String mime, String checksum) throws SQLException {
+        long id;
+        synchronized (this) {
+            if (!logicalFiles.containsKey(logicalFileId))
+                throw new SQLException("Logical file " + logicalFileId + " does not exist");
+            if (partNamesByDirectory.getOrDefault(dirId, Set.of()).contains(partName))
+                throw new SQLException("Part " + partName + " already exists in this directory", UNIQUE_VIOLATION);
+            FilePartialRecord p = new FilePartialRecord(nextPartialId, logicalFileId, channelId, messageId,
+                    dirId, partName, partNumber, partSize, original, desc, mime, true, checksum,
+                    OffsetDateTime.now());
+            append(partialOp(p));
+            applyPartial(p);
+            id = p.partialId();
+        }
+        publish("logical:" + logicalFileId, "directory:" + dirId);
+        return id;
+    }
+
+    @Override
+    public long upsertLogicalFile(int dirId, String original, String desc, String mime,
+                                  long totalSize, int partCount, String codec, String checksum) throws SQLException {
+        long id;
+        synchronized (this) {
+            Long existing = logicalByDirectory.getOrDefault(dirId, new TreeMap<>()).get(original);
+            if (existing != null) return existing;
+            if (!directories.containsKey(dirId))
+                throw new SQLException("Directory " + dirId + " does not exist");
+            LogicalFileEntry l = new LogicalFileEntry(nextLogicalFileId, dirId, original, desc, mime,
+                    totalSize, partCount, codec, checksum, OffsetDateTime.now());
+            append(logicalOp(l));
+            applyLogicalFile(l);
+            id = l.logicalFileId();
+        }
+        publish("directory:" + dirId);
+        return id;
+    }
+
+    @Override
+    public int upsertFilePartials(List<NewPartialRecord> records) throws SQLException {
+        List<FilePartialRecord> inserted = new ArrayList<>();
+        Set<String> events = new HashSet<>();
+        synchronized (this) {
+            Set<String> taken = new HashSet<>();
+            for (NewPartialRecord n : records) {
+                if (!logicalFiles.containsKey(n.logicalFileId()))
+                    throw new SQLException("Logical file " + n.logicalFileId() + " does not exist");
+                if (indexed(n) || partNamesByDirectory.getOrDefault(n.directoryId(), Set.of()).contains(n.partName())) continue;
+                if (!taken.add(n.directoryId() + "/" + n.partName())) continue;
+                inserted.add(new FilePartialRecord(nextPartialId + inserted.size(), n.logicalFileId(), n.channelId(),
+                        n.messageId(), n.directoryId(), n.partName(), n.partNumber(), n.partSize(),
+                        n.originalFilename(), n.description(), n.mimeType(), true, n.checksum(),
+                        OffsetDateTime.now()));
+                events.add("logical:" + n.logicalFileId());
+                events.add("directory:" + n.directoryId());
+            }
+            if (inserted.isEmpty()) return 0;
+            append(inserted.stream().map(EmbeddedDatabase::partialOp).toArray(JsonObject[]::new));
+            inserted.forEach(this::applyPartial);
+        }
+        publish(events.toArray(String[]::new));
+        return inserted.size();
+    }
+
+    private boolean indexed(NewPartialRecord n) {
+        for (long id : partialsByMessage.getOrDefault(n.messageId(), List.of())) {
+            FilePartialRecord p = partials.get(id);
+            if (p.channelId() == n.channelId() && p.partName().equals(n.partName())) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Set<Long> findIndexedPartMessages(long channelId, Collection<Long> messageIds) {
+        Set<Long> out = new HashSet<>();
+        for (long messageId : messageIds) {
+            for (long id : partialsByMessage.getOrDefault(messageId, List.of())) {
+                if (partials.get(id).channelId() == channelId) out.add(messageId);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public long createLogicalFile(int dirId, String original, String desc, String mime,
+                                  long totalSize, String codec, String checksum,
+                                  List<NewPartialRecord> parts) throws SQLException {
+        return recordLogicalFile(dirId, original, desc, mime, totalSize, codec, checksum, parts, false);
+    }
+
+    @Override
+    public long replaceLogicalFile(int dirId, String original, String desc, String mime,
+                                   long totalSize, String codec, String checksum,
+                                   List<NewPartialRecord> parts) throws SQLException {
+        return recordLogicalFile(dirId, original, desc, mime, totalSize, codec, checksum, parts, true);
+    }
+
+    private long recordLogicalFile(int dirId, String original, String desc, String mime,
+                                   long totalSize, String codec, String checksum,
+                                   List<NewPartialRecord> parts, boolean replace) throws SQLException {
+        Set<String> events = new HashSet<>();
+        long id;
+        synchronized (this) {
+            if (!directories.containsKey(dirId))
+                throw new SQLException("Directory " + dirId + " does not exist");
+            List<JsonObject> ops = new ArrayList<>();
+            Long oldLogical = logicalByDirectory.getOrDefault(dirId, new TreeMap<>()).get(original);
+            if (oldLogical != null && !replace)
+                throw new SQLException("File " + original + " already exists in this directory", UNIQUE_VIOLATION);
+            if (oldLogical != null) {
+                ops.add(deleteOp("rmlogical", oldLogical));
+                events.add("logical:" + oldLogical);
+            }
+            Integer oldFile = replace ? filesByDirectory.getOrDefault(dirId, Map.of()).get(original) : null;
+            if (oldFile != null) {
+                ops.add(deleteOp("rmfile", oldFile));
+                events.add("file:" + oldFile);
+            }
+
+            // The old file's parts are dropped with it, so only names among the new parts can clash
+            Set<String> taken = new HashSet<>(partNamesByDirectory.getOrDefault(dirId, Set.of()));
+            if (oldLogical != null)
+                for (long partialId : partialsByLogical.getOrDefault(oldLogical, List.of()))
+                    taken.remove(partials.get(partialId).partName());
+            LogicalFileEntry l = new LogicalFileEntry(nextLogicalFileId, dirId, original, desc, mime,
+                    totalSize, parts.size(), codec, checksum, OffsetDateTime.now());
+            ops.add(logicalOp(l));
+            List<FilePartialRecord> newParts = new ArrayList<>();
+            for (NewPartialRecord n : parts) {
+                if (!taken.add(n.partName()))
+                    throw new SQLException("Part " + n.partName() + " already exists in this directory", UNIQUE_VIOLATION);
+                FilePartialRecord p = new FilePartialRecord(nextPartialId + newParts.size(), l.logicalFileId(),
+                        n.channelId(), n.messageId(), dirId, n.partName(), n.partNumber(), n.partSize(), original,
+                        desc, mime, true, n.checksum(), OffsetDateTime.now());
+                newParts.add(p);
+                ops.add(partialOp(p));
+            }
+
+            append(ops.toArray(JsonObject[]::new));
+            if (oldLogical != null) applyDeleteLogicalFile(oldLogical);
+            if (oldFile != null) applyDeleteFile(oldFile);
+            applyLogicalFile(l);
+            newParts.forEach(this::applyPartial);
+            id = l.logicalFileId();
+        }
+        events.add("logical:" + id);
+        events.add("directory:" + dirId);
+        publish(events.toArray(String[]::new));
+        return id;
+    }
+
+    @Override
+    public synchronized boolean checkPartialExists(String partName, int dirId) {
+        return partNamesByDirectory.getOrDefault(dirId, Set.of()).contains(partName);
+    }
+
+    @Override
+    public boolean deleteLogicalFile(long logicalFileId) throws SQLException {
+        int dirId;
+        synchronized (this) {
+            LogicalFileEntry l = logicalFiles.get(logicalFileId);
+            if (l == null) return false;
+            dirId = l.directoryId();
+            append(deleteOp("rmlogical", logicalFileId));
+            applyDeleteLogicalFile(logicalFileId);
+        }
+        publish("logical:" + logicalFileId, "directory:" + dirId);
+        return true;
+    }
+
+    @Override
+    public BulkResult deleteFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds) throws SQLException {
+        Set<Integer> changedFiles = new HashSet<>();
+        Set<Long> changedLogical = new HashSet<>();
+        Set<String> events = new HashSet<>();
+        synchronized (this) {
+            List<JsonObject> ops = new ArrayList<>();
+            for (int id : fileIds) {
+                FileRecord f = files.get(id);
+                if (f == null || !changedFiles.add(id)) continue;
+                ops.add(deleteOp("rmfile", id));
+                events.add("file:" + id);
+                events.add("directory:" + f.directoryId());
+            }
+            for (long id : logicalFileIds) {
+                LogicalFileEntry l = logicalFiles.get(id);
+                if (l == null || !changedLogical.add(id)) continue;
+                ops.add(deleteOp("rmlogical", id));
+                events.add("logical:" + id);
+                events.add("directory:" + l.directoryId());
+            }
+            append(ops.toArray(JsonObject[]::new));
+            changedFiles.forEach(this::applyDeleteFile);
+            changedLogical.forEach(this::applyDeleteLogicalFile);
+        }
+        publish(events.toArray(String[]::new));
+        return new BulkResult(changedFiles, changedLogical, Set.of(), Set.of());
+    }
+
+    @Override
+    public BulkResult moveFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds, int targetDirId) throws SQLException {
+        Set<Integer> changedFiles = new HashSet<>();
+        Set<Long> changedLogical = new HashSet<>();
+        Set<Integer> fileConflicts = new HashSet<>();
+        Set<Long> logicalConflicts = new HashSet<>();
+        Set<String> events = new HashSet<>();
+        synchronized (this) {
+            if (!directories.containsKey(targetDirId))
+                throw new SQLException("Directory " + targetDirId + " does not exist");
+
+            Set<String> takenNames = new HashSet<>(filesByDirectory.getOrDefault(targetDirId, Map.of()).keySet());
+            Set<String> takenLogical = new HashSet<>(logicalByDirectory.getOrDefault(targetDirId, new TreeMap<>()).keySet());
+            Set<String> takenParts = new HashSet<>(partNamesByDirectory.getOrDefault(targetDirId, Set.of()));
+
+            List<JsonObject> ops = new ArrayList<>();
+            List<Runnable> applies = new ArrayList<>();
+            for (int id : fileIds) {
+                FileRecord f = files.get(id);
+                if (f == null || f.directoryId() == targetDirId || changedFiles.contains(id)) continue;
+                if (!takenNames.add(f.fileName())) {
+                    fileConflicts.add(id);
+                    continue;
+                }
+                FileRecord moved = new FileRecord(f.fileId(), f.channelId(), f.messageId(), targetDirId,
+                        f.fileName(), f.description(), f.size(), f.mimeType(), f.createdAt());
+                ops.add(fileOp(moved));
+                applies.add(() -> applyFile(moved));
+                changedFiles.add(id);
+                events.add("file:" + id);
+                events.add("directory:" + f.directoryId());
+            }
+            for (long id : logicalFileIds) {
+                LogicalFileEntry l = logicalFiles.get(id);
+                if (l == null || l.directoryId() == targetDirId || changedLogical.contains(id)) continue;
+                List<FilePartialRecord> parts = new ArrayList<>();
+                for (long partialId : partialsByLogical.getOrDefault(id, List.of())) parts.add(partials.get(partialId));
+                if (takenLogical.contains(l.originalFilename())
+                        || parts.stream().anyMatch(p -> takenParts.contains(p.partName()))) {
+                    logicalConflicts.add(id);
+                    continue;
+                }
+                takenLogical.add(l.originalFilename());
+                LogicalFileEntry moved = new LogicalFileEntry(l.logicalFileId(), targetDirId, l.originalFilename(),
+                        l.description(), l.mimeType(), l.totalSize(), l.partCount(), l.codec(), l.checksum(),
+                        l.createdAt());
+                ops.add(logicalOp(moved));
+                applies.add(() -> applyLogicalFile(moved));
+                for (FilePartialRecord p : parts) {
+                    takenParts.add(p.partName());
+                    FilePartialRecord movedPart = withPartial(p, targetDirId, p.description());
+                    ops.add(partialOp(movedPart));
+                    applies.add(() -> applyPartial(movedPart));
+                }
+                changedLogical.add(id);
+                events.add("logical:" + id);
+                events.add("directory:" + l.directoryId());
+            }
+            append(ops.toArray(JsonObject[]::new));
+            applies.forEach(Runnable::run);
+            events.add("directory:" + targetDirId);
+        }
+        publish(events.toArray(String[]::new));
+        return new BulkResult(changedFiles, changedLogical, fileConflicts, logicalConflicts);
+    }
+
+    @Override
+    public BulkResult describeFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds, String description) throws SQLException {
+        Set<Integer> changedFiles = new HashSet<>();
+        Set<Long> changedLogical = new HashSet<>();
+        Set<String> events = new HashSet<>();
+        synchronized (this) {
+            List<JsonObject> ops = new ArrayList<>();
+            List<Runnable> applies = new ArrayList<>();
+            for (int id : fileIds) {
+                FileRecord f = files.get(id);
+                if (f == null || !changedFiles.add(id)) continue;
+                FileRecord updated = new FileRecord(f.fileId(), f.channelId(), f.messageId(), f.directoryId(),
+                        f.fileName(), description, f.size(), f.mimeType(), f.createdAt());
+                ops.add(fileOp(updated));
+                applies.add(() -> applyFile(updated));
+                events.add("file:" + id);
+                events.add("directory:" + f.directoryId());
+            }
+            for (long id : logicalFileIds) {
+                LogicalFileEntry l = logicalFiles.get(id);
+                if (l == null || !changedLogical.add(id)) continue;
+                LogicalFileEntry updated = new LogicalFileEntry(l.logicalFileId(), l.directoryId(), l.originalFilename(),
+                        description, l.mimeType(), l.totalSize(), l.partCount(), l.codec(), l.checksum(),
+                        l.createdAt());
+                ops.add(logicalOp(updated));
+                applies.add(() -> applyLogicalFile(updated));
+                for (long partialId : partialsByLogical.getOrDefault(id, List.of())) {
+                    FilePartialRecord p = partials.get(partialId);
+                    FilePartialRecord updatedPart = withPartial(p, p.directoryId(), description);
+                    ops.add(partialOp(updatedPart));
+                    applies.add(() -> applyPartial(updatedPart));
+                }
+                events.add("logical:" + id);
+                events.add("directory:" + l.directoryId());
+            }
+            append(ops.toArray(JsonObject[]::new));
+            applies.forEach(Runnable::run);
+        }
+        publish(events.toArray(String[]::new));
+        return new BulkResult(changedFiles, changedLogical, Set.of(), Set.of());
+    }
+
+    private static FilePartialRecord withPartial(FilePartialRecord p, int directoryId, String description) {
+        return new FilePartialRecord(p.partialId(), p.logicalFileId(), p.channelId(), p.messageId(), directoryId,
+                p.partName(), p.partNumber(), p.partSize(), p.originalFilename(), description, p.mimeType(),
+                p.uploadedViaWebhook(), p.checksum(), p.createdAt());
+    }
+
+    @Override
+    public synchronized List<FilePartialEntry> getFilePartialsByOriginalFilename(String original, int dirId) {
+        Long id = logicalByDirectory.getOrDefault(dirId, new TreeMap<>()).get(original);
+        return id == null ? new ArrayList<>() : getFilePartialsByLogicalFileId(id);
+    }
+
+    @Override
+    public synchronized List<FilePartialEntry> getFilePartialsByLogicalFileId(long logicalFileId) {
+        List<FilePartialEntry> out = new ArrayList<>();
+        for (long partialId : partialsByLogical.getOrDefault(logicalFileId, List.of()))
+            out.add(toEntry(partials.get(partialId)));
+        out.sort(Comparator.comparingInt(FilePartialEntry::partNumber));
+        return out;
+    }
+
+    @Override
+    public synchronized LogicalFileEntry getLogicalFileById(long logicalFileId) {
+        return logicalFiles.get(logicalFileId);
+    }
+
+    @Override
+    public synchronized LogicalFileEntry getLogicalFileByName(String original, int dirId) {
+        Long id = logicalByDirectory.getOrDefault(dirId, new TreeMap<>()).get(original);
+        return id == null ? null : logicalFiles.get(id);
+    }
+
+    @Override
+    public synchronized List<LogicalFileEntry> getLogicalFilesByDirectoryId(int dirId, String search) {
+        String s = search == null || search.isBlank() ? null : search.toLowerCase();
+        List<LogicalFileEntry> out = new ArrayList<>();
+        for (long id : logicalByDirectory.getOrDefault(dirId, new TreeMap<>()).values()) {
+            LogicalFileEntry l = logicalFiles.get(id);
+            if (s == null || contains(l.originalFilename(), s)) out.add(l);
+        }
+        return out;
+    }
+
+    // The page is copied under the lock and handed out after it, so a slow reader never blocks writers
+
+    @Override
+    public int streamFiles(int dirId, int afterId, int limit, Consumer<FileRecord> sink) {
+        List<FileRecord> page = new ArrayList<>();
+        synchronized (this) {
+            for (FileRecord f : files.tailMap(afterId, false).values()) {
+                if (page.size() == limit) break;
+                if (dirId == 0 || f.directoryId() == dirId) page.add(f);
+            }
+        }
+        page.forEach(sink);
+        return page.size();
+    }
+
+    @Override
+    public int streamLogicalFiles(int dirId, long afterId, int limit, Consumer<LogicalFileEntry> sink) {
+        List<LogicalFileEntry> page = new ArrayList<>();
+        synchronized (this) {
+            for (LogicalFileEntry l : logicalFiles.tailMap(afterId, false).values()) {
+                if (page.size() == limit) break;
+                if (dirId == 0 || l.directoryId() == dirId) page.add(l);
+            }
+        }
+        page.forEach(sink);
+        return page.size();
+    }
+
+    @Override
+    public int streamFilePartials(long logicalFileId, long afterId, int limit, Consumer<FilePartialRecord> sink) {
+        List<FilePartialRecord> page = new ArrayList<>();
+        synchronized (this) {
+            for (FilePartialRecord p : partials.tailMap(afterId, false).values()) {
+                if (page.size() == limit) break;
+                if (logicalFileId == 0 || p.logicalFileId() == logicalFileId) page.add(p);
+            }
+        }
+        page.forEach(sink);
+        return page.size();
+    }
+
+    @Override
+    public int streamDirectories(int afterId, int limit, Consumer<DirectoryEntry> sink) {
+        List<DirectoryEntry> page = new ArrayList<>();
+        synchronized (this) {
+            for (Dir d : directories.tailMap(afterId, false).values()) {
+                if (page.size() == limit) break;
+                page.add(toEntry(d));
+            }
+        }
+        page.forEach(sink);
+        return page.size();
+    }
+
+    @Override
+    public synchronized Snapshot exportSnapshot() {
+        List<FileRecord> f = new ArrayList<>(files.values());
+        f.sort(Comparator.comparingInt(FileRecord::fileId));
+        List<LogicalFileEntry> l = new ArrayList<>(logicalFiles.values());
+        l.sort(Comparator.comparingLong(LogicalFileEntry::logicalFileId));
+        List<FilePartialRecord> p = new ArrayList<>(partials.values());
+        p.sort(Comparator.comparingLong(FilePartialRecord::partialId));
+        return new Snapshot(getAllDirectories(), f, l, p);
+    }
+
+    /**
+     * Imports with the same uniqueness rules as the Postgres schema. A snapshot
+     * directory whose name is already taken under its parent is merged into
+     * the existing one, so its contents follow it there; rows whose name is
+     * then taken in their directory are skipped, along with the parts of a
+     * skipped split file.
+     */
+    @Override
+    public void importSnapshot(Snapshot snapshot) throws SQLException {
+        synchronized (this) {
+            List<Dir> newDirs = new ArrayList<>();
+            List<FileRecord> newFiles = new ArrayList<>();
+            List<LogicalFileEntry> newLogical = new ArrayList<>();
+            List<FilePartialRecord> newPartials = new ArrayList<>();
+
+            // Snapshot directory ID to the directory its contents go to
+            Map<Integer, Integer> dirIds = new HashMap<>();
+            Map<Integer, Map<String, Integer>> newChildren = new HashMap<>();
+            // Ordered by path, so every parent is mapped before its children
+            for (DirectoryEntry e : snapshot.directories()) {
+                if (directories.containsKey(e.directoryId())) {
+                    dirIds.put(e.directoryId(), e.directoryId());
+                    continue;
+                }
+                int parentId = e.parentId() == 0 ? 0 : dirIds.getOrDefault(e.parentId(), -1);
+                if (parentId < 0) continue;
+                Integer existing = children.getOrDefault(parentId, new TreeMap<>()).get(e.name());
+                if (existing == null) existing = newChildren.getOrDefault(parentId, Map.of()).get(e.name());
+                if (existing != null) {
+                    dirIds.put(e.directoryId(), existing);
+                    continue;
+                }
+                newDirs.add(new Dir(e.directoryId(), parentId, e.name(), e.createdAt()));
+                newChildren.computeIfAbsent(parentId, k -> new HashMap<>()).put(e.name(), e.directoryId());
+                dirIds.put(e.directoryId(), e.directoryId());
+            }
+
+            Set<String> takenFiles = new HashSet<>();
+            for (FileRecord f : snapshot.files()) {
+                Integer dirId = dirIds.get(f.directoryId());
+                if (dirId == null || files.containsKey(f.fileId())) continue;
+                if (filesByDirectory.getOrDefault(dirId, Map.of()).containsKey(f.fileName())
+                        || !takenFiles.add(dirId + "/" + f.fileName())) continue;
+                newFiles.add(new FileRecord(f.fileId(), f.channelId(), f.messageId(), dirId, f.fileName(),
+                        f.description(), f.size(), f.mimeType(), f.createdAt()));
+            }
+
+            Set<String> takenLogical = new HashSet<>();
+            Map<Long, Integer> importedLogical = new HashMap<>();
+            for (LogicalFileEntry l : snapshot.logicalFiles()) {
+                Integer dirId = dirIds.get(l.directoryId());
+                if (dirId == null || logicalFiles.containsKey(l.logicalFileId())) continue;
+                if (logicalByDirectory.getOrDefault(dirId, new TreeMap<>()).containsKey(l.originalFilename())
+                        || !takenLogical.add(dirId + "/" + l.originalFilename())) continue;
+                newLogical.add(new LogicalFileEntry(l.logicalFileId(), dirId, l.originalFilename(), l.description(),
+                        l.mimeType(), l.totalSize(), l.partCount(), l.codec(), l.checksum(), l.createdAt()));
+                importedLogical.put(l.logicalFileId(), dirId);
+            }
+
+            Set<String> takenParts = new HashSet<>();
+            for (FilePartialRecord p : snapshot.partials()) {
+                Integer dirId = importedLogical.get(p.logicalFileId());
+                if (dirId == null || partials.containsKey(p.partialId())) continue;
+                if (partNamesByDirectory.getOrDefault(dirId, Set.of()).contains(p.partName())
+                        || !takenParts.add(dirId + "/" + p.partName())) continue;
+                newPartials.add(withPartial(p, dirId, p.description()));
+            }
+
+            List<JsonObject> ops = new ArrayList<>();
+            newDirs.forEach(d -> ops.add(directoryOp(d)));
+            newFiles.forEach(f -> ops.add(fileOp(f)));
+            newLogical.forEach(l -> ops.add(logicalOp(l)));
+            newPartials.forEach(p -> ops.add(partialOp(p)));
+            append(ops.toArray(JsonObject[]::new));
+
+            newDirs.forEach(this::applyDirectory);
+            newFiles.forEach(this::applyFile);
+            newLogical.forEach(this::applyLogicalFile);
+            newPartials.forEach(this::applyPartial);
+        }
+        publish("*");
+    }
+}
@@ -2,27 +2,88 @@ package com.pinapelz;
 
 import net.dv8tion.jda.api.entities.Message;
 
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 
 public class FileSystem {
+    private static final long DEFAULT_CACHE_TTL_MS = 300_000;
+
     private Database database;
+    private final MetadataCache cache;
+
+    // Listing versions: every invalidation event advances the clock, and each
+    // directory remembers the tick of its last change. A "*" event moves the
+    // floor, which dirties every directory at once. Tracked whether or not
+    // caching is enabled, since HTTP validators depend on them.
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<Integer, Long> directoryVersions = new ConcurrentHashMap<>();
+    private volatile long versionFloor;
+    private volatile long directoriesVersion;
+
     public FileSystem(String dbHost, String dbUser, String dbPass, String dbName){
-        database = new Database(dbHost, dbUser, dbPass, dbName);
+        this(new PostgresDatabase(dbHost, dbUser, dbPass, dbName), DEFAULT_CACHE_TTL_MS);
+    }
+
+    public FileSystem(Database database, long cacheTtlMillis){
+        this.database = database;
+        cache = new MetadataCache(cacheTtlMillis);
+        database.addInvalidationListener(this::invalidate);
+    }
+
+    private void invalidate(String event) {
+        // Versions move only after the cache is dropped, so a reader that sees
+        // the new version can no longer be served the old data
+        if (event.equals("*")) {
+            cache.invalidateAll();
+            long tick = clock.incrementAndGet();
+            versionFloor = tick;
+            directoriesVersion = tick;
+            return;
+        }
+        cache.invalidate(event);
+        // Directory entries carry file counts, so any change inside a directory dirties them
+        if (event.startsWith("directory:")) {
+            cache.invalidate("directories");
+            long tick = clock.incrementAndGet();
+            directoryVersions.put(Integer.parseInt(event.substring("directory:".length())), tick);
+            directoriesVersion = tick;
+        }
+    }
+
+    /**
+     * Version of a directory's listing, which changes whenever anything in
+     * the directory is written, here or on another node.
+     */
+    public long getDirectoryVersion(int directoryId) {
+        return Math.max(directoryVersions.getOrDefault(directoryId, 0L), versionFloor);
+    }
+
+    /** Version of the directory list, which changes whenever any directory is written. */
+    public long getDirectoriesVersion() {
+        return directoriesVersion;
     }
 
     public DiscordFilePath getFileById(int fileId){
-        String[] rawDiscordFilePath = database.getFileById(fileId);
+        Database.FileRecord file = cache.get("file:" + fileId, "record", () -> database.getFileById(fileId));
+        if (file == null) {
+            throw new RuntimeException("File " + fileId + " not found");
+        }
         DiscordFilePath discPath = new DiscordFilePath();
-        discPath.channelId = Long.parseLong(rawDiscordFilePath[0]);
-        discPath.messageId = Long.parseLong(rawDiscordFilePath[1]);
-        discPath.fileName = rawDiscordFilePath[2];
+        discPath.channelId = file.channelId();
+        discPath.messageId = file.messageId();
+        discPath.fileName = file.fileName();
+        discPath.mimeType = file.mimeType();
         return discPath;
     }
 
-    public void createNewFile(String channelId, String messageId, int directoryId, String description, Message.Attachment attachment){
+    public void createNewFile(long channelId, long messageId, int directoryId, String description, Message.Attachment attachment){
         int fileSize = attachment.getSize();
         String filename = attachment.getFileName();
         String mimeType = attachment.getContentType();
@@ -33,8 +94,18 @@ public class FileSystem {
         }
     }
 
+    public boolean[] createNewFiles(List<Database.NewFileRecord> records) throws SQLException {
+        return database.recordFileMetadataBatch(records);
+    }
+
     public List<Database.FileEntry> getFilesByDirectoryId(int directoryId, String search, String mimeTypeFilter, String sortBy) {
-        return database.getFilesByDirectoryId(directoryId, search, mimeTypeFilter, sortBy);
+        return cache.get("directory:" + directoryId, "files|" + search + "|" + mimeTypeFilter + "|" + sortBy,
+                () -> database.getFilesByDirectoryId(directoryId, search, mimeTypeFilter, sortBy));
+    }
+
+    public List<Database.FileEntry> getFilesBetween(int directoryId, OffsetDateTime from, OffsetDateTime to) {
+        return cache.get("directory:" + directoryId, "between|" + from + "|" + to,
+                () -> database.getFilesBetween(directoryId, from, to));
     }
 
     public int findOrCreateDirectory(String path) throws SQLException {
@@ -48,17 +119,37 @@ public class FileSystem {
 
 
     public List<Database.DirectoryEntry> getAllDirectories() {
-        return database.getAllDirectories();
+        return cache.get("directories", "all", database::getAllDirectories);
     }
 
     public Database.DirectoryEntry getDirectoryById(int directoryId) {
-        return database.getDirectoryById(directoryId);
+        return cache.get("directories", "id:" + directoryId, () -> database.getDirectoryById(directoryId));
     }
 
     public int createDirectory(String path) throws SQLException {
         return database.createDirectory(path);
     }
 
+    public int createDirectory(int parentId, String name) throws SQLException {
+        return database.createDirectory(parentId, name);
+    }
+
+    public boolean moveDirectory(int directoryId, int newParentId, String newName) throws SQLException {
+        return database.moveDirectory(directoryId, newParentId, newName);
+    }
+
+    public List<Database.DirectoryEntry> getChildDirectories(int parentId) {
+        return cache.get("directories", "children:" + parentId, () -> database.getChildDirectories(parentId));
+    }
+
+    public List<Database.DirectoryEntry> getSubtree(int directoryId) {
+        return cache.get("directories", "subtree:" + directoryId, () -> database.getSubtree(directoryId));
+    }
+
+    public Database.SubtreeStats getSubtreeStats(int directoryId) {
+        return cache.get("directories", "stats:" + directoryId, () -> database.getSubtreeStats(directoryId));
+    }
+
     public boolean deleteFile(int fileId) throws SQLException {
         return database.deleteFile(fileId);
     }
@@ -67,23 +158,90 @@ public class FileSystem {
         return database.deleteDirectory(directoryId);
     }
 
-    public long createFilePartial(String channelId, String messageId, int directoryId, 
-                                 String partName, int partNumber, long partSize, 
-                                 String originalFilename, String description, String mimeType) throws SQLException {
-        return database.recordFilePartial(channelId, messageId, directoryId, partName, 
-                                        partNumber, partSize, originalFilename, description, mimeType);
+    public long createLogicalFile(int directoryId, String originalFilename, String description, String mimeType,
+                                  long totalSize, int partCount, String codec, String checksum) throws SQLException {
+        return database.createLogicalFile(directoryId, originalFilename, description, mimeType,
+                                          totalSize, partCount, codec, checksum);
+    }
+
+    public long createLogicalFile(int directoryId, String originalFilename, String description, String mimeType,
+                                  long totalSize, String codec, String checksum,
+                                  List<Database.NewPartialRecord> parts) throws SQLException {
+        return database.createLogicalFile(directoryId, originalFilename, description, mimeType,
+                                          totalSize, codec, checksum, parts);
+    }
+
+    public long replaceLogicalFile(int directoryId, String originalFilename, String description, String mimeType,
+                                   long totalSize, String codec, String checksum,
+                                   List<Database.NewPartialRecord> parts) throws SQLException {
+        return database.replaceLogicalFile(directoryId, originalFilename, description, mimeType,
+                                           totalSize, codec, checksum, parts);
+    }
+
+    public long createFilePartial(long logicalFileId, long channelId, long messageId, int directoryId,
+                                 String partName, int partNumber, long partSize,
+                                 String originalFilename, String description, String mimeType,
+                                 String checksum) throws SQLException {
+        return database.recordFilePartial(logicalFileId, channelId, messageId, directoryId, partName,
+                                        partNumber, partSize, originalFilename, description, mimeType, checksum);
     }
 
     public List<Database.FilePartialEntry> getFilePartialsByOriginalFilename(String originalFilename, int directoryId) {
-        return database.getFilePartialsByOriginalFilename(originalFilename, directoryId);
+        return cache.get("directory:" + directoryId, "partials|" + originalFilename,
+                () -> database.getFilePartialsByOriginalFilename(originalFilename, directoryId));
+    }
+
+    public List<Database.FilePartialEntry> getFilePartialsByLogicalFileId(long logicalFileId) {
+        return cache.get("logical:" + logicalFileId, "partials",
+                () -> database.getFilePartialsByLogicalFileId(logicalFileId));
+    }
+
+    public Database.LogicalFileEntry getLogicalFileById(long logicalFileId) {
+        return cache.get("logical:" + logicalFileId, "entry", () -> database.getLogicalFileById(logicalFileId));
+    }
+
+    public Database.LogicalFileEntry getLogicalFileByName(String originalFilename, int directoryId) {
+        return cache.get("directory:" + directoryId, "logical|" + originalFilename,
+                () -> database.getLogicalFileByName(originalFilename, directoryId));
+    }
+
+    public List<Database.LogicalFileEntry> getLogicalFiles(int directoryId, String search) {
+        return cache.get("directory:" + directoryId, "logicals|" + search,
+                () -> database.getLogicalFilesByDirectoryId(directoryId, search));
+    }
+
+    // Streams bypass the cache: they are for walking everything once, not for repeated reads
+
+    public int streamFiles(int directoryId, int afterId, int limit, Consumer<Database.FileRecord> sink) {
+        return database.streamFiles(directoryId, afterId, limit, sink);
+    }
+
+    public int streamLogicalFiles(int directoryId, long afterId, int limit, Consumer<Database.LogicalFileEntry> sink) {
+        return database.streamLogicalFiles(directoryId, afterId, limit, sink);
+    }
+
+    public int streamFilePartials(long logicalFileId, long afterId, int limit, Consumer<Database.FilePartialRecord> sink) {
+        return database.streamFilePartials(logicalFileId, afterId, limit, sink);
+    }
+
+    public int streamDirectories(int afterId, int limit, Consumer<Database.DirectoryEntry> sink) {
+        return database.streamDirectories(afterId, limit, sink);
+    }
+
+    public boolean deleteLogicalFile(long logicalFileId) throws SQLException {
+        return database.deleteLogicalFile(logicalFileId);
+    }
+
+    public Database.BulkResult deleteFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds) throws SQLException {
+        return database.deleteFiles(fileIds, logicalFileIds);
     }
 
-    public List<Database.PartialGroupEntry> getGroupedPartials(int directoryId, String search) {
-        return database.getUniqueOriginalFilesFromPartials(directoryId, search);
+    public Database.BulkResult moveFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds, int targetDirectoryId) throws SQLException {
+        return database.moveFiles(fileIds, logicalFileIds, targetDirectoryId);
     }
 
-    public boolean deleteFilePartials(String originalFilename, int directoryId) throws SQLException {
-        return database.deleteFilePartials(originalFilename, directoryId);
+    public Database.BulkResult describeFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds, String description) throws SQLException {
+        return database.describeFiles(fileIds, logicalFileIds, description);
     }
 
     public boolean checkPartialNameConstraint(String partName, int directoryId) throws SQLException {
@@ -0,0 +1,211 @@
+package com.pinapelz;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Flight Recorder events for the slow parts of serving a file: resolving
+ * attachment URLs, fetching parts from the CDN, posting through webhooks,
+ * metadata backend calls and template rendering. An event costs next to
+ * nothing unless a recording has it enabled, and {@code nitro-fs.jfc}
+ * enables them with thresholds suitable for continuous recording.
+ */
+public final class FlightEvents {
+
+    /** Settings file shipped with the app, with the Nitro-FS events only. */
+    public static final String PROFILE = "/nitro-fs.jfc";
+
+    private FlightEvents() {}
+
+    @Name("nitrofs.UrlLookup")
+    @Label("Attachment URL Lookup")
+    @Category({"Nitro-FS", "Discord"})
+    @Description("Resolving an attachment URL by fetching its message through the bot pool")
+    public static class UrlLookup extends Event {
+        @Label("Channel ID")
+        public long channelId;
+        @Label("Message ID")
+        public long messageId;
+        @Label("File Name")
+        public String fileName;
+        @Label("Direct CDN URL")
+        public boolean direct;
+        @Label("Result")
+        public String result;
+    }
+
+    @Name("nitrofs.PartFetch")
+    @Label("Part Fetch")
+    @Category({"Nitro-FS", "Download"})
+    @Description("Copying one part of a split file from the CDN into a response; the write time is the part spent blocked on the client")
+    public static class PartFetch extends Event {
+        @Label("Logical File ID")
+        public long logicalFileId;
+        @Label("Part Number")
+        public int partNumber;
+        @Label("Attempt")
+        public int attempt;
+        @Label("Channel ID")
+        public long channelId;
+        @Label("Message ID")
+        public long messageId;
+        @Label("Offset")
+        @Description("Bytes of the part already sent by earlier attempts")
+        @DataAmount
+        public long offset;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+        @Label("Response Write Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long writeTime;
+        @Label("Hedge")
+        @Description("Why a second request was started on the alternate URL, ttfb or rate, if one was")
+        public String hedge;
+        @Label("Hedge Won")
+        public boolean hedgeWon;
+        @Label("Error")
+        public String error;
+    }
+
+    @Name("nitrofs.WebhookUpload")
+    @Label("Webhook Upload")
+    @Category({"Nitro-FS", "Upload"})
+    @Description("Posting one attachment through a webhook, after waiting for the webhook's cooldown")
+    public static class WebhookUpload extends Event {
+        @Label("Webhook ID")
+        public String webhook;
+        @Label("File Name")
+        public String fileName;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+        @Label("Cooldown Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        public long queueWait;
+        @Label("Channel ID")
+        public String channelId;
+        @Label("Message ID")
+        public String messageId;
+        @Label("Error")
+        public String error;
+    }
+
+    @Name("nitrofs.DatabaseCall")
+    @Label("Metadata Backend Call")
+    @Category({"Nitro-FS", "Database"})
+    @Description("One call into the metadata backend that was not answered by the metadata cache")
+    public static class DatabaseCall extends Event {
+        @Label("Method")
+        public String method;
+        @Label("Arguments")
+        public String arguments;
+        @Label("Rows")
+        @Description("Size of the returned collection, or -1 when the call does not return one")
+        public int rows;
+        @Label("Error")
+        public String error;
+    }
+
+    @Name("nitrofs.TemplateRender")
+    @Label("Template Render")
+    @Category({"Nitro-FS", "Frontend"})
+    @Description("Rendering a page or fragment from its template")
+    public static class TemplateRender extends Event {
+        @Label("Template")
+        public String template;
+        @Label("Rows")
+        public int rows;
+    }
+
+    /** Wraps {@code target} so that every call through {@code type} is recorded as a {@link DatabaseCall}. */
+    @SuppressWarnings("unchecked")
+    public static <T> T traced(Class<T> type, T target) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            DatabaseCall event = new DatabaseCall();
+            if (!event.isEnabled()) {
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            event.begin();
+            try {
+                Object result = method.invoke(target, args);
+                event.rows = result instanceof Collection<?> c ? c.size() : -1;
+                return result;
+            } catch (InvocationTargetException e) {
+                event.error = String.valueOf(e.getCause());
+                throw e.getCause();
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.method = method.getName();
+                    event.arguments = describe(args);
+                    event.commit();
+                }
+            }
+        };
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    // IDs, names and flags; anything bulkier is shown by type so events stay small
+    private static String describe(Object[] args) {
+        if (args == null) return "";
+        StringBuilder b = new StringBuilder();
+        for (Object a : args) {
+            if (b.length() > 0) b.append(", ");
+            if (a == null || a instanceof Number || a instanceof Boolean) b.append(a);
+            else if (a instanceof CharSequence s) b.append('"').append(s.length() > 64 ? s.subSequence(0, 64) + "..." : s).append('"');
+            else if (a instanceof Collection<?> c) b.append(a.getClass().getSimpleName()).append('[').append(c.size()).append(']');
+            else b.append(a.getClass().getSimpleName());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Starts a continuous recording with the JDK's {@code default} settings
+     * plus {@link #PROFILE}, kept on disk in {@code directory} and trimmed
+     * to {@code maxBytes}. It is dumped there on exit, and {@code jcmd <pid>
+     * JFR.dump name=nitro-fs} dumps it at any time.
+     */
+    public static Recording startContinuousRecording(Path directory, long maxBytes) throws IOException, ParseException {
+        Files.createDirectories(directory);
+        Map<String, String> settings = new HashMap<>(Configuration.getConfiguration("default").getSettings());
+        try (Reader profile = new InputStreamReader(FlightEvents.class.getResourceAsStream(PROFILE), StandardCharsets.UTF_8)) {
+            settings.putAll(Configuration.create(profile).getSettings());
+        }
+        Recording recording = new Recording(settings);
+        recording.setName("nitro-fs");
+        recording.setToDisk(true);
+        recording.setMaxSize(maxBytes);
+        recording.setMaxAge(Duration.ofHours(24));
+        recording.setDumpOnExit(true);
+        recording.setDestination(directory.resolve("nitro-fs.jfr"));
+        recording.start();
+        return recording;
+    }
+}
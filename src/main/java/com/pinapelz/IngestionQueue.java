@@ -0,0 +1,180 @@
+package com.pinapelz;
+
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.emoji.Emoji;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded write-behind queue for attachment metadata. The gateway thread only
+ * enqueues; a single writer thread resolves directories, flushes batched
+ * inserts once the batch is full or the flush window has passed, and reacts
+ * once per message. When the queue is full {@link #submit} refuses the
+ * message instead of blocking the gateway.
+ */
+public class IngestionQueue {
+
+    public record Job(Message message, String directoryPath, String description) {}
+
+    private final FileSystem fileSystem;
+    private final BlockingQueue<Job> queue;
+    private final int batchSize;
+    private final long flushIntervalMs;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong flushedFiles = new AtomicLong();
+    private final AtomicLong failedFiles = new AtomicLong();
+
+    private static final Metrics.Family<Metrics.Histogram> LAG = Metrics.histogram(
+            "nitro_ingestion_lag_seconds", "Time from a message being posted to its attachments being received or indexed.",
+            Metrics.SECONDS, "stage");
+
+    public IngestionQueue(FileSystem fileSystem, int capacity, int batchSize, long flushIntervalMs) {
+        this.fileSystem = fileSystem;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+
+        Metrics.gauge("nitro_ingestion_queue_depth", "Messages waiting to be indexed.", this::getDepth);
+        Metrics.gauge("nitro_ingestion_queue_capacity", "Messages the ingestion queue can hold.", this::getCapacity);
+        Metrics.counter("nitro_ingestion_rejected_total", "Messages refused because the ingestion queue was full.",
+                rejected::get);
+        Metrics.counter("nitro_ingestion_files_total", "Attachments indexed.", flushedFiles::get);
+        Metrics.counter("nitro_ingestion_failed_files_total", "Attachments that could not be indexed.",
+                failedFiles::get);
+
+        Thread writer = new Thread(this::runWriter, "nitro-fs-ingestion");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean submit(Job job) {
+        if (queue.offer(job)) {
+            accepted.incrementAndGet();
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getFlushedFileCount() {
+        return flushedFiles.get();
+    }
+
+    public long getFailedFileCount() {
+        return failedFiles.get();
+    }
+
+    private void runWriter() {
+        List<Job> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Job first = queue.take();
+                batch.add(first);
+                int attachments = first.message().getAttachments().size();
+                long deadline = System.currentTimeMillis() + flushIntervalMs;
+
+                while (attachments < batchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    Job next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    attachments += next.message().getAttachments().size();
+                }
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("Ingestion flush failed: " + e.getMessage());
+                for (Job job : batch)
+                    job.message().addReaction(Emoji.fromUnicode("❌")).queue();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Job> batch) throws SQLException {
+        Map<String, Integer> directories = new HashMap<>();
+        List<Database.NewFileRecord> records = new ArrayList<>();
+
+        for (Job job : batch) {
+            int directoryId = directories.computeIfAbsent(job.directoryPath(), this::resolveDirectory);
+            Message message = job.message();
+            for (Message.Attachment attachment : message.getAttachments()) {
+                records.add(new Database.NewFileRecord(
+                        message.getChannelIdLong(),
+                        message.getIdLong(),
+                        directoryId,
+                        attachment.getFileName(),
+                        job.description(),
+                        attachment.getSize(),
+                        attachment.getContentType()
+                ));
+            }
+        }
+
+        boolean[] results = fileSystem.createNewFiles(records);
+
+        int i = 0;
+        for (Job job : batch) {
+            boolean allOk = true;
+            for (Message.Attachment attachment : job.message().getAttachments()) {
+                if (results[i++]) {
+                    flushedFiles.incrementAndGet();
+                    System.out.println("File uploaded to directory: "
+                            + (job.directoryPath() == null ? "root" : job.directoryPath())
+                            + " (" + attachment.getFileName() + ")");
+                } else {
+                    failedFiles.incrementAndGet();
+                    allOk = false;
+                }
+            }
+            job.message().addReaction(Emoji.fromUnicode(allOk ? "✅" : "❌")).queue();
+            observeLag("indexed", job.message());
+        }
+    }
+
+    /** Records how long ago {@code message} was posted, as the lag of ingestion {@code stage}. */
+    static void observeLag(String stage, Message message) {
+        long postedAt = message.getTimeCreated().toInstant().toEpochMilli();
+        LAG.labels(stage).observe(Math.max(0, System.currentTimeMillis() - postedAt) / 1000.0);
+    }
+
+    private int resolveDirectory(String path) {
+        if (path == null) return 1;
+        try {
+            return fileSystem.findOrCreateDirectory(path);
+        } catch (SQLException e) {
+            System.err.println("Directory creation failed for '" + path + "', using root: " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package com.pinapelz;
 
+import com.pinapelz.frontend.BlockCache;
+import com.pinapelz.frontend.ThumbnailCache;
 import io.github.cdimascio.dotenv.Dotenv;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.requests.RestConfig;
+import net.dv8tion.jda.api.utils.SessionControllerAdapter;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 
 import static com.pinapelz.frontend.AppKt.startFrontend;
 
@@ -11,6 +21,7 @@ public class Main
 {
     private static final Dotenv dotenv = Dotenv.load();
     private static FileSystem fileSystem;
+    private static IngestionQueue ingestionQueue;
 
     public static String readSetting(String parameter) {
         String value = System.getenv(parameter);
@@ -18,22 +29,115 @@ public class Main
         return dotenv.get(parameter);
     }
 
-    public static JDA startBot(){
+    public static Database openDatabase(String backend) {
+        if ("embedded".equals(backend)) {
+            String dataDir = readSetting("EMBEDDED_DATA_DIR");
+            return new EmbeddedDatabase(Path.of(dataDir == null || dataDir.isBlank() ? "nitro-fs-data" : dataDir));
+        }
         String dbHost = readSetting("PGHOST");
         String dbUser = readSetting("PGUSER");
         String dbPass = readSetting("PGPASSWORD");
         String dbName = readSetting("PGDATABASE");
-        fileSystem = new FileSystem(dbHost, dbUser, dbPass, dbName);
-        return JDABuilder.createDefault(readSetting("BOT_TOKEN"))
-                .addEventListeners(new MessageListener(fileSystem))
-                .enableIntents(GatewayIntent.MESSAGE_CONTENT)
+        QueryLog.configure(readIntSetting("SLOW_QUERY_MS", 500), "true".equalsIgnoreCase(readSetting("EXPLAIN_SLOW_QUERIES")));
+        return new PostgresDatabase(dbHost, readSetting("PGREPLICAHOST"), dbUser, dbPass, dbName,
+                readIntSetting("PG_POOL_SIZE", 3),
+                readIntSetting("PG_REPLICA_POOL_SIZE", 6),
+                readIntSetting("READ_YOUR_WRITES_MS", 2_000));
+    }
+
+    private static int readIntSetting(String parameter, int defaultValue) {
+        String value = readSetting(parameter);
+        return value == null || value.isBlank() ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * {@code lean} connects with only the intents the bot uses and keeps no
+     * member, presence or voice caches, since nothing reads them; channels
+     * are still cached so {@link Retriever} lookups stay local. {@code retriever}
+     * is {@code lean} without any intents, for bots that only fetch messages
+     * over REST. {@code default} is JDA's standard configuration.
+     */
+    public static JDABuilder createJdaBuilder(String profile, String token) {
+        JDABuilder builder = switch (profile == null ? "default" : profile) {
+            case "lean" -> JDABuilder.createLight(token, GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT)
+                    .setLargeThreshold(50);
+            // The guild and channel caches come with the GUILDS intent, which JDA always requests
+            case "retriever" -> JDABuilder.createLight(token, EnumSet.noneOf(GatewayIntent.class))
+                    .setLargeThreshold(50);
+            default -> JDABuilder.createDefault(token)
+                    .enableIntents(GatewayIntent.MESSAGE_CONTENT);
+        };
+        // Only for load tests against a local stand-in of Discord
+        String apiUrl = readSetting("DISCORD_API_URL");
+        if (apiUrl != null && !apiUrl.isBlank()) builder.setRestConfig(new RestConfig().setBaseUrl(apiUrl));
+        String gatewayUrl = readSetting("DISCORD_GATEWAY_URL");
+        if (gatewayUrl != null && !gatewayUrl.isBlank()) {
+            builder.setSessionController(new SessionControllerAdapter() {
+                @Override
+                public String getGateway() {
+                    return gatewayUrl;
+                }
+            });
+        }
+        return builder;
+    }
+
+    public static JDA startBot(){
+        String backend = readSetting("METADATA_BACKEND");
+        String cacheTtl = readSetting("METADATA_CACHE_TTL_SECONDS");
+        long cacheTtlMillis = cacheTtl == null || cacheTtl.isBlank() ? 300_000 : Long.parseLong(cacheTtl) * 1000;
+        // The embedded backend is already in memory, a cache in front of it would only duplicate it
+        if ("embedded".equals(backend)) cacheTtlMillis = 0;
+        // Timed and traced below the metadata cache, so only the calls that reach the backend are counted
+        Database database = Metrics.timed(Database.class, FlightEvents.traced(Database.class, openDatabase(backend)),
+                "nitro_db_call_seconds", "Metadata backend calls by method.");
+        fileSystem = new FileSystem(database, cacheTtlMillis);
+        ingestionQueue = new IngestionQueue(fileSystem, 10_000, 200, 500);
+        return createJdaBuilder(readSetting("JDA_PROFILE"), readSetting("BOT_TOKEN"))
+                .addEventListeners(new MessageListener(ingestionQueue))
                 .build();
     }
 
+    /**
+     * The ingestion bot plus one listener-less bot without intents per token in
+     * {@code RETRIEVER_TOKENS}. Each bot has its own REST rate limits.
+     */
+    private static List<JDA> startRetrieverPool(JDA ingestionBot) throws InterruptedException {
+        List<JDA> pool = new ArrayList<>();
+        pool.add(ingestionBot);
+        String tokens = readSetting("RETRIEVER_TOKENS");
+        if (tokens == null) return pool;
+        for (String token : tokens.split(",")) {
+            if (token.isBlank()) continue;
+            pool.add(createJdaBuilder("retriever", token.trim()).build());
+        }
+        // Fetched messages carry attachments whenever the application has the content intent approved;
+        // the gateway intent only matters for events, which the pool bots do not listen to
+        if (pool.size() > 1) Message.suppressContentIntentWarning();
+        for (JDA jda : pool) jda.awaitReady();
+        System.out.println("Retriever pool: " + pool.size() + " bots");
+        return pool;
+    }
+
     public static void main(String[] args) throws Exception{
+        String recordingDir = readSetting("JFR_RECORDING_DIR");
+        if (recordingDir != null && !recordingDir.isBlank()) {
+            FlightEvents.startContinuousRecording(Path.of(recordingDir), readIntSetting("JFR_MAX_MB", 512) * 1024L * 1024L);
+            System.out.println("Flight recording to " + recordingDir);
+        }
         String pathToWebhooks = readSetting("WEBHOOKS_TXT");
         JDA jda = startBot();
-        startFrontend(new Retriever(jda), fileSystem, pathToWebhooks);
+        String thumbnailDir = readSetting("THUMBNAIL_DIR");
+        ThumbnailCache thumbnails = new ThumbnailCache(
+                Path.of(thumbnailDir == null || thumbnailDir.isBlank() ? "nitro-fs-thumbnails" : thumbnailDir),
+                readIntSetting("THUMBNAIL_CACHE_MB", 256) * 1024L * 1024L);
+        Retriever retriever = new Retriever(startRetrieverPool(jda));
+        String blockDir = readSetting("DAV_CACHE_DIR");
+        BlockCache blocks = new BlockCache(
+                Path.of(blockDir == null || blockDir.isBlank() ? "nitro-fs-blocks" : blockDir),
+                readIntSetting("DAV_CACHE_MB", 1024) * 1024L * 1024L, retriever);
+        startFrontend(retriever, fileSystem, pathToWebhooks, ingestionQueue, thumbnails, blocks,
+                readIntSetting("S3_PORT", 0));
     }
 
 
@@ -5,15 +5,14 @@ import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
 import net.dv8tion.jda.api.entities.emoji.Emoji;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
-import java.sql.SQLException;
 
 public class MessageListener extends ListenerAdapter {
 
-    private FileSystem fileSystem;
+    private IngestionQueue ingestionQueue;
 
 
-    public MessageListener(FileSystem fileSystem){
-        this.fileSystem = fileSystem;
+    public MessageListener(IngestionQueue ingestionQueue){
+        this.ingestionQueue = ingestionQueue;
     }
 
     @Override
@@ -26,24 +25,14 @@ public class MessageListener extends ListenerAdapter {
         }
         if (event.getAuthor().isBot() || event.getAuthor().isSystem()) return;
         if(!message.getAttachments().isEmpty()){
+            IngestionQueue.observeLag("received", message);
             DirectoryInfo dirInfo = parseDirectoryFromMessage(content);
-            
-            for(Message.Attachment attachment : message.getAttachments()){
-                try {
-                    fileSystem.createNewFile(
-                        message.getChannelId(), 
-                        message.getId(), 
-                        dirInfo.directoryId,
-                        dirInfo.description, 
-                        attachment
-                    );
-                    message.addReaction(Emoji.fromUnicode("✅")).queue();
-                    System.out.println("File uploaded to directory: " + dirInfo.path + " (" + attachment.getFileName() + ")");
-                    
-                } catch (Exception e) {
-                    message.addReaction(Emoji.fromUnicode("❌")).queue();
-                    System.err.println("Upload failed for " + attachment.getFileName() + ": " + e.getMessage());
-                }
+            IngestionQueue.Job job = new IngestionQueue.Job(message, dirInfo.path, dirInfo.description);
+            if (!ingestionQueue.submit(job)) {
+                message.addReaction(Emoji.fromUnicode("❌")).queue();
+                System.err.println("Ingestion queue full (" + ingestionQueue.getDepth() + "/"
+                        + ingestionQueue.getCapacity() + "), rejected " + message.getAttachments().size()
+                        + " attachment(s) from message " + message.getId());
             }
         }
 
@@ -52,36 +41,31 @@ public class MessageListener extends ListenerAdapter {
             MessageChannel channel = event.getChannel();
             channel.sendMessage("Pong!").queue();
         }
+
+        if (content.equals("!queue"))
+        {
+            event.getChannel().sendMessage("Ingestion queue: " + ingestionQueue.getDepth() + "/"
+                    + ingestionQueue.getCapacity() + " pending, " + ingestionQueue.getRejectedCount()
+                    + " rejected").queue();
+        }
     }
 
-    private DirectoryInfo parseDirectoryFromMessage(String message) {
+    static DirectoryInfo parseDirectoryFromMessage(String message) {
         if (message.contains(":")) {
             String[] parts = message.split(":", 2);
             String dirPath = parts[0].trim();
             String description = parts.length > 1 ? parts[1].trim() : "";
-            int directoryId = findOrCreateDirectory(dirPath);
-            return new DirectoryInfo(directoryId, description, dirPath);
+            return new DirectoryInfo(description, dirPath);
         }
-        
-        return new DirectoryInfo(1, message, "root");
-    }
 
-    private int findOrCreateDirectory(String path) {
-        try {
-            return fileSystem.findOrCreateDirectory(path);
-        } catch (SQLException e) {
-            System.err.println("Directory creation failed for '" + path + "', using root: " + e.getMessage());
-            return 1;
-        }
+        return new DirectoryInfo(message, null);
     }
 
-    private static class DirectoryInfo {
-        int directoryId;
+    static class DirectoryInfo {
         String description;
         String path;
-        
-        DirectoryInfo(int directoryId, String description, String path) {
-            this.directoryId = directoryId;
+
+        DirectoryInfo(String description, String path) {
             this.description = description;
             this.path = path;
         }
@@ -0,0 +1,125 @@
+package com.pinapelz;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache for metadata lookups. Entries are grouped so that a
+ * single invalidation event (for example {@code directory:5}) drops every
+ * listing that depends on it. A generation counter keeps a load that raced
+ * with an invalidation from repopulating the cache with stale data.
+ * <p>
+ * Keys include free-text searches, so the cache holds at most
+ * {@code maxEntries} across all groups and evicts the least recently used
+ * beyond that. Expired entries are dropped when they are looked up, and
+ * the rest in a sweep at most once per TTL.
+ */
+public class MetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private record Key(String group, String key) {}
+
+    private record Entry(Object value, long expiresAt) {}
+
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    // Guarded by this
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            if (size() <= maxEntries) return false;
+            unindex(eldest.getKey());
+            return true;
+        }
+    };
+    private final Map<String, Set<String>> keysByGroup = new HashMap<>();
+    private long generation;
+    private long nextSweepAt;
+
+    public MetadataCache(long ttlMillis) {
+        this(ttlMillis, DEFAULT_MAX_ENTRIES);
+    }
+
+    public MetadataCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(String group, String key, Supplier<T> loader) {
+        if (ttlMillis <= 0) return loader.get();
+
+        Key k = new Key(group, key);
+        long gen;
+        synchronized (this) {
+            Entry e = entries.get(k);
+            if (e != null) {
+                if (e.expiresAt() > System.currentTimeMillis()) return (T) e.value();
+                remove(k);
+            }
+            gen = generation;
+        }
+
+        T value = loader.get();
+        if (value != null) {
+            synchronized (this) {
+                if (generation == gen) put(k, value);
+            }
+        }
+        return value;
+    }
+
+    public synchronized void invalidate(String group) {
+        generation++;
+        Set<String> keys = keysByGroup.remove(group);
+        if (keys == null) return;
+        for (String key : keys) entries.remove(new Key(group, key));
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        keysByGroup.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void put(Key k, Object value) {
+        long now = System.currentTimeMillis();
+        if (now >= nextSweepAt) {
+            sweep(now);
+            nextSweepAt = now + ttlMillis;
+        }
+        keysByGroup.computeIfAbsent(k.group(), g -> new HashSet<>()).add(k.key());
+        entries.put(k, new Entry(value, now + ttlMillis));
+    }
+
+    private void remove(Key k) {
+        entries.remove(k);
+        unindex(k);
+    }
+
+    private void unindex(Key k) {
+        Set<String> keys = keysByGroup.get(k.group());
+        if (keys != null && keys.remove(k.key()) && keys.isEmpty()) keysByGroup.remove(k.group());
+    }
+
+    private void sweep(long now) {
+        for (Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getValue().expiresAt() <= now) {
+                it.remove();
+                unindex(e.getKey());
+            }
+        }
+    }
+}
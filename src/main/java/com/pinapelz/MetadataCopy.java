@@ -0,0 +1,30 @@
+package com.pinapelz;
+
+/**
+ * Copies all metadata from one backend to another, keeping IDs.
+ * Usage: {@code MetadataCopy <postgres|embedded> <postgres|embedded>}.
+ * Backends are configured through the same settings as {@link Main}.
+ */
+public class MetadataCopy {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 || args[0].equals(args[1])) {
+            System.err.println("Usage: MetadataCopy <postgres|embedded> <postgres|embedded>");
+            System.exit(1);
+        }
+
+        Database source = Main.openDatabase(args[0]);
+        Database target = Main.openDatabase(args[1]);
+
+        long start = System.currentTimeMillis();
+        Database.Snapshot snapshot = source.exportSnapshot();
+        target.importSnapshot(snapshot);
+
+        System.out.println("Copied " + snapshot.directories().size() + " directories, "
+                + snapshot.files().size() + " files, "
+                + snapshot.logicalFiles().size() + " split files and "
+                + snapshot.partials().size() + " parts from " + args[0] + " to " + args[1]
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,225 @@
+package com.pinapelz;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide counters, gauges and histograms, written out in the
+ * Prometheus text format by {@link #write}. Metrics are registered once,
+ * usually in a static field, and their labelled children are created on
+ * first use. Recording is lock-free, so hot paths can record freely.
+ */
+public final class Metrics {
+
+    /** Latency buckets in seconds, from a cache hit to a slow Discord round trip. */
+    public static final double[] SECONDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+    /** Size buckets in bytes, up to the largest webhook part. */
+    public static final double[] BYTES = {
+            1024, 16 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024, 10 * 1024 * 1024, 25 * 1024 * 1024
+    };
+
+    private static final Map<String, Family<?>> families = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    public static Family<Counter> counter(String name, String help, String... labelNames) {
+        return register(new Family<>(name, help, "counter", labelNames, Counter::new));
+    }
+
+    public static Family<Histogram> histogram(String name, String help, double[] buckets, String... labelNames) {
+        return register(new Family<>(name, help, "histogram", labelNames, () -> new Histogram(buckets)));
+    }
+
+    /** A counter kept elsewhere, read from {@code value} whenever the metrics are written. */
+    public static void counter(String name, String help, DoubleSupplier value) {
+        Family<Gauge> family = register(new Family<>(name, help, "counter", new String[0], Gauge::new));
+        family.labels().value = value;
+    }
+
+    /** A gauge read from {@code value} whenever the metrics are written. */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        gauge(name, help, new String[0], new String[0], value);
+    }
+
+    public static void gauge(String name, String help, String[] labelNames, String[] labelValues, DoubleSupplier value) {
+        Family<Gauge> family = register(new Family<>(name, help, "gauge", labelNames, Gauge::new));
+        family.labels(labelValues).value = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Child> Family<T> register(Family<T> family) {
+        Family<?> existing = families.putIfAbsent(family.name, family);
+        if (existing == null) return family;
+        if (!existing.type.equals(family.type) || !Arrays.equals(existing.labelNames, family.labelNames))
+            throw new IllegalArgumentException("Metric " + family.name + " is already registered differently");
+        return (Family<T>) existing;
+    }
+
+    /** Writes every metric in the Prometheus text exposition format. */
+    public static void write(Appendable out) throws IOException {
+        for (Family<?> family : families.values()) {
+            if (family.children.isEmpty()) continue;
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<List<String>, ? extends Child> e : family.children.entrySet())
+                e.getValue().write(out, family.name, labels(family.labelNames, e.getKey()));
+        }
+    }
+
+    /**
+     * Wraps {@code target} so that every call through {@code type} is timed into
+     * {@code name}, labelled with the method name and whether it threw.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T timed(Class<T> type, T target, String name, String help) {
+        Family<Histogram> calls = histogram(name, help, SECONDS, "method", "result");
+        InvocationHandler handler = (proxy, method, args) -> {
+            long start = System.nanoTime();
+            String result = "ok";
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                result = "error";
+                throw e.getCause();
+            } finally {
+                calls.labels(method.getName(), result).observeSince(start);
+            }
+        };
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static String labels(String[] names, List<String> values) {
+        if (names.length == 0) return "";
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            b.append(i == 0 ? "" : ",").append(names[i]).append("=\"");
+            String v = values.get(i);
+            for (int j = 0; j < v.length(); j++) {
+                char c = v.charAt(j);
+                if (c == '\\' || c == '"') b.append('\\').append(c);
+                else if (c == '\n') b.append("\\n");
+                else b.append(c);
+            }
+            b.append('"');
+        }
+        return b.toString();
+    }
+
+    private static String number(double v) {
+        if (v == Math.rint(v) && !Double.isInfinite(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+        return Double.toString(v);
+    }
+
+    /** A metric and its children, one per combination of label values. */
+    public static final class Family<T extends Child> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String[] labelNames;
+        private final Supplier<T> factory;
+        private final Map<List<String>, T> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String[] labelNames, Supplier<T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+            this.factory = factory;
+        }
+
+        public T labels(String... values) {
+            if (values.length != labelNames.length)
+                throw new IllegalArgumentException(name + " takes labels " + Arrays.toString(labelNames));
+            List<String> key = List.of(values);
+            T child = children.get(key);
+            return child != null ? child : children.computeIfAbsent(key, k -> factory.get());
+        }
+    }
+
+    public abstract static class Child {
+        abstract void write(Appendable out, String name, String labels) throws IOException;
+
+        static void sample(Appendable out, String name, String labels, double value) throws IOException {
+            out.append(name);
+            if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+            out.append(' ').append(number(value)).append('\n');
+        }
+    }
+
+    public static final class Counter extends Child {
+        private final DoubleAdder value = new DoubleAdder();
+
+        public void inc() {
+            value.add(1);
+        }
+
+        public void inc(double amount) {
+            value.add(amount);
+        }
+
+        @Override
+        void write(Appendable out, String name, String labels) throws IOException {
+            sample(out, name, labels, value.sum());
+        }
+    }
+
+    public static final class Gauge extends Child {
+        private volatile DoubleSupplier value = () -> 0;
+
+        @Override
+        void write(Appendable out, String name, String labels) throws IOException {
+            sample(out, name, labels, value.getAsDouble());
+        }
+    }
+
+    public static final class Histogram extends Child {
+        private final double[] bounds;
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        public void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) i++;
+            counts[i].increment();
+            sum.add(value);
+        }
+
+        /** Records the seconds since {@code startNanos}, a {@link System#nanoTime} reading. */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1e9);
+        }
+
+        @Override
+        void write(Appendable out, String name, String labels) throws IOException {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i].sum();
+                sample(out, name + "_bucket", prefix + "le=\"" + number(bounds[i]) + "\"", cumulative);
+            }
+            cumulative += counts[bounds.length].sum();
+            sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+            sample(out, name + "_sum", labels, sum.sum());
+            sample(out, name + "_count", labels, cumulative);
+        }
+    }
+}
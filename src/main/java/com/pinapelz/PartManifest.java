@@ -0,0 +1,48 @@
+package com.pinapelz;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Metadata posted as the content of each split-file part uploaded through a
+ * webhook, so that {@link ChannelReindexer} can rebuild the split file from
+ * channel history alone. {@code directory} is a path rather than an ID
+ * because IDs do not survive losing the database.
+ */
+public record PartManifest(
+        String directory,
+        String originalFilename,
+        String description,
+        String mimeType,
+        long totalSize,
+        int partCount,
+        int partNumber,
+        String codec,
+        String checksum,
+        String partChecksum
+) {
+
+    public static final String PREFIX = "nitro-fs-part ";
+
+    // Discord rejects message content over 2000 characters
+    private static final int MAX_DESCRIPTION = 500;
+    private static final Gson GSON = new Gson();
+
+    public String toMessageContent() {
+        String desc = description != null && description.length() > MAX_DESCRIPTION
+                ? description.substring(0, MAX_DESCRIPTION)
+                : description;
+        return PREFIX + GSON.toJson(new PartManifest(directory, originalFilename, desc, mimeType,
+                totalSize, partCount, partNumber, codec, checksum, partChecksum));
+    }
+
+    /** Parses message content written by {@link #toMessageContent}, or returns null if it is not a manifest. */
+    public static PartManifest parse(String content) {
+        if (content == null || !content.startsWith(PREFIX)) return null;
+        try {
+            return GSON.fromJson(content.substring(PREFIX.length()), PartManifest.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,1826 @@
+package com.pinapelz;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.*;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Postgres metadata backend. Writes always go to the primary. When a read
+ * replica is configured, read-only lookups go to it, except for a short
+ * window after a write on this node, during which they stay on the primary
+ * so that callers read their own writes despite replication lag. After an
+ * invalidation event from another node, only lookups in the invalidated
+ * group stay on the primary, so caches refilled for it are not stale.
+ */
+public class PostgresDatabase implements Database {
+
+    private final DataSource ds;
+    private final DataSource replica;
+    private final long readYourWritesMillis;
+    private volatile long lastWriteAt;
+    // When each invalidation group last got an event from another node, pruned after readYourWritesMillis
+    private final Map<String, Long> remoteEventAt = new ConcurrentHashMap<>();
+
+    public static final String INVALIDATION_CHANNEL = "nitro_fs_metadata";
+    // Transaction-level advisory lock serializing directory moves
+    private static final long MOVE_LOCK_KEY = 0x6e6974726f6d76L;
+
+    private final String jdbcUrl;
+    private final String user;
+    private final String password;
+    private final List<Consumer<String>> invalidationListeners = new CopyOnWriteArrayList<>();
+    private Thread invalidationThread;
+
+    public PostgresDatabase(String host, String user, String password, String db) {
+        this(host, null, user, password, db, 3, 0, 0);
+    }
+
+    /**
+     * @param replicaHost          read replica, or null to send every query to the primary
+     * @param readYourWritesMillis how long reads stay on the primary after a write
+     */
+    public PostgresDatabase(String host, String replicaHost, String user, String password, String db,
+                            int poolSize, int replicaPoolSize, long readYourWritesMillis) {
+        this.jdbcUrl = jdbcUrl(host, db);
+        this.user = user;
+        this.password = password;
+        this.readYourWritesMillis = readYourWritesMillis;
+        try {
+            ds = pool("primary", createDataSource(jdbcUrl, user, password, poolSize, 30_000));
+            new SchemaMigrator(ds).migrate();
+        } catch (IOException | SQLException e) {
+            throw new RuntimeException(e);
+        }
+        // A short checkout timeout lets reads overflow to the primary instead of queueing on a busy replica
+        replica = replicaHost == null || replicaHost.isBlank()
+                ? null
+                : pool("replica", createDataSource(jdbcUrl(replicaHost, db), user, password, replicaPoolSize, 2_000));
+    }
+
+    private static DataSource pool(String name, HikariDataSource dataSource) {
+        registerPoolMetrics(name, dataSource);
+        return QueryLog.wrap(name, dataSource);
+    }
+
+    private static void registerPoolMetrics(String pool, HikariDataSource dataSource) {
+        HikariPoolMXBean bean = dataSource.getHikariPoolMXBean();
+        String[] labels = {"pool", "state"};
+        String help = "Connections in the pool by state; pending counts threads waiting for one.";
+        Metrics.gauge("nitro_db_pool_connections", help, labels, new String[]{pool, "active"}, bean::getActiveConnections);
+        Metrics.gauge("nitro_db_pool_connections", help, labels, new String[]{pool, "idle"}, bean::getIdleConnections);
+        Metrics.gauge("nitro_db_pool_connections", help, labels, new String[]{pool, "total"}, bean::getTotalConnections);
+        Metrics.gauge("nitro_db_pool_connections", help, labels, new String[]{pool, "pending"},
+                bean::getThreadsAwaitingConnection);
+        Metrics.gauge("nitro_db_pool_max_connections", "Largest size the pool may grow to.", new String[]{"pool"},
+                new String[]{pool}, dataSource::getMaximumPoolSize);
+    }
+
+    private static String jdbcUrl(String host, String db) {
+        return "jdbc:postgresql://" + host + "/" + db + "?sslmode=require&channel_binding=require";
+    }
+
+    private static HikariDataSource createDataSource(String url, String user, String pass, int poolSize, long connectionTimeout) {
+        HikariConfig c = new HikariConfig();
+        c.setJdbcUrl(url);
+        c.setUsername(user);
+        c.setPassword(pass);
+        c.setMaximumPoolSize(poolSize);
+        c.setConnectionTimeout(connectionTimeout);
+        c.setMinimumIdle(1);
+        c.setIdleTimeout(60_000);
+        c.setMaxLifetime(600_000);
+        c.addDataSourceProperty("reWriteBatchedInserts", "true");
+        return new HikariDataSource(c);
+    }
+
+    /**
+     * Registers a listener for metadata invalidation events such as
+     * {@code directory:5}, {@code file:12} or {@code logical:3}. A
+     * {@code *} event means everything may be stale. Events come from
+     * writes on this node and, through LISTEN, from every other node.
+     */
+    @Override
+    public synchronized void addInvalidationListener(Consumer<String> listener) {
+        invalidationListeners.add(listener);
+        if (invalidationThread == null) {
+            invalidationThread = new Thread(this::listenForInvalidations, "nitro-fs-invalidation");
+            invalidationThread.setDaemon(true);
+            invalidationThread.start();
+        }
+    }
+
+    private void listenForInvalidations() {
+        while (true) {
+            try (Connection c = DriverManager.getConnection(jdbcUrl, user, password);
+                 Statement s = c.createStatement()) {
+                s.execute("LISTEN " + INVALIDATION_CHANNEL);
+                // Anything may have changed while we were not listening
+                dispatchInvalidation("*");
+                PGConnection pg = c.unwrap(PGConnection.class);
+                while (true) {
+                    PGNotification[] notifications = pg.getNotifications(10_000);
+                    if (notifications == null) continue;
+                    for (PGNotification n : notifications)
+                        for (String event : n.getParameter().split(","))
+                            remoteInvalidation(event);
+                }
+            } catch (SQLException e) {
+                System.err.println("Invalidation listener disconnected, retrying: " + e.getMessage());
+                try {
+                    Thread.sleep(5_000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Connection for read-only lookups in an invalidation {@code group}: the
+     * replica unless a recent write to that group may not have reached it yet.
+     */
+    private Connection readConnection(String group) throws SQLException {
+        long now = System.currentTimeMillis();
+        if (replica == null || now - lastWriteAt < readYourWritesMillis
+                || now - remoteEventAt.getOrDefault(group, 0L) < readYourWritesMillis)
+            return ds.getConnection();
+        try {
+            return replica.getConnection();
+        } catch (SQLException e) {
+            System.err.println("Read replica unavailable, reading from primary: " + e.getMessage());
+            return ds.getConnection();
+        }
+    }
+
+    private void dispatchInvalidation(String event) {
+        for (Consumer<String> l : invalidationListeners)
+            l.accept(event);
+    }
+
+    // Notifications include our own writes, which publish() has already covered
+    private void remoteInvalidation(String event) {
+        if (replica != null && readYourWritesMillis > 0) {
+            long now = System.currentTimeMillis();
+            remoteEventAt.values().removeIf(at -> now - at >= readYourWritesMillis);
+            remoteEventAt.put(event, now);
+            // Directory entries carry file counts, like the cache's "directories" group
+            if (event.startsWith("directory:")) remoteEventAt.put("directories", now);
+        }
+        dispatchInvalidation(event);
+    }
+
+    private void publish(Connection c, String... events) throws SQLException {
+        String payload = String.join(",", events);
+        try (PreparedStatement p = c.prepareStatement("SELECT pg_notify(?, ?)")) {
+            p.setString(1, INVALIDATION_CHANNEL);
+            p.setString(2, payload);
+            p.execute();
+        }
+        lastWriteAt = System.currentTimeMillis();
+        for (String event : events)
+            dispatchInvalidation(event);
+    }
+
+    @Override
+    public void recordFileMetadata(
+            long channelId, long messageId, int dirId,
+            String name, String desc, int size, String mime
+    ) throws SQLException {
+
+        String sql = """
+            INSERT INTO files
+            (disc_channel_id, disc_message_id, directory_id,
+             file_name, file_description, size, mime_type)
+            VALUES (?, ?, ?, ?, ?, ?, ?)
+        """;
+
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setLong(1, channelId);
+            p.setLong(2, messageId);
+            p.setInt(3, dirId);
+            p.setString(4, name);
+            p.setString(5, desc);
+            p.setInt(6, size);
+            p.setString(7, mime);
+            p.executeUpdate();
+            publish(c, "directory:" + dirId);
+        }
+    }
+
+    /**
+     * Inserts all records in one transaction as a single batched statement.
+     * If the batch is rejected (for example by a duplicate file name) each
+     * record is retried on its own so the caller gets a per-record result.
+     */
+    @Override
+    public boolean[] recordFileMetadataBatch(List<NewFileRecord> records) throws SQLException {
+        String sql = """
+            INSERT INTO files
+            (disc_channel_id, disc_message_id, directory_id,
+             file_name, file_description, size, mime_type)
+            VALUES (?, ?, ?, ?, ?, ?, ?)
+        """;
+
+        boolean[] results = new boolean[records.size()];
+        Set<Integer> dirs = new HashSet<>();
+        for (NewFileRecord f : records) dirs.add(f.directoryId());
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try (PreparedStatement p = c.prepareStatement(sql)) {
+                for (NewFileRecord f : records) {
+                    bindNewFile(p, f);
+                    p.addBatch();
+                }
+                p.executeBatch();
+                c.commit();
+                Arrays.fill(results, true);
+            } catch (SQLException e) {
+                c.rollback();
+                for (int i = 0; i < records.size(); i++) {
+                    try (PreparedStatement p = c.prepareStatement(sql)) {
+                        bindNewFile(p, records.get(i));
+                        p.executeUpdate();
+                        c.commit();
+                        results[i] = true;
+                    } catch (SQLException rowError) {
+                        c.rollback();
+                        System.err.println("Insert failed for " + records.get(i).fileName() + ": " + rowError.getMessage());
+                    }
+                }
+            } finally {
+                c.setAutoCommit(true);
+            }
+            publish(c, dirs.stream().map(d -> "directory:" + d).toArray(String[]::new));
+        }
+        return results;
+    }
+
+    @Override
+    public int upsertFiles(List<NewFileRecord> records) throws SQLException {
+        String sql = """
+            INSERT INTO files
+            (disc_channel_id, disc_message_id, directory_id,
+             file_name, file_description, size, mime_type)
+            SELECT ?, ?, ?, ?, ?, ?, ?
+            WHERE NOT EXISTS (
+                SELECT 1 FROM files
+                WHERE disc_channel_id = ? AND disc_message_id = ? AND file_name = ?
+            )
+            ON CONFLICT (directory_id, file_name) DO NOTHING
+        """;
+
+        if (records.isEmpty()) return 0;
+        int inserted = 0;
+        Set<String> events = new HashSet<>();
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try (PreparedStatement p = c.prepareStatement(sql)) {
+                for (NewFileRecord f : records) {
+                    bindNewFile(p, f);
+                    p.setLong(8, f.channelId());
+                    p.setLong(9, f.messageId());
+                    p.setString(10, f.fileName());
+                    p.addBatch();
+                }
+                int[] counts = p.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        inserted++;
+                        events.add("directory:" + records.get(i).directoryId());
+                    }
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            if (!events.isEmpty()) publish(c, events.toArray(String[]::new));
+        }
+        return inserted;
+    }
+
+    private static void bindNewFile(PreparedStatement p, NewFileRecord f) throws SQLException {
+        p.setLong(1, f.channelId());
+        p.setLong(2, f.messageId());
+        p.setInt(3, f.directoryId());
+        p.setString(4, f.fileName());
+        p.setString(5, f.description());
+        p.setInt(6, f.size());
+        p.setString(7, f.mimeType());
+    }
+
+    @Override
+    public FileRecord getFileById(int fileId) {
+        String sql = """
+            SELECT file_id, disc_channel_id, disc_message_id, directory_id,
+                   file_name, file_description, size, mime_type, created_at
+            FROM files WHERE file_id = ?
+        """;
+
+        try (Connection c = readConnection("file:" + fileId);
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setInt(1, fileId);
+            try (ResultSet r = p.executeQuery()) {
+                return r.next() ? mapFileRecord(r) : null;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<FileEntry> getFilesByDirectoryId(
+            int dirId, String search, String mime, String sort
+    ) {
+
+        StringBuilder q = new StringBuilder("""
+            SELECT file_id, file_name, file_description,
+                   size, mime_type, created_at
+            FROM files WHERE directory_id = ?
+        """);
+
+        if (search != null && !search.isBlank())
+            q.append(" AND (LOWER(file_name) LIKE ? OR LOWER(file_description) LIKE ?)");
+        if (mime != null && !mime.isBlank())
+            q.append(" AND mime_type LIKE ?");
+
+        q.append(" ORDER BY ")
+                .append("size".equals(sort) ? "size DESC" :
+                        "file_name".equals(sort) ? "file_name ASC" :
+                                "disc_message_id DESC");
+
+        try (Connection c = readConnection("directory:" + dirId);
+             PreparedStatement p = c.prepareStatement(q.toString())) {
+
+            int i = 1;
+            p.setInt(i++, dirId);
+
+            if (search != null && !search.isBlank()) {
+                String s = "%" + search.toLowerCase() + "%";
+                p.setString(i++, s);
+                p.setString(i++, s);
+            }
+
+            if (mime != null && !mime.isBlank())
+                p.setString(i++, mime + "%");
+
+            List<FileEntry> out = new ArrayList<>();
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next())
+                    out.add(mapFileEntry(r));
+            }
+            return out;
+
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<FileEntry> getFilesBetween(int dirId, OffsetDateTime from, OffsetDateTime to) {
+        String sql = """
+            SELECT file_id, file_name, file_description,
+                   size, mime_type, created_at
+            FROM files
+            WHERE directory_id = ? AND disc_message_id BETWEEN ? AND ?
+            ORDER BY disc_message_id DESC
+        """;
+
+        try (Connection c = readConnection("directory:" + dirId);
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setInt(1, dirId);
+            p.setLong(2, Snowflakes.lowerBound(from));
+            p.setLong(3, Snowflakes.upperBound(to));
+
+            List<FileEntry> out = new ArrayList<>();
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next())
+                    out.add(mapFileEntry(r));
+            }
+            return out;
+
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean deleteFile(int fileId) throws SQLException {
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement(
+                     "DELETE FROM files WHERE file_id = ? RETURNING directory_id")) {
+            p.setInt(1, fileId);
+            try (ResultSet r = p.executeQuery()) {
+                if (!r.next()) return false;
+                publish(c, "file:" + fileId, "directory:" + r.getInt(1));
+                return true;
+            }
+        }
+    }
+
+    // Walks from a directory up to the root; joined with PATH_FROM_ANCESTORS it yields the full path
+    private static final String ANCESTORS_CTE = """
+            up AS (
+                SELECT directory_id, parent_id, name, 0 AS depth
+                FROM directories WHERE directory_id = ?
+                UNION ALL
+                SELECT d.directory_id, d.parent_id, d.name, up.depth + 1
+                FROM directories d JOIN up ON d.directory_id = up.parent_id
+            )
+    """;
+
+    private static final String PATH_FROM_ANCESTORS =
+            "COALESCE((SELECT string_agg(name, '/' ORDER BY depth DESC) FROM up WHERE parent_id IS NOT NULL), '')";
+
+    private static final String DESCEND_STEP = """
+                UNION ALL
+                SELECT d.directory_id, d.parent_id, d.name,
+                       CASE WHEN t.path = '' THEN d.name ELSE t.path || '/' || d.name END,
+                       d.created_at
+                FROM directories d JOIN tree t ON d.parent_id = t.directory_id
+    """;
+
+    private static final String TREE_SELECT = """
+            SELECT t.directory_id, COALESCE(t.parent_id, 0), t.name, t.path, t.created_at,
+                   (SELECT COUNT(*) FROM files f WHERE f.directory_id = t.directory_id)
+            FROM tree t ORDER BY t.path
+    """;
+
+    @Override
+    public List<DirectoryEntry> getAllDirectories() {
+        try (Connection c = readConnection("directories")) {
+            return readAllDirectories(c);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<DirectoryEntry> readAllDirectories(Connection c) throws SQLException {
+        String sql = """
+            WITH RECURSIVE tree AS (
+                SELECT directory_id, parent_id, name, ''::text AS path, created_at
+                FROM directories WHERE parent_id IS NULL
+        """ + DESCEND_STEP + ")" + TREE_SELECT;
+
+        try (PreparedStatement p = c.prepareStatement(sql);
+             ResultSet r = p.executeQuery()) {
+            return mapDirectories(r);
+        }
+    }
+
+    @Override
+    public DirectoryEntry getDirectoryById(int id) {
+        String sql = "WITH RECURSIVE " + ANCESTORS_CTE + """
+            SELECT d.directory_id, COALESCE(d.parent_id, 0), d.name,
+        """ + PATH_FROM_ANCESTORS + """
+                   , d.created_at,
+                   (SELECT COUNT(*) FROM files f WHERE f.directory_id = d.directory_id)
+            FROM directories d WHERE d.directory_id = ?
+        """;
+
+        try (Connection c = readConnection("directories");
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setInt(1, id);
+            p.setInt(2, id);
+            try (ResultSet r = p.executeQuery()) {
+                List<DirectoryEntry> out = mapDirectories(r);
+                if (out.isEmpty()) throw new RuntimeException();
+                return out.get(0);
+            }
+
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<DirectoryEntry> getChildDirectories(int parentId) {
+        String sql = "WITH RECURSIVE " + ANCESTORS_CTE + """
+            SELECT d.directory_id, d.parent_id, d.name,
+                   CASE WHEN p.path = '' THEN d.name ELSE p.path || '/' || d.name END AS path,
+                   d.created_at,
+                   (SELECT COUNT(*) FROM files f WHERE f.directory_id = d.directory_id)
+            FROM directories d,
+                 (SELECT
+        """ + PATH_FROM_ANCESTORS + """
+                  AS path) p
+            WHERE d.parent_id = ?
+            ORDER BY d.name
+        """;
+
+        try (Connection c = readConnection("directories");
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setInt(1, parentId);
+            p.setInt(2, parentId);
+            try (ResultSet r = p.executeQuery()) {
+                return mapDirectories(r);
+            }
+
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<DirectoryEntry> getSubtree(int directoryId) {
+        String sql = "WITH RECURSIVE " + ANCESTORS_CTE + """
+            , tree AS (
+                SELECT d.directory_id, d.parent_id, d.name,
+        """ + PATH_FROM_ANCESTORS + """
+                       AS path, d.created_at
+                FROM directories d WHERE d.directory_id = ?
+        """ + DESCEND_STEP + ")" + TREE_SELECT;
+
+        try (Connection c = readConnection("directories");
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setInt(1, directoryId);
+            p.setInt(2, directoryId);
+            try (ResultSet r = p.executeQuery()) {
+                return mapDirectories(r);
+            }
+
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public SubtreeStats getSubtreeStats(int directoryId) {
+        String sql = """
+            WITH RECURSIVE sub AS (
+                SELECT directory_id FROM directories WHERE directory_id = ?
+                UNION ALL
+                SELECT d.directory_id FROM directories d JOIN sub ON d.parent_id = sub.directory_id
+            ),
+            f AS (SELECT COUNT(*) AS n, COALESCE(SUM(size), 0) AS bytes
+                  FROM files JOIN sub USING (directory_id)),
+            l AS (SELECT COUNT(*) AS n, COALESCE(SUM(total_size), 0) AS bytes
+                  FROM logical_files JOIN sub USING (directory_id))
+            SELECT (SELECT COUNT(*) FROM sub), f.n + l.n, f.bytes + l.bytes
+            FROM f, l
+        """;
+
+        try (Connection c = readConnection("directories");
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setInt(1, directoryId);
+            try (ResultSet r = p.executeQuery()) {
+                r.next();
+                return new SubtreeStats(r.getInt(1), r.getLong(2), r.getLong(3));
+            }
+
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int createDirectory(String path) throws SQLException {
+        try (Connection c = ds.getConnection()) {
+            int id = 1;
+            for (String name : path.split("/")) {
+                if (name.isBlank()) continue;
+                id = insertDirectory(c, id, name.trim());
+            }
+            publish(c, "directory:" + id);
+            return id;
+        }
+    }
+
+    @Override
+    public int createDirectory(int parentId, String name) throws SQLException {
+        try (Connection c = ds.getConnection()) {
+            int id = insertDirectory(c, parentId, name);
+            publish(c, "directory:" + id);
+            return id;
+        }
+    }
+
+    private static int insertDirectory(Connection c, int parentId, String name) throws SQLException {
+        try (PreparedStatement p = c.prepareStatement("""
+                 INSERT INTO directories (parent_id, name)
+                 VALUES (?, ?)
+                 ON CONFLICT (parent_id, name) DO UPDATE SET name = EXCLUDED.name
+                 RETURNING directory_id
+             """)) {
+
+            p.setInt(1, parentId);
+            p.setString(2, name);
+            try (ResultSet r = p.executeQuery()) {
+                r.next();
+                return r.getInt(1);
+            }
+        }
+    }
+
+    @Override
+    public boolean moveDirectory(int directoryId, int newParentId, String newName) throws SQLException {
+        // The target parent must not be the directory itself or one of its descendants
+        String sql = "WITH RECURSIVE " + ANCESTORS_CTE + """
+            UPDATE directories SET parent_id = ?, name = ?
+            WHERE directory_id = ?
+              AND parent_id IS NOT NULL
+              AND NOT EXISTS (SELECT 1 FROM up WHERE up.directory_id = ?)
+        """;
+
+        try (Connection c = ds.getConnection()) {
+            boolean moved;
+            c.setAutoCommit(false);
+            try {
+                // Two opposite moves could each pass the cycle check against a tree
+                // without the other and together form a cycle, so moves take turns.
+                // The update runs after the lock, so its snapshot sees earlier moves.
+                try (Statement s = c.createStatement()) {
+                    s.execute("SELECT pg_advisory_xact_lock(" + MOVE_LOCK_KEY + ")");
+                }
+                try (PreparedStatement p = c.prepareStatement(sql)) {
+                    p.setInt(1, newParentId);
+                    p.setInt(2, newParentId);
+                    p.setString(3, newName);
+                    p.setInt(4, directoryId);
+                    p.setInt(5, directoryId);
+                    moved = p.executeUpdate() > 0;
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            if (moved) publish(c, "directory:" + directoryId);
+            return moved;
+        }
+    }
+
+    @Override
+    public boolean deleteDirectory(int directoryId) throws SQLException {
+        if (directoryId == 1) throw new SQLException();
+
+        try (Connection c = ds.getConnection()) {
+            try (PreparedStatement check = c.prepareStatement("""
+                    SELECT (SELECT COUNT(*) FROM files WHERE directory_id = ?)
+                         + (SELECT COUNT(*) FROM logical_files WHERE directory_id = ?)
+                         + (SELECT COUNT(*) FROM directories WHERE parent_id = ?)
+                    """)) {
+                check.setInt(1, directoryId);
+                check.setInt(2, directoryId);
+                check.setInt(3, directoryId);
+                try (ResultSet r = check.executeQuery()) {
+                    r.next();
+                    if (r.getInt(1) > 0) throw new SQLException();
+                }
+            }
+
+            try (PreparedStatement del = c.prepareStatement(
+                    "DELETE FROM directories WHERE directory_id = ?")) {
+                del.setInt(1, directoryId);
+                boolean deleted = del.executeUpdate() > 0;
+                if (deleted) publish(c, "directory:" + directoryId);
+                return deleted;
+            }
+        }
+    }
+
+    // Package-private so the benchmarks module can measure row mapping without a server
+    static List<DirectoryEntry> mapDirectories(ResultSet r) throws SQLException {
+        List<DirectoryEntry> out = new ArrayList<>();
+        while (r.next())
+            out.add(new DirectoryEntry(
+                    r.getInt(1), r.getInt(2), r.getString(3), r.getString(4),
+                    r.getObject(5, OffsetDateTime.class),
+                    r.getInt(6)
+            ));
+        return out;
+    }
+
+    @Override
+    public long createLogicalFile(
+            int dirId, String original, String desc, String mime,
+            long totalSize, int partCount, String codec, String checksum
+    ) throws SQLException {
+
+        String sql = """
+            INSERT INTO logical_files
+            (directory_id, original_filename, file_description, mime_type,
+             total_size, part_count, codec, checksum_sha256)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+            RETURNING logical_file_id
+        """;
+
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setInt(1, dirId);
+            p.setString(2, original);
+            p.setString(3, desc);
+            p.setString(4, mime);
+            p.setLong(5, totalSize);
+            p.setInt(6, partCount);
+            p.setString(7, codec);
+            p.setString(8, checksum);
+
+            try (ResultSet r = p.executeQuery()) {
+                r.next();
+                long id = r.getLong(1);
+                publish(c, "directory:" + dirId);
+                return id;
+            }
+        }
+    }
+
+    @Override
+    public long upsertLogicalFile(
+            int dirId, String original, String desc, String mime,
+            long totalSize, int partCount, String codec, String checksum
+    ) throws SQLException {
+
+        // The no-op update makes RETURNING report the existing row; xmax is 0 only for a fresh insert
+        String sql = """
+            INSERT INTO logical_files
+            (directory_id, original_filename, file_description, mime_type,
+             total_size, part_count, codec, checksum_sha256)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT (directory_id, original_filename)
+            DO UPDATE SET original_filename = EXCLUDED.original_filename
+            RETURNING logical_file_id, xmax = 0
+        """;
+
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setInt(1, dirId);
+            p.setString(2, original);
+            p.setString(3, desc);
+            p.setString(4, mime);
+            p.setLong(5, totalSize);
+            p.setInt(6, partCount);
+            p.setString(7, codec);
+            p.setString(8, checksum);
+
+            try (ResultSet r = p.executeQuery()) {
+                r.next();
+                long id = r.getLong(1);
+                if (r.getBoolean(2)) publish(c, "directory:" + dirId);
+                return id;
+            }
+        }
+    }
+
+    @Override
+    public int upsertFilePartials(List<NewPartialRecord> records) throws SQLException {
+        // INSERT ... SELECT, not VALUES, so the driver does not rewrite the batch and per-row counts survive
+        String sql = """
+            INSERT INTO file_partials
+            (logical_file_id, disc_channel_id, disc_message_id, directory_id,
+             part_name, part_number, part_size,
+             original_filename, file_description, mime_type,
+             part_checksum_sha256, uploaded_via_webhook)
+            SELECT ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, true
+            WHERE NOT EXISTS (
+                SELECT 1 FROM file_partials
+                WHERE disc_channel_id = ? AND disc_message_id = ? AND part_name = ?
+            )
+            ON CONFLICT (directory_id, part_name) DO NOTHING
+        """;
+
+        if (records.isEmpty()) return 0;
+        int inserted = 0;
+        Set<String> events = new HashSet<>();
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try (PreparedStatement p = c.prepareStatement(sql)) {
+                for (NewPartialRecord r : records) {
+                    p.setLong(1, r.logicalFileId());
+                    p.setLong(2, r.channelId());
+                    p.setLong(3, r.messageId());
+                    p.setInt(4, r.directoryId());
+                    p.setString(5, r.partName());
+                    p.setInt(6, r.partNumber());
+                    p.setLong(7, r.partSize());
+                    p.setString(8, r.originalFilename());
+                    p.setString(9, r.description());
+                    p.setString(10, r.mimeType());
+                    p.setString(11, r.checksum());
+                    p.setLong(12, r.channelId());
+                    p.setLong(13, r.messageId());
+                    p.setString(14, r.partName());
+                    p.addBatch();
+                }
+                int[] counts = p.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        inserted++;
+                        events.add("logical:" + records.get(i).logicalFileId());
+                        events.add("directory:" + records.get(i).directoryId());
+                    }
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            if (!events.isEmpty()) publish(c, events.toArray(String[]::new));
+        }
+        return inserted;
+    }
+
+    @Override
+    public Set<Long> findIndexedPartMessages(long channelId, Collection<Long> messageIds) throws SQLException {
+        Set<Long> out = new HashSet<>();
+        if (messageIds.isEmpty()) return out;
+        // On the primary, so parts indexed moments ago are seen
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement("""
+                     SELECT DISTINCT disc_message_id FROM file_partials
+                     WHERE disc_channel_id = ? AND disc_message_id = ANY(?)
+                     """)) {
+            p.setLong(1, channelId);
+            p.setArray(2, c.createArrayOf("bigint", messageIds.toArray()));
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next()) out.add(r.getLong(1));
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public long createLogicalFile(
+            int dirId, String original, String desc, String mime,
+            long totalSize, String codec, String checksum, List<NewPartialRecord> parts
+    ) throws SQLException {
+        return recordLogicalFile(dirId, original, desc, mime, totalSize, codec, checksum, parts, false);
+    }
+
+    @Override
+    public long replaceLogicalFile(
+            int dirId, String original, String desc, String mime,
+            long totalSize, String codec, String checksum, List<NewPartialRecord> parts
+    ) throws SQLException {
+        return recordLogicalFile(dirId, original, desc, mime, totalSize, codec, checksum, parts, true);
+    }
+
+    private long recordLogicalFile(
+            int dirId, String original, String desc, String mime,
+            long totalSize, String codec, String checksum, List<NewPartialRecord> parts, boolean replace
+    ) throws SQLException {
+        Set<String> events = new HashSet<>();
+        long logicalFileId;
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                if (replace) {
+                    // Deleting the logical file cascades to its parts
+                    try (PreparedStatement p = c.prepareStatement(
+                            "DELETE FROM logical_files WHERE directory_id = ? AND original_filename = ? RETURNING logical_file_id")) {
+                        p.setInt(1, dirId);
+                        p.setString(2, original);
+                        try (ResultSet r = p.executeQuery()) {
+                            while (r.next()) events.add("logical:" + r.getLong(1));
+                        }
+                    }
+                    try (PreparedStatement p = c.prepareStatement(
+                            "DELETE FROM files WHERE directory_id = ? AND file_name = ? RETURNING file_id")) {
+                        p.setInt(1, dirId);
+                        p.setString(2, original);
+                        try (ResultSet r = p.executeQuery()) {
+                            while (r.next()) events.add("file:" + r.getInt(1));
+                        }
+                    }
+                }
+                try (PreparedStatement p = c.prepareStatement("""
+                        INSERT INTO logical_files
+                        (directory_id, original_filename, file_description, mime_type,
+                         total_size, part_count, codec, checksum_sha256)
+                        VALUES (?, ?, ?, ?, ?, ?, ?, ?)
+                        RETURNING logical_file_id
+                        """)) {
+                    p.setInt(1, dirId);
+                    p.setString(2, original);
+                    p.setString(3, desc);
+                    p.setString(4, mime);
+                    p.setLong(5, totalSize);
+                    p.setInt(6, parts.size());
+                    p.setString(7, codec);
+                    p.setString(8, checksum);
+                    try (ResultSet r = p.executeQuery()) {
+                        r.next();
+                        logicalFileId = r.getLong(1);
+                    }
+                }
+                try (PreparedStatement p = c.prepareStatement("""
+                        INSERT INTO file_partials
+                        (logical_file_id, disc_channel_id, disc_message_id, directory_id,
+                         part_name, part_number, part_size,
+                         original_filename, file_description, mime_type,
+                         part_checksum_sha256, uploaded_via_webhook)
+                        VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, true)
+                        """)) {
+                    for (NewPartialRecord r : parts) {
+                        p.setLong(1, logicalFileId);
+                        p.setLong(2, r.channelId());
+                        p.setLong(3, r.messageId());
+                        p.setInt(4, dirId);
+                        p.setString(5, r.partName());
+                        p.setInt(6, r.partNumber());
+                        p.setLong(7, r.partSize());
+                        p.setString(8, original);
+                        p.setString(9, desc);
+                        p.setString(10, mime);
+                        p.setString(11, r.checksum());
+                        p.addBatch();
+                    }
+                    p.executeBatch();
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            events.add("logical:" + logicalFileId);
+            events.add("directory:" + dirId);
+            publish(c, events.toArray(String[]::new));
+        }
+        return logicalFileId;
+    }
+
+    @Override
+    public long recordFilePartial(
+            long logicalFileId, long channelId, long messageId, int dirId,
+            String partName, int partNumber, long partSize,
+            String original, String desc, String mime, String checksum
+    ) throws SQLException {
+
+        String sql = """
+            INSERT INTO file_partials
+            (logical_file_id, disc_channel_id, disc_message_id, directory_id,
+             part_name, part_number, part_size,
+             original_filename, file_description, mime_type,
+             part_checksum_sha256, uploaded_via_webhook)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, true)
+            RETURNING partial_id
+        """;
+
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setLong(1, logicalFileId);
+            p.setLong(2, channelId);
+            p.setLong(3, messageId);
+            p.setInt(4, dirId);
+            p.setString(5, partName);
+            p.setInt(6, partNumber);
+            p.setLong(7, partSize);
+            p.setString(8, original);
+            p.setString(9, desc);
+            p.setString(10, mime);
+            p.setString(11, checksum);
+
+            try (ResultSet r = p.executeQuery()) {
+                r.next();
+                long id = r.getLong(1);
+                publish(c, "logical:" + logicalFileId, "directory:" + dirId);
+                return id;
+            }
+        }
+    }
+
+    @Override
+    public boolean checkPartialExists(String partName, int dirId) throws SQLException {
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement(
+                     "SELECT COUNT(*) FROM file_partials WHERE part_name = ? AND directory_id = ?")) {
+            p.setString(1, partName);
+            p.setInt(2, dirId);
+            try (ResultSet r = p.executeQuery()) {
+                r.next();
+                return r.getInt(1) > 0;
+            }
+        }
+    }
+
+    @Override
+    public boolean deleteLogicalFile(long logicalFileId) throws SQLException {
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement(
+                     "DELETE FROM logical_files WHERE logical_file_id = ? RETURNING directory_id")) {
+            p.setLong(1, logicalFileId);
+            try (ResultSet r = p.executeQuery()) {
+                if (!r.next()) return false;
+                publish(c, "logical:" + logicalFileId, "directory:" + r.getInt(1));
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public BulkResult deleteFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds) throws SQLException {
+        Set<Integer> files = new HashSet<>();
+        Set<Long> logical = new HashSet<>();
+        Set<String> events = new HashSet<>();
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                try (PreparedStatement p = c.prepareStatement(
+                        "DELETE FROM files WHERE file_id = ANY(?) RETURNING file_id, directory_id")) {
+                    p.setArray(1, c.createArrayOf("integer", fileIds.toArray()));
+                    collectChanged(p, "file:", events, r -> files.add(r.getInt(1)));
+                }
+                try (PreparedStatement p = c.prepareStatement(
+                        "DELETE FROM logical_files WHERE logical_file_id = ANY(?) RETURNING logical_file_id, directory_id")) {
+                    p.setArray(1, c.createArrayOf("bigint", logicalFileIds.toArray()));
+                    collectChanged(p, "logical:", events, r -> logical.add(r.getLong(1)));
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            if (!events.isEmpty()) publish(c, events.toArray(String[]::new));
+        }
+        return new BulkResult(files, logical, Set.of(), Set.of());
+    }
+
+    @Override
+    public BulkResult moveFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds, int targetDirId) throws SQLException {
+        Set<Integer> files = new HashSet<>();
+        Set<Long> logical = new HashSet<>();
+        Set<Integer> fileConflicts = new HashSet<>();
+        Set<Long> logicalConflicts = new HashSet<>();
+        Set<String> events = new HashSet<>();
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                try (PreparedStatement p = c.prepareStatement("""
+                        SELECT f.file_id FROM files f
+                        WHERE f.file_id = ANY(?) AND f.directory_id <> ?
+                          AND EXISTS (SELECT 1 FROM files t
+                                      WHERE t.directory_id = ? AND t.file_name = f.file_name)
+                        """)) {
+                    p.setArray(1, c.createArrayOf("integer", fileIds.toArray()));
+                    p.setInt(2, targetDirId);
+                    p.setInt(3, targetDirId);
+                    try (ResultSet r = p.executeQuery()) {
+                        while (r.next()) fileConflicts.add(r.getInt(1));
+                    }
+                }
+                try (PreparedStatement p = c.prepareStatement("""
+                        SELECT l.logical_file_id FROM logical_files l
+                        WHERE l.logical_file_id = ANY(?) AND l.directory_id <> ?
+                          AND (EXISTS (SELECT 1 FROM logical_files t
+                                       WHERE t.directory_id = ? AND t.original_filename = l.original_filename)
+                               OR EXISTS (SELECT 1 FROM file_partials p
+                                          JOIN file_partials t ON t.part_name = p.part_name AND t.directory_id = ?
+                                          WHERE p.logical_file_id = l.logical_file_id))
+                        """)) {
+                    p.setArray(1, c.createArrayOf("bigint", logicalFileIds.toArray()));
+                    p.setInt(2, targetDirId);
+                    p.setInt(3, targetDirId);
+                    p.setInt(4, targetDirId);
+                    try (ResultSet r = p.executeQuery()) {
+                        while (r.next()) logicalConflicts.add(r.getLong(1));
+                    }
+                }
+
+                // Two selected items with the same name would both land in the target and break its
+                // unique constraints; the first one in the selection moves and the rest are conflicts
+                Map<Integer, String> fileNames = new HashMap<>();
+                try (PreparedStatement p = c.prepareStatement(
+                        "SELECT file_id, file_name FROM files WHERE file_id = ANY(?) AND directory_id <> ?")) {
+                    p.setArray(1, c.createArrayOf("integer", fileIds.toArray()));
+                    p.setInt(2, targetDirId);
+                    try (ResultSet r = p.executeQuery()) {
+                        while (r.next()) fileNames.put(r.getInt(1), r.getString(2));
+                    }
+                }
+                Map<Long, String> logicalNames = new HashMap<>();
+                Map<Long, List<String>> partNames = new HashMap<>();
+                try (PreparedStatement p = c.prepareStatement("""
+                        SELECT l.logical_file_id, l.original_filename, p.part_name
+                        FROM logical_files l
+                        LEFT JOIN file_partials p ON p.logical_file_id = l.logical_file_id
+                        WHERE l.logical_file_id = ANY(?) AND l.directory_id <> ?
+                        """)) {
+                    p.setArray(1, c.createArrayOf("bigint", logicalFileIds.toArray()));
+                    p.setInt(2, targetDirId);
+                    try (ResultSet r = p.executeQuery()) {
+                        while (r.next()) {
+                            long id = r.getLong(1);
+                            logicalNames.put(id, r.getString(2));
+                            List<String> parts = partNames.computeIfAbsent(id, k -> new ArrayList<>());
+                            if (r.getString(3) != null) parts.add(r.getString(3));
+                        }
+                    }
+                }
+
+                List<Integer> movableFiles = new ArrayList<>();
+                Set<String> batchNames = new HashSet<>();
+                for (int id : new LinkedHashSet<>(fileIds)) {
+                    String name = fileNames.get(id);
+                    if (name == null || fileConflicts.contains(id)) continue;
+                    if (batchNames.add(name)) movableFiles.add(id);
+                    else fileConflicts.add(id);
+                }
+                List<Long> movableLogical = new ArrayList<>();
+                Set<String> batchLogical = new HashSet<>();
+                Set<String> batchParts = new HashSet<>();
+                for (long id : new LinkedHashSet<>(logicalFileIds)) {
+                    String name = logicalNames.get(id);
+                    if (name == null || logicalConflicts.contains(id)) continue;
+                    List<String> parts = partNames.get(id);
+                    if (batchLogical.contains(name) || parts.stream().anyMatch(batchParts::contains)) {
+                        logicalConflicts.add(id);
+                        continue;
+                    }
+                    batchLogical.add(name);
+                    batchParts.addAll(parts);
+                    movableLogical.add(id);
+                }
+
+                // Joining the pre-update row lets RETURNING report the directory each item left
+                try (PreparedStatement p = c.prepareStatement("""
+                        UPDATE files f SET directory_id = ?
+                        FROM files o
+                        WHERE o.file_id = f.file_id AND f.file_id = ANY(?)
+                        RETURNING f.file_id, o.directory_id
+                        """)) {
+                    p.setInt(1, targetDirId);
+                    p.setArray(2, c.createArrayOf("integer", movableFiles.toArray()));
+                    collectChanged(p, "file:", events, r -> files.add(r.getInt(1)));
+                }
+                try (PreparedStatement p = c.prepareStatement("""
+                        UPDATE logical_files l SET directory_id = ?
+                        FROM logical_files o
+                        WHERE o.logical_file_id = l.logical_file_id AND l.logical_file_id = ANY(?)
+                        RETURNING l.logical_file_id, o.directory_id
+                        """)) {
+                    p.setInt(1, targetDirId);
+                    p.setArray(2, c.createArrayOf("bigint", movableLogical.toArray()));
+                    collectChanged(p, "logical:", events, r -> logical.add(r.getLong(1)));
+                }
+                try (PreparedStatement p = c.prepareStatement(
+                        "UPDATE file_partials SET directory_id = ? WHERE logical_file_id = ANY(?)")) {
+                    p.setInt(1, targetDirId);
+                    p.setArray(2, c.createArrayOf("bigint", logical.toArray()));
+                    p.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            events.add("directory:" + targetDirId);
+            publish(c, events.toArray(String[]::new));
+        }
+        return new BulkResult(files, logical, fileConflicts, logicalConflicts);
+    }
+
+    @Override
+    public BulkResult describeFiles(Collection<Integer> fileIds, Collection<Long> logicalFileIds, String description) throws SQLException {
+        Set<Integer> files = new HashSet<>();
+        Set<Long> logical = new HashSet<>();
+        Set<String> events = new HashSet<>();
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                try (PreparedStatement p = c.prepareStatement(
+                        "UPDATE files SET file_description = ? WHERE file_id = ANY(?) RETURNING file_id, directory_id")) {
+                    p.setString(1, description);
+                    p.setArray(2, c.createArrayOf("integer", fileIds.toArray()));
+                    collectChanged(p, "file:", events, r -> files.add(r.getInt(1)));
+                }
+                try (PreparedStatement p = c.prepareStatement("""
+                        UPDATE logical_files SET file_description = ?
+                        WHERE logical_file_id = ANY(?)
+                        RETURNING logical_file_id, directory_id
+                        """)) {
+                    p.setString(1, description);
+                    p.setArray(2, c.createArrayOf("bigint", logicalFileIds.toArray()));
+                    collectChanged(p, "logical:", events, r -> logical.add(r.getLong(1)));
+                }
+                try (PreparedStatement p = c.prepareStatement(
+                        "UPDATE file_partials SET file_description = ? WHERE logical_file_id = ANY(?)")) {
+                    p.setString(1, description);
+                    p.setArray(2, c.createArrayOf("bigint", logical.toArray()));
+                    p.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            if (!events.isEmpty()) publish(c, events.toArray(String[]::new));
+        }
+        return new BulkResult(files, logical, Set.of(), Set.of());
+    }
+
+    private interface RowConsumer {
+        void accept(ResultSet r) throws SQLException;
+    }
+
+    /** Runs a statement returning (id, directory_id) rows and records the invalidation events for them. */
+    private static void collectChanged(PreparedStatement p, String prefix, Set<String> events, RowConsumer row)
+            throws SQLException {
+        try (ResultSet r = p.executeQuery()) {
+            while (r.next()) {
+                row.accept(r);
+                events.add(prefix + r.getLong(1));
+                events.add("directory:" + r.getInt(2));
+            }
+        }
+    }
+
+    @Override
+    public List<FilePartialEntry> getFilePartialsByOriginalFilename(String original, int dirId) {
+        String sql = """
+            SELECT partial_id, disc_channel_id, disc_message_id,
+                   part_name, part_number, part_size,
+                   original_filename, mime_type,
+                   uploaded_via_webhook, logical_file_id,
+                   part_checksum_sha256, created_at
+            FROM file_partials
+            WHERE original_filename = ? AND directory_id = ?
+            ORDER BY part_number
+        """;
+
+        try (Connection c = readConnection("directory:" + dirId);
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setString(1, original);
+            p.setInt(2, dirId);
+
+            List<FilePartialEntry> out = new ArrayList<>();
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next())
+                    out.add(mapFilePartial(r));
+            }
+            return out;
+
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<FilePartialEntry> getFilePartialsByLogicalFileId(long logicalFileId) {
+        String sql = """
+            SELECT partial_id, disc_channel_id, disc_message_id,
+                   part_name, part_number, part_size,
+                   original_filename, mime_type,
+                   uploaded_via_webhook, logical_file_id,
+                   part_checksum_sha256, created_at
+            FROM file_partials
+            WHERE logical_file_id = ?
+            ORDER BY part_number
+        """;
+
+        try (Connection c = readConnection("logical:" + logicalFileId);
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setLong(1, logicalFileId);
+
+            List<FilePartialEntry> out = new ArrayList<>();
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next())
+                    out.add(mapFilePartial(r));
+            }
+            return out;
+
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public LogicalFileEntry getLogicalFileById(long logicalFileId) {
+        String sql = """
+            SELECT logical_file_id, directory_id, original_filename,
+                   file_description, mime_type, total_size, part_count,
+                   codec, checksum_sha256, created_at
+            FROM logical_files WHERE logical_file_id = ?
+        """;
+
+        try (Connection c = readConnection("logical:" + logicalFileId);
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setLong(1, logicalFileId);
+            try (ResultSet r = p.executeQuery()) {
+                return r.next() ? mapLogicalFile(r) : null;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public LogicalFileEntry getLogicalFileByName(String original, int dirId) {
+        String sql = """
+            SELECT logical_file_id, directory_id, original_filename,
+                   file_description, mime_type, total_size, part_count,
+                   codec, checksum_sha256, created_at
+            FROM logical_files
+            WHERE directory_id = ? AND original_filename = ?
+        """;
+
+        try (Connection c = readConnection("directory:" + dirId);
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setInt(1, dirId);
+            p.setString(2, original);
+            try (ResultSet r = p.executeQuery()) {
+                return r.next() ? mapLogicalFile(r) : null;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<LogicalFileEntry> getLogicalFilesByDirectoryId(int dirId, String search) {
+        StringBuilder q = new StringBuilder("""
+            SELECT logical_file_id, directory_id, original_filename,
+                   file_description, mime_type, total_size, part_count,
+                   codec, checksum_sha256, created_at
+            FROM logical_files
+            WHERE directory_id = ?
+        """);
+
+        if (search != null && !search.isBlank())
+            q.append(" AND LOWER(original_filename) LIKE ?");
+
+        q.append(" ORDER BY original_filename");
+
+        try (Connection c = readConnection("directory:" + dirId);
+             PreparedStatement p = c.prepareStatement(q.toString())) {
+
+            int i = 1;
+            p.setInt(i++, dirId);
+            if (search != null && !search.isBlank())
+                p.setString(i++, "%" + search.toLowerCase() + "%");
+
+            List<LogicalFileEntry> out = new ArrayList<>();
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next())
+                    out.add(mapLogicalFile(r));
+            }
+            return out;
+
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ReindexCheckpoint getReindexCheckpoint(long channelId) {
+        String sql = """
+            SELECT channel_id, synced_up_to, scan_head, scan_cursor
+            FROM reindex_checkpoints WHERE channel_id = ?
+        """;
+
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setLong(1, channelId);
+            try (ResultSet r = p.executeQuery()) {
+                if (!r.next()) return null;
+                return new ReindexCheckpoint(r.getLong(1), r.getLong(2), r.getLong(3), r.getLong(4));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void saveReindexCheckpoint(ReindexCheckpoint checkpoint) throws SQLException {
+        String sql = """
+            INSERT INTO reindex_checkpoints (channel_id, synced_up_to, scan_head, scan_cursor)
+            VALUES (?, ?, ?, ?)
+            ON CONFLICT (channel_id) DO UPDATE
+            SET synced_up_to = EXCLUDED.synced_up_to,
+                scan_head = EXCLUDED.scan_head,
+                scan_cursor = EXCLUDED.scan_cursor,
+                updated_at = now()
+        """;
+
+        try (Connection c = ds.getConnection();
+             PreparedStatement p = c.prepareStatement(sql)) {
+
+            p.setLong(1, checkpoint.channelId());
+            p.setLong(2, checkpoint.syncedUpTo());
+            p.setLong(3, checkpoint.scanHead());
+            p.setLong(4, checkpoint.cursor());
+            p.executeUpdate();
+        }
+    }
+
+    private interface RowMapper<T> {
+        T map(ResultSet r) throws SQLException;
+    }
+
+    private interface Binder {
+        void bind(PreparedStatement p) throws SQLException;
+    }
+
+    // The page is read whole and the connection returned before the sink runs, since the sink
+    // writes to a client that may be slow; the caller's limit keeps the page small
+    private <T> int stream(String group, String sql, Binder binder, RowMapper<T> mapper, Consumer<T> sink) {
+        List<T> page = new ArrayList<>();
+        try (Connection c = readConnection(group);
+             PreparedStatement p = c.prepareStatement(sql)) {
+            binder.bind(p);
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next()) page.add(mapper.map(r));
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        page.forEach(sink);
+        return page.size();
+    }
+
+    @Override
+    public int streamFiles(int dirId, int afterId, int limit, Consumer<FileRecord> sink) {
+        String sql = """
+            SELECT file_id, disc_channel_id, disc_message_id, directory_id,
+                   file_name, file_description, size, mime_type, created_at
+            FROM files
+            WHERE file_id > ?
+        """ + (dirId != 0 ? " AND directory_id = ?" : "") + " ORDER BY file_id LIMIT ?";
+
+        return stream("directory:" + dirId, sql, p -> {
+            int i = 1;
+            p.setInt(i++, afterId);
+            if (dirId != 0) p.setInt(i++, dirId);
+            p.setInt(i, limit);
+        }, PostgresDatabase::mapFileRecord, sink);
+    }
+
+    @Override
+    public int streamLogicalFiles(int dirId, long afterId, int limit, Consumer<LogicalFileEntry> sink) {
+        String sql = """
+            SELECT logical_file_id, directory_id, original_filename,
+                   file_description, mime_type, total_size, part_count,
+                   codec, checksum_sha256, created_at
+            FROM logical_files
+            WHERE logical_file_id > ?
+        """ + (dirId != 0 ? " AND directory_id = ?" : "") + " ORDER BY logical_file_id LIMIT ?";
+
+        return stream("directory:" + dirId, sql, p -> {
+            int i = 1;
+            p.setLong(i++, afterId);
+            if (dirId != 0) p.setInt(i++, dirId);
+            p.setInt(i, limit);
+        }, PostgresDatabase::mapLogicalFile, sink);
+    }
+
+    @Override
+    public int streamFilePartials(long logicalFileId, long afterId, int limit, Consumer<FilePartialRecord> sink) {
+        String sql = """
+            SELECT partial_id, logical_file_id, disc_channel_id, disc_message_id,
+                   directory_id, part_name, part_number, part_size,
+                   original_filename, file_description, mime_type,
+                   uploaded_via_webhook, part_checksum_sha256, created_at
+            FROM file_partials
+            WHERE partial_id > ?
+        """ + (logicalFileId != 0 ? " AND logical_file_id = ?" : "") + " ORDER BY partial_id LIMIT ?";
+
+        return stream("logical:" + logicalFileId, sql, p -> {
+            int i = 1;
+            p.setLong(i++, afterId);
+            if (logicalFileId != 0) p.setLong(i++, logicalFileId);
+            p.setInt(i, limit);
+        }, PostgresDatabase::mapFilePartialRecord, sink);
+    }
+
+    @Override
+    public int streamDirectories(int afterId, int limit, Consumer<DirectoryEntry> sink) {
+        // Seek to the page first, then walk up from its rows only, so a page
+        // costs its size times the tree depth rather than a walk of the whole tree
+        String sql = """
+            WITH RECURSIVE page AS (
+                SELECT directory_id, parent_id, name, created_at
+                FROM directories WHERE directory_id > ?
+                ORDER BY directory_id LIMIT ?
+            ), up AS (
+                SELECT directory_id AS start_id, directory_id, parent_id, name, 0 AS depth
+                FROM page
+                UNION ALL
+                SELECT up.start_id, d.directory_id, d.parent_id, d.name, up.depth + 1
+                FROM directories d JOIN up ON d.directory_id = up.parent_id
+            )
+            SELECT p.directory_id, COALESCE(p.parent_id, 0), p.name,
+                   COALESCE((SELECT string_agg(u.name, '/' ORDER BY u.depth DESC) FROM up u
+                             WHERE u.start_id = p.directory_id AND u.parent_id IS NOT NULL), ''),
+                   p.created_at,
+                   (SELECT COUNT(*) FROM files f WHERE f.directory_id = p.directory_id)
+            FROM page p
+            ORDER BY p.directory_id
+        """;
+
+        return stream("directories", sql, p -> {
+            p.setInt(1, afterId);
+            p.setInt(2, limit);
+        }, r -> new DirectoryEntry(
+                r.getInt(1), r.getInt(2), r.getString(3), r.getString(4),
+                r.getObject(5, OffsetDateTime.class),
+                r.getInt(6)
+        ), sink);
+    }
+
+    @Override
+    public Snapshot exportSnapshot() throws SQLException {
+        List<FileRecord> files = new ArrayList<>();
+        List<LogicalFileEntry> logicalFiles = new ArrayList<>();
+        List<FilePartialRecord> partials = new ArrayList<>();
+        List<DirectoryEntry> directories;
+
+        // One snapshot of the primary, so every row refers to directories and files that are in the export
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            c.setReadOnly(true);
+            try (Statement s = c.createStatement()) {
+                directories = readAllDirectories(c);
+
+                try (ResultSet r = s.executeQuery("""
+                    SELECT file_id, disc_channel_id, disc_message_id, directory_id,
+                           file_name, file_description, size, mime_type, created_at
+                    FROM files ORDER BY file_id
+                """)) {
+                    while (r.next())
+                        files.add(mapFileRecord(r));
+                }
+
+                try (ResultSet r = s.executeQuery("""
+                    SELECT logical_file_id, directory_id, original_filename,
+                           file_description, mime_type, total_size, part_count,
+                           codec, checksum_sha256, created_at
+                    FROM logical_files ORDER BY logical_file_id
+                """)) {
+                    while (r.next())
+                        logicalFiles.add(mapLogicalFile(r));
+                }
+
+                try (ResultSet r = s.executeQuery("""
+                    SELECT partial_id, logical_file_id, disc_channel_id, disc_message_id,
+                           directory_id, part_name, part_number, part_size,
+                           original_filename, file_description, mime_type,
+                           uploaded_via_webhook, part_checksum_sha256, created_at
+                    FROM file_partials ORDER BY partial_id
+                """)) {
+                    while (r.next())
+                        partials.add(mapFilePartialRecord(r));
+                }
+            } finally {
+                c.rollback();
+                c.setReadOnly(false);
+                c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                c.setAutoCommit(true);
+            }
+        }
+
+        return new Snapshot(directories, files, logicalFiles, partials);
+    }
+
+    /**
+     * Imports into an empty database only. IDs are kept, so merging into
+     * existing rows could attach files to unrelated directories; instead the
+     * import fails before writing anything if the target holds more than its
+     * root directory. The snapshot's root is mapped onto the target's root.
+     */
+    @Override
+    public void importSnapshot(Snapshot snapshot) throws SQLException {
+        int snapshotRoot = 0;
+        for (DirectoryEntry d : snapshot.directories()) {
+            if (d.parentId() != 0) continue;
+            if (snapshotRoot != 0) throw new SQLException("Snapshot has more than one root directory");
+            snapshotRoot = d.directoryId();
+        }
+
+        try (Connection c = ds.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                int targetRoot = 0;
+                try (Statement s = c.createStatement()) {
+                    // Keep other writers out until the import commits
+                    s.execute("LOCK TABLE directories, files, logical_files, file_partials IN EXCLUSIVE MODE");
+                    try (ResultSet r = s.executeQuery("""
+                        SELECT EXISTS (SELECT 1 FROM directories WHERE parent_id IS NOT NULL)
+                            OR EXISTS (SELECT 1 FROM files)
+                            OR EXISTS (SELECT 1 FROM logical_files)
+                            OR EXISTS (SELECT 1 FROM file_partials)
+                    """)) {
+                        r.next();
+                        if (r.getBoolean(1)) {
+                            throw new SQLException("Refusing to import into a database that already has metadata");
+                        }
+                    }
+                    try (ResultSet r = s.executeQuery("SELECT directory_id FROM directories WHERE parent_id IS NULL")) {
+                        if (r.next()) targetRoot = r.getInt(1);
+                    }
+                }
+
+                try (PreparedStatement p = c.prepareStatement("""
+                    INSERT INTO directories (directory_id, parent_id, name, created_at)
+                    VALUES (?, ?, ?, ?)
+                """)) {
+                    // Ordered by path, so every parent is inserted before its children
+                    for (DirectoryEntry d : snapshot.directories()) {
+                        if (d.directoryId() == snapshotRoot && targetRoot != 0) continue;
+                        p.setInt(1, d.directoryId());
+                        if (d.parentId() == 0) p.setNull(2, Types.BIGINT);
+                        else p.setInt(2, remap(d.parentId(), snapshotRoot, targetRoot));
+                        p.setString(3, d.name());
+                        p.setObject(4, d.createdAt());
+                        p.addBatch();
+                    }
+                    p.executeBatch();
+                }
+
+                try (PreparedStatement p = c.prepareStatement("""
+                    INSERT INTO files
+                    (file_id, disc_channel_id, disc_message_id, directory_id,
+                     file_name, file_description, size, mime_type, created_at)
+                    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
+                """)) {
+                    for (FileRecord f : snapshot.files()) {
+                        p.setInt(1, f.fileId());
+                        p.setLong(2, f.channelId());
+                        p.setLong(3, f.messageId());
+                        p.setInt(4, remap(f.directoryId(), snapshotRoot, targetRoot));
+                        p.setString(5, f.fileName());
+                        p.setString(6, f.description());
+                        p.setLong(7, f.size());
+                        p.setString(8, f.mimeType());
+                        p.setObject(9, f.createdAt());
+                        p.addBatch();
+                    }
+                    p.executeBatch();
+                }
+
+                try (PreparedStatement p = c.prepareStatement("""
+                    INSERT INTO logical_files
+                    (logical_file_id, directory_id, original_filename, file_description,
+                     mime_type, total_size, part_count, codec, checksum_sha256, created_at)
+                    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                """)) {
+                    for (LogicalFileEntry l : snapshot.logicalFiles()) {
+                        p.setLong(1, l.logicalFileId());
+                        p.setInt(2, remap(l.directoryId(), snapshotRoot, targetRoot));
+                        p.setString(3, l.originalFilename());
+                        p.setString(4, l.description());
+                        p.setString(5, l.mimeType());
+                        p.setLong(6, l.totalSize());
+                        p.setInt(7, l.partCount());
+                        p.setString(8, l.codec());
+                        p.setString(9, l.checksum());
+                        p.setObject(10, l.createdAt());
+                        p.addBatch();
+                    }
+                    p.executeBatch();
+                }
+
+                try (PreparedStatement p = c.prepareStatement("""
+                    INSERT INTO file_partials
+                    (partial_id, logical_file_id, disc_channel_id, disc_message_id,
+                     directory_id, part_name, part_number, part_size,
+                     original_filename, file_description, mime_type,
+                     uploaded_via_webhook, part_checksum_sha256, created_at)
+                    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                """)) {
+                    for (FilePartialRecord f : snapshot.partials()) {
+                        p.setLong(1, f.partialId());
+                        p.setLong(2, f.logicalFileId());
+                        p.setLong(3, f.channelId());
+                        p.setLong(4, f.messageId());
+                        p.setInt(5, remap(f.directoryId(), snapshotRoot, targetRoot));
+                        p.setString(6, f.partName());
+                        p.setInt(7, f.partNumber());
+                        p.setLong(8, f.partSize());
+                        p.setString(9, f.originalFilename());
+                        p.setString(10, f.description());
+                        p.setString(11, f.mimeType());
+                        p.setBoolean(12, f.uploadedViaWebhook());
+                        p.setString(13, f.checksum());
+                        p.setObject(14, f.createdAt());
+                        p.addBatch();
+                    }
+                    p.executeBatch();
+                }
+
+                // Explicit IDs bypass the sequences, so move them past the imported rows
+                try (Statement s = c.createStatement()) {
+                    s.execute("SELECT setval('directories_directory_id_seq', (SELECT MAX(directory_id) FROM directories))");
+                    s.execute("SELECT setval('files_file_id_seq', GREATEST((SELECT MAX(file_id) FROM files), 1))");
+                    s.execute("SELECT setval('logical_files_logical_file_id_seq', GREATEST((SELECT MAX(logical_file_id) FROM logical_files), 1))");
+                    s.execute("SELECT setval('file_partials_partial_id_seq', GREATEST((SELECT MAX(partial_id) FROM file_partials), 1))");
+                }
+
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+            publish(c, "*");
+        }
+    }
+
+    /** Maps the snapshot's root directory onto the target's, if the target has one. */
+    private static int remap(int directoryId, int snapshotRoot, int targetRoot) {
+        return directoryId == snapshotRoot && targetRoot != 0 ? targetRoot : directoryId;
+    }
+
+    private static FileRecord mapFileRecord(ResultSet r) throws SQLException {
+        return new FileRecord(
+                r.getInt(1), r.getLong(2), r.getLong(3), r.getInt(4),
+                r.getString(5), r.getString(6), r.getLong(7), r.getString(8),
+                r.getObject(9, OffsetDateTime.class)
+        );
+    }
+
+    private static FilePartialRecord mapFilePartialRecord(ResultSet r) throws SQLException {
+        return new FilePartialRecord(
+                r.getLong(1), r.getLong(2), r.getLong(3), r.getLong(4),
+                r.getInt(5), r.getString(6), r.getInt(7), r.getLong(8),
+                r.getString(9), r.getString(10), r.getString(11),
+                r.getBoolean(12), r.getString(13),
+                r.getObject(14, OffsetDateTime.class)
+        );
+    }
+
+    private static FilePartialEntry mapFilePartial(ResultSet r) throws SQLException {
+        return new FilePartialEntry(
+                r.getLong(1), r.getLong(2), r.getLong(3),
+                r.getString(4), r.getInt(5), r.getLong(6),
+                r.getString(7), r.getString(8),
+                r.getBoolean(9), r.getLong(10), r.getString(11),
+                r.getObject(12, OffsetDateTime.class)
+        );
+    }
+
+    static FileEntry mapFileEntry(ResultSet r) throws SQLException {
+        return new FileEntry(
+                r.getInt(1), r.getString(2), r.getString(3),
+                r.getLong(4), r.getString(5),
+                r.getObject(6, OffsetDateTime.class)
+        );
+    }
+
+    static LogicalFileEntry mapLogicalFile(ResultSet r) throws SQLException {
+        return new LogicalFileEntry(
+                r.getLong(1), r.getInt(2), r.getString(3),
+                r.getString(4), r.getString(5),
+                r.getLong(6), r.getInt(7),
+                r.getString(8), r.getString(9),
+                r.getObject(10, OffsetDateTime.class)
+        );
+    }
+}
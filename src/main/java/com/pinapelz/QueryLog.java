@@ -0,0 +1,314 @@
+package com.pinapelz;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Times every statement run through a {@link #wrap wrapped} data source,
+ * grouped by statement shape: the SQL text with its whitespace collapsed,
+ * which is what distinguishes the search, mime and sort variants of a
+ * dynamically built query. Statements slower than the configured threshold
+ * are logged with their bound parameters and, if enabled, the plan of a
+ * slow read is captured with {@code EXPLAIN (ANALYZE, BUFFERS)} in the
+ * background, at most once per shape every {@link #PLAN_INTERVAL_MS}.
+ */
+public final class QueryLog {
+
+    /** Minimum time between two plan captures for the same shape, since ANALYZE runs the query again. */
+    public static final long PLAN_INTERVAL_MS = 10 * 60_000;
+
+    private static final Metrics.Family<Metrics.Histogram> QUERIES = Metrics.histogram(
+            "nitro_db_query_seconds", "Statement execution time by pool and statement shape (see /api/admin/queries).",
+            Metrics.SECONDS, "pool", "shape");
+    private static final Metrics.Family<Metrics.Counter> SLOW = Metrics.counter(
+            "nitro_db_slow_queries_total", "Statements over SLOW_QUERY_MS by pool and statement shape.", "pool", "shape");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern WRITES = Pattern.compile("\\b(INSERT|UPDATE|DELETE|MERGE|TRUNCATE)\\b", Pattern.CASE_INSENSITIVE);
+
+    private static final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+    private static volatile long slowNanos = TimeUnit.MILLISECONDS.toNanos(500);
+    private static volatile boolean explain;
+
+    // One plan at a time, off the request path; captures that cannot queue are dropped
+    private static final ThreadPoolExecutor planner = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(16), r -> {
+                Thread t = new Thread(r, "query-plan-capture");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    private QueryLog() {}
+
+    /**
+     * @param slowMillis statements at least this slow are logged; 0 turns the log off
+     * @param explainSlow whether to capture plans of slow reads
+     */
+    public static void configure(long slowMillis, boolean explainSlow) {
+        slowNanos = slowMillis <= 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        explain = explainSlow;
+    }
+
+    /** Every shape seen so far, the most expensive in total first. */
+    public static List<ShapeReport> report() {
+        List<ShapeReport> out = new ArrayList<>();
+        for (Shape s : shapes.values()) out.add(s.report());
+        out.sort(Comparator.comparingDouble(ShapeReport::totalMs).reversed());
+        return out;
+    }
+
+    public record ShapeReport(
+            String shape,
+            String pool,
+            String sql,
+            long count,
+            double totalMs,
+            double meanMs,
+            double maxMs,
+            long slowCount,
+            String lastSlowAt,
+            String lastSlowParams,
+            String planCapturedAt,
+            String plan
+    ) {}
+
+    /** Returns {@code target} with every connection it hands out instrumented, labelled as {@code pool}. */
+    public static DataSource wrap(String pool, DataSource target) {
+        return proxy(DataSource.class, target, (method, args, result) ->
+                result instanceof Connection c ? wrapConnection(pool, target, c) : result);
+    }
+
+    private static Connection wrapConnection(String pool, DataSource source, Connection target) {
+        return proxy(Connection.class, target, (method, args, result) -> {
+            if (method.getName().equals("prepareStatement"))
+                return new Recorder(pool, source, (String) args[0]).wrap(PreparedStatement.class, (PreparedStatement) result);
+            if (method.getName().equals("createStatement"))
+                return new Recorder(pool, source, null).wrap(Statement.class, (Statement) result);
+            return result;
+        });
+    }
+
+    private interface ResultMapper {
+        Object map(Method method, Object[] args, Object result) throws SQLException;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, T target, ResultMapper mapper) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            try {
+                return mapper.map(method, args, method.invoke(target, args));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        };
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    /** The statement behind one proxy: its SQL and the parameters currently bound to it. */
+    private static final class Recorder implements InvocationHandler {
+        private final String pool;
+        private final DataSource source;
+        private final String preparedSql;
+        // Setter calls by parameter index, replayed to bind the same values to the EXPLAIN
+        private final Map<Integer, Object[]> bindings = new TreeMap<>();
+        private final Map<Integer, Method> setters = new TreeMap<>();
+        private int batched;
+        private Object target;
+
+        Recorder(String pool, DataSource source, String preparedSql) {
+            this.pool = pool;
+            this.source = source;
+            this.preparedSql = preparedSql;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> T wrap(Class<T> type, T statement) {
+            target = statement;
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer index) {
+                bindings.put(index, args);
+                setters.put(index, method);
+            } else if (name.equals("clearParameters")) {
+                bindings.clear();
+                setters.clear();
+            } else if (name.equals("addBatch") && args == null) {
+                batched++;
+            } else if (name.startsWith("execute")) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String s ? s : preparedSql;
+                long start = System.nanoTime();
+                try {
+                    return call(method, args);
+                } finally {
+                    if (sql != null) record(sql, System.nanoTime() - start);
+                    batched = 0;
+                }
+            }
+            return call(method, args);
+        }
+
+        private Object call(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void record(String sql, long nanos) {
+            Shape shape = shapes.computeIfAbsent(pool + "\n" + sql, k -> new Shape(pool, normalize(sql)));
+            shape.observe(nanos);
+            if (nanos < slowNanos) return;
+
+            SLOW.labels(pool, shape.id).inc();
+            String params = describeParams();
+            shape.slow(params);
+            System.out.printf("Slow query %s on %s took %.1f ms: %s -- params %s%n",
+                    shape.id, pool, nanos / 1e6, shape.sql, params);
+            if (explain && preparedSql != null && shape.claimPlan()) {
+                Map<Integer, Object[]> boundArgs = new TreeMap<>(bindings);
+                Map<Integer, Method> boundSetters = new TreeMap<>(setters);
+                planner.execute(() -> shape.plan(capturePlan(source, preparedSql, boundSetters, boundArgs)));
+            }
+        }
+
+        private String describeParams() {
+            StringBuilder b = new StringBuilder("[");
+            for (Map.Entry<Integer, Object[]> e : bindings.entrySet()) {
+                if (b.length() > 1) b.append(", ");
+                b.append(e.getKey()).append('=').append(describe(e.getValue()[1]));
+            }
+            b.append(']');
+            if (batched > 0) b.append(" (last of a batch of ").append(batched).append(')');
+            return b.toString();
+        }
+    }
+
+    private static String describe(Object value) {
+        String s;
+        try {
+            s = value instanceof Array a ? Arrays.deepToString((Object[]) a.getArray())
+                    : value instanceof String str ? "'" + str + "'"
+                    : String.valueOf(value);
+        } catch (SQLException | ClassCastException e) {
+            s = String.valueOf(value);
+        }
+        return s.length() > 200 ? s.substring(0, 200) + "..." : s;
+    }
+
+    private static String normalize(String sql) {
+        return WHITESPACE.matcher(sql).replaceAll(" ").trim();
+    }
+
+    /**
+     * Runs the statement again under {@code EXPLAIN (ANALYZE, BUFFERS)} with
+     * the same parameters, in a read-only transaction that is rolled back.
+     * Only reads are explained, since ANALYZE executes the statement.
+     */
+    private static String capturePlan(DataSource source, String sql, Map<Integer, Method> setters, Map<Integer, Object[]> args) {
+        String normalized = normalize(sql);
+        if (!(normalized.regionMatches(true, 0, "SELECT", 0, 6) || normalized.regionMatches(true, 0, "WITH", 0, 4))
+                || WRITES.matcher(normalized).find())
+            return "Not captured: only reads are explained, since ANALYZE executes the statement";
+        try (Connection c = source.getConnection()) {
+            c.setAutoCommit(false);
+            c.setReadOnly(true);
+            try (PreparedStatement p = c.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql)) {
+                for (Map.Entry<Integer, Method> e : setters.entrySet())
+                    e.getValue().invoke(p, args.get(e.getKey()));
+                StringBuilder plan = new StringBuilder();
+                try (ResultSet r = p.executeQuery()) {
+                    while (r.next()) plan.append(r.getString(1)).append('\n');
+                }
+                return plan.toString();
+            } finally {
+                c.rollback();
+            }
+        } catch (SQLException | ReflectiveOperationException e) {
+            Throwable cause = e instanceof InvocationTargetException ite ? ite.getCause() : e;
+            return "EXPLAIN failed: " + cause;
+        }
+    }
+
+    private static final class Shape {
+        final String pool;
+        final String sql;
+        final String id;
+        final Metrics.Histogram histogram;
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final LongAdder slowCount = new LongAdder();
+        final AtomicLong nextPlanAt = new AtomicLong();
+        volatile Instant lastSlowAt;
+        volatile String lastSlowParams;
+        volatile Instant planCapturedAt;
+        volatile String plan;
+
+        Shape(String pool, String sql) {
+            this.pool = pool;
+            this.sql = sql;
+            this.id = String.format("%08x", sql.hashCode());
+            this.histogram = QUERIES.labels(pool, id);
+        }
+
+        void observe(long nanos) {
+            histogram.observe(nanos / 1e9);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        void slow(String params) {
+            slowCount.increment();
+            lastSlowAt = Instant.now();
+            lastSlowParams = params;
+        }
+
+        boolean claimPlan() {
+            long now = System.currentTimeMillis();
+            long next = nextPlanAt.get();
+            return now >= next && nextPlanAt.compareAndSet(next, now + PLAN_INTERVAL_MS);
+        }
+
+        void plan(String text) {
+            plan = text;
+            planCapturedAt = Instant.now();
+        }
+
+        ShapeReport report() {
+            long n = count.sum();
+            double totalMs = totalNanos.sum() / 1e6;
+            return new ShapeReport(id, pool, sql, n, totalMs, n == 0 ? 0 : totalMs / n, maxNanos.get() / 1e6,
+                    slowCount.sum(), lastSlowAt == null ? null : lastSlowAt.toString(), lastSlowParams,
+                    planCapturedAt == null ? null : planCapturedAt.toString(), plan);
+        }
+    }
+}
@@ -2,35 +2,147 @@ package com.pinapelz;
 
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Message;
-import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+import net.dv8tion.jda.api.exceptions.RateLimitedException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves attachment URLs through a pool of bots that are all members of
+ * the storage guild. Each lookup goes to the bot with the fewest lookups in
+ * flight. A bot that is rate limited is skipped until its retry-after has
+ * passed, so throughput grows with the number of tokens; only when every
+ * bot is limited does a lookup wait in JDA's queue.
+ */
 public class Retriever {
 
-    private final JDA jda;
+    private static class Bot {
+        final JDA jda;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile long limitedUntil;
+
+        Bot(JDA jda) {
+            this.jda = jda;
+        }
+    }
+
+    private static final Metrics.Family<Metrics.Histogram> LOOKUPS = Metrics.histogram(
+            "nitro_retriever_lookup_seconds", "Attachment URL lookups through the bot pool.",
+            Metrics.SECONDS, "result");
+    private static final Metrics.Family<Metrics.Counter> RATE_LIMITED = Metrics.counter(
+            "nitro_retriever_rate_limited_total", "Lookups a bot turned away because it was rate limited.");
+
+    private final List<Bot> bots = new ArrayList<>();
 
     public Retriever(JDA jda) {
-        this.jda = jda;
+        this(List.of(jda));
+    }
+
+    public Retriever(List<JDA> pool) {
+        if (pool.isEmpty()) throw new IllegalArgumentException("Retriever needs at least one bot");
+        for (JDA jda : pool) bots.add(new Bot(jda));
+    }
+
+    public int getPoolSize() {
+        return bots.size();
     }
 
-    public String getFileUrl(String channelId, String messageId, String fileName) {
+    public String getFileUrl(long channelId, long messageId, String fileName) {
         return getFileUrl(channelId, messageId, fileName, false);
     }
 
-    public String getFileUrl(String channelId, String messageId, String fileName, boolean isWebhookUpload) {
-        TextChannel channel = jda.getTextChannelById(channelId);
-        if (channel == null) {
-            throw new RuntimeException("Channel not found or deleted");
+    public String getFileUrl(long channelId, long messageId, String fileName, boolean isWebhookUpload) {
+        return getFileUrls(channelId, messageId, fileName, isWebhookUpload).preferred();
+    }
+
+    /** Both ways to download an attachment: straight from the CDN, or through Discord's media proxy. */
+    public record AttachmentUrls(String preferred, String alternate) {}
+
+    /**
+     * The URL {@link #getFileUrl} would return, plus the other one. Webhook
+     * uploads prefer the direct CDN URL, everything else the proxy URL.
+     */
+    public AttachmentUrls getFileUrls(long channelId, long messageId, String fileName, boolean isWebhookUpload) {
+        long start = System.nanoTime();
+        String result = "error";
+        FlightEvents.UrlLookup event = new FlightEvents.UrlLookup();
+        event.begin();
+        try {
+            Message message = retrieveMessage(channelId, messageId);
+
+            for (Message.Attachment file : message.getAttachments()) {
+                if (file.getFileName().equals(fileName)) {
+                    result = "ok";
+                    return isWebhookUpload
+                            ? new AttachmentUrls(file.getUrl(), file.getProxyUrl())
+                            : new AttachmentUrls(file.getProxyUrl(), file.getUrl());
+                }
+            }
+
+            result = "missing";
+            throw new RuntimeException("Matching attachment not found");
+        } finally {
+            LOOKUPS.labels(result).observeSince(start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.channelId = channelId;
+                event.messageId = messageId;
+                event.fileName = fileName;
+                event.direct = isWebhookUpload;
+                event.result = result;
+                event.commit();
+            }
         }
-        System.out.println(channelId + " " + messageId + fileName);
+    }
+
+    private Message retrieveMessage(long channelId, long messageId) {
+        List<Bot> tried = new ArrayList<>();
+        while (true) {
+            Bot bot = pick(tried);
+            if (bot == null) break;
+            tried.add(bot);
 
-        Message message = channel.retrieveMessageById(messageId).complete();
+            MessageChannel channel = bot.jda.getChannelById(MessageChannel.class, channelId);
+            if (channel == null) continue;
 
-        for (Message.Attachment file : message.getAttachments()) {
-            if (file.getFileName().equals(fileName)) {
-                return isWebhookUpload ? file.getUrl() : file.getProxyUrl();
+            bot.inFlight.incrementAndGet();
+            try {
+                return channel.retrieveMessageById(messageId).complete(false);
+            } catch (RateLimitedException e) {
+                RATE_LIMITED.labels().inc();
+                bot.limitedUntil = System.currentTimeMillis() + e.getRetryAfter();
+            } finally {
+                bot.inFlight.decrementAndGet();
             }
         }
 
-        throw new RuntimeException("Matching attachment not found");
+        // Every bot is rate limited (or cannot see the channel): wait on the one that frees up first
+        Bot bot = null;
+        for (Bot b : bots) {
+            if (b.jda.getChannelById(MessageChannel.class, channelId) == null) continue;
+            if (bot == null || b.limitedUntil < bot.limitedUntil) bot = b;
+        }
+        if (bot == null) {
+            throw new RuntimeException("Channel not found or deleted");
+        }
+        bot.inFlight.incrementAndGet();
+        try {
+            return bot.jda.getChannelById(MessageChannel.class, channelId).retrieveMessageById(messageId).complete();
+        } finally {
+            bot.inFlight.decrementAndGet();
+        }
+    }
+
+    /** Least-loaded bot that is not rate limited and has not been tried yet, or null. */
+    private Bot pick(List<Bot> tried) {
+        long now = System.currentTimeMillis();
+        Bot best = null;
+        for (Bot b : bots) {
+            if (tried.contains(b) || b.limitedUntil > now) continue;
+            if (best == null || b.inFlight.get() < best.inFlight.get()) best = b;
+        }
+        return best;
     }
 }
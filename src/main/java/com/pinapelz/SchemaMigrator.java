@@ -0,0 +1,253 @@
+package com.pinapelz;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies numbered SQL migrations from {@code db/migrations} on the classpath.
+ * The files are listed in order in {@code db/migrations/index.txt} and named
+ * {@code NNN_description.sql}. Applied versions and their checksums are kept
+ * in {@code schema_version}. When the schema is current, startup costs one
+ * query.
+ * <p>
+ * A migration whose first line is {@code -- nitro-fs:no-transaction} runs
+ * statement by statement in autocommit mode, which {@code CREATE INDEX
+ * CONCURRENTLY} requires. Indexes such a migration leaves invalid are
+ * dropped, so the next attempt builds them again instead of skipping them.
+ * All other migrations run in one transaction.
+ */
+public class SchemaMigrator {
+
+    private static final String BASE = "db/migrations/";
+    private static final String NO_TRANSACTION = "-- nitro-fs:no-transaction";
+    private static final long LOCK_KEY = 0x6e6974726f6673L;
+    private static final long LOCK_POLL_MS = 500;
+    private static final Pattern CONCURRENT_INDEX = Pattern.compile(
+            "CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+CONCURRENTLY\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(\\w+)",
+            Pattern.CASE_INSENSITIVE);
+
+    public record Migration(int version, String name, String sql, String checksum) {}
+
+    private final DataSource ds;
+
+    public SchemaMigrator(DataSource ds) {
+        this.ds = ds;
+    }
+
+    public void migrate() throws SQLException, IOException {
+        List<Migration> migrations = loadMigrations();
+
+        Map<Integer, String> applied;
+        try (Connection c = ds.getConnection()) {
+            applied = readApplied(c);
+        }
+        if (applied != null && pending(migrations, applied).isEmpty()) return;
+
+        try (Connection c = ds.getConnection()) {
+            lock(c);
+            try {
+                try (Statement s = c.createStatement()) {
+                    s.execute("""
+                        CREATE TABLE IF NOT EXISTS schema_version (
+                            version INTEGER PRIMARY KEY,
+                            name TEXT NOT NULL,
+                            checksum TEXT NOT NULL,
+                            applied_at TIMESTAMPTZ NOT NULL DEFAULT now()
+                        )
+                    """);
+                }
+                // Another node may have migrated while we waited for the lock
+                applied = readApplied(c);
+                for (Migration m : pending(migrations, applied)) {
+                    System.out.println("Applying migration " + m.name());
+                    apply(c, m);
+                }
+            } finally {
+                try (Statement s = c.createStatement()) {
+                    s.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the migration lock, polling rather than blocking in
+     * {@code pg_advisory_lock}: a statement left waiting holds a snapshot
+     * open, and {@code CREATE INDEX CONCURRENTLY} in the lock holder's
+     * migrations would wait for that snapshot in turn.
+     */
+    private static void lock(Connection c) throws SQLException {
+        boolean announced = false;
+        while (true) {
+            try (Statement s = c.createStatement();
+                 ResultSet r = s.executeQuery("SELECT pg_try_advisory_lock(" + LOCK_KEY + ")")) {
+                r.next();
+                if (r.getBoolean(1)) return;
+            }
+            if (!announced) {
+                System.out.println("Waiting for another node to finish migrating");
+                announced = true;
+            }
+            try {
+                Thread.sleep(LOCK_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the migration lock", e);
+            }
+        }
+    }
+
+    private static Map<Integer, String> readApplied(Connection c) throws SQLException {
+        try (Statement s = c.createStatement();
+             ResultSet r = s.executeQuery("SELECT version, checksum FROM schema_version")) {
+            Map<Integer, String> out = new HashMap<>();
+            while (r.next())
+                out.put(r.getInt(1), r.getString(2));
+            return out;
+        } catch (SQLException e) {
+            // undefined_table: fresh database or one created before migrations existed
+            if ("42P01".equals(e.getSQLState())) return null;
+            throw e;
+        }
+    }
+
+    /** The migrations not applied yet. Fails if an applied migration's file changed since it was applied. */
+    static List<Migration> pending(List<Migration> migrations, Map<Integer, String> applied) {
+        List<Migration> out = new ArrayList<>();
+        for (Migration m : migrations) {
+            String checksum = applied == null ? null : applied.get(m.version());
+            if (checksum == null) {
+                out.add(m);
+            } else if (!checksum.equals(m.checksum())) {
+                throw new IllegalStateException("Migration " + m.name() + " was modified after it was applied");
+            }
+        }
+        return out;
+    }
+
+    private static void apply(Connection c, Migration m) throws SQLException {
+        if (m.sql().startsWith(NO_TRANSACTION)) {
+            List<String> indexes = concurrentIndexes(m.sql());
+            // Left behind by an earlier attempt that failed; IF NOT EXISTS would skip them
+            dropInvalidIndexes(c, indexes);
+            try (Statement s = c.createStatement()) {
+                for (String statement : m.sql().split(";\\s*(\\r?\\n|$)")) {
+                    if (!statement.isBlank()) s.execute(statement);
+                }
+            } catch (SQLException e) {
+                try {
+                    dropInvalidIndexes(c, indexes);
+                } catch (SQLException dropFailed) {
+                    e.addSuppressed(dropFailed);
+                }
+                throw e;
+            }
+            List<String> invalid = invalidIndexes(c, indexes);
+            if (!invalid.isEmpty())
+                throw new SQLException("Migration " + m.name() + " left invalid indexes " + invalid);
+            recordVersion(c, m);
+            return;
+        }
+
+        c.setAutoCommit(false);
+        try (Statement s = c.createStatement()) {
+            s.execute(m.sql());
+            recordVersion(c, m);
+            c.commit();
+        } catch (SQLException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            c.setAutoCommit(true);
+        }
+    }
+
+    /** Names of the indexes a migration builds with {@code CREATE INDEX CONCURRENTLY}. */
+    private static List<String> concurrentIndexes(String sql) {
+        List<String> out = new ArrayList<>();
+        Matcher m = CONCURRENT_INDEX.matcher(sql);
+        while (m.find()) out.add(m.group(1));
+        return out;
+    }
+
+    /**
+     * Of the given indexes, those that exist but are marked invalid, which is
+     * what a failed or interrupted {@code CREATE INDEX CONCURRENTLY} leaves.
+     */
+    private static List<String> invalidIndexes(Connection c, List<String> names) throws SQLException {
+        List<String> out = new ArrayList<>();
+        if (names.isEmpty()) return out;
+        try (PreparedStatement p = c.prepareStatement("""
+                SELECT i.relname FROM pg_index x
+                JOIN pg_class i ON i.oid = x.indexrelid
+                WHERE NOT x.indisvalid AND i.relnamespace = current_schema()::regnamespace
+                  AND i.relname = ANY(?)
+                """)) {
+            p.setArray(1, c.createArrayOf("text", names.toArray()));
+            try (ResultSet r = p.executeQuery()) {
+                while (r.next()) out.add(r.getString(1));
+            }
+        }
+        return out;
+    }
+
+    private static void dropInvalidIndexes(Connection c, List<String> names) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            for (String index : invalidIndexes(c, names)) {
+                System.out.println("Dropping invalid index " + index);
+                s.execute("DROP INDEX CONCURRENTLY IF EXISTS \"" + index + "\"");
+            }
+        }
+    }
+
+    private static void recordVersion(Connection c, Migration m) throws SQLException {
+        try (PreparedStatement p = c.prepareStatement(
+                "INSERT INTO schema_version (version, name, checksum) VALUES (?, ?, ?)")) {
+            p.setInt(1, m.version());
+            p.setString(2, m.name());
+            p.setString(3, m.checksum());
+            p.executeUpdate();
+        }
+    }
+
+    public static List<Migration> loadMigrations() throws IOException {
+        List<Migration> out = new ArrayList<>();
+        for (String name : readResource(BASE + "index.txt").split("\\R")) {
+            name = name.trim();
+            if (name.isEmpty() || name.startsWith("#")) continue;
+            String sql = readResource(BASE + name);
+            int version = Integer.parseInt(name.substring(0, name.indexOf('_')));
+            out.add(new Migration(version, name, sql, sha256(sql)));
+        }
+        return out;
+    }
+
+    private static String readResource(String path) throws IOException {
+        try (InputStream in = SchemaMigrator.class.getClassLoader().getResourceAsStream(path)) {
+            if (in == null) throw new IOException("Migration resource not found: " + path);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String sha256(String s) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8)))
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
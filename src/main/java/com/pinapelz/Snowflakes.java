@@ -0,0 +1,32 @@
+package com.pinapelz;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Discord IDs are snowflakes: the top 42 bits are milliseconds since the
+ * Discord epoch, so ordering and time-range filters on message IDs need no
+ * separate timestamp column.
+ */
+public final class Snowflakes {
+
+    public static final long DISCORD_EPOCH = 1420070400000L;
+    private static final int TIMESTAMP_SHIFT = 22;
+
+    private Snowflakes() {}
+
+    public static OffsetDateTime timestampOf(long snowflake) {
+        return Instant.ofEpochMilli((snowflake >>> TIMESTAMP_SHIFT) + DISCORD_EPOCH).atOffset(ZoneOffset.UTC);
+    }
+
+    /** Smallest snowflake that could have been created at {@code time}. */
+    public static long lowerBound(OffsetDateTime time) {
+        return Math.max(0, time.toInstant().toEpochMilli() - DISCORD_EPOCH) << TIMESTAMP_SHIFT;
+    }
+
+    /** Largest snowflake that could have been created at {@code time}. */
+    public static long upperBound(OffsetDateTime time) {
+        return lowerBound(time) | ((1L << TIMESTAMP_SHIFT) - 1);
+    }
+}
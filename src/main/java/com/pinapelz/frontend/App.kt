@@ -1,14 +1,20 @@
 package com.pinapelz.frontend
 
 import io.javalin.Javalin
+import com.pinapelz.Database
 import com.pinapelz.Retriever
 import com.pinapelz.FileSystem
+import com.pinapelz.IngestionQueue
+import com.pinapelz.Metrics
+import com.pinapelz.QueryLog
+import com.pinapelz.FlightEvents
+import org.eclipse.jetty.servlet.ServletHolder
 import java.io.File
-import java.net.URLEncoder
+import java.time.LocalDate
 import java.time.ZoneId
-import java.time.format.DateTimeFormatter
 
-fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: String) {
+fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: String, ingestionQueue: IngestionQueue,
+                  thumbnails: ThumbnailCache, blocks: BlockCache, s3Port: Int) {
     // Initialize WebhookManager if webhooks file exists
     val webhookManager = if (File(webhooksFile).exists()) {
         try {
@@ -21,7 +27,16 @@ fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: St
         println("Warning: Webhooks file not found: $webhooksFile")
         null
     }
-    val app = Javalin.create{};
+    val splitWriter = webhookManager?.let { SplitFileWriter(fileSystem, it) }
+    if (s3Port > 0) {
+        S3Gateway(retriever, fileSystem, splitWriter).start(s3Port)
+    }
+    val dav = WebDavServlet(fileSystem, blocks, splitWriter)
+    val app = Javalin.create { config ->
+        // PROPFIND and MKCOL are not methods Javalin can route, so WebDAV is a servlet beside it
+        config.jetty.modifyServletContextHandler { it.addServlet(ServletHolder(dav), WebDavServlet.PREFIX + "/*") }
+    }
+    val fragments = FragmentCache(FRAGMENT_CACHE_BYTES)
 
     app.get("/") { ctx ->
         val directoryId = ctx.queryParam("dir")?.toIntOrNull() ?: 1
@@ -38,17 +53,31 @@ fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: St
         ctx.json(result)
     }
 
+    app.post("/api/files/bulk-delete") { ctx ->
+        ctx.json(BulkFileOperations(fileSystem).handleDelete(ctx))
+    }
+
+    app.post("/api/files/bulk-move") { ctx ->
+        ctx.json(BulkFileOperations(fileSystem).handleMove(ctx))
+    }
+
+    app.post("/api/files/bulk-describe") { ctx ->
+        ctx.json(BulkFileOperations(fileSystem).handleDescribe(ctx))
+    }
+
+    val jsonApi = JsonApi(fileSystem)
+    app.get("/api/v1/directories") { ctx -> jsonApi.listDirectories(ctx) }
+    app.get("/api/v1/files") { ctx -> jsonApi.listFiles(ctx) }
+    app.get("/api/v1/logical-files") { ctx -> jsonApi.listLogicalFiles(ctx) }
+    app.get("/api/v1/logical-files/{id}") { ctx -> jsonApi.getLogicalFile(ctx) }
+    app.get("/api/v1/parts") { ctx -> jsonApi.listParts(ctx) }
+
     app.get("/api/directories") { ctx ->
         val directories = mutableListOf<Map<String, Any>>()
         val rs = fileSystem.getAllDirectories()
         for (d in rs) {
             directories.add(
-                mapOf(
-                    "id" to d.directoryId,
-                    "path" to d.path,
-                    "fileCount" to d.fileCount,
-                    "created" to d.createdAt.toString()
-                )
+                directoryJson(d)
             )
         }
 
@@ -56,97 +85,193 @@ fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: St
         ctx.json(directories)
     }
 
+    app.get("/api/ingestion") { ctx ->
+        ctx.json(mapOf(
+            "depth" to ingestionQueue.depth,
+            "capacity" to ingestionQueue.capacity,
+            "accepted" to ingestionQueue.acceptedCount,
+            "rejected" to ingestionQueue.rejectedCount,
+            "flushedFiles" to ingestionQueue.flushedFileCount,
+            "failedFiles" to ingestionQueue.failedFileCount
+        ))
+    }
+
+    app.get("/metrics") { ctx ->
+        val out = StringBuilder(16 * 1024)
+        Metrics.write(out)
+        ctx.contentType("text/plain; version=0.0.4; charset=utf-8")
+        ctx.result(out.toString())
+    }
+
+    // Statement shapes from the Postgres backend with their timings, last slow parameters and captured plans
+    app.get("/api/admin/queries") { ctx -> ctx.json(QueryLog.report()) }
+
     app.get("/api/directory/{id}") { ctx ->
         val directoryId = ctx.pathParam("id").toInt()
         val d = fileSystem.getDirectoryById(directoryId)
 
         if (d != null) {
-            val directory = mapOf(
-                "id" to d.directoryId,
-                "path" to d.path,
-                "fileCount" to d.fileCount,
-                "created" to d.createdAt.toString()
-            )
-            ctx.json(directory)
+            ctx.json(directoryJson(d))
         } else {
             ctx.status(404).result("Directory not found")
         }
 
     }
 
+    app.get("/api/directories/{id}/children") { ctx ->
+        val directoryId = ctx.pathParam("id").toIntOrNull()
+            ?: throw io.javalin.http.BadRequestResponse("Invalid directory ID")
+        ctx.json(fileSystem.getChildDirectories(directoryId).map { directoryJson(it) })
+    }
+
+    app.get("/api/directories/{id}/tree") { ctx ->
+        val directoryId = ctx.pathParam("id").toIntOrNull()
+            ?: throw io.javalin.http.BadRequestResponse("Invalid directory ID")
+        ctx.json(fileSystem.getSubtree(directoryId).map { directoryJson(it) })
+    }
+
+    val archive = DirectoryArchive(retriever, fileSystem)
+    app.get("/api/directories/{id}/archive") { ctx ->
+        val directoryId = ctx.pathParam("id").toIntOrNull()
+            ?: throw io.javalin.http.BadRequestResponse("Invalid directory ID")
+        val directory = runCatching { fileSystem.getDirectoryById(directoryId) }.getOrNull()
+        if (directory == null) {
+            ctx.status(404).result("Directory not found")
+            return@get
+        }
+        val entries = archive.entries(directory, ctx.queryParam("recursive") == "true")
+        val zipName = (if (directory.path.isEmpty()) "root" else directory.name).replace("\"", "") + ".zip"
+
+        ctx.header("Content-Disposition", "attachment; filename=\"$zipName\"")
+        ctx.contentType("application/zip")
+        ctx.async {
+            try {
+                archive.write(entries, ctx.res().outputStream)
+            } catch (e: Exception) {
+                // Headers are long gone, so all we can do is cut the archive short
+                println("Archive of directory $directoryId aborted: ${e.message}")
+            }
+        }
+    }
+
+    app.get("/api/directories/{id}/stats") { ctx ->
+        val directoryId = ctx.pathParam("id").toIntOrNull()
+            ?: throw io.javalin.http.BadRequestResponse("Invalid directory ID")
+        val stats = fileSystem.getSubtreeStats(directoryId)
+        ctx.json(mapOf(
+            "id" to directoryId,
+            "directoryCount" to stats.directoryCount,
+            "fileCount" to stats.fileCount,
+            "totalSize" to stats.totalSize,
+            "totalSizeFormatted" to formatFileSize(stats.totalSize)
+        ))
+    }
+
+    app.post("/api/directories/{id}/move") { ctx ->
+        val directoryId = ctx.pathParam("id").toIntOrNull()
+        val current = directoryId?.let { runCatching { fileSystem.getDirectoryById(it) }.getOrNull() }
+        if (current == null) {
+            ctx.status(404).json(mapOf(
+                "success" to false,
+                "message" to "Directory not found"
+            ))
+            return@post
+        }
+
+        val newParentId = ctx.formParam("parent")?.toIntOrNull() ?: current.parentId
+        val newName = ctx.formParam("name")?.trim() ?: current.name
+        val validationError = validateDirectoryName(newName)
+        if (validationError != null) {
+            ctx.status(400).json(mapOf(
+                "success" to false,
+                "message" to validationError
+            ))
+            return@post
+        }
+
+        try {
+            if (fileSystem.moveDirectory(current.directoryId, newParentId, newName)) {
+                ctx.json(mapOf(
+                    "success" to true,
+                    "message" to "Directory moved successfully"
+                ))
+            } else {
+                ctx.status(400).json(mapOf(
+                    "success" to false,
+                    "message" to "Cannot move a directory into itself, one of its subdirectories, or move the root"
+                ))
+            }
+        } catch (e: Exception) {
+            ctx.status(500).json(mapOf(
+                "success" to false,
+                "message" to "Failed to move directory: ${e.message}"
+            ))
+        }
+    }
+
     app.get("/api/files") { ctx ->
         val directoryId = ctx.queryParam("dir")?.toIntOrNull() ?: 1
         val search = ctx.queryParam("search") ?: ""
         val mimeTypeFilter = ctx.queryParam("mimeType") ?: ""
         val sortBy = ctx.queryParam("sortBy") ?: "created_at"
 
-        val files = mutableListOf<Map<String, Any>>()
+        // Read before querying, so a write racing with the render can only leave a fragment newer than its version
+        val version = fileSystem.getDirectoryVersion(directoryId)
+        ctx.header("HX-Trigger", "updateFileCount")
+        ctx.contentType("text/html; charset=utf-8")
 
-        val fileEntries = fileSystem.getFilesByDirectoryId(
-            directoryId,
-            search,
-            mimeTypeFilter,
-            sortBy
-        )
+        if (fragments.notModified(ctx, fragments.etag("d$directoryId-$version"))) return@get
 
-        for (f in fileEntries) {
-            files.add(
-                mapOf(
-                    "id" to f.fileId,
-                    "name" to f.fileName,
-                    "description" to (f.description ?: ""),
-                    "size" to formatFileSize(f.size),
-                    "mimeType" to (f.mimeType ?: "unknown"),
-                    "created" to DateTimeFormatter
-                        .ofPattern("yyyy-MM-dd HH:mm:ss")
-                        .withZone(ZoneId.systemDefault())
-                        .format(f.createdAt)
-                )
-            )
+        val key = "files|$directoryId|$version|$search|$mimeTypeFilter|$sortBy"
+        val rendered = fragments.get(key) ?: run {
+            val files = loadFileRows(fileSystem, directoryId, search, mimeTypeFilter, sortBy)
+            val buffer = java.io.ByteArrayOutputStream()
+            buffer.bufferedWriter().use { HtmlTemplates.writeFileTable(it, files, search, mimeTypeFilter) }
+            FragmentCache.Rendered(buffer.toByteArray(), files.size).also { fragments.put(key, it) }
         }
+        ctx.header("X-File-Count", rendered.itemCount.toString())
+        ctx.result(rendered.body)
+    }
 
+    app.get("/api/files/range") { ctx ->
+        val directoryId = ctx.queryParam("dir")?.toIntOrNull() ?: 1
+        val from = ctx.queryParam("from")?.let { runCatching { LocalDate.parse(it) }.getOrNull() }
+            ?: throw io.javalin.http.BadRequestResponse("from must be a date (yyyy-MM-dd)")
+        val to = ctx.queryParam("to")?.let { runCatching { LocalDate.parse(it) }.getOrNull() }
+            ?: throw io.javalin.http.BadRequestResponse("to must be a date (yyyy-MM-dd)")
 
-        val partials = fileSystem.getGroupedPartials(directoryId, search)
-        for (p in partials) {
-            files.add(
-                mapOf(
-                    "id" to "partial:${p.originalFilename}|$directoryId",
-                    "name" to p.originalFilename,
-                    "description" to (p.description ?: ""),
-                    "size" to formatFileSize(p.size),
-                    "mimeType" to (p.mimeType ?: "application/octet-stream"),
-                    "created" to DateTimeFormatter
-                        .ofPattern("yyyy-MM-dd HH:mm:ss")
-                        .withZone(ZoneId.systemDefault())
-                        .format(p.createdAt)
-                )
+        val zone = ZoneId.systemDefault()
+        val files = fileSystem.getFilesBetween(
+            directoryId,
+            from.atStartOfDay(zone).toOffsetDateTime(),
+            to.plusDays(1).atStartOfDay(zone).minusNanos(1).toOffsetDateTime()
+        )
+        ctx.json(files.map { f ->
+            mapOf(
+                "id" to f.fileId,
+                "name" to f.fileName,
+                "description" to (f.description ?: ""),
+                "size" to f.size,
+                "mimeType" to (f.mimeType ?: "unknown"),
+                "created" to f.createdAt.toString()
             )
-        }
-
-        val html = generateFileTableHtml(files, search, mimeTypeFilter)
-        ctx.html(html)
-        ctx.header("HX-Trigger", "updateFileCount")
-        ctx.header("X-File-Count", files.size.toString())
-
+        })
     }
 
     app.get("/api/directories-html") { ctx ->
-        val directories = mutableListOf<Map<String, Any>>()
-        val directoriesResult = fileSystem.getAllDirectories()
+        val version = fileSystem.getDirectoriesVersion()
+        ctx.contentType("text/html; charset=utf-8")
 
-        for (d in directoriesResult) {
-            directories.add(
-                mapOf(
-                    "id" to d.directoryId,
-                    "path" to d.path,
-                    "fileCount" to d.fileCount,
-                    "created" to d.createdAt.toString()
-                )
-            )
-        }
+        if (fragments.notModified(ctx, fragments.etag("dirs-$version"))) return@get
 
-        val html = generateDirectoryListHtml(directories)
-        ctx.html(html)
+        val key = "directories|$version"
+        val rendered = fragments.get(key) ?: run {
+            val directories = fileSystem.getAllDirectories()
+            val buffer = java.io.ByteArrayOutputStream()
+            buffer.bufferedWriter().use { HtmlTemplates.writeDirectoryList(it, directories) }
+            FragmentCache.Rendered(buffer.toByteArray(), directories.size).also { fragments.put(key, it) }
+        }
+        ctx.result(rendered.body)
     }
 
     app.post("/api/directories") { ctx ->
@@ -170,12 +295,14 @@ fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: St
             return@post
         }
 
+        val parentId = ctx.formParam("parent")?.toIntOrNull() ?: 1
+
         try {
-            val directoryId = fileSystem.createDirectory(trimmedPath)
+            val directoryId = fileSystem.createDirectory(parentId, trimmedPath)
             ctx.json(mapOf(
                 "success" to true,
                 "id" to directoryId,
-                "path" to trimmedPath,
+                "path" to fileSystem.getDirectoryById(directoryId).path,
                 "message" to "Directory created successfully"
             ))
         } catch (e: Exception) {
@@ -191,10 +318,8 @@ fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: St
 
         try {
             val deleted = if (idStr.startsWith("partial:")) {
-                val data = idStr.substring("partial:".length).split("|")
-                val filename = data[0]
-                val dirId = data[1].toInt()
-                fileSystem.deleteFilePartials(filename, dirId)
+                val logicalFileId = resolveLogicalFileId(fileSystem, idStr)
+                logicalFileId != null && fileSystem.deleteLogicalFile(logicalFileId)
             } else {
                 val fileId = idStr.toIntOrNull()
                 if (fileId == null) {
@@ -257,30 +382,33 @@ fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: St
     }
 
     app.get("/api/reassemble") { ctx ->
-        val filename = ctx.queryParam("filename") ?: throw io.javalin.http.BadRequestResponse("filename required")
-        val dirId = ctx.queryParam("dir")?.toIntOrNull() ?: throw io.javalin.http.BadRequestResponse("dir id required")
-
-        data class PartInfo(val channelId: String, val messageId: String, val partName: String, val isWebhook: Boolean)
-        val parts = mutableListOf<PartInfo>()
-        var mimeType = "application/octet-stream"
-
-        for (p in fileSystem.getFilePartialsByOriginalFilename(filename, dirId)) {
-            parts.add(
-                PartInfo(
-                    p.channelId,
-                    p.messageId,
-                    p.partName,
-                    p.uploadedViaWebhook
-                )
-            )
-            mimeType = p.mimeType ?: mimeType
+        val logicalFile = ctx.queryParam("id")?.toLongOrNull()?.let { fileSystem.getLogicalFileById(it) }
+            ?: run {
+                val filename = ctx.queryParam("filename") ?: throw io.javalin.http.BadRequestResponse("id or filename required")
+                val dirId = ctx.queryParam("dir")?.toIntOrNull() ?: throw io.javalin.http.BadRequestResponse("dir id required")
+                fileSystem.getLogicalFileByName(filename, dirId)
+            }
+        if (logicalFile == null) {
+            ctx.status(404).result("File not found")
+            return@get
         }
+        val filename = logicalFile.originalFilename
+        val mimeType = logicalFile.mimeType ?: "application/octet-stream"
 
+        data class PartInfo(val channelId: Long, val messageId: Long, val partName: String, val isWebhook: Boolean)
+        val parts = fileSystem.getFilePartialsByLogicalFileId(logicalFile.logicalFileId).map { p ->
+            PartInfo(p.channelId, p.messageId, p.partName, p.uploadedViaWebhook)
+        }
 
         if (parts.isEmpty()) {
             ctx.status(404).result("No parts found for $filename")
             return@get
         }
+        // Never send a truncated file under the full name
+        if (parts.size != logicalFile.partCount) {
+            ctx.status(409).result("$filename is incomplete: ${parts.size} of ${logicalFile.partCount} parts are recorded")
+            return@get
+        }
 
         ctx.header("Content-Disposition", "attachment; filename=\"$filename\"")
         ctx.contentType(mimeType)
@@ -291,31 +419,49 @@ fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: St
                 for ((index, part) in parts.withIndex()) {
                     var success = false
                     var lastError: Exception? = null
+                    // Shared by the attempts, so a retry resumes after the bytes already sent
+                    val timer = WriteTimer(outputStream)
                     for (attempt in 1..3) {
                         try {
-                            val url = retriever.getFileUrl(part.channelId, part.messageId, part.partName, part.isWebhook)
-                            println("Fetching part ${index + 1}/${parts.size} from: $url (attempt $attempt)")
-                            val connection = java.net.URI(url).toURL().openConnection() as java.net.HttpURLConnection
-                            connection.requestMethod = "GET"
-                            connection.setRequestProperty("User-Agent", "Mozilla/5.0")
-                            connection.connectTimeout = 30000
-                            connection.readTimeout = 30000
-                            val responseCode = connection.responseCode
-                            if (responseCode == 200) {
-                                connection.inputStream.use { input ->
-                                    input.copyTo(outputStream)
+                            val urls = retriever.getFileUrls(part.channelId, part.messageId, part.partName, part.isWebhook)
+                            println("Fetching part ${index + 1}/${parts.size} from: ${urls.preferred} (attempt $attempt, offset ${timer.bytes})")
+                            val start = System.nanoTime()
+                            val offset = timer.bytes
+                            val writeTime = timer.nanos
+                            val fetch = HedgedPartFetch(urls, timer, offset)
+                            val event = FlightEvents.PartFetch()
+                            event.begin()
+                            try {
+                                fetch.run()
+                                PART_FETCH_BYTES.labels().observe(timer.bytes.toDouble())
+                                PART_FETCH_SECONDS.labels("ok").observeSince(start)
+                            } catch (e: Exception) {
+                                PART_FETCH_SECONDS.labels("error").observeSince(start)
+                                event.error = e.toString()
+                                throw e
+                            } finally {
+                                event.end()
+                                if (event.shouldCommit()) {
+                                    event.logicalFileId = logicalFile.logicalFileId
+                                    event.partNumber = index + 1
+                                    event.attempt = attempt
+                                    event.channelId = part.channelId
+                                    event.messageId = part.messageId
+                                    event.offset = offset
+                                    event.bytes = timer.bytes - offset
+                                    event.writeTime = timer.nanos - writeTime
+                                    event.hedge = fetch.hedge
+                                    event.hedgeWon = fetch.hedgeWon
+                                    event.commit()
                                 }
-                                println("Successfully fetched part ${index + 1}/${parts.size}")
-                                success = true
-                                break
-                            } else {
-                                println("HTTP $responseCode for part ${index + 1} on attempt $attempt")
-                                lastError = Exception("HTTP $responseCode: ${connection.responseMessage}")
-                                if (attempt < 3) Thread.sleep(1000 * attempt.toLong())
                             }
+                            println("Successfully fetched part ${index + 1}/${parts.size}")
+                            success = true
+                            break
                         } catch (e: Exception) {
                             println("Error fetching part ${index + 1} on attempt $attempt: ${e.message}")
                             lastError = e
+                            if (attempt < 3) PART_FETCH_RETRIES.labels().inc()
                             if (attempt < 3) Thread.sleep(1000 * attempt.toLong())
                         }
                     }
@@ -334,21 +480,65 @@ fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: St
         }
     }
 
+    app.get("/api/thumbnail/{id}") { ctx ->
+        val fileId = ctx.pathParam("id").toIntOrNull() ?: throw io.javalin.http.BadRequestResponse("Invalid file ID")
+        val file = try {
+            fileSystem.getFileById(fileId)
+        } catch (e: Exception) {
+            ctx.status(404).result("Error: File not found")
+            return@get
+        }
+        // Checked before anything is downloaded, so a video or archive is never fetched just to fail decoding
+        if (!ThumbnailCache.supports(file.mimeType)) {
+            ctx.status(404).result("No preview available")
+            return@get
+        }
+
+        // A file's bytes never change; the message ID guards against a file ID being reused
+        val key = "$fileId-${file.messageId}"
+        val etag = "\"$key\""
+        val cacheControl = "public, max-age=31536000, immutable"
+        if (ctx.header("If-None-Match") == etag) {
+            ctx.header("ETag", etag)
+            ctx.header("Cache-Control", cacheControl)
+            ctx.status(304)
+            return@get
+        }
+
+        val thumbnail = try {
+            thumbnails.get(key) { retriever.getFileUrl(file.channelId, file.messageId, file.fileName) }
+        } catch (e: Exception) {
+            println("Failed to generate thumbnail for file $fileId: ${e.message}")
+            ctx.status(502).result("Error: Could not fetch the original. ${e.message}")
+            return@get
+        }
+        if (thumbnail == null) {
+            ctx.status(404).result("No preview available")
+            return@get
+        }
+
+        ctx.header("ETag", etag)
+        ctx.header("Cache-Control", cacheControl)
+        ctx.contentType("image/jpeg")
+        ctx.result(thumbnail)
+    }
+
     app.get("/fetch") { ctx ->
         val fileIdStr = ctx.queryParam("fileId") ?: ""
         if (fileIdStr.startsWith("partial:")) {
-            val data = fileIdStr.substring("partial:".length).split("|")
-            val filename = data[0]
-            val dirId = data[1]
-            ctx.redirect("/api/reassemble?filename=${URLEncoder.encode(filename, "UTF-8")}&dir=$dirId")
+            val logicalFileId = resolveLogicalFileId(fileSystem, fileIdStr)
+            if (logicalFileId == null) {
+                ctx.status(404).result("Error: File not found")
+                return@get
+            }
+            ctx.redirect("/api/reassemble?id=$logicalFileId")
             return@get
         }
 
         try {
             val fileMetadata = fileSystem.getFileById(Integer.parseInt(fileIdStr))
             println("Retrieving: " + fileMetadata.fileName)
-            val fileUrl = retriever.getFileUrl(fileMetadata.channelId.toString(),
-                fileMetadata.messageId.toString(), fileMetadata.fileName)
+            val fileUrl = retriever.getFileUrl(fileMetadata.channelId, fileMetadata.messageId, fileMetadata.fileName)
             ctx.redirect(fileUrl)
         } catch (e: Exception) {
             println("Failed to retrieve file: ${e.message}")
@@ -358,6 +548,49 @@ fun startFrontend(retriever: Retriever, fileSystem: FileSystem, webhooksFile: St
     app.start(7070)
 }
 
+/**
+ * Counts the bytes written through it and the time spent inside the writes,
+ * so a part fetch can tell a slow CDN from a slow client.
+ */
+private class WriteTimer(out: java.io.OutputStream) : java.io.FilterOutputStream(out) {
+    var bytes = 0L
+        private set
+    var nanos = 0L
+        private set
+
+    override fun write(b: Int) {
+        val start = System.nanoTime()
+        out.write(b)
+        nanos += System.nanoTime() - start
+        bytes++
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        val start = System.nanoTime()
+        out.write(b, off, len)
+        nanos += System.nanoTime() - start
+        bytes += len
+    }
+}
+
+private val PART_FETCH_SECONDS = Metrics.histogram("nitro_part_fetch_seconds",
+    "Time to copy one part of a split file from the CDN during reassembly.", Metrics.SECONDS, "result")
+private val PART_FETCH_BYTES = Metrics.histogram("nitro_part_fetch_bytes",
+    "Size of each part copied during reassembly.", Metrics.BYTES)
+private val PART_FETCH_RETRIES = Metrics.counter("nitro_part_fetch_retries_total",
+    "Part fetches retried after a failed attempt during reassembly.")
+
+/**
+ * Resolves a `partial:` file ID to its logical file ID. Accepts both the
+ * current `partial:<id>` form and the legacy `partial:<name>|<dir>` form.
+ */
+fun resolveLogicalFileId(fileSystem: FileSystem, idStr: String): Long? {
+    val data = idStr.removePrefix("partial:")
+    if (!data.contains("|")) return data.toLongOrNull()
+    val dirId = data.substringAfterLast("|").toIntOrNull() ?: return null
+    return fileSystem.getLogicalFileByName(data.substringBeforeLast("|"), dirId)?.logicalFileId
+}
+
 fun validateDirectoryName(path: String): String? {
     if (path.length !in 1..100) {
         return "Directory name must be 1-100 characters long"
@@ -382,26 +615,78 @@ fun validateDirectoryName(path: String): String? {
     return null
 }
 
+fun directoryJson(d: Database.DirectoryEntry): Map<String, Any> {
+    return mapOf(
+        "id" to d.directoryId,
+        "parentId" to d.parentId,
+        "name" to d.name,
+        "path" to d.path,
+        "fileCount" to d.fileCount,
+        "created" to d.createdAt.toString()
+    )
+}
+
 fun generateMainHtml(directoryId: Int): String {
     return HtmlTemplates.generateMainPage(directoryId)
 }
 
-fun generateDirectoryListHtml(directories: List<Map<String, Any>>): String {
-    return HtmlTemplates.generateDirectoryList(directories)
+private const val FRAGMENT_CACHE_BYTES = 32L * 1024 * 1024
+
+fun loadFileRows(fileSystem: FileSystem, directoryId: Int, search: String, mimeTypeFilter: String, sortBy: String): List<FileRow> {
+    val files = mutableListOf<FileRow>()
+
+    val fileEntries = fileSystem.getFilesByDirectoryId(
+        directoryId,
+        search,
+        mimeTypeFilter,
+        sortBy
+    )
+
+    for (f in fileEntries) {
+        files.add(FileRow(f.fileId.toString(), f.fileName, f.description, f.size, f.mimeType ?: "unknown", f.createdAt))
+    }
+
+    val logicalFiles = fileSystem.getLogicalFiles(directoryId, search)
+    for (l in logicalFiles) {
+        files.add(FileRow("partial:${l.logicalFileId}", l.originalFilename, l.description, l.totalSize,
+            l.mimeType ?: "application/octet-stream", l.createdAt))
+    }
+    return files
 }
 
 fun formatFileSize(bytes: Long): String {
-    if (bytes < 1024) return "$bytes B"
-    val kb = bytes / 1024.0
-    if (kb < 1024) return "%.1f KB".format(kb)
-    val mb = kb / 1024.0
-    if (mb < 1024) return "%.1f MB".format(mb)
-    val gb = mb / 1024.0
-    return "%.1f GB".format(gb)
+    val sb = StringBuilder()
+    HtmlTemplates.appendFileSize(sb, bytes)
+    return sb.toString()
 }
 
-fun generateFileTableHtml(files: List<Map<String, Any>>, search: String = "", mimeTypeFilter: String = ""): String {
-    return HtmlTemplates.generateFileTable(files, search, mimeTypeFilter)
+private val BYTE_RANGE = Regex("""bytes=(\d*)-(\d*)""")
+
+/**
+ * The inclusive range a single-range `Range` header asks for in an entity of
+ * [size] bytes: null if the whole entity should be sent instead (the header
+ * is malformed or asks for several ranges), or an empty range if it cannot be
+ * satisfied.
+ */
+fun parseByteRange(header: String, size: Long): LongRange? {
+    val match = BYTE_RANGE.matchEntire(header.trim()) ?: return null
+    val (first, last) = match.destructured
+    return when {
+        first.isEmpty() && last.isEmpty() -> null
+        first.isEmpty() -> {
+            val suffix = last.toLongOrNull() ?: return null
+            if (suffix == 0L || size == 0L) LongRange.EMPTY else maxOf(0, size - suffix)..(size - 1)
+        }
+        else -> {
+            val start = first.toLongOrNull() ?: return null
+            val end = if (last.isEmpty()) Long.MAX_VALUE else last.toLongOrNull() ?: Long.MAX_VALUE
+            when {
+                end < start -> null
+                start >= size -> LongRange.EMPTY
+                else -> start..minOf(end, size - 1)
+            }
+        }
+    }
 }
 
 fun generateFileSplitterHtml(): String {
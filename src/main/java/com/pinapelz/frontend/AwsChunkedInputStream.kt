@@ -0,0 +1,72 @@
+package com.pinapelz.frontend
+
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Decodes the `aws-chunked` body encoding that S3 clients use for streaming
+ * uploads: hex-sized chunks, each optionally followed by a signature, then
+ * optional trailers after the final empty chunk. Chunk signatures and
+ * trailing checksums are skipped, not verified.
+ */
+class AwsChunkedInputStream(private val input: InputStream) : InputStream() {
+
+    private var remaining = 0L
+    private var done = false
+
+    override fun read(): Int {
+        val b = ByteArray(1)
+        return if (read(b, 0, 1) < 0) -1 else b[0].toInt() and 0xFF
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        if (remaining == 0L && !nextChunk()) return -1
+        val n = input.read(b, off, minOf(len.toLong(), remaining).toInt())
+        if (n < 0) throw EOFException("aws-chunked body ended inside a chunk")
+        remaining -= n
+        if (remaining == 0L) readLine() // CRLF after the chunk data
+        return n
+    }
+
+    private fun nextChunk(): Boolean {
+        if (done) return false
+        val header = readLine() ?: throw EOFException("aws-chunked body ended before the final chunk")
+        val size = header.substringBefore(';').trim().toLongOrNull(16)
+            ?: throw IOException("Malformed aws-chunked header: $header")
+        if (size == 0L) {
+            // Trailers run until an empty line or the end of the body
+            while (!readLine().isNullOrEmpty()) { }
+            done = true
+            return false
+        }
+        remaining = size
+        return true
+    }
+
+    /** One CRLF-terminated line without its terminator, or null at the end of the stream. */
+    private fun readLine(): String? {
+        val line = ByteArrayOutputStream(128)
+        while (true) {
+            val c = input.read()
+            if (c < 0) return if (line.size() == 0) null else line.toString(Charsets.US_ASCII.name())
+            if (c == '\n'.code) break
+            if (line.size() > MAX_LINE) throw IOException("aws-chunked line too long")
+            line.write(c)
+        }
+        val text = line.toString(Charsets.US_ASCII.name())
+        return if (text.endsWith("\r")) text.dropLast(1) else text
+    }
+
+    override fun close() = input.close()
+
+    companion object {
+        /** Whether a request body uses this encoding, judging by its headers. */
+        fun isUsedBy(contentSha256: String?, contentEncoding: String?): Boolean =
+            contentSha256?.startsWith("STREAMING-") == true || contentEncoding?.contains("aws-chunked") == true
+
+        private const val MAX_LINE = 8192
+    }
+}
@@ -0,0 +1,218 @@
+package com.pinapelz.frontend
+
+import com.pinapelz.Metrics
+import com.pinapelz.Retriever
+import java.io.EOFException
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import kotlin.math.min
+
+/**
+ * Attachments read in fixed [BLOCK_BYTES] blocks, each fetched with a ranged
+ * request and kept in a directory capped at [maxBytes], evicting the least
+ * recently read first. A read only fetches the blocks it overlaps, so a seek
+ * into a large split file touches one part instead of the whole file.
+ */
+class BlockCache(private val directory: Path, private val maxBytes: Long, private val retriever: Retriever) {
+
+    /**
+     * An attachment to read. Attachments never change, so blocks are cached by
+     * message and name. The name is hashed with SHA-256 rather than escaped so
+     * keys stay valid file names of bounded length.
+     */
+    class Source(val channelId: Long, val messageId: Long, val fileName: String, val size: Long) {
+        internal val key = messageId.toString() + "-" +
+            MessageDigest.getInstance("SHA-256").digest(fileName.toByteArray()).joinToString("") { "%02x".format(it) }
+    }
+
+    private val entries = LinkedHashMap<String, Long>(1024, 0.75f, true)
+    private var totalBytes = 0L
+    private val inFlight = ConcurrentHashMap<String, CompletableFuture<ByteArray>>()
+    // Resolving an attachment URL is a Discord API call, so a URL is reused until it fails or ages out
+    private val urls = object : LinkedHashMap<String, Pair<String, Long>>(256, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Pair<String, Long>>) = size > MAX_URLS
+    }
+    private val readAhead: ExecutorService = Executors.newFixedThreadPool(READ_AHEAD_THREADS) { r ->
+        Thread(r, "nitro-fs-read-ahead").apply { isDaemon = true }
+    }
+
+    init {
+        Files.createDirectories(directory)
+        Files.list(directory).use { files ->
+            files.sorted(compareBy<Path> { Files.getLastModifiedTime(it) }).forEach { file ->
+                val name = file.fileName.toString()
+                if (name.endsWith(".blk")) {
+                    val size = Files.size(file)
+                    entries[name] = size
+                    totalBytes += size
+                } else {
+                    // Left over from a fetch that did not finish
+                    Files.deleteIfExists(file)
+                }
+            }
+        }
+        synchronized(this) { evict() }
+    }
+
+    /** Block [index] of [source]: [BLOCK_BYTES] long, except for the last block. */
+    fun get(source: Source, index: Long): ByteArray {
+        val name = name(source, index)
+        read(name)?.let {
+            BLOCK_READS.labels("hit").inc()
+            return it
+        }
+        BLOCK_READS.labels("miss").inc()
+
+        val future = CompletableFuture<ByteArray>()
+        inFlight.putIfAbsent(name, future)?.let { existing ->
+            try {
+                return existing.join()
+            } catch (e: CompletionException) {
+                throw e.cause ?: e
+            }
+        }
+        try {
+            // Another request may have finished it between the read and claiming it
+            val block = read(name) ?: fetch(source, index).also { store(name, it) }
+            future.complete(block)
+            return block
+        } catch (e: Exception) {
+            future.completeExceptionally(e)
+            throw e
+        } finally {
+            inFlight.remove(name)
+        }
+    }
+
+    /** Starts fetching block [index] of [source] in the background, unless it is cached or already on its way. */
+    fun prefetch(source: Source, index: Long) {
+        if (index < 0 || index * BLOCK_BYTES >= source.size) return
+        val name = name(source, index)
+        synchronized(this) {
+            if (entries.containsKey(name)) return
+        }
+        if (inFlight.containsKey(name)) return
+        readAhead.execute {
+            try {
+                get(source, index)
+            } catch (e: Exception) {
+                println("Read-ahead of $name failed: ${e.message}")
+            }
+        }
+    }
+
+    private fun name(source: Source, index: Long) = "${source.key}-$index.blk"
+
+    private fun read(name: String): ByteArray? {
+        synchronized(this) {
+            if (entries[name] == null) return null
+        }
+        return try {
+            Files.readAllBytes(directory.resolve(name))
+        } catch (e: NoSuchFileException) {
+            // Evicted since the lookup
+            null
+        }
+    }
+
+    private fun store(name: String, block: ByteArray) {
+        val staged = Files.createTempFile(directory, "block-", ".tmp")
+        Files.write(staged, block)
+        Files.move(staged, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        synchronized(this) {
+            entries.put(name, block.size.toLong())?.let { totalBytes -= it }
+            totalBytes += block.size
+            evict()
+        }
+    }
+
+    private fun evict() {
+        val it = entries.entries.iterator()
+        while (totalBytes > maxBytes && it.hasNext()) {
+            val eldest = it.next()
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.key))
+            } catch (e: IOException) {
+                println("Failed to evict block ${eldest.key}: ${e.message}")
+            }
+            totalBytes -= eldest.value
+            it.remove()
+        }
+    }
+
+    private fun fetch(source: Source, index: Long): ByteArray {
+        val from = index * BLOCK_BYTES
+        val length = min(BLOCK_BYTES.toLong(), source.size - from).toInt()
+        if (length <= 0) throw IOException("Block $index is past the end of ${source.fileName}")
+
+        var lastError: Exception? = null
+        for (attempt in 1..ATTEMPTS) {
+            try {
+                return download(url(source), from, length)
+            } catch (e: Exception) {
+                // The URL may have expired; resolve it again on the next attempt
+                synchronized(urls) { urls.remove(source.key) }
+                lastError = e
+                println("Fetch of ${source.fileName} at $from failed on attempt $attempt: ${e.message}")
+                if (attempt < ATTEMPTS) Thread.sleep(1000L * attempt)
+            }
+        }
+        throw IOException("Failed to fetch ${source.fileName} at $from after $ATTEMPTS attempts", lastError)
+    }
+
+    private fun url(source: Source): String {
+        val now = System.currentTimeMillis()
+        synchronized(urls) {
+            urls[source.key]?.let { (url, resolvedAt) ->
+                if (now - resolvedAt < URL_TTL_MS) {
+                    URL_LOOKUPS.labels("hit").inc()
+                    return url
+                }
+            }
+        }
+        URL_LOOKUPS.labels("miss").inc()
+        // CDN URLs rather than media proxy URLs, for every file: the CDN serves byte ranges
+        val url = retriever.getFileUrl(source.channelId, source.messageId, source.fileName, true)
+        synchronized(urls) { urls[source.key] = Pair(url, now) }
+        return url
+    }
+
+    private fun download(url: String, from: Long, length: Int): ByteArray {
+        val connection = openRange(url, from, from + length - 1)
+        try {
+            val input = connection.inputStream
+            val block = ByteArray(length)
+            var read = 0
+            while (read < length) {
+                val n = input.read(block, read, length - read)
+                if (n < 0) throw EOFException("Attachment ended $read bytes into the block at $from")
+                read += n
+            }
+            return block
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    companion object {
+        const val BLOCK_BYTES = 4 * 1024 * 1024
+        const val ATTEMPTS = 3
+        const val READ_AHEAD_THREADS = 4
+        const val MAX_URLS = 4096
+        const val URL_TTL_MS = 10 * 60 * 1000L
+
+        private val BLOCK_READS = Metrics.counter("nitro_block_cache_reads_total",
+            "Block reads served from the block cache (hit) or fetched from the CDN (miss).", "result")
+        private val URL_LOOKUPS = Metrics.counter("nitro_retriever_cache_lookups_total",
+            "Attachment URLs reused from the URL cache (hit) or resolved through the Retriever (miss).", "result")
+    }
+}
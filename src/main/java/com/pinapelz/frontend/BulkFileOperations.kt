@@ -0,0 +1,163 @@
+package com.pinapelz.frontend
+
+import com.google.gson.Gson
+import com.google.gson.JsonSyntaxException
+import com.pinapelz.Database
+import com.pinapelz.FileSystem
+import io.javalin.http.Context
+
+data class BulkFilter(
+    val dir: Int? = null,
+    val search: String? = null,
+    val mimeType: String? = null
+)
+
+data class BulkRequest(
+    val ids: List<String>? = null,
+    val filter: BulkFilter? = null,
+    val directoryId: Int? = null,
+    val description: String? = null
+)
+
+data class BulkItemResult(
+    val id: String,
+    val success: Boolean,
+    val message: String
+)
+
+data class BulkResponse(
+    val success: Boolean,
+    val message: String? = null,
+    val succeeded: Int = 0,
+    val failed: Int = 0,
+    val results: List<BulkItemResult> = emptyList()
+)
+
+/**
+ * Handles the bulk delete, move and describe endpoints. Targets are given
+ * either as listing IDs (`12`, `partial:3`) or as a filter matching the file
+ * listing. Each request is applied by one set-based call into the
+ * [FileSystem], so it either fully applies or fully fails.
+ */
+class BulkFileOperations(private val fileSystem: FileSystem) {
+
+    private class Targets(val ids: List<String>, val fileIds: Set<Int>, val logicalFileIds: Map<String, Long>)
+
+    fun handleDelete(ctx: Context): BulkResponse {
+        val request = parse(ctx) ?: return BulkResponse(false, "Invalid request body")
+        val targets = resolveTargets(request) ?: return BulkResponse(false, "Either ids or filter is required")
+        return run(ctx, "delete", targets) {
+            fileSystem.deleteFiles(targets.fileIds, targets.logicalFileIds.values)
+        }
+    }
+
+    fun handleMove(ctx: Context): BulkResponse {
+        val request = parse(ctx) ?: return BulkResponse(false, "Invalid request body")
+        val targetDirectoryId = request.directoryId ?: return BulkResponse(false, "directoryId is required")
+        if (runCatching { fileSystem.getDirectoryById(targetDirectoryId) }.getOrNull() == null) {
+            return BulkResponse(false, "Target directory not found")
+        }
+        val targets = resolveTargets(request) ?: return BulkResponse(false, "Either ids or filter is required")
+        return run(ctx, "move", targets) {
+            fileSystem.moveFiles(targets.fileIds, targets.logicalFileIds.values, targetDirectoryId)
+        }
+    }
+
+    fun handleDescribe(ctx: Context): BulkResponse {
+        val request = parse(ctx) ?: return BulkResponse(false, "Invalid request body")
+        val description = request.description?.trim() ?: return BulkResponse(false, "description is required")
+        val targets = resolveTargets(request) ?: return BulkResponse(false, "Either ids or filter is required")
+        return run(ctx, "update", targets) {
+            fileSystem.describeFiles(targets.fileIds, targets.logicalFileIds.values, description)
+        }
+    }
+
+    private fun parse(ctx: Context): BulkRequest? {
+        return try {
+            Gson().fromJson(ctx.body(), BulkRequest::class.java)
+        } catch (e: JsonSyntaxException) {
+            null
+        }
+    }
+
+    private fun resolveTargets(request: BulkRequest): Targets? {
+        val ids = when {
+            !request.ids.isNullOrEmpty() -> request.ids.distinct()
+            request.filter != null -> idsMatching(request.filter)
+            else -> return null
+        }
+
+        val fileIds = mutableSetOf<Int>()
+        // Resolved up front: legacy name|dir IDs no longer resolve once the file is gone
+        val logicalFileIds = mutableMapOf<String, Long>()
+        for (id in ids) {
+            if (id.startsWith("partial:")) {
+                resolveLogicalFileId(fileSystem, id)?.let { logicalFileIds[id] = it }
+            } else {
+                id.toIntOrNull()?.let { fileIds.add(it) }
+            }
+        }
+        return Targets(ids, fileIds, logicalFileIds)
+    }
+
+    private fun idsMatching(filter: BulkFilter): List<String> {
+        val dir = filter.dir ?: 1
+        val search = filter.search ?: ""
+        val mimeType = filter.mimeType ?: ""
+
+        val ids = mutableListOf<String>()
+        for (f in fileSystem.getFilesByDirectoryId(dir, search, mimeType, "created_at")) {
+            ids.add(f.fileId.toString())
+        }
+        for (l in fileSystem.getLogicalFiles(dir, search)) {
+            if (mimeType.isEmpty() || (l.mimeType ?: "").startsWith(mimeType)) {
+                ids.add("partial:${l.logicalFileId}")
+            }
+        }
+        return ids
+    }
+
+    private fun run(ctx: Context, verb: String, targets: Targets, operation: () -> Database.BulkResult): BulkResponse {
+        if (targets.ids.isEmpty()) {
+            return BulkResponse(true, "No files matched")
+        }
+
+        val result = try {
+            operation()
+        } catch (e: Exception) {
+            ctx.status(500)
+            return BulkResponse(false, "Failed to $verb files: ${e.message}")
+        }
+
+        val results = targets.ids.map { id -> itemResult(id, verb, targets, result) }
+        val succeeded = results.count { it.success }
+        return BulkResponse(
+            success = true,
+            message = "$succeeded of ${results.size} files processed",
+            succeeded = succeeded,
+            failed = results.size - succeeded,
+            results = results
+        )
+    }
+
+    private fun itemResult(id: String, verb: String, targets: Targets, result: Database.BulkResult): BulkItemResult {
+        val changed: Boolean
+        val conflicting: Boolean
+        if (id.startsWith("partial:")) {
+            val logicalFileId = targets.logicalFileIds[id]
+            changed = logicalFileId != null && logicalFileId in result.logicalFileIds
+            conflicting = logicalFileId != null && logicalFileId in result.conflictingLogicalFileIds
+        } else {
+            val fileId = id.toIntOrNull()
+            changed = fileId != null && fileId in result.fileIds
+            conflicting = fileId != null && fileId in result.conflictingFileIds
+        }
+
+        return when {
+            changed -> BulkItemResult(id, true, "ok")
+            conflicting -> BulkItemResult(id, false, "A file with the same name already exists in the target directory")
+            verb == "move" -> BulkItemResult(id, false, "File not found or already in the target directory")
+            else -> BulkItemResult(id, false, "File not found")
+        }
+    }
+}
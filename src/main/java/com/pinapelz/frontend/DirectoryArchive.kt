@@ -0,0 +1,195 @@
+package com.pinapelz.frontend
+
+import com.pinapelz.Database
+import com.pinapelz.FileSystem
+import com.pinapelz.Retriever
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.HttpURLConnection
+import java.time.OffsetDateTime
+import java.util.ArrayDeque
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Streams a directory as a stored ZIP. Files are fetched from Discord ahead
+ * of the writer, a few at a time: each fetch resolves the attachment URL,
+ * opens the download and buffers its first [HEAD_BYTES]. The writer then
+ * consumes them strictly in order. URL lookups and connection setup overlap
+ * with the transfer of earlier entries, and memory stays bounded by the
+ * window no matter how large the files are.
+ */
+class DirectoryArchive(private val retriever: Retriever, private val fileSystem: FileSystem) {
+
+    /** One attachment download; a split file is one segment per part. */
+    class Segment internal constructor(
+        internal val channelId: Long,
+        internal val messageId: Long,
+        internal val fileName: String,
+        internal val isWebhook: Boolean
+    )
+
+    class Entry internal constructor(
+        val name: String,
+        val modified: OffsetDateTime,
+        val size: Long,
+        internal val segments: List<Segment>
+    )
+
+    /** A download that has started: its buffered head, and the connection to read the rest from. */
+    private class Fetched(val url: String, val head: ByteArray, val headLength: Int, var connection: HttpURLConnection?)
+
+    /** Every file and split file in the directory, and with [recursive] in its subdirectories, named by relative path. */
+    fun entries(directory: Database.DirectoryEntry, recursive: Boolean): List<Entry> {
+        val directories = if (recursive) fileSystem.getSubtree(directory.directoryId) else listOf(directory)
+        val prefixLength = if (directory.path.isEmpty()) 0 else directory.path.length + 1
+        val used = HashSet<String>()
+        val entries = mutableListOf<Entry>()
+
+        for (d in directories) {
+            val folder = if (d.directoryId == directory.directoryId) "" else d.path.substring(prefixLength) + "/"
+            // The paged walk returns message IDs with each file, so no per-file lookups are needed
+            var after = 0
+            while (true) {
+                val count = fileSystem.streamFiles(d.directoryId, after, LIST_PAGE) { f ->
+                    entries.add(Entry(uniqueName(used, folder + f.fileName), f.createdAt, f.size,
+                        listOf(Segment(f.channelId, f.messageId, f.fileName, false))))
+                    after = f.fileId
+                }
+                if (count < LIST_PAGE) break
+            }
+            for (l in fileSystem.getLogicalFiles(d.directoryId, "")) {
+                val parts = fileSystem.getFilePartialsByLogicalFileId(l.logicalFileId)
+                    .map { Segment(it.channelId, it.messageId, it.partName, it.uploadedViaWebhook) }
+                if (parts.isEmpty()) continue
+                entries.add(Entry(uniqueName(used, folder + l.originalFilename), l.createdAt, l.totalSize, parts))
+            }
+        }
+        return entries
+    }
+
+    // A split file may share its name with a plain file in the same directory
+    private fun uniqueName(used: MutableSet<String>, name: String): String {
+        if (used.add(name)) return name
+        val dot = name.lastIndexOf('.').takeIf { it > name.lastIndexOf('/') + 1 } ?: name.length
+        var n = 2
+        while (true) {
+            val candidate = name.substring(0, dot) + " ($n)" + name.substring(dot)
+            if (used.add(candidate)) return candidate
+            n++
+        }
+    }
+
+    fun write(entries: List<Entry>, out: OutputStream) {
+        val segments = entries.flatMap { it.segments }
+        val workers: ExecutorService = Executors.newFixedThreadPool(PARALLELISM) { r ->
+            Thread(r, "nitro-fs-archive").apply { isDaemon = true }
+        }
+        val window = ArrayDeque<Future<Fetched>>()
+        var next = 0
+        fun fill() {
+            while (window.size < PARALLELISM && next < segments.size) {
+                val segment = segments[next++]
+                window.add(workers.submit<Fetched> { fetch(segment) })
+            }
+        }
+
+        try {
+            val zip = StoredZipWriter(out)
+            val buffer = ByteArray(COPY_BUFFER)
+            for (entry in entries) {
+                val data = zip.putEntry(entry.name, entry.modified, entry.size)
+                for (i in entry.segments.indices) {
+                    fill()
+                    val fetched = window.poll().get()
+                    fill()
+                    try {
+                        copy(fetched, data, buffer)
+                    } finally {
+                        fetched.connection?.disconnect()
+                    }
+                }
+                data.close()
+            }
+            zip.finish()
+            out.flush()
+        } finally {
+            workers.shutdownNow()
+            // Downloads that were fetched ahead but never written
+            for (f in window) {
+                runCatching { if (f.isDone) f.get().connection?.disconnect() else f.cancel(true) }
+            }
+        }
+    }
+
+    private fun fetch(segment: Segment): Fetched {
+        var lastError: Exception? = null
+        for (attempt in 1..ATTEMPTS) {
+            try {
+                val url = retriever.getFileUrl(segment.channelId, segment.messageId, segment.fileName, segment.isWebhook)
+                val connection = openRange(url, 0)
+                val head = ByteArray(HEAD_BYTES)
+                val length = readFully(connection.inputStream, head)
+                if (length < head.size) {
+                    connection.disconnect()
+                    return Fetched(url, head, length, null)
+                }
+                return Fetched(url, head, length, connection)
+            } catch (e: Exception) {
+                lastError = e
+                println("Archive fetch of ${segment.fileName} failed on attempt $attempt: ${e.message}")
+                if (attempt < ATTEMPTS) Thread.sleep(1000L * attempt)
+            }
+        }
+        throw IOException("Failed to fetch ${segment.fileName} after $ATTEMPTS attempts", lastError)
+    }
+
+    /**
+     * Writes the head, then the rest of the download. A fetched-ahead
+     * connection can sit idle while earlier entries are written, so if it
+     * fails midway the rest is requested again from the current offset.
+     */
+    private fun copy(fetched: Fetched, out: OutputStream, buffer: ByteArray) {
+        out.write(fetched.head, 0, fetched.headLength)
+        var offset = fetched.headLength.toLong()
+        var resumes = 0
+        while (true) {
+            val connection = fetched.connection ?: return
+            // Only read failures are resumed; a write failure means the client went away
+            val n = try {
+                connection.inputStream.read(buffer)
+            } catch (e: IOException) {
+                connection.disconnect()
+                fetched.connection = null
+                if (++resumes > ATTEMPTS) throw e
+                println("Archive download of ${fetched.url} interrupted at $offset bytes, resuming: ${e.message}")
+                fetched.connection = openRange(fetched.url, offset)
+                continue
+            }
+            if (n < 0) return
+            out.write(buffer, 0, n)
+            offset += n
+        }
+    }
+
+    private fun readFully(input: InputStream, buffer: ByteArray): Int {
+        var length = 0
+        while (length < buffer.size) {
+            val n = input.read(buffer, length, buffer.size - length)
+            if (n < 0) break
+            length += n
+        }
+        return length
+    }
+
+    companion object {
+        /** Downloads in flight ahead of the writer. */
+        const val PARALLELISM = 6
+        const val HEAD_BYTES = 4 * 1024 * 1024
+        const val COPY_BUFFER = 64 * 1024
+        const val ATTEMPTS = 3
+        const val LIST_PAGE = 1000
+    }
+}
@@ -0,0 +1,52 @@
+package com.pinapelz.frontend
+
+import io.javalin.http.Context
+
+/**
+ * Rendered listing fragments, keyed by the listing's version and query.
+ * Because the version is part of the key, an entry is never served after
+ * its directory changed; stale entries are simply never hit again and age
+ * out once the cache exceeds its byte budget.
+ */
+class FragmentCache(private val maxBytes: Long) {
+
+    class Rendered(val body: ByteArray, val itemCount: Int)
+
+    private val entries = LinkedHashMap<String, Rendered>(64, 0.75f, true)
+    private var totalBytes = 0L
+
+    // Versions restart with the process, so tags from an earlier run must not match
+    private val instance = java.lang.Long.toString(System.currentTimeMillis(), 36)
+
+    @Synchronized
+    fun get(key: String): Rendered? = entries[key]
+
+    @Synchronized
+    fun put(key: String, rendered: Rendered) {
+        if (rendered.body.size > maxBytes) return
+        entries.put(key, rendered)?.let { totalBytes -= it.body.size }
+        totalBytes += rendered.body.size
+        val it = entries.values.iterator()
+        while (totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= it.next().body.size
+            it.remove()
+        }
+    }
+
+    fun etag(version: String): String = "\"$instance-$version\""
+
+    /**
+     * Sets the validators for a listing and answers `304 Not Modified` when
+     * the client already holds this version. Returns true if the response is
+     * complete. `no-cache` makes the browser revalidate every poll instead
+     * of reusing its copy unchecked.
+     */
+    fun notModified(ctx: Context, etag: String): Boolean {
+        ctx.header("ETag", etag)
+        ctx.header("Cache-Control", "no-cache")
+        val ifNoneMatch = ctx.header("If-None-Match") ?: return false
+        val matches = ifNoneMatch.split(',').any { val tag = it.trim().removePrefix("W/"); tag == etag || tag == "*" }
+        if (matches) ctx.status(304)
+        return matches
+    }
+}
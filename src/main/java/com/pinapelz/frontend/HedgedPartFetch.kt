@@ -0,0 +1,315 @@
+package com.pinapelz.frontend
+
+import com.pinapelz.Metrics
+import com.pinapelz.Retriever
+import okhttp3.Call
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.ceil
+import kotlin.math.max
+
+/**
+ * Copies one part of a split file into [out], starting [offset] bytes into
+ * the part. The first request, to the preferred URL, streams straight into
+ * [out]. If its time to first byte runs well past the recent p95, or its
+ * transfer rate drops well below what recent parts managed, a second request
+ * for the rest of the part starts on the alternate URL and is buffered in
+ * memory. Whichever finishes first wins and the other is disconnected, so a
+ * stalled CDN request costs one extra request instead of a read timeout.
+ */
+class HedgedPartFetch(private val urls: Retriever.AttachmentUrls, private val out: OutputStream, private val offset: Long) {
+
+    /** Why a second request was started, `ttfb` or `rate`, or null if the first was left alone. */
+    var hedge: String? = null
+        private set
+
+    /** Whether the second request finished first. */
+    var hedgeWon = false
+        private set
+
+    private val lock = Object()
+    // Guarded by lock: the part offset written up to, whether the first request has been told to stop, and whether it finished
+    private var written = offset
+    private var stopped = false
+    private var finished = false
+
+    /** Copies the rest of the part, returning the number of bytes written. */
+    fun run(): Long {
+        val primary = Leg(urls.preferred, offset)
+        val primaryDone = CompletableFuture.runAsync({ copyPrimary(primary) }, LEGS)
+        val reason = watch(primary, primaryDone)
+        if (reason == null) {
+            await(primaryDone)
+            primary.observe()
+            return written - offset
+        }
+
+        hedge = reason
+        HEDGES.labels(reason).inc()
+        val from = synchronized(lock) { written }
+        val secondary = Leg(urls.alternate, from)
+        val secondaryDone = CompletableFuture.supplyAsync({ secondary.readAll() }, LEGS)
+        val winner = try {
+            firstSuccess(primaryDone, secondaryDone)
+        } catch (e: Exception) {
+            primary.cancel()
+            secondary.cancel()
+            throw e
+        }
+
+        val position = synchronized(lock) {
+            if (winner !== secondaryDone || finished) null else {
+                stopped = true
+                written
+            }
+        }
+        if (position == null) {
+            secondary.cancel()
+            primary.observe()
+            return written - offset
+        }
+
+        primary.cancel()
+        val data = secondaryDone.get()
+        if (primary.length >= 0 && from + data.size() != primary.from + primary.length)
+            throw IOException("Alternate URL returned ${data.size()} bytes from $from, expected ${primary.from + primary.length - from}")
+        data.writeFrom((position - from).toInt(), out)
+        synchronized(lock) { written = from + data.size() }
+        hedgeWon = true
+        HEDGE_WINS.labels().inc()
+        secondary.observe()
+        return written - offset
+    }
+
+    /** Waits for the first request to finish, or returns why a second one should start. */
+    private fun watch(primary: Leg, done: CompletableFuture<Void>): String? {
+        val ttfbLimit = ttfbLimitNanos()
+        val rateFloor = rateFloor()
+        var windowAt = 0L
+        var windowBytes = 0L
+        var windowWriteNanos = 0L
+        while (true) {
+            try {
+                done.get(CHECK_MS, TimeUnit.MILLISECONDS)
+                return null
+            } catch (e: TimeoutException) {
+                // Still copying
+            } catch (e: ExecutionException) {
+                return null
+            }
+            val now = System.nanoTime()
+            if (primary.firstByteAt == 0L) {
+                if (now - primary.startedAt > ttfbLimit) return "ttfb"
+                continue
+            }
+            if (windowAt == 0L || now - windowAt >= RATE_WINDOW_NANOS) {
+                // Time spent blocked on the client is not the CDN's fault
+                val reading = now - windowAt - (primary.writeNanos - windowWriteNanos)
+                if (windowAt != 0L && reading >= RATE_WINDOW_NANOS / 2 &&
+                        (primary.bytes - windowBytes) * 1e9 / reading < rateFloor) return "rate"
+                windowAt = now
+                windowBytes = primary.bytes
+                windowWriteNanos = primary.writeNanos
+            }
+        }
+    }
+
+    private fun copyPrimary(leg: Leg) {
+        try {
+            leg.open().use { input ->
+                val buffer = ByteArray(PART_COPY_BUFFER)
+                while (true) {
+                    val n = input.read(buffer)
+                    if (n < 0) break
+                    leg.bytes += n
+                    synchronized(lock) {
+                        if (stopped) return
+                        val start = System.nanoTime()
+                        out.write(buffer, 0, n)
+                        leg.writeNanos += System.nanoTime() - start
+                        written += n
+                    }
+                }
+            }
+            if (leg.length >= 0 && leg.bytes != leg.length) throw EOFException("Part ended after ${leg.bytes} of ${leg.length} bytes")
+            leg.endedAt = System.nanoTime()
+            synchronized(lock) { if (!stopped) finished = true }
+        } finally {
+            leg.response?.close()
+        }
+    }
+
+    /** One request for the part from [from] on. */
+    private class Leg(val url: String, val from: Long) {
+        val startedAt = System.nanoTime()
+        @Volatile var call: Call? = null
+        @Volatile var response: Response? = null
+        @Volatile var cancelled = false
+        @Volatile var firstByteAt = 0L
+        @Volatile var endedAt = 0L
+        @Volatile var bytes = 0L
+        @Volatile var writeNanos = 0L
+        @Volatile var length = -1L
+
+        fun open(): InputStream {
+            val request = Request.Builder()
+                .url(url)
+                .header("User-Agent", "Mozilla/5.0")
+                // Byte offsets only line up across requests without content encoding
+                .header("Accept-Encoding", "identity")
+                .apply { if (from > 0) header("Range", "bytes=$from-") }
+                .build()
+            val c = CLIENT.newCall(request)
+            call = c
+            if (cancelled) c.cancel()
+            val r = c.execute()
+            response = r
+            if (r.code != 200 && r.code != 206) throw IOException("HTTP ${r.code}: ${r.message}")
+            firstByteAt = System.nanoTime()
+            val body = r.body ?: throw IOException("Empty response")
+            val input = body.byteStream()
+            // A server that ignores Range sends the whole part
+            if (r.code == 200 && from > 0) input.skipNBytes(from)
+            length = if (body.contentLength() < 0) -1 else body.contentLength() - if (r.code == 200) from else 0
+            return input
+        }
+
+        fun readAll(): PartBuffer {
+            try {
+                open().use { input ->
+                    val data = PartBuffer(if (length in 0..Int.MAX_VALUE) length.toInt() else 1 shl 20)
+                    val buffer = ByteArray(PART_COPY_BUFFER)
+                    while (true) {
+                        val n = input.read(buffer)
+                        if (n < 0) break
+                        data.write(buffer, 0, n)
+                        bytes += n
+                    }
+                    if (length >= 0 && bytes != length) throw EOFException("Part ended after $bytes of $length bytes")
+                    endedAt = System.nanoTime()
+                    return data
+                }
+            } finally {
+                response?.close()
+            }
+        }
+
+        // Closes the socket, so a read stalled on it fails right away
+        fun cancel() {
+            cancelled = true
+            call?.cancel()
+        }
+
+        /** Feeds a finished request into the recent TTFB and rate samples. */
+        fun observe() {
+            if (firstByteAt == 0L || endedAt == 0L) return
+            TTFB.add((firstByteAt - startedAt).toDouble())
+            val reading = endedAt - firstByteAt - writeNanos
+            if (bytes >= MIN_RATE_SAMPLE_BYTES && reading > 0) RATE.add(bytes * 1e9 / reading)
+        }
+    }
+
+    private class PartBuffer(size: Int) : ByteArrayOutputStream(size) {
+        fun writeFrom(skip: Int, out: OutputStream) {
+            if (skip > count) throw IOException("Alternate URL returned $count bytes, $skip were already written")
+            out.write(buf, skip, count - skip)
+        }
+    }
+
+    /** The last [size] samples, for percentiles once there are enough of them. */
+    private class Window(size: Int) {
+        private val values = DoubleArray(size)
+        private var count = 0
+        private var next = 0
+
+        @Synchronized
+        fun add(value: Double) {
+            values[next] = value
+            next = (next + 1) % values.size
+            if (count < values.size) count++
+        }
+
+        @Synchronized
+        fun percentile(p: Double): Double? {
+            if (count < MIN_SAMPLES) return null
+            val sorted = values.copyOf(count).apply { sort() }
+            return sorted[max(0, ceil(p * count).toInt() - 1)]
+        }
+    }
+
+    companion object {
+        private const val PART_COPY_BUFFER = 64 * 1024
+        private const val CHECK_MS = 50L
+        private val RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1)
+        private const val MIN_SAMPLES = 20
+        private const val MIN_RATE_SAMPLE_BYTES = 256 * 1024L
+        // Until there are enough samples: hedge after 2 s without a first byte, or below 64 KiB/s
+        private val DEFAULT_TTFB_LIMIT_NANOS = TimeUnit.SECONDS.toNanos(2)
+        private val MIN_TTFB_LIMIT_NANOS = TimeUnit.MILLISECONDS.toNanos(500)
+        private const val DEFAULT_RATE_FLOOR = 64 * 1024.0
+
+        private val TTFB = Window(256)
+        private val RATE = Window(256)
+
+        private val CLIENT = OkHttpClient.Builder()
+            .connectTimeout(30, TimeUnit.SECONDS)
+            .readTimeout(30, TimeUnit.SECONDS)
+            .build()
+
+        private val LEGS: ExecutorService = Executors.newCachedThreadPool { r ->
+            Thread(r, "nitro-fs-part-fetch").apply { isDaemon = true }
+        }
+
+        private val HEDGES = Metrics.counter("nitro_part_fetch_hedges_total",
+            "Second requests started for a slow part fetch, by what was slow.", "reason")
+        private val HEDGE_WINS = Metrics.counter("nitro_part_fetch_hedge_wins_total",
+            "Second requests that finished before the first.")
+
+        // Twice the recent p95 time to first byte, so only the slowest few percent of requests are hedged
+        private fun ttfbLimitNanos(): Long =
+            TTFB.percentile(0.95)?.let { max(MIN_TTFB_LIMIT_NANOS, (2 * it).toLong()) } ?: DEFAULT_TTFB_LIMIT_NANOS
+
+        // Half the rate that 95% of recent parts beat
+        private fun rateFloor(): Double = RATE.percentile(0.05)?.let { it / 2 } ?: DEFAULT_RATE_FLOOR
+
+        private fun await(done: CompletableFuture<*>) {
+            try {
+                done.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+
+        /** The first of [a] and [b] to succeed, or the last failure if both fail. */
+        private fun firstSuccess(a: CompletableFuture<*>, b: CompletableFuture<*>): CompletableFuture<*> {
+            val winner = CompletableFuture<CompletableFuture<*>>()
+            val failures = AtomicInteger()
+            for (f in listOf(a, b)) {
+                f.whenComplete { _, e ->
+                    if (e == null) winner.complete(f)
+                    else if (failures.incrementAndGet() == 2) winner.completeExceptionally(
+                        if (e is CompletionException) e.cause ?: e else e)
+                }
+            }
+            try {
+                return winner.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+    }
+}
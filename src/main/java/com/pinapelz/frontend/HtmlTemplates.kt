@@ -1,100 +1,166 @@
 package com.pinapelz.frontend
 
+import com.pinapelz.Database
+import com.pinapelz.FlightEvents
 import java.io.InputStream
+import java.time.OffsetDateTime
+import java.time.ZoneId
+import java.time.format.DateTimeFormatter
+
+/** One row of the file table. Split files have an ID of the form `partial:<logicalFileId>`. */
+data class FileRow(
+    val id: String,
+    val name: String,
+    val description: String?,
+    val size: Long,
+    val mimeType: String,
+    val createdAt: OffsetDateTime
+)
 
 object HtmlTemplates {
-    
+
+    private val DATE: DateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneId.systemDefault())
+
+    // Parsed once; rendering only appends literals and slot values
+    private val mainPage = Template(loadTemplate("main.html"))
+    private val fileTable = Template(loadTemplate("file-table.html"))
+    private val fileRow = Template(loadTemplate("file-row.html"))
+    private val directoryItem = Template(loadTemplate("directory-item.html"))
+    private val directoryActions = Template(loadTemplate("directory-actions.html"))
+    private val fileIcon = Template(loadTemplate("file-icon.html"))
+    private val fileThumbnail = Template(loadTemplate("file-thumbnail.html"))
+
+    private val emptyDirectories = loadTemplate("empty-directories.html")
+    private val emptyFiles = loadTemplate("empty-files.html")
+    private val emptySearchResults = loadTemplate("empty-search-results.html")
+    private val fileSplitterPage = loadTemplate("file-splitter.html")
+
     private fun loadTemplate(templatePath: String): String {
         val inputStream: InputStream = this::class.java.classLoader.getResourceAsStream("templates/$templatePath")
             ?: throw IllegalArgumentException("Template not found: $templatePath")
         return inputStream.bufferedReader().use { it.readText() }
     }
-    
-    private fun String.substitute(vararg pairs: Pair<String, Any>): String {
-        var result = this
-        for ((placeholder, value) in pairs) {
-            result = result.replace("{{$placeholder}}", value.toString())
-        }
-        return result
+
+    fun generateMainPage(directoryId: Int): String = recorded("main.html", 0) {
+        mainPage.render { directoryId }
     }
-    
-    fun generateMainPage(directoryId: Int): String {
-        val template = loadTemplate("main.html")
-        return template.substitute(
-            "directoryId" to directoryId
-        )
+
+    // Records a TemplateRender event when it takes long enough for the active recording to want it
+    private inline fun <T> recorded(template: String, rows: Int, render: () -> T): T {
+        val event = FlightEvents.TemplateRender()
+        event.begin()
+        try {
+            return render()
+        } finally {
+            event.end()
+            if (event.shouldCommit()) {
+                event.template = template
+                event.rows = rows
+                event.commit()
+            }
+        }
     }
-    
-    fun generateDirectoryList(directories: List<Map<String, Any>>): String {
+
+    fun writeDirectoryList(out: Appendable, directories: List<Database.DirectoryEntry>) {
         if (directories.isEmpty()) {
-            return loadTemplate("empty-directories.html")
+            out.append(emptyDirectories)
+            return
         }
-        
-        val directoryTemplate = loadTemplate("directory-item.html")
-        val directoryItems = directories.joinToString("") { dir ->
-            val path = dir["path"] as String
-            val displayName = if (path.isEmpty()) "root" else path
-            val fileCount = dir["fileCount"] as Int
-            val iconClass = if (path.isEmpty()) "fa-home" else "fa-folder"
-            val deleteButton = if (path.isNotEmpty()) {
-                """
-                <div class="directory-actions">
-                    <button class="btn-delete btn-sm" onclick="deleteDirectory(${dir["id"]}, '$displayName')" title="Delete directory">
-                        <i class="fas fa-trash"></i>
-                    </button>
-                </div>
-                """.trimIndent()
-            } else ""
-            
-            directoryTemplate.substitute(
-                "id" to dir["id"]!!,
-                "path" to path.replace("'", "\\'"),
-                "displayName" to displayName,
-                "iconClass" to iconClass,
-                "fileCount" to fileCount,
-                "deleteButton" to deleteButton
-            )
+
+        recorded("directory-item.html", directories.size) { writeDirectories(out, directories) }
+    }
+
+    private fun writeDirectories(out: Appendable, directories: List<Database.DirectoryEntry>) {
+        for (dir in directories) {
+            val displayName = if (dir.path.isEmpty()) "root" else dir.path
+            directoryItem.render(out) { slot ->
+                when (slot) {
+                    "id" -> dir.directoryId
+                    "path" -> dir.path
+                    "displayName" -> displayName
+                    "iconClass" -> if (dir.path.isEmpty()) "fa-home" else "fa-folder"
+                    "fileCount" -> dir.fileCount
+                    "deleteButton" -> if (dir.path.isEmpty()) null else Template.Fragment { o ->
+                        directoryActions.render(o) { if (it == "id") dir.directoryId else displayName }
+                    }
+                    else -> null
+                }
+            }
         }
-        
-        return directoryItems
     }
-    
-    fun generateFileTable(files: List<Map<String, Any>>, search: String = "", mimeTypeFilter: String = ""): String {
+
+    fun writeFileTable(out: Appendable, files: List<FileRow>, search: String = "", mimeTypeFilter: String = "") {
         if (files.isEmpty()) {
-            return if (search.isNotEmpty() || mimeTypeFilter.isNotEmpty()) {
-                loadTemplate("empty-search-results.html")
-            } else {
-                loadTemplate("empty-files.html")
+            out.append(if (search.isNotEmpty() || mimeTypeFilter.isNotEmpty()) emptySearchResults else emptyFiles)
+            return
+        }
+
+        val binding = FileRowBinding()
+        recorded("file-table.html", files.size) {
+            fileTable.render(out) { slot ->
+                when (slot) {
+                    "fileRows" -> Template.Fragment { o ->
+                        for (file in files) {
+                            binding.row = file
+                            fileRow.render(o, binding)
+                        }
+                    }
+                    "fileCount" -> files.size
+                    else -> null
+                }
             }
         }
-        
-        val fileRowTemplate = loadTemplate("file-row.html")
-        val fileRows = files.joinToString("") { file ->
-            val mimeType = file["mimeType"] as? String
-            val fileIcon = getFileIcon(mimeType)
-            val fileName = file["name"] as String
-            val fileType = mimeType?.split("/")?.get(0) ?: "file"
-            val createdDate = (file["created"] as String).split(" ")[0]
-            
-            fileRowTemplate.substitute(
-                "id" to file["id"]!!,
-                "fileIcon" to fileIcon,
-                "name" to fileName,
-                "description" to (file["description"] ?: ""),
-                "size" to (file["size"] ?: ""),
-                "fileType" to fileType,
-                "createdDate" to createdDate,
-                "escapedName" to fileName.replace("'", "\\'")
-            )
+    }
+
+    /** Reused for every row so a listing allocates nothing per row beyond what the row already holds. */
+    private class FileRowBinding : (String) -> Any? {
+        lateinit var row: FileRow
+
+        // Split files are never previewed, their bytes are spread over several messages
+        private val preview = Template.Fragment { out ->
+            if (!row.id.startsWith("partial:") && ThumbnailCache.supports(row.mimeType)) fileThumbnail.render(out, this)
+            else fileIcon.render(out, this)
+        }
+        private val size = Template.Fragment { appendFileSize(it, row.size) }
+        private val createdDate = Template.Fragment { DATE.formatTo(row.createdAt, it) }
+        private val fileType = Template.Fragment { out ->
+            val mime = row.mimeType
+            val slash = mime.indexOf('/')
+            Template.escapeHtml(out, mime, 0, if (slash < 0) mime.length else slash)
+        }
+
+        override fun invoke(slot: String): Any? = when (slot) {
+            "id" -> row.id
+            "fileIcon" -> getFileIcon(row.mimeType)
+            "preview" -> preview
+            "name" -> row.name
+            "description" -> row.description
+            "size" -> size
+            "fileType" -> fileType
+            "createdDate" -> createdDate
+            else -> null
         }
-        
-        val tableTemplate = loadTemplate("file-table.html")
-        return tableTemplate.substitute(
-            "fileRows" to fileRows,
-            "fileCount" to files.size
-        )
     }
-    
+
+    /** Appends a human-readable size such as `12.5 MB` without formatting through a String. */
+    fun appendFileSize(out: Appendable, bytes: Long) {
+        if (bytes < 1024) {
+            out.append(bytes.toString()).append(" B")
+            return
+        }
+        var unit = 0
+        var value = bytes / 1024.0
+        while (value >= 1024 && unit < SIZE_UNITS.size - 1) {
+            value /= 1024.0
+            unit++
+        }
+        val tenths = Math.round(value * 10)
+        out.append((tenths / 10).toString()).append('.').append(('0' + (tenths % 10).toInt()))
+            .append(SIZE_UNITS[unit])
+    }
+
+    private val SIZE_UNITS = arrayOf(" KB", " MB", " GB")
+
     private fun getFileIcon(mimeType: String?): String {
         if (mimeType == null) return "fas fa-file"
 
@@ -108,8 +174,8 @@ object HtmlTemplates {
             else -> "fas fa-file"
         }
     }
-    
+
     fun generateFileSplitterPage(): String {
-        return loadTemplate("file-splitter.html")
+        return fileSplitterPage
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,191 @@
+package com.pinapelz.frontend
+
+import com.google.gson.stream.JsonWriter
+import com.pinapelz.Database
+import com.pinapelz.FileSystem
+import io.javalin.http.BadRequestResponse
+import io.javalin.http.Context
+
+/**
+ * Version 1 of the JSON API, for scripts and sync tooling.
+ *
+ * Listings are keyset-paged: a page holds up to `limit` items in ID order
+ * and a `next` cursor to pass back as `after`, which is null on the last
+ * page. A page is read from the database first and then written out, so a
+ * slow client does not hold a database connection and a failed read is a
+ * 500 rather than a truncated body. Discord snowflakes are sent as
+ * strings because they do not fit in a JavaScript number.
+ *
+ * - `GET /api/v1/directories`
+ * - `GET /api/v1/files?dir=`
+ * - `GET /api/v1/logical-files?dir=`
+ * - `GET /api/v1/logical-files/{id}`: one split file with all of its parts
+ * - `GET /api/v1/parts?logicalFile=`
+ */
+class JsonApi(private val fileSystem: FileSystem) {
+
+    fun listDirectories(ctx: Context) {
+        writePage<Database.DirectoryEntry>(ctx, Int.MAX_VALUE.toLong(), { after, limit, sink ->
+            fileSystem.streamDirectories(after.toInt(), limit, sink)
+        }, { it.directoryId.toLong() }, ::writeDirectory)
+    }
+
+    fun listFiles(ctx: Context) {
+        val directoryId = intParam(ctx, "dir")
+        writePage<Database.FileRecord>(ctx, Int.MAX_VALUE.toLong(), { after, limit, sink ->
+            fileSystem.streamFiles(directoryId, after.toInt(), limit, sink)
+        }, { it.fileId.toLong() }, ::writeFile)
+    }
+
+    fun listLogicalFiles(ctx: Context) {
+        val directoryId = intParam(ctx, "dir")
+        writePage<Database.LogicalFileEntry>(ctx, Long.MAX_VALUE, { after, limit, sink ->
+            fileSystem.streamLogicalFiles(directoryId, after, limit, sink)
+        }, { it.logicalFileId }, ::writeLogicalFile)
+    }
+
+    fun listParts(ctx: Context) {
+        val logicalFileId = ctx.queryParam("logicalFile")?.let { it.toLongOrNull() ?: throw BadRequestResponse("Invalid logicalFile") } ?: 0
+        writePage<Database.FilePartialRecord>(ctx, Long.MAX_VALUE, { after, limit, sink ->
+            fileSystem.streamFilePartials(logicalFileId, after, limit, sink)
+        }, { it.partialId }, ::writePart)
+    }
+
+    fun getLogicalFile(ctx: Context) {
+        val logicalFileId = ctx.pathParam("id").toLongOrNull() ?: throw BadRequestResponse("Invalid logical file ID")
+        val logical = fileSystem.getLogicalFileById(logicalFileId)
+        if (logical == null) {
+            ctx.status(404).json(mapOf("success" to false, "message" to "Logical file not found"))
+            return
+        }
+        val parts = fileSystem.getFilePartialsByLogicalFileId(logicalFileId)
+
+        respond(ctx) { w ->
+            w.beginObject()
+            writeLogicalFileFields(w, logical)
+            w.name("parts").beginArray()
+            for (p in parts) {
+                w.beginObject()
+                w.name("id").value(p.partialId)
+                w.name("name").value(p.partName)
+                w.name("partNumber").value(p.partNumber.toLong())
+                w.name("size").value(p.partSize)
+                w.name("channelId").value(p.channelId.toString())
+                w.name("messageId").value(p.messageId.toString())
+                w.name("checksum").value(p.checksum)
+                w.name("uploadedViaWebhook").value(p.uploadedViaWebhook)
+                w.name("createdAt").value(p.createdAt.toString())
+                w.endObject()
+            }
+            w.endArray()
+            w.endObject()
+        }
+    }
+
+    /** Writes one page of a listing whose IDs run up to [maxId]. */
+    private fun <T> writePage(
+        ctx: Context,
+        maxId: Long,
+        stream: (after: Long, limit: Int, sink: (T) -> Unit) -> Int,
+        idOf: (T) -> Long,
+        writeItem: (JsonWriter, T) -> Unit
+    ) {
+        val after = ctx.queryParam("after")?.let { it.toLongOrNull() ?: throw BadRequestResponse("Invalid after cursor") } ?: 0
+        if (after < 0 || after > maxId) throw BadRequestResponse("after must be between 0 and $maxId")
+        val limit = ctx.queryParam("limit")?.let { it.toIntOrNull() ?: throw BadRequestResponse("Invalid limit") } ?: DEFAULT_LIMIT
+        if (limit < 1 || limit > MAX_LIMIT) throw BadRequestResponse("limit must be between 1 and $MAX_LIMIT")
+
+        val items = ArrayList<T>()
+        try {
+            stream(after, limit) { items.add(it) }
+        } catch (e: Exception) {
+            println("Failed to read listing page: ${e.message}")
+            ctx.status(500).json(mapOf("success" to false, "message" to "Failed to read listing: ${e.message}"))
+            return
+        }
+
+        respond(ctx) { w ->
+            w.beginObject()
+            w.name("items").beginArray()
+            for (item in items) writeItem(w, item)
+            w.endArray()
+            // A full page may be followed by more; a short one is the end
+            w.name("next")
+            if (items.size == limit) w.value(idOf(items.last())) else w.nullValue()
+            w.endObject()
+        }
+    }
+
+    private fun respond(ctx: Context, body: (JsonWriter) -> Unit) {
+        ctx.contentType("application/json; charset=utf-8")
+        JsonWriter(ctx.outputStream().bufferedWriter()).use(body)
+    }
+
+    private fun intParam(ctx: Context, name: String): Int =
+        ctx.queryParam(name)?.let { it.toIntOrNull() ?: throw BadRequestResponse("Invalid $name") } ?: 0
+
+    private fun writeDirectory(w: JsonWriter, d: Database.DirectoryEntry) {
+        w.beginObject()
+        w.name("id").value(d.directoryId.toLong())
+        w.name("parentId").value(d.parentId.toLong())
+        w.name("name").value(d.name)
+        w.name("path").value(d.path)
+        w.name("fileCount").value(d.fileCount.toLong())
+        w.name("createdAt").value(d.createdAt.toString())
+        w.endObject()
+    }
+
+    private fun writeFile(w: JsonWriter, f: Database.FileRecord) {
+        w.beginObject()
+        w.name("id").value(f.fileId.toLong())
+        w.name("directoryId").value(f.directoryId.toLong())
+        w.name("name").value(f.fileName)
+        w.name("description").value(f.description)
+        w.name("size").value(f.size)
+        w.name("mimeType").value(f.mimeType)
+        w.name("channelId").value(f.channelId.toString())
+        w.name("messageId").value(f.messageId.toString())
+        w.name("createdAt").value(f.createdAt.toString())
+        w.endObject()
+    }
+
+    private fun writeLogicalFile(w: JsonWriter, l: Database.LogicalFileEntry) {
+        w.beginObject()
+        writeLogicalFileFields(w, l)
+        w.endObject()
+    }
+
+    private fun writeLogicalFileFields(w: JsonWriter, l: Database.LogicalFileEntry) {
+        w.name("id").value(l.logicalFileId)
+        w.name("directoryId").value(l.directoryId.toLong())
+        w.name("name").value(l.originalFilename)
+        w.name("description").value(l.description)
+        w.name("mimeType").value(l.mimeType)
+        w.name("size").value(l.totalSize)
+        w.name("partCount").value(l.partCount.toLong())
+        w.name("codec").value(l.codec)
+        w.name("checksum").value(l.checksum)
+        w.name("createdAt").value(l.createdAt.toString())
+    }
+
+    private fun writePart(w: JsonWriter, p: Database.FilePartialRecord) {
+        w.beginObject()
+        w.name("id").value(p.partialId)
+        w.name("logicalFileId").value(p.logicalFileId)
+        w.name("directoryId").value(p.directoryId.toLong())
+        w.name("name").value(p.partName)
+        w.name("partNumber").value(p.partNumber.toLong())
+        w.name("size").value(p.partSize)
+        w.name("channelId").value(p.channelId.toString())
+        w.name("messageId").value(p.messageId.toString())
+        w.name("checksum").value(p.checksum)
+        w.name("uploadedViaWebhook").value(p.uploadedViaWebhook)
+        w.name("createdAt").value(p.createdAt.toString())
+        w.endObject()
+    }
+
+    companion object {
+        const val DEFAULT_LIMIT = 1000
+        const val MAX_LIMIT = 10_000
+    }
+}
@@ -2,11 +2,15 @@ package com.pinapelz.frontend
 
 import io.javalin.http.Context
 import io.javalin.http.UploadedFile
+import com.pinapelz.Database
 import com.pinapelz.FileSystem
+import com.pinapelz.PartManifest
+import java.io.IOException
+import java.io.InputStream
 import java.nio.file.Files
 import java.nio.file.Path
+import java.security.MessageDigest
 import java.util.UUID
-import kotlin.math.ceil
 import kotlin.math.min
 
 
@@ -19,14 +23,17 @@ data class FilePartMeta(
     val id: String,
     val name: String,
     val size: Long,
-    val path: Path
+    val path: Path,
+    val checksum: String
 )
 
 data class SplitMetadata(
     val originalFilename: String,
     val totalSize: Long,
     val partCount: Int,
-    val parts: List<FilePartMeta>
+    val parts: List<FilePartMeta>,
+    val checksum: String,
+    val codec: String = "raw"
 )
 
 data class SplitFileResult(
@@ -94,7 +101,8 @@ class MultipartFileManager(
                 }
             }
 
-            val result = splitFile(uploadedFile, config=splitConfig, prefix=filePrefix)
+            val result = splitFile(uploadedFile.content(), uploadedFile.filename(), uploadedFile.size(),
+                config=splitConfig, prefix=filePrefix)
 
             if (useWebhook && webhookManager != null && fileSystem != null) {
                 return handleWebhookUpload(result, directoryId, uploadedFile.filename(), fileDescription)
@@ -135,74 +143,92 @@ class MultipartFileManager(
                 return ApiSplitResponse(false, "Failed to validate file parts: ${e.message}")
             }
 
-            val uploadResults = mutableListOf<ApiPartInfo>()
-            var uploadedCount = 0
-
+            val metadata = splitResult.metadata
             try {
-                for ((index, part) in splitResult.metadata.parts.withIndex()) {
-                    println("Uploading part ${index + 1}/${splitResult.metadata.parts.size}: ${part.name}")
-
-                    val uploadResult = webhookManager.uploadFile(part.path)
-
-                    if (uploadResult.success && uploadResult.channelId != null && uploadResult.messageId != null) {
-                        try {
-                            val partialId = fileSystem.createFilePartial(
-                                uploadResult.channelId,
-                                uploadResult.messageId,
-                                directoryId,
-                                part.name,
-                                index + 1,
-                                part.size,
-                                originalFilename,
-                                description,
-                                "application/octet-stream"
-                            )
-
-                            uploadResults.add(ApiPartInfo(
-                                id = part.id,
-                                name = part.name,
-                                size = part.size,
-                                uploaded = true,
-                                channelId = uploadResult.channelId,
-                                messageId = uploadResult.messageId
-                            ))
-                            uploadedCount++
+                if (fileSystem.getLogicalFileByName(originalFilename, directoryId) != null) {
+                    return ApiSplitResponse(false, "A file named '$originalFilename' already exists in this directory")
+                }
+            } catch (e: Exception) {
+                return ApiSplitResponse(false, "Failed to validate file name: ${e.message}")
+            }
 
-                            println("Successfully uploaded and recorded part: ${part.name} (partial_id: $partialId)")
-                        } catch (e: Exception) {
-                            println("Failed to record part in database: ${e.message}")
-                            uploadResults.add(ApiPartInfo(
-                                id = part.id,
-                                name = part.name,
-                                size = part.size,
-                                uploaded = false
-                            ))
-                        }
-                    } else {
+            val uploadResults = mutableListOf<ApiPartInfo>()
+            val directoryPath = runCatching { fileSystem?.getDirectoryById(directoryId)?.path }.getOrNull() ?: ""
+            try {
+                // Every part is posted before anything is recorded, so a failed upload never leaves a truncated file behind
+                for ((index, part) in metadata.parts.withIndex()) {
+                    println("Uploading part ${index + 1}/${metadata.parts.size}: ${part.name}")
+
+                    // Lets ChannelReindexer rebuild this split file from channel history
+                    val manifest = PartManifest(
+                        directoryPath,
+                        originalFilename,
+                        description,
+                        "application/octet-stream",
+                        metadata.totalSize,
+                        metadata.partCount,
+                        index + 1,
+                        metadata.codec,
+                        metadata.checksum,
+                        part.checksum
+                    )
+                    val uploadResult = webhookManager.uploadFile(part.path, manifest.toMessageContent())
+                    if (!uploadResult.success || uploadResult.channelId == null || uploadResult.messageId == null) {
                         println("Failed to upload part ${part.name}: ${uploadResult.error}")
-                        uploadResults.add(ApiPartInfo(
-                            id = part.id,
-                            name = part.name,
-                            size = part.size,
-                            uploaded = false
-                        ))
+                        uploadResults.add(ApiPartInfo(id = part.id, name = part.name, size = part.size, uploaded = false))
+                        return ApiSplitResponse(
+                            false,
+                            "Uploaded ${index}/${metadata.parts.size} parts before part ${index + 1} failed: ${uploadResult.error}. Nothing was recorded.",
+                            uploadResults
+                        )
                     }
+                    uploadResults.add(ApiPartInfo(
+                        id = part.id,
+                        name = part.name,
+                        size = part.size,
+                        uploaded = true,
+                        channelId = uploadResult.channelId,
+                        messageId = uploadResult.messageId
+                    ))
                 }
+
+                val records = metadata.parts.mapIndexed { index, part ->
+                    val posted = uploadResults[index]
+                    Database.NewPartialRecord(
+                        0,
+                        posted.channelId!!.toLong(),
+                        posted.messageId!!.toLong(),
+                        directoryId,
+                        part.name,
+                        index + 1,
+                        part.size,
+                        originalFilename,
+                        description,
+                        "application/octet-stream",
+                        part.checksum
+                    )
+                }
+                // The file and its parts are recorded in one transaction, so a failure leaves nothing behind
                 try {
-                    splitResult.directory.toFile().deleteRecursively()
+                    val logicalFileId = fileSystem.createLogicalFile(
+                        directoryId,
+                        originalFilename,
+                        description,
+                        "application/octet-stream",
+                        metadata.totalSize,
+                        metadata.codec,
+                        metadata.checksum,
+                        records
+                    )
+                    println("Recorded ${records.size} parts (logical_file_id: $logicalFileId)")
                 } catch (e: Exception) {
-                    println("Failed to clean up temporary files: ${e.message}")
-                }
-
-                val message = if (uploadedCount == splitResult.metadata.parts.size) {
-                    "All ${uploadedCount} parts uploaded successfully"
-                } else {
-                    "Uploaded ${uploadedCount}/${splitResult.metadata.parts.size} parts successfully"
+                    println("Failed to record split file in database: ${e.message}")
+                    return ApiSplitResponse(false, "A file named '$originalFilename' already exists in this directory or could not be recorded: ${e.message}", uploadResults)
                 }
 
                 return ApiSplitResponse(
-                    success = uploadedCount > 0,
-                    message = message,
+                    success = true,
+                    message = "All ${metadata.parts.size} parts uploaded successfully",
                     parts = uploadResults
                 )
 
@@ -212,77 +238,108 @@ class MultipartFileManager(
                     "Upload process failed: ${e.message}",
                     uploadResults
                 )
+            } finally {
+                try {
+                    splitResult.directory.toFile().deleteRecursively()
+                } catch (e: Exception) {
+                    println("Failed to clean up temporary files: ${e.message}")
+                }
             }
         }
     }
 
-    private fun splitFile( uploadedFile: UploadedFile, config: SplitConfig, prefix: String,
-                           workingDir: Path = Files.createTempDirectory("split-${prefix}-") ): SplitFileResult {
-        val fileData = uploadedFile.content().readBytes()
-        val fileSize = fileData.size.toLong()
+    /**
+     * Splits [input] into part files in [workingDir] in a single pass, so
+     * memory use stays at one copy buffer whatever the file size. [fileSize]
+     * is only needed to size the parts of a [SplitConfig.ByParts] split.
+     */
+    fun splitFile(input: InputStream, filename: String, fileSize: Long, config: SplitConfig, prefix: String,
+                  workingDir: Path = Files.createTempDirectory("split-${prefix}-")): SplitFileResult {
         val partsMeta = mutableListOf<FilePartMeta>()
+        val fileDigest = MessageDigest.getInstance("SHA-256")
+        val buffer = ByteArray(COPY_BUFFER)
+        var totalSize = 0L
+
+        // Copies up to [length] bytes into [partPath], returning how many there were and their checksum
+        fun writePart(source: InputStream, partPath: Path, length: Long): Pair<Long, String> {
+            val partDigest = MessageDigest.getInstance("SHA-256")
+            var written = 0L
+            Files.newOutputStream(partPath).use { out ->
+                while (written < length) {
+                    val n = source.read(buffer, 0, min(buffer.size.toLong(), length - written).toInt())
+                    if (n < 0) break
+                    out.write(buffer, 0, n)
+                    partDigest.update(buffer, 0, n)
+                    fileDigest.update(buffer, 0, n)
+                    written += n
+                }
+            }
+            totalSize += written
+            return Pair(written, hex(partDigest.digest()))
+        }
 
-        when (config) {
-            is SplitConfig.BySize -> {
-                val partSize = config.sizeInBytes - (16 * 1024)
-                val numParts = ceil(fileSize.toDouble() / partSize.toDouble()).toInt()
-                println("Splitting file: ${fileSize} bytes into ${numParts} parts of max ${partSize} bytes each")
-
-                for (partIndex in 0 until numParts) {
-                    val startIndex = (partIndex * partSize).toInt()
-                    val endIndex = min(startIndex + partSize.toInt(), fileData.size)
-                    val partBytes = fileData.sliceArray(startIndex until endIndex)
-                    println("Created part ${partIndex + 1}: ${partBytes.size} bytes")
+        input.use { source ->
+            when (config) {
+                is SplitConfig.BySize -> {
+                    val partSize = config.sizeInBytes - (16 * 1024)
+                    println("Splitting file: ${fileSize} bytes into parts of max ${partSize} bytes each")
 
-                    val partId = UUID.randomUUID().toString()
-                    val partName = "${prefix}.part${String.format("%03d", partIndex + 1)}.nitro"
-                    val partPath = workingDir.resolve(partName)
-                    Files.write(partPath, partBytes)
-                    partsMeta += FilePartMeta(
-                        id = partId,
-                        name = partName,
-                        size = partBytes.size.toLong(),
-                        path = partPath
-                    )
+                    while (true) {
+                        val partName = "${prefix}.part${String.format("%03d", partsMeta.size + 1)}.nitro"
+                        val partPath = workingDir.resolve(partName)
+                        val (size, checksum) = writePart(source, partPath, partSize)
+                        if (size == 0L) {
+                            Files.delete(partPath)
+                            break
+                        }
+                        println("Created part ${partsMeta.size + 1}: ${size} bytes")
+                        partsMeta += FilePartMeta(
+                            id = UUID.randomUUID().toString(),
+                            name = partName,
+                            size = size,
+                            path = partPath,
+                            checksum = checksum
+                        )
+                        if (size < partSize) break
+                    }
                 }
-            }
 
-            is SplitConfig.ByParts -> {
-                val partSize = fileSize / config.numParts
-                var remainingBytes = fileSize
-                var offset = 0L
+                is SplitConfig.ByParts -> {
+                    val partSize = fileSize / config.numParts
 
-                uploadedFile.content().use { inputStream ->
                     for (partId in 1..config.numParts) {
                         val partName = "part_$partId"
                         val partPath = workingDir.resolve(partName)
 
-                        val currentPartSize = if (partId == config.numParts) remainingBytes else partSize
-                        val partBytes = ByteArray(currentPartSize.toInt())
-                        inputStream.read(partBytes, 0, currentPartSize.toInt())
-
-                        Files.write(partPath, partBytes)
+                        val currentPartSize = if (partId == config.numParts) fileSize - totalSize else partSize
+                        val (size, checksum) = writePart(source, partPath, currentPartSize)
+                        if (size < currentPartSize) {
+                            throw IOException("Upload ended after ${totalSize} of ${fileSize} bytes")
+                        }
                         partsMeta += FilePartMeta(
                             id = partId.toString(),
                             name = partName,
-                            size = currentPartSize,
-                            path = partPath
+                            size = size,
+                            path = partPath,
+                            checksum = checksum
                         )
-
-                        offset += currentPartSize
-                        remainingBytes -= currentPartSize
                     }
                 }
             }
         }
         val metadata = SplitMetadata(
-            originalFilename = uploadedFile.filename(),
-            totalSize = fileSize,
+            originalFilename = filename,
+            totalSize = totalSize,
             partCount = partsMeta.size,
-            parts = partsMeta
+            parts = partsMeta,
+            checksum = hex(fileDigest.digest())
         )
         return SplitFileResult(
             directory = workingDir,
             metadata = metadata
         )
     }
+
+    private fun hex(data: ByteArray): String = SplitFileWriter.hex(data)
+
+    private const val COPY_BUFFER = 64 * 1024
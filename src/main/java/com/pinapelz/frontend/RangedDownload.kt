@@ -0,0 +1,47 @@
+package com.pinapelz.frontend
+
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.URI
+
+/**
+ * Opens [url] for reading from byte [from] through [to] inclusive, or to the
+ * end when [to] is negative. A server that ignores the Range header and
+ * answers 200 with the whole body is read up to [from], so the returned
+ * stream always starts at [from]. Any other status is an [IOException].
+ * The caller disconnects the connection when done.
+ */
+fun openRange(url: String, from: Long, to: Long = -1): HttpURLConnection {
+    val connection = URI(url).toURL().openConnection() as HttpURLConnection
+    connection.setRequestProperty("User-Agent", "Mozilla/5.0")
+    if (from > 0 || to >= 0) connection.setRequestProperty("Range", "bytes=$from-${if (to >= 0) to else ""}")
+    connection.connectTimeout = 30000
+    connection.readTimeout = 30000
+    try {
+        when (connection.responseCode) {
+            206 -> {}
+            // The range was ignored, so skip up to it
+            200 -> skipFully(connection.inputStream, from)
+            else -> throw IOException("HTTP ${connection.responseCode}: ${connection.responseMessage}")
+        }
+    } catch (e: IOException) {
+        connection.disconnect()
+        throw e
+    }
+    return connection
+}
+
+private fun skipFully(input: InputStream, count: Long) {
+    var left = count
+    while (left > 0) {
+        val skipped = input.skip(left)
+        if (skipped <= 0) {
+            if (input.read() < 0) throw EOFException("Download ended before offset $count")
+            left--
+        } else {
+            left -= skipped
+        }
+    }
+}
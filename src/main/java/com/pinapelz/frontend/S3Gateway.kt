@@ -0,0 +1,686 @@
+package com.pinapelz.frontend
+
+import com.pinapelz.Database
+import com.pinapelz.FileSystem
+import com.pinapelz.Retriever
+import io.javalin.Javalin
+import io.javalin.http.Context
+import io.javalin.http.HandlerType
+import org.w3c.dom.Element
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.HttpURLConnection
+import java.security.MessageDigest
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.util.Base64
+import java.util.TreeMap
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import javax.xml.parsers.DocumentBuilderFactory
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * A subset of the S3 API over the index, for backup tools that only speak
+ * S3. Path-style addressing only: a bucket is a top-level directory, and the
+ * slash-separated prefix of a key is the directory path below it, so
+ * `PUT /backups/host/db.tar` stores `db.tar` in `backups/host`.
+ *
+ * Objects are stored as split files by [SplitFileWriter]; the parts of a
+ * multipart upload become the split file's partials in order. Plain files indexed by
+ * the bot are listed and readable too.
+ *
+ * Like the rest of the frontend there is no authentication: request
+ * signatures are accepted and not checked.
+ */
+class S3Gateway(
+    private val retriever: Retriever,
+    private val fileSystem: FileSystem,
+    private val writer: SplitFileWriter?
+) {
+
+    class S3Exception(val status: Int, val code: String, message: String) : RuntimeException(message)
+
+    /** What is stored under a key: a split file if [logical] is set, otherwise the plain file [fileId]. */
+    private class StoredObject(
+        val key: String,
+        val size: Long,
+        val modified: OffsetDateTime,
+        val etag: String,
+        val mimeType: String,
+        val fileId: Int,
+        val logical: Database.LogicalFileEntry?
+    )
+
+    private class Segment(val channelId: Long, val messageId: Long, val name: String, val size: Long)
+
+    private class UploadedPart(val etag: String, val chunks: List<SplitFileWriter.PostedPart>)
+
+    /** A multipart upload in progress. Parts are posted as they arrive and only recorded on completion. */
+    private class MultipartUpload(val bucket: String, val key: String, val contentType: String, val initiated: OffsetDateTime) {
+        val parts = ConcurrentHashMap<Int, UploadedPart>()
+        // Set while a completion records the file, so a second completion cannot record it again
+        val completing = AtomicBoolean()
+    }
+
+    private class Listing(val contents: List<StoredObject>, val prefixes: List<String>, val truncated: Boolean, val last: String?)
+
+    private val uploads = ConcurrentHashMap<String, MultipartUpload>()
+
+    fun start(port: Int) {
+        val app = Javalin.create { config ->
+            // "a/b/" and "a/b" are different keys
+            config.router.ignoreTrailingSlashes = false
+        }
+
+        app.exception(S3Exception::class.java) { e, ctx -> error(ctx, e.status, e.code, e.message) }
+        app.exception(Exception::class.java) { e, ctx ->
+            println("S3 request ${ctx.method()} ${ctx.path()} failed: ${e.message}")
+            e.printStackTrace()
+            error(ctx, 500, "InternalError", e.message)
+        }
+
+        app.get("/") { ctx -> listBuckets(ctx) }
+        app.get("/<path>") { ctx ->
+            val (bucket, key) = target(ctx)
+            when {
+                key.isNotEmpty() -> getObject(ctx, bucket, key, false)
+                has(ctx, "location") -> {
+                    bucket(bucket)
+                    ctx.contentType(XML).result(xml("LocationConstraint") {})
+                }
+                has(ctx, "uploads") -> listUploads(ctx, bucket)
+                else -> listObjects(ctx, bucket)
+            }
+        }
+        app.head("/<path>") { ctx ->
+            val (bucket, key) = target(ctx)
+            if (key.isEmpty()) bucket(bucket) else getObject(ctx, bucket, key, true)
+        }
+        app.put("/<path>") { ctx ->
+            val (bucket, key) = target(ctx)
+            when {
+                key.isEmpty() -> createBucket(ctx, bucket)
+                ctx.header("x-amz-copy-source") != null -> throw S3Exception(501, "NotImplemented", "CopyObject is not supported")
+                has(ctx, "uploadId") -> uploadPart(ctx, bucket, key)
+                else -> putObject(ctx, bucket, key)
+            }
+        }
+        app.post("/<path>") { ctx ->
+            val (bucket, key) = target(ctx)
+            when {
+                key.isEmpty() && has(ctx, "delete") -> deleteObjects(ctx, bucket)
+                key.isNotEmpty() && has(ctx, "uploads") -> createUpload(ctx, bucket, key)
+                key.isNotEmpty() && has(ctx, "uploadId") -> completeUpload(ctx, bucket, key)
+                else -> throw S3Exception(501, "NotImplemented", "Unsupported POST request")
+            }
+        }
+        app.delete("/<path>") { ctx ->
+            val (bucket, key) = target(ctx)
+            when {
+                key.isEmpty() -> deleteBucket(bucket)
+                has(ctx, "uploadId") -> abortUpload(ctx, bucket, key)
+                else -> deleteObject(bucket, key)
+            }
+            ctx.status(204)
+        }
+
+        app.start(port)
+        println("S3 gateway listening on port $port")
+    }
+
+    // Buckets
+
+    private fun listBuckets(ctx: Context) {
+        val buckets = fileSystem.getAllDirectories().filter { it.parentId == ROOT_ID }.sortedBy { it.name }
+        ctx.contentType(XML).result(xml("ListAllMyBucketsResult") {
+            append("<Owner>"); tag("ID", OWNER); tag("DisplayName", OWNER); append("</Owner>")
+            append("<Buckets>")
+            for (b in buckets) {
+                append("<Bucket>"); tag("Name", b.name); tag("CreationDate", isoTime(b.createdAt)); append("</Bucket>")
+            }
+            append("</Buckets>")
+        })
+    }
+
+    private fun createBucket(ctx: Context, name: String) {
+        validateDirectoryName(name)?.let { throw S3Exception(400, "InvalidBucketName", it) }
+        fileSystem.createDirectory(ROOT_ID, name)
+        ctx.header("Location", "/$name")
+    }
+
+    private fun deleteBucket(name: String) {
+        val bucket = bucket(name)
+        if (!isEmpty(bucket)) throw S3Exception(409, "BucketNotEmpty", "The bucket you tried to delete is not empty")
+        fileSystem.deleteDirectory(bucket.directoryId)
+    }
+
+    private fun bucket(name: String): Database.DirectoryEntry {
+        return fileSystem.getAllDirectories().firstOrNull { it.parentId == ROOT_ID && it.name == name }
+            ?: throw S3Exception(404, "NoSuchBucket", "The specified bucket does not exist")
+    }
+
+    // Keys
+
+    /** Splits the request path into bucket and key; the key is empty for bucket requests. */
+    private fun target(ctx: Context): Pair<String, String> {
+        val path = ctx.pathParam("path")
+        return Pair(path.substringBefore('/'), path.substringAfter('/', ""))
+    }
+
+    /** The directory path a key lives in, and its name there; the name is empty for a directory marker. */
+    private fun locate(bucket: Database.DirectoryEntry, key: String): Pair<String, String> {
+        val folder = key.substringBeforeLast('/', "")
+        // Directory names are trimmed and cannot be empty, so such keys would not read back as written
+        if (folder.isNotEmpty() && folder.split('/').any { it.isBlank() || it != it.trim() }) {
+            throw S3Exception(400, "InvalidArgument", "Key folders must be non-empty and not padded with spaces: $key")
+        }
+        val path = if (folder.isEmpty()) bucket.path else bucket.path + "/" + folder
+        return Pair(path, key.substringAfterLast('/'))
+    }
+
+    private fun directory(path: String): Database.DirectoryEntry? =
+        fileSystem.getAllDirectories().firstOrNull { it.path == path }
+
+    private fun findObject(bucket: Database.DirectoryEntry, key: String): StoredObject? {
+        val (folder, name) = locate(bucket, key)
+        if (name.isEmpty()) return null
+        val directory = directory(folder) ?: return null
+        fileSystem.getLogicalFileByName(name, directory.directoryId)?.let { return logicalObject(key, it) }
+        return fileSystem.getFilesByDirectoryId(directory.directoryId, name, "", "file_name")
+            .firstOrNull { it.fileName == name }
+            ?.let { fileObject(key, it) }
+    }
+
+    /** Everything stored directly in [directory], keyed by [keyBase] + name. A split file wins over a plain file of the same name. */
+    private fun objectsIn(directory: Database.DirectoryEntry, keyBase: String): Collection<StoredObject> {
+        val byName = TreeMap<String, StoredObject>()
+        for (f in fileSystem.getFilesByDirectoryId(directory.directoryId, "", "", "file_name")) {
+            byName[f.fileName] = fileObject(keyBase + f.fileName, f)
+        }
+        for (l in fileSystem.getLogicalFiles(directory.directoryId, "")) {
+            byName[l.originalFilename] = logicalObject(keyBase + l.originalFilename, l)
+        }
+        return byName.values
+    }
+
+    private fun fileObject(key: String, f: Database.FileEntry) =
+        StoredObject(key, f.size, f.createdAt, etag("file:${f.fileId}", 1), f.mimeType ?: OCTET_STREAM, f.fileId, null)
+
+    private fun logicalObject(key: String, l: Database.LogicalFileEntry) =
+        StoredObject(key, l.totalSize, l.createdAt, etag(l.checksum ?: "logical:${l.logicalFileId}", l.partCount),
+            l.mimeType ?: OCTET_STREAM, 0, l)
+
+    private fun isEmpty(directory: Database.DirectoryEntry): Boolean =
+        fileSystem.getChildDirectories(directory.directoryId).isEmpty() &&
+            fileSystem.getFilesByDirectoryId(directory.directoryId, "", "", "file_name").isEmpty() &&
+            fileSystem.getLogicalFiles(directory.directoryId, "").isEmpty()
+
+    // Listing
+
+    private fun listObjects(ctx: Context, bucketName: String) {
+        val bucket = bucket(bucketName)
+        val v2 = ctx.queryParam("list-type") == "2"
+        val prefix = ctx.queryParam("prefix") ?: ""
+        val delimiter = ctx.queryParam("delimiter") ?: ""
+        val maxKeys = (ctx.queryParam("max-keys")?.toIntOrNull() ?: MAX_KEYS).coerceIn(0, MAX_KEYS)
+        val token = ctx.queryParam("continuation-token")
+        val startAfter = ctx.queryParam("start-after")
+        val after = if (v2) token?.let { decodeToken(it) } ?: startAfter ?: "" else ctx.queryParam("marker") ?: ""
+
+        val listing = list(bucket, prefix, delimiter, after, maxKeys)
+        ctx.contentType(XML).result(xml("ListBucketResult") {
+            tag("Name", bucketName)
+            tag("Prefix", prefix)
+            if (delimiter.isNotEmpty()) tag("Delimiter", delimiter)
+            tag("MaxKeys", maxKeys)
+            tag("IsTruncated", listing.truncated)
+            if (v2) {
+                tag("KeyCount", listing.contents.size + listing.prefixes.size)
+                if (token != null) tag("ContinuationToken", token)
+                if (startAfter != null) tag("StartAfter", startAfter)
+                if (listing.truncated && listing.last != null) tag("NextContinuationToken", encodeToken(listing.last))
+            } else {
+                tag("Marker", after)
+                if (listing.truncated && listing.last != null) tag("NextMarker", listing.last)
+            }
+            for (o in listing.contents) {
+                append("<Contents>")
+                tag("Key", o.key)
+                tag("LastModified", isoTime(o.modified))
+                tag("ETag", o.etag)
+                tag("Size", o.size)
+                tag("StorageClass", "STANDARD")
+                append("</Contents>")
+            }
+            for (p in listing.prefixes) {
+                append("<CommonPrefixes>"); tag("Prefix", p); append("</CommonPrefixes>")
+            }
+        })
+    }
+
+    /**
+     * Keys and common prefixes after [after], in key order. With a "/"
+     * delimiter only the one directory the prefix points into is read;
+     * otherwise every directory under the bucket that can hold matching
+     * keys is.
+     */
+    private fun list(bucket: Database.DirectoryEntry, prefix: String, delimiter: String, after: String, maxKeys: Int): Listing {
+        // Common prefixes map to null
+        val items = TreeMap<String, StoredObject?>()
+        if (delimiter == "/") {
+            val folder = prefix.substringBeforeLast('/', "")
+            val namePrefix = prefix.substringAfterLast('/')
+            val keyBase = if (folder.isEmpty()) "" else "$folder/"
+            val directory = directory(if (folder.isEmpty()) bucket.path else bucket.path + "/" + folder)
+            if (directory != null) {
+                for (o in objectsIn(directory, keyBase)) {
+                    if (o.key.startsWith(prefix)) items[o.key] = o
+                }
+                for (child in fileSystem.getChildDirectories(directory.directoryId)) {
+                    if (child.name.startsWith(namePrefix)) items[keyBase + child.name + "/"] = null
+                }
+            }
+        } else {
+            val base = bucket.path.length + 1
+            for (d in fileSystem.getSubtree(bucket.directoryId)) {
+                val keyBase = if (d.directoryId == bucket.directoryId) "" else d.path.substring(base) + "/"
+                if (!keyBase.startsWith(prefix) && !prefix.startsWith(keyBase)) continue
+                for (o in objectsIn(d, keyBase)) {
+                    if (!o.key.startsWith(prefix)) continue
+                    val cut = if (delimiter.isEmpty()) -1 else o.key.indexOf(delimiter, prefix.length)
+                    if (cut >= 0) items.putIfAbsent(o.key.substring(0, cut + delimiter.length), null)
+                    else items[o.key] = o
+                }
+            }
+        }
+
+        val contents = mutableListOf<StoredObject>()
+        val prefixes = mutableListOf<String>()
+        var last: String? = null
+        val remaining = items.tailMap(after, false).entries.iterator()
+        while (remaining.hasNext() && contents.size + prefixes.size < maxKeys) {
+            val (key, o) = remaining.next()
+            if (o == null) prefixes.add(key) else contents.add(o)
+            last = key
+        }
+        return Listing(contents, prefixes, remaining.hasNext() && maxKeys > 0, last)
+    }
+
+    private fun encodeToken(key: String): String =
+        Base64.getUrlEncoder().withoutPadding().encodeToString(key.toByteArray(Charsets.UTF_8))
+
+    private fun decodeToken(token: String): String = try {
+        String(Base64.getUrlDecoder().decode(token), Charsets.UTF_8)
+    } catch (e: IllegalArgumentException) {
+        throw S3Exception(400, "InvalidArgument", "Invalid continuation token")
+    }
+
+    // Reading
+
+    private fun getObject(ctx: Context, bucketName: String, key: String, headOnly: Boolean) {
+        val bucket = bucket(bucketName)
+        val (folder, name) = locate(bucket, key)
+        val found = if (name.isEmpty()) {
+            // A directory reads as an empty marker object
+            directory(folder)?.let { StoredObject(key, 0, it.createdAt, EMPTY_ETAG, "application/x-directory", 0, null) }
+        } else {
+            findObject(bucket, key)
+        }
+        val o = found ?: throw S3Exception(404, "NoSuchKey", "The specified key does not exist")
+
+        var from = 0L
+        var to = o.size - 1
+        val range = ctx.header("Range")?.let { parseRange(ctx, it, o.size) }
+        if (range != null) {
+            from = range.first
+            to = range.second
+            ctx.status(206)
+            ctx.header("Content-Range", "bytes $from-$to/${o.size}")
+        }
+        ctx.header("Accept-Ranges", "bytes")
+        ctx.header("ETag", o.etag)
+        ctx.header("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(o.modified.atZoneSameInstant(ZoneOffset.UTC)))
+        ctx.header("Content-Length", (to - from + 1).toString())
+        ctx.contentType(o.mimeType)
+        if (headOnly || to < from) return
+
+        val out = ctx.res().outputStream
+        val buffer = ByteArray(COPY_BUFFER)
+        var start = 0L
+        for (segment in segments(o)) {
+            val end = start + segment.size
+            if (end > from && start <= to) {
+                copyRange(segment, max(from, start) - start, min(to + 1, end) - start, out, buffer)
+            }
+            start = end
+        }
+        out.flush()
+    }
+
+    /** The inclusive byte range a Range header asks for, or null to send the whole object. */
+    private fun parseRange(ctx: Context, header: String, size: Long): Pair<Long, Long>? {
+        val range = parseByteRange(header, size) ?: return null
+        if (range.isEmpty()) {
+            ctx.header("Content-Range", "bytes */$size")
+            throw S3Exception(416, "InvalidRange", "The requested range is not satisfiable")
+        }
+        return Pair(range.first, range.last)
+    }
+
+    private fun segments(o: StoredObject): List<Segment> {
+        val logical = o.logical
+        if (logical != null) {
+            return fileSystem.getFilePartialsByLogicalFileId(logical.logicalFileId)
+                .sortedBy { it.partNumber }
+                .map { Segment(it.channelId, it.messageId, it.partName, it.partSize) }
+        }
+        if (o.size == 0L) return emptyList()
+        val file = fileSystem.getFileById(o.fileId)
+        return listOf(Segment(file.channelId, file.messageId, file.fileName, o.size))
+    }
+
+    /** Copies bytes [from, to) of a segment, resuming from the current position if the download fails midway. */
+    private fun copyRange(segment: Segment, from: Long, to: Long, out: OutputStream, buffer: ByteArray) {
+        // CDN URLs rather than media proxy URLs, for every file: the CDN serves byte ranges
+        val url = retriever.getFileUrl(segment.channelId, segment.messageId, segment.name, true)
+        var position = from
+        var failures = 0
+        var connection: HttpURLConnection? = null
+        try {
+            while (position < to) {
+                // Only read failures are retried; a write failure means the client went away
+                val n = try {
+                    val c = connection ?: openRange(url, position, to - 1).also { connection = it }
+                    val read = c.inputStream.read(buffer, 0, min(buffer.size.toLong(), to - position).toInt())
+                    if (read < 0) throw EOFException("${segment.name} ended at $position of $to bytes")
+                    read
+                } catch (e: IOException) {
+                    connection?.disconnect()
+                    connection = null
+                    if (++failures >= ATTEMPTS) throw e
+                    println("S3 read of ${segment.name} interrupted at $position bytes, retrying: ${e.message}")
+                    Thread.sleep(1000L * failures)
+                    continue
+                }
+                out.write(buffer, 0, n)
+                position += n
+            }
+        } finally {
+            connection?.disconnect()
+        }
+    }
+
+    // Writing
+
+    private fun putObject(ctx: Context, bucketName: String, key: String) {
+        val bucket = bucket(bucketName)
+        val (folder, name) = locate(bucket, key)
+        if (name.isEmpty()) {
+            body(ctx).use { it.readBytes() }
+            fileSystem.createDirectory(folder)
+            ctx.header("ETag", EMPTY_ETAG)
+            return
+        }
+        val contentType = ctx.header("Content-Type")?.takeIf { it.isNotBlank() } ?: OCTET_STREAM
+        val written = writer().write(body(ctx), folder, name, contentType) { md5 -> checkContentMd5(ctx, md5) }
+        ctx.header("ETag", etag(written.checksum, written.partCount))
+    }
+
+    private fun createUpload(ctx: Context, bucketName: String, key: String) {
+        val bucket = bucket(bucketName)
+        if (locate(bucket, key).second.isEmpty()) throw S3Exception(400, "InvalidArgument", "Cannot upload a directory marker in parts")
+        val uploadId = UUID.randomUUID().toString().replace("-", "")
+        val contentType = ctx.header("Content-Type")?.takeIf { it.isNotBlank() } ?: OCTET_STREAM
+        uploads[uploadId] = MultipartUpload(bucketName, key, contentType, OffsetDateTime.now())
+        ctx.contentType(XML).result(xml("InitiateMultipartUploadResult") {
+            tag("Bucket", bucketName)
+            tag("Key", key)
+            tag("UploadId", uploadId)
+        })
+    }
+
+    private fun uploadPart(ctx: Context, bucketName: String, key: String) {
+        val upload = upload(ctx, bucketName, key)
+        val partNumber = ctx.queryParam("partNumber")?.toIntOrNull()
+        if (partNumber == null || partNumber !in 1..MAX_PARTS) {
+            throw S3Exception(400, "InvalidArgument", "Part number must be an integer between 1 and $MAX_PARTS")
+        }
+
+        val md5 = MessageDigest.getInstance("MD5")
+        writer().stage(body(ctx), md5).use { staged ->
+            val digest = md5.digest()
+            checkContentMd5(ctx, digest)
+            // Part chunks carry no manifest: the object's size and checksum are not known until completion
+            val posted = writer().post(staged.parts) { _, _ -> null }
+            val etag = "\"" + SplitFileWriter.hex(digest) + "\""
+            upload.parts[partNumber] = UploadedPart(etag, posted)
+            ctx.header("ETag", etag)
+        }
+    }
+
+    private fun completeUpload(ctx: Context, bucketName: String, key: String) {
+        val upload = upload(ctx, bucketName, key)
+        val requested = parseXml(ctx).getElementsByTagName("Part")
+        val chunks = mutableListOf<SplitFileWriter.PostedPart>()
+        var previous = 0
+        for (i in 0 until requested.length) {
+            val part = requested.item(i) as Element
+            val number = text(part, "PartNumber")?.toIntOrNull()
+                ?: throw S3Exception(400, "MalformedXML", "Part without a PartNumber")
+            if (number <= previous) throw S3Exception(400, "InvalidPartOrder", "Parts must be listed in ascending order")
+            previous = number
+            val uploaded = upload.parts[number]
+            if (uploaded == null || text(part, "ETag")?.let { normalizeEtag(it) != normalizeEtag(uploaded.etag) } == true) {
+                throw S3Exception(400, "InvalidPart", "Part $number was not uploaded or its ETag does not match")
+            }
+            chunks.addAll(uploaded.chunks)
+        }
+        if (requested.length == 0) throw S3Exception(400, "MalformedXML", "No parts were listed")
+        if (!upload.completing.compareAndSet(false, true)) {
+            throw S3Exception(409, "OperationAborted", "The upload is already being completed")
+        }
+
+        // The upload stays listed until the file is recorded, so a failed completion can be retried
+        val logicalFileId = try {
+            val bucket = bucket(bucketName)
+            val (folder, name) = locate(bucket, key)
+            writer().record(fileSystem.createDirectory(folder), name, upload.contentType,
+                chunks.sumOf { it.size }, null, chunks)
+        } catch (e: Exception) {
+            upload.completing.set(false)
+            throw e
+        }
+        uploads.remove(ctx.queryParam("uploadId"), upload)
+        ctx.contentType(XML).result(xml("CompleteMultipartUploadResult") {
+            tag("Location", "/$bucketName/$key")
+            tag("Bucket", bucketName)
+            tag("Key", key)
+            tag("ETag", etag("logical:$logicalFileId", chunks.size))
+        })
+    }
+
+    private fun abortUpload(ctx: Context, bucketName: String, key: String) {
+        upload(ctx, bucketName, key)
+        // Parts already posted stay in the channel, like any split upload that is abandoned
+        uploads.remove(ctx.queryParam("uploadId"))
+    }
+
+    private fun listUploads(ctx: Context, bucketName: String) {
+        bucket(bucketName)
+        val prefix = ctx.queryParam("prefix") ?: ""
+        val pending = uploads.entries.filter { it.value.bucket == bucketName && it.value.key.startsWith(prefix) }
+            .sortedWith(compareBy({ it.value.key }, { it.key }))
+        ctx.contentType(XML).result(xml("ListMultipartUploadsResult") {
+            tag("Bucket", bucketName)
+            tag("Prefix", prefix)
+            tag("IsTruncated", false)
+            for ((id, upload) in pending) {
+                append("<Upload>")
+                tag("Key", upload.key)
+                tag("UploadId", id)
+                tag("StorageClass", "STANDARD")
+                tag("Initiated", isoTime(upload.initiated))
+                append("</Upload>")
+            }
+        })
+    }
+
+    private fun upload(ctx: Context, bucketName: String, key: String): MultipartUpload {
+        val upload = uploads[ctx.queryParam("uploadId") ?: ""]
+        if (upload == null || upload.bucket != bucketName || upload.key != key) {
+            throw S3Exception(404, "NoSuchUpload", "The specified upload does not exist")
+        }
+        return upload
+    }
+
+    private fun writer(): SplitFileWriter =
+        writer ?: throw S3Exception(501, "NotImplemented", "Uploads need WEBHOOKS_TXT to point at a webhooks file")
+
+    private fun body(ctx: Context): InputStream {
+        val input = ctx.req().inputStream
+        return if (AwsChunkedInputStream.isUsedBy(ctx.header("x-amz-content-sha256"), ctx.header("Content-Encoding"))) {
+            AwsChunkedInputStream(input)
+        } else {
+            input
+        }
+    }
+
+    private fun checkContentMd5(ctx: Context, digest: ByteArray) {
+        val expected = ctx.header("Content-MD5") ?: return
+        if (expected != Base64.getEncoder().encodeToString(digest)) {
+            throw S3Exception(400, "BadDigest", "The Content-MD5 you specified did not match what was received")
+        }
+    }
+
+    // Deleting
+
+    private fun deleteObject(bucketName: String, key: String) {
+        val bucket = bucket(bucketName)
+        val (folder, name) = locate(bucket, key)
+        if (name.isEmpty()) {
+            // A marker can only go while the directory is empty, as on S3 where the keys under it would remain
+            val directory = directory(folder)
+            if (directory != null && directory.directoryId != bucket.directoryId && isEmpty(directory)) {
+                fileSystem.deleteDirectory(directory.directoryId)
+            }
+            return
+        }
+        val o = findObject(bucket, key) ?: return
+        if (o.logical != null) fileSystem.deleteLogicalFile(o.logical.logicalFileId) else fileSystem.deleteFile(o.fileId)
+    }
+
+    private fun deleteObjects(ctx: Context, bucketName: String) {
+        val bucket = bucket(bucketName)
+        val request = parseXml(ctx)
+        val quiet = text(request.documentElement, "Quiet")?.trim() == "true"
+        val objects = request.getElementsByTagName("Object")
+
+        val deleted = mutableListOf<String>()
+        val errors = mutableListOf<Triple<String, String, String>>()
+        val fileIds = mutableListOf<Int>()
+        val logicalFileIds = mutableListOf<Long>()
+        for (i in 0 until objects.length) {
+            val key = text(objects.item(i) as Element, "Key") ?: continue
+            try {
+                val o = findObject(bucket, key)
+                when {
+                    o == null -> {}
+                    o.logical != null -> logicalFileIds.add(o.logical.logicalFileId)
+                    else -> fileIds.add(o.fileId)
+                }
+                // Keys that do not exist count as deleted, as on S3
+                deleted.add(key)
+            } catch (e: S3Exception) {
+                errors.add(Triple(key, e.code, e.message ?: e.code))
+            }
+        }
+        if (fileIds.isNotEmpty() || logicalFileIds.isNotEmpty()) fileSystem.deleteFiles(fileIds, logicalFileIds)
+
+        ctx.contentType(XML).result(xml("DeleteResult") {
+            if (!quiet) {
+                for (key in deleted) {
+                    append("<Deleted>"); tag("Key", key); append("</Deleted>")
+                }
+            }
+            for ((key, code, message) in errors) {
+                append("<Error>"); tag("Key", key); tag("Code", code); tag("Message", message); append("</Error>")
+            }
+        })
+    }
+
+    // XML
+
+    private fun parseXml(ctx: Context): org.w3c.dom.Document {
+        val factory = DocumentBuilderFactory.newInstance()
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true)
+        factory.isXIncludeAware = false
+        factory.isExpandEntityReferences = false
+        return try {
+            body(ctx).use { factory.newDocumentBuilder().parse(it) }
+        } catch (e: Exception) {
+            throw S3Exception(400, "MalformedXML", "The XML you provided was not well-formed: ${e.message}")
+        }
+    }
+
+    private fun text(parent: Element, name: String): String? {
+        val nodes = parent.getElementsByTagName(name)
+        return if (nodes.length == 0) null else nodes.item(0).textContent
+    }
+
+    private fun xml(root: String, body: StringBuilder.() -> Unit): String {
+        val out = StringBuilder(512)
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<").append(root).append(" xmlns=\"").append(NAMESPACE).append("\">")
+        out.body()
+        out.append("</").append(root).append('>')
+        return out.toString()
+    }
+
+    private fun StringBuilder.tag(name: String, value: Any) {
+        append('<').append(name).append('>')
+        Template.escapeHtml(this, value.toString())
+        append("</").append(name).append('>')
+    }
+
+    private fun error(ctx: Context, status: Int, code: String, message: String?) {
+        ctx.status(status).contentType(XML)
+        if (ctx.method() == HandlerType.HEAD) return
+        val out = StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error>")
+        out.tag("Code", code)
+        out.tag("Message", message ?: code)
+        out.tag("Resource", ctx.path())
+        out.append("</Error>")
+        ctx.result(out.toString())
+    }
+
+    private fun has(ctx: Context, param: String) = ctx.queryParamMap().containsKey(param)
+
+    private fun isoTime(time: OffsetDateTime): String = ISO_MILLIS.format(time)
+
+    // Multipart-style ETags, so that clients do not compare them with the MD5 of the data
+    private fun etag(seed: String, parts: Int): String =
+        "\"" + SplitFileWriter.hex(MessageDigest.getInstance("MD5").digest(seed.toByteArray(Charsets.UTF_8))) +
+            "-" + max(1, parts) + "\""
+
+    private fun normalizeEtag(etag: String) = etag.trim().removeSurrounding("\"")
+
+    companion object {
+        const val MAX_KEYS = 1000
+        const val MAX_PARTS = 10000
+        const val ATTEMPTS = 3
+        const val COPY_BUFFER = 64 * 1024
+
+        private const val ROOT_ID = 1
+        private const val OWNER = "nitro-fs"
+        private const val XML = "application/xml"
+        private const val OCTET_STREAM = "application/octet-stream"
+        private const val NAMESPACE = "http://s3.amazonaws.com/doc/2006-03-01/"
+        private const val EMPTY_ETAG = "\"d41d8cd98f00b204e9800998ecf8427e\""
+        private val ISO_MILLIS = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC)
+    }
+}
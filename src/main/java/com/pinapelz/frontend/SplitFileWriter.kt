@@ -0,0 +1,168 @@
+package com.pinapelz.frontend
+
+import com.pinapelz.Database
+import com.pinapelz.FileSystem
+import com.pinapelz.PartManifest
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.UUID
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import kotlin.math.min
+
+/**
+ * Stores streamed request bodies as split files. A body is staged on disk
+ * in parts of at most [PART_BYTES], the parts are posted through the
+ * webhook pool in parallel, and the split file is recorded once every part
+ * is posted, so a failed upload leaves nothing half-written in the index.
+ */
+class SplitFileWriter(private val fileSystem: FileSystem, private val webhookManager: WebhookManager) {
+
+    /** A part staged on disk, waiting to be posted. */
+    class StagedPart internal constructor(val path: Path, val size: Long, val checksum: String)
+
+    /** A part that has been posted through a webhook. */
+    class PostedPart internal constructor(
+        val channelId: Long, val messageId: Long, val name: String, val size: Long, val checksum: String
+    )
+
+    /** A staged body. Closing it deletes the staged parts. */
+    class Staged internal constructor(private val directory: Path, val parts: List<StagedPart>) : Closeable {
+        val size: Long get() = parts.sumOf { it.size }
+
+        override fun close() {
+            directory.toFile().deleteRecursively()
+        }
+    }
+
+    class Written(val logicalFileId: Long, val size: Long, val partCount: Int, val checksum: String)
+
+    // One thread per webhook: more would only wait on the webhook cooldowns
+    private val posters: ExecutorService = Executors.newFixedThreadPool(webhookManager.size) { r ->
+        Thread(r, "nitro-fs-part-upload").apply { isDaemon = true }
+    }
+
+    /**
+     * Stages, posts and records [body] as [name] in the directory at
+     * [directoryPath], creating the directory and replacing any file of that
+     * name. [verify] sees the MD5 of the body before anything is posted.
+     */
+    fun write(body: InputStream, directoryPath: String, name: String, mimeType: String,
+              verify: (ByteArray) -> Unit = {}): Written {
+        val md5 = MessageDigest.getInstance("MD5")
+        val sha256 = MessageDigest.getInstance("SHA-256")
+        stage(body, md5, sha256).use { staged ->
+            verify(md5.digest())
+            val checksum = hex(sha256.digest())
+            val size = staged.size
+            // Manifests let ChannelReindexer rebuild the file from channel history
+            val posted = post(staged.parts) { index, part ->
+                PartManifest(directoryPath, name, null, mimeType, size, staged.parts.size, index + 1,
+                    CODEC, checksum, part.checksum).toMessageContent()
+            }
+            val logicalFileId = record(fileSystem.createDirectory(directoryPath), name, mimeType, size, checksum, posted)
+            return Written(logicalFileId, size, posted.size, checksum)
+        }
+    }
+
+    /** Reads [body] into part files, feeding every byte to [digests] too. */
+    fun stage(body: InputStream, vararg digests: MessageDigest): Staged {
+        val directory = Files.createTempDirectory("nitro-fs-upload-")
+        // Part names must be unique within a directory, and Discord rewrites unusual attachment names
+        val token = UUID.randomUUID().toString().replace("-", "")
+        val parts = mutableListOf<StagedPart>()
+        val buffer = ByteArray(COPY_BUFFER)
+        try {
+            body.use { input ->
+                var ended = false
+                while (!ended) {
+                    val path = directory.resolve("upload-$token.part${parts.size + 1}")
+                    val digest = MessageDigest.getInstance("SHA-256")
+                    var size = 0L
+                    Files.newOutputStream(path).use { out ->
+                        while (size < PART_BYTES) {
+                            val n = input.read(buffer, 0, min(buffer.size.toLong(), PART_BYTES - size).toInt())
+                            if (n < 0) {
+                                ended = true
+                                break
+                            }
+                            out.write(buffer, 0, n)
+                            digest.update(buffer, 0, n)
+                            for (d in digests) d.update(buffer, 0, n)
+                            size += n
+                        }
+                    }
+                    if (size == 0L) {
+                        Files.delete(path)
+                        break
+                    }
+                    parts.add(StagedPart(path, size, hex(digest.digest())))
+                }
+            }
+        } catch (e: Exception) {
+            directory.toFile().deleteRecursively()
+            throw e
+        }
+        return Staged(directory, parts)
+    }
+
+    /** Posts the parts in parallel, each with the message content [manifest] returns. */
+    fun post(parts: List<StagedPart>, manifest: (Int, StagedPart) -> String?): List<PostedPart> {
+        val futures: List<Future<PostedPart>> = parts.mapIndexed { index, part ->
+            posters.submit<PostedPart> { post(part, manifest(index, part)) }
+        }
+        try {
+            return futures.map { it.get() }
+        } catch (e: ExecutionException) {
+            futures.forEach { it.cancel(true) }
+            throw e.cause ?: e
+        }
+    }
+
+    private fun post(part: StagedPart, content: String?): PostedPart {
+        var error: String? = null
+        for (attempt in 1..ATTEMPTS) {
+            val result = webhookManager.uploadFile(part.path, content)
+            if (result.success && result.channelId != null && result.messageId != null) {
+                return PostedPart(result.channelId.toLong(), result.messageId.toLong(),
+                    part.path.fileName.toString(), part.size, part.checksum)
+            }
+            error = result.error
+            println("Upload of ${part.path.fileName} failed on attempt $attempt: $error")
+            if (attempt < ATTEMPTS) Thread.sleep(1000L * attempt)
+        }
+        throw IOException("Failed to upload ${part.path.fileName} after $ATTEMPTS attempts: $error")
+    }
+
+    /** Records posted parts as a split file named [name], replacing whatever was stored under that name. Returns its logical file ID. */
+    fun record(directoryId: Int, name: String, mimeType: String, totalSize: Long, checksum: String?,
+               parts: List<PostedPart>): Long {
+        val records = parts.mapIndexed { index, p ->
+            Database.NewPartialRecord(0, p.channelId, p.messageId, directoryId, p.name, index + 1, p.size,
+                name, null, mimeType, p.checksum)
+        }
+        // One transaction, so a failure midway leaves the previous version in place
+        return fileSystem.replaceLogicalFile(directoryId, name, null, mimeType, totalSize, CODEC, checksum, records)
+    }
+
+    companion object {
+        /** Largest part posted through a webhook, the same as the splitter's webhook uploads. */
+        const val PART_BYTES = 10L * 1024 * 1024
+        const val ATTEMPTS = 3
+        const val COPY_BUFFER = 64 * 1024
+        private const val CODEC = "raw"
+        private const val HEX = "0123456789abcdef"
+
+        fun hex(bytes: ByteArray): String {
+            val out = StringBuilder(bytes.size * 2)
+            for (b in bytes) out.append(HEX[(b.toInt() shr 4) and 0xF]).append(HEX[b.toInt() and 0xF])
+            return out.toString()
+        }
+    }
+}
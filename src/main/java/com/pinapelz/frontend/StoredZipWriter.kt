@@ -0,0 +1,233 @@
+package com.pinapelz.frontend
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.OutputStream
+import java.time.OffsetDateTime
+import java.time.ZoneId
+import java.util.zip.CRC32
+
+/**
+ * Writes a ZIP archive of uncompressed (stored) entries straight to a
+ * stream. [java.util.zip.ZipOutputStream] needs the CRC of a stored entry
+ * before its data, which would mean buffering every file; this writer puts
+ * the CRC and sizes in a data descriptor after the data instead.
+ *
+ * ZIP64 records are written where needed: for entries announced as 4 GB or
+ * larger, and in the central directory once offsets or the entry count
+ * outgrow the classic fields.
+ */
+class StoredZipWriter(target: OutputStream) : Closeable {
+
+    private class CentralEntry(
+        val name: ByteArray, val dosTime: Int, val dosDate: Int, val zip64: Boolean,
+        val crc: Long, val size: Long, val offset: Long
+    )
+
+    private val out = object : OutputStream() {
+        var count = 0L
+        override fun write(b: Int) { target.write(b); count++ }
+        override fun write(b: ByteArray, off: Int, len: Int) { target.write(b, off, len); count += len }
+        override fun flush() = target.flush()
+        override fun close() = target.close()
+    }
+    private val header = ByteArray(64)
+    private val entries = ArrayList<CentralEntry>()
+    private var open: EntryStream? = null
+    private var finished = false
+
+    /**
+     * Starts an entry and returns the stream for its data, which must be
+     * closed before the next entry. [expectedSize] only decides whether the
+     * entry is written in ZIP64 form; the actual size is whatever is written.
+     */
+    fun putEntry(name: String, modified: OffsetDateTime, expectedSize: Long): OutputStream {
+        check(open == null && !finished) { "Previous entry is still open" }
+        val nameBytes = name.toByteArray(Charsets.UTF_8)
+        val local = modified.atZoneSameInstant(ZoneId.systemDefault())
+        val dosTime = (local.hour shl 11) or (local.minute shl 5) or (local.second / 2)
+        val dosDate = if (local.year < 1980) (1 shl 5) or 1
+                      else ((local.year - 1980) shl 9) or (local.monthValue shl 5) or local.dayOfMonth
+        val zip64 = expectedSize >= MAX_32
+
+        val offset = out.count
+        var p = 0
+        p = int32(p, LOCAL_HEADER)
+        p = int16(p, if (zip64) VERSION_ZIP64 else VERSION_DESCRIPTOR)
+        p = int16(p, FLAGS)
+        p = int16(p, 0) // stored
+        p = int16(p, dosTime)
+        p = int16(p, dosDate)
+        p = int32(p, 0) // CRC follows in the descriptor
+        p = int32(p, if (zip64) MAX_32 else 0L)
+        p = int32(p, if (zip64) MAX_32 else 0L)
+        p = int16(p, nameBytes.size)
+        p = int16(p, if (zip64) 20 else 0)
+        out.write(header, 0, p)
+        out.write(nameBytes)
+        if (zip64) {
+            p = int16(0, ZIP64_EXTRA)
+            p = int16(p, 16)
+            p = int64(p, 0)
+            p = int64(p, 0)
+            out.write(header, 0, p)
+        }
+
+        return EntryStream(nameBytes, dosTime, dosDate, zip64, offset).also { open = it }
+    }
+
+    private inner class EntryStream(
+        val name: ByteArray, val dosTime: Int, val dosDate: Int, val zip64: Boolean, val offset: Long
+    ) : OutputStream() {
+        val crc = CRC32()
+        var size = 0L
+        var closed = false
+
+        override fun write(b: Int) {
+            crc.update(b)
+            out.write(b)
+            size++
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            crc.update(b, off, len)
+            out.write(b, off, len)
+            size += len
+        }
+
+        override fun close() {
+            if (closed) return
+            closed = true
+            if (!zip64 && size >= MAX_32) {
+                throw IOException("Entry ${String(name, Charsets.UTF_8)} grew past 4 GB but was announced as smaller")
+            }
+            var p = int32(0, DATA_DESCRIPTOR)
+            p = int32(p, crc.value)
+            if (zip64) {
+                p = int64(p, size)
+                p = int64(p, size)
+            } else {
+                p = int32(p, size)
+                p = int32(p, size)
+            }
+            out.write(header, 0, p)
+            entries.add(CentralEntry(name, dosTime, dosDate, zip64, crc.value, size, offset))
+            open = null
+        }
+    }
+
+    /** Writes the central directory. The underlying stream is left open. */
+    fun finish() {
+        if (finished) return
+        check(open == null) { "Last entry is still open" }
+        finished = true
+
+        val directoryOffset = out.count
+        for (e in entries) {
+            val bigSize = e.size >= MAX_32
+            val bigOffset = e.offset >= MAX_32
+            val extraLength = (if (bigSize) 16 else 0) + (if (bigOffset) 8 else 0)
+            var p = 0
+            p = int32(p, CENTRAL_HEADER)
+            // Made by Unix: some unzip builds read names from DOS hosts as CP437 despite the UTF-8 flag
+            p = int16(p, (3 shl 8) or VERSION_ZIP64)
+            p = int16(p, if (e.zip64) VERSION_ZIP64 else VERSION_DESCRIPTOR)
+            p = int16(p, FLAGS)
+            p = int16(p, 0)
+            p = int16(p, e.dosTime)
+            p = int16(p, e.dosDate)
+            p = int32(p, e.crc)
+            p = int32(p, if (bigSize) MAX_32 else e.size)
+            p = int32(p, if (bigSize) MAX_32 else e.size)
+            p = int16(p, e.name.size)
+            p = int16(p, if (extraLength > 0) extraLength + 4 else 0)
+            p = int16(p, 0) // comment
+            p = int16(p, 0) // disk
+            p = int16(p, 0) // internal attributes
+            p = int32(p, 0x81A4 shl 16) // regular file, rw-r--r--
+            p = int32(p, if (bigOffset) MAX_32 else e.offset)
+            out.write(header, 0, p)
+            out.write(e.name)
+            if (extraLength > 0) {
+                p = int16(0, ZIP64_EXTRA)
+                p = int16(p, extraLength)
+                if (bigSize) {
+                    p = int64(p, e.size)
+                    p = int64(p, e.size)
+                }
+                if (bigOffset) p = int64(p, e.offset)
+                out.write(header, 0, p)
+            }
+        }
+        val directorySize = out.count - directoryOffset
+
+        if (entries.size >= 0xFFFF || directoryOffset >= MAX_32 || directorySize >= MAX_32) {
+            val zip64End = out.count
+            var p = int32(0, ZIP64_END)
+            p = int64(p, 44) // size of the rest of this record
+            p = int16(p, VERSION_ZIP64)
+            p = int16(p, VERSION_ZIP64)
+            p = int32(p, 0)
+            p = int32(p, 0)
+            p = int64(p, entries.size.toLong())
+            p = int64(p, entries.size.toLong())
+            out.write(header, 0, p)
+            p = int64(0, directorySize)
+            p = int64(p, directoryOffset)
+            p = int32(p, ZIP64_LOCATOR)
+            p = int32(p, 0)
+            p = int64(p, zip64End)
+            p = int32(p, 1)
+            out.write(header, 0, p)
+        }
+
+        var p = int32(0, END)
+        p = int16(p, 0)
+        p = int16(p, 0)
+        p = int16(p, minOf(entries.size, 0xFFFF))
+        p = int16(p, minOf(entries.size, 0xFFFF))
+        p = int32(p, minOf(directorySize, MAX_32))
+        p = int32(p, minOf(directoryOffset, MAX_32))
+        p = int16(p, 0)
+        out.write(header, 0, p)
+        out.flush()
+    }
+
+    override fun close() {
+        finish()
+        out.close()
+    }
+
+    private fun int16(p: Int, v: Int): Int {
+        header[p] = v.toByte()
+        header[p + 1] = (v ushr 8).toByte()
+        return p + 2
+    }
+
+    private fun int32(p: Int, v: Long): Int {
+        for (i in 0 until 4) header[p + i] = (v ushr (8 * i)).toByte()
+        return p + 4
+    }
+
+    private fun int32(p: Int, v: Int): Int = int32(p, v.toLong() and 0xFFFFFFFFL)
+
+    private fun int64(p: Int, v: Long): Int {
+        for (i in 0 until 8) header[p + i] = (v ushr (8 * i)).toByte()
+        return p + 8
+    }
+
+    private companion object {
+        const val LOCAL_HEADER = 0x04034b50
+        const val DATA_DESCRIPTOR = 0x08074b50
+        const val CENTRAL_HEADER = 0x02014b50
+        const val ZIP64_END = 0x06064b50
+        const val ZIP64_LOCATOR = 0x07064b50
+        const val END = 0x06054b50
+        const val ZIP64_EXTRA = 0x0001
+        const val VERSION_DESCRIPTOR = 20
+        const val VERSION_ZIP64 = 45
+        // Sizes follow in a data descriptor, names are UTF-8
+        const val FLAGS = 0x0008 or 0x0800
+        const val MAX_32 = 0xFFFFFFFFL
+    }
+}
@@ -0,0 +1,107 @@
+package com.pinapelz.frontend
+
+/**
+ * A template parsed once into literal segments and slots, rendered by
+ * appending straight to the output. `{{name}}` is HTML-escaped,
+ * `{{name|js}}` is escaped for a quoted JavaScript string inside an HTML
+ * attribute, and `{{name|raw}}` is written as is. A [Fragment] value is
+ * asked to write itself, so nested templates render into the same output
+ * without intermediate strings.
+ */
+class Template(source: String) {
+
+    fun interface Fragment {
+        fun writeTo(out: Appendable)
+    }
+
+    private enum class Escape { HTML, JS, RAW }
+
+    private val literals: Array<String>
+    private val slotNames: Array<String>
+    private val slotEscapes: Array<Escape>
+
+    init {
+        val literals = mutableListOf<String>()
+        val names = mutableListOf<String>()
+        val escapes = mutableListOf<Escape>()
+        var last = 0
+        for (match in SLOT.findAll(source)) {
+            literals.add(source.substring(last, match.range.first))
+            names.add(match.groupValues[1])
+            escapes.add(when (match.groupValues[2]) {
+                "js" -> Escape.JS
+                "raw" -> Escape.RAW
+                else -> Escape.HTML
+            })
+            last = match.range.last + 1
+        }
+        literals.add(source.substring(last))
+        this.literals = literals.toTypedArray()
+        this.slotNames = names.toTypedArray()
+        this.slotEscapes = escapes.toTypedArray()
+    }
+
+    fun render(out: Appendable, values: (String) -> Any?) {
+        for (i in slotNames.indices) {
+            out.append(literals[i])
+            when (val value = values(slotNames[i])) {
+                null -> {}
+                is Fragment -> value.writeTo(out)
+                is CharSequence -> write(out, value, slotEscapes[i])
+                else -> write(out, value.toString(), slotEscapes[i])
+            }
+        }
+        out.append(literals[literals.size - 1])
+    }
+
+    fun render(values: (String) -> Any?): String {
+        val sb = StringBuilder()
+        render(sb, values)
+        return sb.toString()
+    }
+
+    private fun write(out: Appendable, s: CharSequence, escape: Escape) {
+        when (escape) {
+            Escape.RAW -> out.append(s)
+            Escape.HTML -> escapeHtml(out, s)
+            Escape.JS -> escapeJs(out, s)
+        }
+    }
+
+    companion object {
+        private val SLOT = Regex("""\{\{\s*([A-Za-z0-9_]+)(?:\|(html|js|raw))?\s*\}\}""")
+
+        fun escapeHtml(out: Appendable, s: CharSequence, from: Int = 0, to: Int = s.length) {
+            var start = from
+            for (i in from until to) {
+                val replacement = when (s[i]) {
+                    '&' -> "&amp;"
+                    '<' -> "&lt;"
+                    '>' -> "&gt;"
+                    '"' -> "&quot;"
+                    '\'' -> "&#39;"
+                    else -> continue
+                }
+                out.append(s, start, i).append(replacement)
+                start = i + 1
+            }
+            out.append(s, start, to)
+        }
+
+        // Unicode escapes contain nothing the surrounding HTML attribute would interpret
+        fun escapeJs(out: Appendable, s: CharSequence) {
+            var start = 0
+            for (i in 0 until s.length) {
+                val c = s[i]
+                if (c >= ' ' && c != '\\' && c != '\'' && c != '"' && c != '&' && c != '<' && c != '>') continue
+                out.append(s, start, i).append("\\u")
+                val code = c.code
+                for (shift in 12 downTo 0 step 4) out.append(HEX[(code shr shift) and 0xF])
+                start = i + 1
+            }
+            out.append(s, start, s.length)
+        }
+
+        private const val HEX = "0123456789abcdef"
+    }
+}
@@ -0,0 +1,245 @@
+package com.pinapelz.frontend
+
+import java.awt.Color
+import java.awt.RenderingHints
+import java.awt.image.BufferedImage
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URI
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import javax.imageio.IIOImage
+import javax.imageio.ImageIO
+import javax.imageio.ImageWriteParam
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * Small JPEG previews of image files, generated on first request and kept in
+ * a directory capped at [maxBytes], evicting the least recently served
+ * first. Originals are decoded with subsampling, so a large photo is never
+ * held in memory at full resolution, and only a few are decoded at once.
+ */
+class ThumbnailCache(private val directory: Path, private val maxBytes: Long) {
+
+    private val entries = LinkedHashMap<String, Long>(256, 0.75f, true)
+    private var totalBytes = 0L
+    private val inFlight = ConcurrentHashMap<String, CompletableFuture<ByteArray?>>()
+    // Sources that could not be read as images, so they are not downloaded again on every view.
+    // Capped, as every file with an image MIME type can end up here
+    private val unreadable = object : LinkedHashMap<String, Boolean>(256, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Boolean>) = size > MAX_UNREADABLE
+    }
+    private val decoders = Semaphore(MAX_CONCURRENT_DECODES)
+
+    init {
+        Files.createDirectories(directory)
+        Files.list(directory).use { files ->
+            files.sorted(compareBy<Path> { Files.getLastModifiedTime(it) }).forEach { file ->
+                val name = file.fileName.toString()
+                if (name.endsWith(".jpg")) {
+                    val size = Files.size(file)
+                    entries[name] = size
+                    totalBytes += size
+                } else {
+                    // Left over from a generation that did not finish
+                    Files.deleteIfExists(file)
+                }
+            }
+        }
+        synchronized(this) { evict() }
+    }
+
+    /**
+     * The thumbnail for [key], generated from the URL returned by [source]
+     * if it is not cached yet. Returns null if the source is not an image
+     * ImageIO can read or is larger than [MAX_SOURCE_BYTES].
+     */
+    fun get(key: String, source: () -> String): ByteArray? {
+        val name = "$key.jpg"
+        read(name)?.let { return it }
+        if (synchronized(unreadable) { unreadable[name] != null }) return null
+
+        val future = CompletableFuture<ByteArray?>()
+        inFlight.putIfAbsent(name, future)?.let { existing ->
+            try {
+                return existing.join()
+            } catch (e: CompletionException) {
+                throw e.cause ?: e
+            }
+        }
+        try {
+            // Another request may have finished it between the read and claiming it
+            val thumbnail = read(name) ?: generate(name, source)
+            future.complete(thumbnail)
+            return thumbnail
+        } catch (e: Exception) {
+            future.completeExceptionally(e)
+            throw e
+        } finally {
+            inFlight.remove(name)
+        }
+    }
+
+    private fun read(name: String): ByteArray? {
+        synchronized(this) {
+            if (entries[name] == null) return null
+        }
+        return try {
+            Files.readAllBytes(directory.resolve(name))
+        } catch (e: NoSuchFileException) {
+            // Evicted since the lookup
+            null
+        }
+    }
+
+    private fun generate(name: String, source: () -> String): ByteArray? {
+        decoders.acquire()
+        try {
+            val original = Files.createTempFile(directory, "source-", ".tmp")
+            try {
+                val thumbnail = if (download(source(), original)) render(original) else null
+                if (thumbnail == null) {
+                    synchronized(unreadable) { unreadable[name] = true }
+                    return null
+                }
+
+                val staged = Files.createTempFile(directory, "thumb-", ".tmp")
+                Files.write(staged, thumbnail)
+                Files.move(staged, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+                synchronized(this) {
+                    entries.put(name, thumbnail.size.toLong())?.let { totalBytes -= it }
+                    totalBytes += thumbnail.size
+                    evict()
+                }
+                return thumbnail
+            } finally {
+                Files.deleteIfExists(original)
+            }
+        } finally {
+            decoders.release()
+        }
+    }
+
+    private fun evict() {
+        val it = entries.entries.iterator()
+        while (totalBytes > maxBytes && it.hasNext()) {
+            val eldest = it.next()
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.key))
+            } catch (e: IOException) {
+                println("Failed to evict thumbnail ${eldest.key}: ${e.message}")
+            }
+            totalBytes -= eldest.value
+            it.remove()
+        }
+    }
+
+    /** Copies the URL into [target]; false if it is larger than [MAX_SOURCE_BYTES]. */
+    private fun download(url: String, target: Path): Boolean {
+        val connection = URI(url).toURL().openConnection() as HttpURLConnection
+        connection.setRequestProperty("User-Agent", "Mozilla/5.0")
+        connection.connectTimeout = 30000
+        connection.readTimeout = 30000
+        try {
+            if (connection.responseCode != 200) {
+                throw IOException("HTTP ${connection.responseCode}: ${connection.responseMessage}")
+            }
+            if (connection.contentLengthLong > MAX_SOURCE_BYTES) return false
+
+            connection.inputStream.use { input ->
+                Files.newOutputStream(target).use { output ->
+                    val buffer = ByteArray(64 * 1024)
+                    var copied = 0L
+                    while (true) {
+                        val n = input.read(buffer)
+                        if (n < 0) break
+                        copied += n
+                        if (copied > MAX_SOURCE_BYTES) return false
+                        output.write(buffer, 0, n)
+                    }
+                }
+            }
+            return true
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    private fun render(file: Path): ByteArray? {
+        val input = ImageIO.createImageInputStream(file.toFile()) ?: return null
+        input.use {
+            val readers = ImageIO.getImageReaders(input)
+            if (!readers.hasNext()) return null
+            val reader = readers.next()
+            try {
+                reader.input = input
+                val param = reader.defaultReadParam
+                // Decoding at twice the thumbnail size is plenty for a smooth downscale
+                val step = max(1, max(reader.getWidth(0), reader.getHeight(0)) / (SIZE * 2))
+                param.setSourceSubsampling(step, step, 0, 0)
+                val image = reader.read(0, param)
+
+                val scale = min(1.0, SIZE.toDouble() / max(image.width, image.height))
+                val width = max(1, (image.width * scale).roundToInt())
+                val height = max(1, (image.height * scale).roundToInt())
+                val thumbnail = BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+                val g = thumbnail.createGraphics()
+                try {
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+                    // JPEG has no alpha, so transparent images get a background to sit on
+                    g.color = Color.WHITE
+                    g.fillRect(0, 0, width, height)
+                    g.drawImage(image, 0, 0, width, height, null)
+                } finally {
+                    g.dispose()
+                }
+                return encodeJpeg(thumbnail)
+            } catch (e: IOException) {
+                println("Failed to decode image for thumbnail: ${e.message}")
+                return null
+            } finally {
+                reader.dispose()
+            }
+        }
+    }
+
+    private fun encodeJpeg(image: BufferedImage): ByteArray {
+        val writer = ImageIO.getImageWritersByFormatName("jpeg").next()
+        val bytes = ByteArrayOutputStream()
+        try {
+            ImageIO.createImageOutputStream(bytes).use { output ->
+                writer.output = output
+                val param = writer.defaultWriteParam
+                param.compressionMode = ImageWriteParam.MODE_EXPLICIT
+                param.compressionQuality = JPEG_QUALITY
+                writer.write(null, IIOImage(image, null, null), param)
+            }
+        } finally {
+            writer.dispose()
+        }
+        return bytes.toByteArray()
+    }
+
+    companion object {
+        /** Longest edge of a thumbnail, in pixels. */
+        const val SIZE = 256
+        const val JPEG_QUALITY = 0.8f
+        const val MAX_SOURCE_BYTES = 50L * 1024 * 1024
+        const val MAX_CONCURRENT_DECODES = 4
+        const val MAX_UNREADABLE = 10_000
+
+        private val READABLE_TYPES = ImageIO.getReaderMIMETypes().toHashSet()
+
+        /** Whether files of this MIME type can get a thumbnail. */
+        fun supports(mimeType: String?): Boolean = mimeType != null && mimeType in READABLE_TYPES
+    }
+}
@@ -0,0 +1,325 @@
+package com.pinapelz.frontend
+
+import com.pinapelz.Database
+import com.pinapelz.FileSystem
+import jakarta.servlet.http.HttpServlet
+import jakarta.servlet.http.HttpServletRequest
+import jakarta.servlet.http.HttpServletResponse
+import java.io.BufferedWriter
+import java.io.OutputStreamWriter
+import java.net.URLConnection
+import java.net.URLEncoder
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * WebDAV (class 1) over the index at [PREFIX], so desktops and media
+ * players can mount the file tree. Directory listings are answered from
+ * the metadata cache, and file reads go through [BlockCache], so a seek
+ * only fetches the blocks it lands on. PUT stores split files through
+ * [SplitFileWriter], like the S3 gateway.
+ *
+ * Locking (class 2) is not offered, so clients that require it, such as
+ * Finder and Windows Explorer, mount the tree read-only.
+ */
+class WebDavServlet(
+    private val fileSystem: FileSystem,
+    private val blocks: BlockCache,
+    private val writer: SplitFileWriter?
+) : HttpServlet() {
+
+    private class DavException(val status: Int, message: String) : RuntimeException(message)
+
+    private sealed class Resource {
+        class Collection(val directory: Database.DirectoryEntry) : Resource()
+
+        /** A plain file, or a split file if [logical] is set. */
+        class File(
+            val name: String,
+            val size: Long,
+            val created: OffsetDateTime,
+            val mimeType: String,
+            val etag: String,
+            val fileId: Int,
+            val logical: Database.LogicalFileEntry?
+        ) : Resource()
+    }
+
+    override fun service(req: HttpServletRequest, resp: HttpServletResponse) {
+        try {
+            when (req.method) {
+                "OPTIONS" -> {
+                    resp.setHeader("DAV", "1")
+                    resp.setHeader("MS-Author-Via", "DAV")
+                    resp.setHeader("Allow", ALLOW)
+                }
+                "PROPFIND" -> propfind(req, resp)
+                "GET" -> get(req, resp, true)
+                "HEAD" -> get(req, resp, false)
+                "PUT" -> put(req, resp)
+                "DELETE" -> delete(req, resp)
+                "MKCOL" -> mkcol(req, resp)
+                else -> {
+                    resp.setHeader("Allow", ALLOW)
+                    resp.sendError(405)
+                }
+            }
+        } catch (e: DavException) {
+            if (!resp.isCommitted) resp.sendError(e.status, e.message)
+        }
+    }
+
+    // Resolution
+
+    /** The request path as directory names below the root, without empty segments. */
+    private fun segments(req: HttpServletRequest): List<String> {
+        val segments = (req.pathInfo ?: "").split('/').filter { it.isNotEmpty() }
+        if (segments.any { it == "." || it == ".." }) throw DavException(400, "Invalid path")
+        return segments
+    }
+
+    private fun directory(path: String): Database.DirectoryEntry? =
+        fileSystem.getAllDirectories().firstOrNull { it.path == path }
+
+    /** What the path names: a directory wins over a file of the same name, and a split file over a plain file. */
+    private fun resolve(segments: List<String>): Resource? {
+        directory(segments.joinToString("/"))?.let { return Resource.Collection(it) }
+        if (segments.isEmpty()) return null
+        val parent = directory(segments.dropLast(1).joinToString("/")) ?: return null
+        return file(parent, segments.last())
+    }
+
+    private fun file(parent: Database.DirectoryEntry, name: String): Resource.File? {
+        fileSystem.getLogicalFileByName(name, parent.directoryId)?.let { return logicalFile(it) }
+        return fileSystem.getFilesByDirectoryId(parent.directoryId, name, "", "file_name")
+            .firstOrNull { it.fileName == name }
+            ?.let { plainFile(it) }
+    }
+
+    private fun plainFile(f: Database.FileEntry) = Resource.File(f.fileName, f.size, f.createdAt,
+        f.mimeType ?: OCTET_STREAM, "\"file-${f.fileId}\"", f.fileId, null)
+
+    private fun logicalFile(l: Database.LogicalFileEntry) = Resource.File(l.originalFilename, l.totalSize, l.createdAt,
+        l.mimeType ?: OCTET_STREAM, "\"partial-${l.logicalFileId}\"", 0, l)
+
+    // PROPFIND
+
+    private fun propfind(req: HttpServletRequest, resp: HttpServletResponse) {
+        // Every property is always returned, so the requested set is not read
+        req.inputStream.use { it.readBytes() }
+        val segments = segments(req)
+        val resource = resolve(segments) ?: throw DavException(404, "Not found")
+        val depth = req.getHeader("Depth")?.trim() ?: "infinity"
+        if (depth != "0" && depth != "1") {
+            // Walking a whole subtree in one response is what the metadata cache is meant to avoid
+            resp.status = 403
+            resp.contentType = XML
+            resp.writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<D:error xmlns:D=\"DAV:\"><D:propfind-finite-depth/></D:error>")
+            return
+        }
+
+        resp.status = 207
+        resp.contentType = XML
+        val out = BufferedWriter(OutputStreamWriter(resp.outputStream, Charsets.UTF_8), 16 * 1024)
+        out.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<D:multistatus xmlns:D=\"DAV:\">")
+        val base = href(segments)
+        when (resource) {
+            is Resource.File -> writeFile(out, base, resource)
+            is Resource.Collection -> {
+                writeCollection(out, "$base/", resource.directory)
+                if (depth == "1") {
+                    val id = resource.directory.directoryId
+                    for (child in fileSystem.getChildDirectories(id)) {
+                        writeCollection(out, base + "/" + encode(child.name) + "/", child)
+                    }
+                    for (file in children(id)) {
+                        writeFile(out, base + "/" + encode(file.name), file)
+                    }
+                }
+            }
+        }
+        out.write("</D:multistatus>")
+        out.flush()
+    }
+
+    /** Files directly in a directory, one per name. */
+    private fun children(directoryId: Int): Collection<Resource.File> {
+        val byName = LinkedHashMap<String, Resource.File>()
+        for (f in fileSystem.getFilesByDirectoryId(directoryId, "", "", "file_name")) byName[f.fileName] = plainFile(f)
+        for (l in fileSystem.getLogicalFiles(directoryId, "")) byName[l.originalFilename] = logicalFile(l)
+        // Subdirectories hide files of the same name, as in resolve
+        for (d in fileSystem.getChildDirectories(directoryId)) byName.remove(d.name)
+        return byName.values
+    }
+
+    private fun writeCollection(out: Appendable, href: String, d: Database.DirectoryEntry) {
+        out.append("<D:response><D:href>").append(href).append("</D:href><D:propstat><D:prop>")
+        prop(out, "displayname", d.name)
+        out.append("<D:resourcetype><D:collection/></D:resourcetype>")
+        prop(out, "creationdate", ISO.format(d.createdAt.withNano(0)))
+        prop(out, "getlastmodified", httpDate(d.createdAt))
+        out.append("</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>")
+    }
+
+    private fun writeFile(out: Appendable, href: String, f: Resource.File) {
+        out.append("<D:response><D:href>").append(href).append("</D:href><D:propstat><D:prop>")
+        prop(out, "displayname", f.name)
+        out.append("<D:resourcetype/>")
+        prop(out, "getcontentlength", f.size.toString())
+        prop(out, "getcontenttype", f.mimeType)
+        prop(out, "getetag", f.etag)
+        prop(out, "creationdate", ISO.format(f.created.withNano(0)))
+        prop(out, "getlastmodified", httpDate(f.created))
+        out.append("</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>")
+    }
+
+    private fun prop(out: Appendable, name: String, value: String) {
+        out.append("<D:").append(name).append('>')
+        Template.escapeHtml(out, value)
+        out.append("</D:").append(name).append('>')
+    }
+
+    private fun href(segments: List<String>): String =
+        PREFIX + segments.joinToString("") { "/" + encode(it) }
+
+    private fun encode(segment: String): String =
+        URLEncoder.encode(segment, "UTF-8").replace("+", "%20")
+
+    // GET and HEAD
+
+    private fun get(req: HttpServletRequest, resp: HttpServletResponse, sendBody: Boolean) {
+        val file = when (val resource = resolve(segments(req))) {
+            null -> throw DavException(404, "Not found")
+            is Resource.Collection -> throw DavException(405, "Collections have no content; use PROPFIND")
+            is Resource.File -> resource
+        }
+
+        var from = 0L
+        var to = file.size - 1
+        val range = req.getHeader("Range")?.let { parseByteRange(it, file.size) }
+        if (range != null) {
+            if (range.isEmpty()) {
+                resp.setHeader("Content-Range", "bytes */${file.size}")
+                throw DavException(416, "Range not satisfiable")
+            }
+            from = range.first
+            to = range.last
+            resp.status = 206
+            resp.setHeader("Content-Range", "bytes $from-$to/${file.size}")
+        }
+        resp.setHeader("Accept-Ranges", "bytes")
+        resp.setHeader("ETag", file.etag)
+        resp.setHeader("Last-Modified", httpDate(file.created))
+        resp.contentType = file.mimeType
+        resp.setContentLengthLong(max(0, to - from + 1))
+        if (!sendBody || to < from) return
+
+        // The blocks the range overlaps, each fetched while the one before it is written
+        class Slice(val source: BlockCache.Source, val index: Long, val start: Int, val end: Int)
+        val slices = mutableListOf<Slice>()
+        var offset = 0L
+        for (source in sources(file)) {
+            val end = offset + source.size
+            if (end > from && offset <= to) {
+                val first = max(from, offset) - offset
+                val last = min(to + 1, end) - offset
+                var index = first / BlockCache.BLOCK_BYTES
+                while (index * BlockCache.BLOCK_BYTES < last) {
+                    val blockStart = index * BlockCache.BLOCK_BYTES
+                    slices.add(Slice(source, index, (max(first, blockStart) - blockStart).toInt(),
+                        (min(last, blockStart + BlockCache.BLOCK_BYTES) - blockStart).toInt()))
+                    index++
+                }
+            }
+            offset = end
+        }
+
+        val out = resp.outputStream
+        for ((i, slice) in slices.withIndex()) {
+            slices.getOrNull(i + 1)?.let { blocks.prefetch(it.source, it.index) }
+            val block = blocks.get(slice.source, slice.index)
+            out.write(block, slice.start, slice.end - slice.start)
+        }
+        out.flush()
+    }
+
+    private fun sources(file: Resource.File): List<BlockCache.Source> {
+        val logical = file.logical
+        if (logical != null) {
+            return fileSystem.getFilePartialsByLogicalFileId(logical.logicalFileId)
+                .sortedBy { it.partNumber }
+                .map { BlockCache.Source(it.channelId, it.messageId, it.partName, it.partSize) }
+        }
+        val path = fileSystem.getFileById(file.fileId)
+        return listOf(BlockCache.Source(path.channelId, path.messageId, path.fileName, file.size))
+    }
+
+    // Writes
+
+    private fun put(req: HttpServletRequest, resp: HttpServletResponse) {
+        val writer = writer ?: throw DavException(501, "Uploads need WEBHOOKS_TXT to point at a webhooks file")
+        val segments = segments(req)
+        if (segments.isEmpty()) throw DavException(405, "Cannot write the root collection")
+        val parentPath = segments.dropLast(1).joinToString("/")
+        val parent = directory(parentPath) ?: throw DavException(409, "Parent collection does not exist")
+        val existing = resolve(segments)
+        if (existing is Resource.Collection) throw DavException(405, "A collection exists at this path")
+
+        val name = segments.last()
+        val mimeType = req.contentType?.takeIf { it.isNotBlank() && !it.startsWith(OCTET_STREAM) }
+            ?: URLConnection.guessContentTypeFromName(name)
+            ?: OCTET_STREAM
+        writer.write(req.inputStream, parent.path, name, mimeType)
+        resp.status = if (existing == null) 201 else 204
+    }
+
+    private fun delete(req: HttpServletRequest, resp: HttpServletResponse) {
+        when (val resource = resolve(segments(req))) {
+            null -> throw DavException(404, "Not found")
+            is Resource.File -> {
+                val logical = resource.logical
+                if (logical != null) fileSystem.deleteLogicalFile(logical.logicalFileId) else fileSystem.deleteFile(resource.fileId)
+            }
+            is Resource.Collection -> {
+                if (resource.directory.parentId == 0) throw DavException(403, "Cannot delete the root collection")
+                // A collection goes with everything in it: files first, then directories deepest first
+                val subtree = fileSystem.getSubtree(resource.directory.directoryId)
+                val fileIds = mutableListOf<Int>()
+                val logicalFileIds = mutableListOf<Long>()
+                for (d in subtree) {
+                    fileSystem.getFilesByDirectoryId(d.directoryId, "", "", "file_name").mapTo(fileIds) { it.fileId }
+                    fileSystem.getLogicalFiles(d.directoryId, "").mapTo(logicalFileIds) { it.logicalFileId }
+                }
+                if (fileIds.isNotEmpty() || logicalFileIds.isNotEmpty()) fileSystem.deleteFiles(fileIds, logicalFileIds)
+                for (d in subtree.sortedByDescending { it.path.length }) fileSystem.deleteDirectory(d.directoryId)
+            }
+        }
+        resp.status = 204
+    }
+
+    private fun mkcol(req: HttpServletRequest, resp: HttpServletResponse) {
+        if (req.inputStream.use { it.read() } >= 0) throw DavException(415, "MKCOL bodies are not supported")
+        val segments = segments(req)
+        if (segments.isEmpty() || resolve(segments) != null) throw DavException(405, "Something already exists at this path")
+        val parent = directory(segments.dropLast(1).joinToString("/"))
+            ?: throw DavException(409, "Parent collection does not exist")
+        validateDirectoryName(segments.last())?.let { throw DavException(403, it) }
+        fileSystem.createDirectory(parent.directoryId, segments.last())
+        resp.status = 201
+    }
+
+    private fun httpDate(time: OffsetDateTime): String =
+        DateTimeFormatter.RFC_1123_DATE_TIME.format(time.atZoneSameInstant(ZoneOffset.UTC))
+
+    companion object {
+        /** Where the servlet is mounted on the frontend. */
+        const val PREFIX = "/dav"
+        private const val ALLOW = "OPTIONS, GET, HEAD, PUT, DELETE, MKCOL, PROPFIND"
+        private const val XML = "application/xml; charset=utf-8"
+        private const val OCTET_STREAM = "application/octet-stream"
+        private val ISO = DateTimeFormatter.ISO_INSTANT
+    }
+}
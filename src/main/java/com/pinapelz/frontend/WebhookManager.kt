@@ -2,6 +2,8 @@ package com.pinapelz.frontend
 
 import com.google.gson.Gson
 import com.google.gson.JsonObject
+import com.pinapelz.FlightEvents
+import com.pinapelz.Metrics
 import okhttp3.*
 import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import okhttp3.RequestBody.Companion.asRequestBody
@@ -50,35 +52,61 @@ class WebhookManager(webhooksFilePath: String) {
         println("Loaded ${webhooks.size} webhooks from $webhooksFilePath")
     }
 
-    private fun getNextAvailableWebhook(): String? {
-        val currentTime = System.currentTimeMillis()
-        val startIndex = currentWebhookIndex
+    /** Number of webhooks, i.e. how many uploads can run without waiting on a cooldown. */
+    val size: Int get() = webhooks.size
 
-        do {
-            val webhook = webhooks[currentWebhookIndex]
-            val lastUsed = webhookCooldowns[webhook] ?: 0
-            val timeSinceLastUse = currentTime - lastUsed
+    // Metrics are labelled with the webhook ID: the URL carries the webhook's token
+    private val labels: Map<String, String> = webhooks.withIndex().associate { (index, url) ->
+        url to (Regex("/webhooks/(\\d+)/").find(url)?.groupValues?.get(1) ?: "#${index + 1}")
+    }
 
-            if (timeSinceLastUse >= cooldownPeriodMs) {
-                return webhook
+    // Picks and reserves a webhook under the lock, so concurrent uploads spread over the pool
+    private fun getNextAvailableWebhook(): String {
+        while (true) {
+            val waitTime: Long
+            synchronized(this) {
+                val currentTime = System.currentTimeMillis()
+                for (i in webhooks.indices) {
+                    val webhook = webhooks[(currentWebhookIndex + i) % webhooks.size]
+                    val lastUsed = webhookCooldowns[webhook] ?: 0
+                    if (currentTime - lastUsed >= cooldownPeriodMs) {
+                        webhookCooldowns[webhook] = currentTime
+                        currentWebhookIndex = (currentWebhookIndex + i + 1) % webhooks.size
+                        return webhook
+                    }
+                }
+                val nextAvailableTime = webhookCooldowns.values.minOrNull() ?: 0
+                waitTime = max(1, (nextAvailableTime + cooldownPeriodMs) - currentTime)
             }
-
-            currentWebhookIndex = (currentWebhookIndex + 1) % webhooks.size
-        } while (currentWebhookIndex != startIndex)
-        val nextAvailableTime = webhookCooldowns.values.minOrNull() ?: 0
-        val waitTime = max(0, (nextAvailableTime + cooldownPeriodMs) - currentTime)
-
-        if (waitTime > 0) {
             Thread.sleep(waitTime)
-            return getNextAvailableWebhook()
         }
-
-        return null
     }
 
-    fun uploadFile(filePath: Path): WebhookUploadResult {
+    fun uploadFile(filePath: Path, content: String? = null): WebhookUploadResult {
+        val waitStart = System.nanoTime()
         val webhook = getNextAvailableWebhook()
-            ?: return WebhookUploadResult(false, error = "No available webhooks")
+        val label = labels.getValue(webhook)
+        QUEUE_WAIT.labels(label).observeSince(waitStart)
+        val start = System.nanoTime()
+        val event = FlightEvents.WebhookUpload()
+        event.begin()
+        val result = upload(webhook, filePath, content)
+        UPLOADS.labels(label, if (result.success) "ok" else "error").observeSince(start)
+        event.end()
+        if (event.shouldCommit()) {
+            event.webhook = label
+            event.fileName = filePath.fileName.toString()
+            event.bytes = filePath.toFile().length()
+            event.queueWait = start - waitStart
+            event.channelId = result.channelId
+            event.messageId = result.messageId
+            event.error = result.error
+            event.commit()
+        }
+        return result
+    }
+
+    private fun upload(webhook: String, filePath: Path, content: String?): WebhookUploadResult {
 
         val file = filePath.toFile()
         if (!file.exists()) {
@@ -87,25 +115,26 @@ class WebhookManager(webhooksFilePath: String) {
 
         try {
             val mimeType = Files.probeContentType(filePath) ?: "application/octet-stream"
-            val requestBody = MultipartBody.Builder()
+            val bodyBuilder = MultipartBody.Builder()
                 .setType(MultipartBody.FORM)
                 .addFormDataPart(
                     "file",
                     file.name,
                     file.asRequestBody(mimeType.toMediaTypeOrNull())
                 )
-                .build()
+            if (content != null) {
+                bodyBuilder.addFormDataPart("content", content)
+            }
+            val requestBody = bodyBuilder.build()
 
             val request = Request.Builder()
                 .url(webhook)
                 .post(requestBody)
                 .build()
 
-            webhookCooldowns[webhook] = System.currentTimeMillis()
-            currentWebhookIndex = (currentWebhookIndex + 1) % webhooks.size
-
             client.newCall(request).execute().use { response ->
                 if (!response.isSuccessful) {
+                    if (response.code == 429) RATE_LIMITED.labels(labels.getValue(webhook)).inc()
                     return WebhookUploadResult(
                         false,
                         error = "HTTP ${response.code}: ${response.message}"
@@ -152,4 +181,13 @@ class WebhookManager(webhooksFilePath: String) {
             return WebhookUploadResult(false, error = "Unexpected error: ${e.message}")
         }
     }
+
+    companion object {
+        private val UPLOADS = Metrics.histogram("nitro_webhook_upload_seconds",
+            "Time to post one attachment through a webhook.", Metrics.SECONDS, "webhook", "result")
+        private val QUEUE_WAIT = Metrics.histogram("nitro_webhook_queue_wait_seconds",
+            "Time an upload waited for a webhook to come off its cooldown.", Metrics.SECONDS, "webhook")
+        private val RATE_LIMITED = Metrics.counter("nitro_webhook_rate_limited_total",
+            "Uploads Discord refused with HTTP 429.", "webhook")
+    }
 }
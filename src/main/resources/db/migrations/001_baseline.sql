@@ -49,23 +49,6 @@ CREATE TABLE IF NOT EXISTS file_partials (
         UNIQUE (directory_id, part_name)
 );
 
--- =========================
--- Indexes
--- =========================
-
-CREATE INDEX IF NOT EXISTS idx_directories_path
-ON directories (path);
-
-CREATE INDEX IF NOT EXISTS idx_files_directory
-ON files (directory_id);
-
-CREATE INDEX IF NOT EXISTS idx_partials_directory
-ON file_partials (directory_id);
-
-CREATE INDEX IF NOT EXISTS idx_partials_original_filename
-ON file_partials (original_filename);
-
-
 INSERT INTO directories (path)
 VALUES ('')
 ON CONFLICT (path) DO NOTHING;
@@ -0,0 +1,48 @@
+-- =========================
+-- Logical files table
+-- =========================
+CREATE TABLE IF NOT EXISTS logical_files (
+    logical_file_id BIGSERIAL PRIMARY KEY,
+    directory_id BIGINT NOT NULL
+        REFERENCES directories(directory_id)
+        ON DELETE RESTRICT,
+    original_filename TEXT NOT NULL,
+    file_description TEXT,
+    mime_type TEXT DEFAULT 'application/octet-stream',
+    total_size BIGINT NOT NULL DEFAULT 0,
+    part_count INTEGER NOT NULL DEFAULT 0,
+    codec TEXT NOT NULL DEFAULT 'raw',
+    checksum_sha256 TEXT,
+    created_at TIMESTAMPTZ NOT NULL DEFAULT now(),
+    CONSTRAINT logical_files_unique_name_per_directory
+        UNIQUE (directory_id, original_filename)
+);
+
+-- =========================
+-- Logical file backfill
+-- =========================
+
+ALTER TABLE file_partials
+    ADD COLUMN IF NOT EXISTS logical_file_id BIGINT
+        REFERENCES logical_files(logical_file_id)
+        ON DELETE CASCADE;
+
+ALTER TABLE file_partials
+    ADD COLUMN IF NOT EXISTS part_checksum_sha256 TEXT;
+
+INSERT INTO logical_files
+    (directory_id, original_filename, file_description, mime_type,
+     total_size, part_count, created_at)
+SELECT directory_id, original_filename, MAX(file_description), MAX(mime_type),
+       SUM(part_size), COUNT(*), MAX(created_at)
+FROM file_partials
+WHERE logical_file_id IS NULL
+GROUP BY directory_id, original_filename
+ON CONFLICT (directory_id, original_filename) DO NOTHING;
+
+UPDATE file_partials p
+SET logical_file_id = l.logical_file_id
+FROM logical_files l
+WHERE p.logical_file_id IS NULL
+  AND l.directory_id = p.directory_id
+  AND l.original_filename = p.original_filename;
@@ -0,0 +1,22 @@
+-- nitro-fs:no-transaction
+-- =========================
+-- Indexes
+-- =========================
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_directories_path
+ON directories (path);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_files_directory
+ON files (directory_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_partials_directory
+ON file_partials (directory_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_partials_original_filename
+ON file_partials (original_filename);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_partials_logical_file
+ON file_partials (logical_file_id, part_number);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_logical_files_directory
+ON logical_files (directory_id);
@@ -0,0 +1,86 @@
+-- =========================
+-- Directory tree
+-- =========================
+-- Directories become an adjacency list: each row points at its parent and
+-- stores only its own name. Full paths are derived on read, so renaming or
+-- moving a directory updates exactly one row no matter how deep its subtree.
+
+ALTER TABLE directories
+    ADD COLUMN IF NOT EXISTS parent_id BIGINT
+        REFERENCES directories(directory_id)
+        ON DELETE RESTRICT;
+
+ALTER TABLE directories
+    ADD COLUMN IF NOT EXISTS name TEXT;
+
+INSERT INTO directories (path)
+VALUES ('')
+ON CONFLICT (path) DO NOTHING;
+
+ALTER TABLE directories DROP CONSTRAINT IF EXISTS directories_path_unique;
+
+-- Existing flat paths are split on '/' into nested directories. Missing
+-- intermediate directories are created, and a path that names a directory
+-- already in the tree (for example "a/" next to "a") is merged into it;
+-- the merge fails if both hold a file of the same name.
+DO $$
+DECLARE
+    root BIGINT;
+    legacy RECORD;
+    segments TEXT[];
+    parent BIGINT;
+    existing BIGINT;
+    i INTEGER;
+BEGIN
+    SELECT directory_id INTO root FROM directories WHERE path = '';
+    UPDATE directories SET name = '', parent_id = NULL WHERE directory_id = root;
+
+    -- A prefix sorts first, so an existing directory keeps its ID rather
+    -- than being merged into one created for a longer path
+    FOR legacy IN
+        SELECT directory_id, path, created_at FROM directories WHERE name IS NULL ORDER BY path, directory_id
+    LOOP
+        segments := array_remove(string_to_array(legacy.path, '/'), '');
+        parent := root;
+        existing := root;
+
+        FOR i IN 1 .. coalesce(array_length(segments, 1), 0) LOOP
+            SELECT directory_id INTO existing FROM directories
+            WHERE parent_id = parent AND name = segments[i];
+
+            IF existing IS NULL THEN
+                IF i = array_length(segments, 1) THEN
+                    UPDATE directories SET name = segments[i], parent_id = parent
+                    WHERE directory_id = legacy.directory_id;
+                    existing := legacy.directory_id;
+                ELSE
+                    INSERT INTO directories (path, name, parent_id, created_at)
+                    VALUES (array_to_string(segments[1:i], '/'), segments[i], parent, legacy.created_at)
+                    RETURNING directory_id INTO existing;
+                END IF;
+            END IF;
+            parent := existing;
+        END LOOP;
+
+        IF existing <> legacy.directory_id THEN
+            UPDATE files SET directory_id = existing WHERE directory_id = legacy.directory_id;
+            UPDATE logical_files SET directory_id = existing WHERE directory_id = legacy.directory_id;
+            UPDATE file_partials SET directory_id = existing WHERE directory_id = legacy.directory_id;
+            DELETE FROM directories WHERE directory_id = legacy.directory_id;
+        END IF;
+    END LOOP;
+END
+$$;
+
+ALTER TABLE directories ALTER COLUMN name SET NOT NULL;
+
+ALTER TABLE directories DROP COLUMN IF EXISTS path;
+
+ALTER TABLE directories
+    ADD CONSTRAINT directories_unique_name_per_parent
+        UNIQUE (parent_id, name);
+
+-- At most one directory, the root, has no parent
+CREATE UNIQUE INDEX IF NOT EXISTS directories_single_root
+ON directories ((parent_id IS NULL))
+WHERE parent_id IS NULL;
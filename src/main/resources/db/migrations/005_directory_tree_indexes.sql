@@ -0,0 +1,13 @@
+-- nitro-fs:no-transaction
+-- =========================
+-- Directory tree indexes
+-- =========================
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_directories_parent
+ON directories (parent_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_logical_files_directory_size
+ON logical_files (directory_id) INCLUDE (total_size);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_files_directory_size
+ON files (directory_id) INCLUDE (size);
@@ -0,0 +1,11 @@
+-- =========================
+-- Discord snowflakes as BIGINT
+-- =========================
+
+ALTER TABLE files
+    ALTER COLUMN disc_channel_id TYPE BIGINT USING disc_channel_id::BIGINT,
+    ALTER COLUMN disc_message_id TYPE BIGINT USING disc_message_id::BIGINT;
+
+ALTER TABLE file_partials
+    ALTER COLUMN disc_channel_id TYPE BIGINT USING disc_channel_id::BIGINT,
+    ALTER COLUMN disc_message_id TYPE BIGINT USING disc_message_id::BIGINT;
@@ -0,0 +1,16 @@
+-- nitro-fs:no-transaction
+-- =========================
+-- Snowflake indexes
+-- =========================
+
+-- Reverse lookups from a Discord message to the files it holds
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_files_channel_message
+ON files (disc_channel_id, disc_message_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_partials_channel_message
+ON file_partials (disc_channel_id, disc_message_id);
+
+-- Message IDs embed their timestamp, so this serves both newest-first
+-- listings and time-range queries within a directory
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_files_directory_message
+ON files (directory_id, disc_message_id);
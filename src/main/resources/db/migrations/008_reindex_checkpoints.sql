@@ -0,0 +1,11 @@
+-- =========================
+-- Channel reindex progress
+-- =========================
+
+CREATE TABLE IF NOT EXISTS reindex_checkpoints (
+    channel_id BIGINT PRIMARY KEY,
+    synced_up_to BIGINT NOT NULL DEFAULT 0,
+    scan_head BIGINT NOT NULL DEFAULT 0,
+    scan_cursor BIGINT NOT NULL DEFAULT 0,
+    updated_at TIMESTAMPTZ NOT NULL DEFAULT now()
+);
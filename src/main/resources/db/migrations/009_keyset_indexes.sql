@@ -0,0 +1,15 @@
+-- nitro-fs:no-transaction
+-- =========================
+-- Keyset pagination indexes
+-- =========================
+
+-- The JSON API pages through a directory by primary key, so each page is
+-- an index range scan rather than a sort of the whole directory
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_files_directory_id
+ON files (directory_id, file_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_logical_files_directory_id
+ON logical_files (directory_id, logical_file_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_partials_logical_file_id
+ON file_partials (logical_file_id, partial_id);
@@ -0,0 +1,95 @@
+package com.pinapelz;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbeddedDatabaseTest {
+
+    private static final String CREATED = "\"created\":\"2020-01-01T00:00Z\"";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void tornFinalLineIsDropped() throws Exception {
+        EmbeddedDatabase db = new EmbeddedDatabase(dir);
+        int docs = db.createDirectory(1, "docs");
+        Files.writeString(log(), "{\"op\":\"mkdir\",\"id\":9", StandardOpenOption.APPEND);
+
+        db = new EmbeddedDatabase(dir);
+        assertEquals(Map.of("", 1, "docs", docs), paths(db));
+
+        // The torn line is compacted away, so later appends replay cleanly
+        int music = db.createDirectory(1, "music");
+        assertEquals(Map.of("", 1, "docs", docs, "music", music), paths(new EmbeddedDatabase(dir)));
+    }
+
+    @Test
+    void corruptLineFailsStartup() throws Exception {
+        EmbeddedDatabase db = new EmbeddedDatabase(dir);
+        db.createDirectory(1, "docs");
+        db.createDirectory(1, "music");
+        List<String> lines = Files.readAllLines(log());
+        lines.set(1, "garbage");
+        Files.write(log(), lines);
+        long offset = lines.get(0).getBytes(StandardCharsets.UTF_8).length + 1;
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> new EmbeddedDatabase(dir));
+        assertInstanceOf(IOException.class, e.getCause());
+        assertTrue(e.getCause().getMessage().contains("corrupt at byte " + offset), e.getCause().getMessage());
+        // Nothing after the damage was thrown away
+        assertEquals(lines, Files.readAllLines(log()));
+    }
+
+    @Test
+    void legacyFlatPathsAreNested() throws Exception {
+        Files.writeString(log(), String.join("\n",
+                legacyMkdir(1, ""),
+                legacyMkdir(2, "a/b"),
+                legacyMkdir(3, "a"),
+                legacyMkdir(4, "/a/"),
+                legacyMkdir(5, "x/y/z"),
+                file(1, 4, "moved.txt"),
+                ""));
+
+        for (int open = 0; open < 2; open++) {
+            EmbeddedDatabase db = new EmbeddedDatabase(dir);
+            Map<String, Integer> paths = paths(db);
+            assertEquals(List.of("", "a", "a/b", "x", "x/y", "x/y/z"), paths.keySet().stream().sorted().toList());
+            assertEquals(3, paths.get("a"));
+            assertEquals(2, paths.get("a/b"));
+            assertEquals(5, paths.get("x/y/z"));
+            // "/a/" named the same directory as "a", so its file moved there
+            assertEquals(3, db.getFileById(1).directoryId());
+        }
+    }
+
+    private Path log() {
+        return dir.resolve("metadata.log");
+    }
+
+    private static Map<String, Integer> paths(EmbeddedDatabase db) {
+        return db.getAllDirectories().stream()
+                .collect(Collectors.toMap(Database.DirectoryEntry::path, Database.DirectoryEntry::directoryId));
+    }
+
+    private static String legacyMkdir(int id, String path) {
+        return "{\"op\":\"mkdir\",\"id\":" + id + ",\"path\":\"" + path + "\"," + CREATED + "}";
+    }
+
+    private static String file(int id, int dir, String name) {
+        return "{\"op\":\"file\",\"id\":" + id + ",\"channel\":1,\"message\":" + id + ",\"dir\":" + dir
+                + ",\"name\":\"" + name + "\",\"desc\":\"\",\"size\":1,\"mime\":\"text/plain\"," + CREATED + "}";
+    }
+}
@@ -0,0 +1,49 @@
+package com.pinapelz;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchemaMigratorTest {
+
+    @Test
+    void freshDatabaseGetsEveryMigration() throws Exception {
+        List<SchemaMigrator.Migration> migrations = SchemaMigrator.loadMigrations();
+        assertFalse(migrations.isEmpty());
+        assertEquals(migrations, SchemaMigrator.pending(migrations, null));
+    }
+
+    @Test
+    void onlyUnappliedMigrationsArePending() throws Exception {
+        List<SchemaMigrator.Migration> migrations = SchemaMigrator.loadMigrations();
+        Map<Integer, String> applied = new HashMap<>();
+        SchemaMigrator.Migration first = migrations.get(0);
+        applied.put(first.version(), first.checksum());
+
+        List<SchemaMigrator.Migration> pending = SchemaMigrator.pending(migrations, applied);
+        assertEquals(migrations.subList(1, migrations.size()), pending);
+    }
+
+    @Test
+    void modifiedMigrationIsRejected() throws Exception {
+        List<SchemaMigrator.Migration> migrations = SchemaMigrator.loadMigrations();
+        SchemaMigrator.Migration first = migrations.get(0);
+        Map<Integer, String> applied = Map.of(first.version(), "0".repeat(64));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> SchemaMigrator.pending(migrations, applied));
+        assertTrue(e.getMessage().contains(first.name()));
+    }
+
+    @Test
+    void migrationsAreNumberedInOrder() throws Exception {
+        List<SchemaMigrator.Migration> migrations = SchemaMigrator.loadMigrations();
+        for (int i = 0; i < migrations.size(); i++) {
+            assertEquals(i + 1, migrations.get(i).version(), migrations.get(i).name());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.pinapelz.frontend
+
+import java.io.EOFException
+import java.io.IOException
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class AwsChunkedInputStreamTest {
+
+    private fun decode(body: String): String =
+        AwsChunkedInputStream(body.byteInputStream(Charsets.US_ASCII)).readBytes().toString(Charsets.US_ASCII)
+
+    @Test
+    fun signedChunks() {
+        val body = "5;chunk-signature=abc\r\nhello\r\n" +
+            "6;chunk-signature=def\r\n world\r\n" +
+            "0;chunk-signature=ghi\r\n\r\n"
+        assertEquals("hello world", decode(body))
+    }
+
+    @Test
+    fun unsignedChunksWithTrailers() {
+        val body = "a\r\n0123456789\r\n" +
+            "0\r\nx-amz-checksum-crc32:AAAAAA==\r\n\r\n"
+        assertEquals("0123456789", decode(body))
+    }
+
+    @Test
+    fun byteAtATimeReadsMatch() {
+        val input = AwsChunkedInputStream("3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n".byteInputStream())
+        val out = StringBuilder()
+        while (true) {
+            val b = input.read()
+            if (b < 0) break
+            out.append(b.toChar())
+        }
+        assertEquals("abcde", out.toString())
+        assertEquals(-1, input.read())
+    }
+
+    @Test
+    fun bodyCutInsideAChunk() {
+        assertFailsWith<EOFException> { decode("a\r\n01234") }
+    }
+
+    @Test
+    fun bodyCutBeforeTheFinalChunk() {
+        assertFailsWith<EOFException> { decode("3\r\nabc\r\n") }
+    }
+
+    @Test
+    fun malformedChunkHeader() {
+        assertFailsWith<IOException> { decode("zz\r\nabc\r\n0\r\n\r\n") }
+    }
+
+    @Test
+    fun detectsTheEncoding() {
+        assertTrue(AwsChunkedInputStream.isUsedBy("STREAMING-AWS4-HMAC-SHA256-PAYLOAD", null))
+        assertTrue(AwsChunkedInputStream.isUsedBy(null, "aws-chunked"))
+        assertFalse(AwsChunkedInputStream.isUsedBy("UNSIGNED-PAYLOAD", null))
+    }
+}
@@ -0,0 +1,47 @@
+package com.pinapelz.frontend
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class ByteRangeTest {
+
+    @Test
+    fun closedRange() {
+        assertEquals(0L..99L, parseByteRange("bytes=0-99", 1000))
+        assertEquals(500L..999L, parseByteRange(" bytes=500-999 ", 1000))
+    }
+
+    @Test
+    fun openEndedRangeRunsToTheEnd() {
+        assertEquals(900L..999L, parseByteRange("bytes=900-", 1000))
+    }
+
+    @Test
+    fun endPastTheEntityIsClamped() {
+        assertEquals(900L..999L, parseByteRange("bytes=900-5000", 1000))
+    }
+
+    @Test
+    fun suffixRange() {
+        assertEquals(900L..999L, parseByteRange("bytes=-100", 1000))
+        assertEquals(0L..999L, parseByteRange("bytes=-5000", 1000))
+    }
+
+    @Test
+    fun unsatisfiableRangesAreEmpty() {
+        assertTrue(parseByteRange("bytes=1000-", 1000)!!.isEmpty())
+        assertTrue(parseByteRange("bytes=-0", 1000)!!.isEmpty())
+        assertTrue(parseByteRange("bytes=-10", 0)!!.isEmpty())
+    }
+
+    @Test
+    fun malformedOrMultipleRangesMeanTheWholeEntity() {
+        assertNull(parseByteRange("bytes=-", 1000))
+        assertNull(parseByteRange("bytes=10-5", 1000))
+        assertNull(parseByteRange("bytes=0-1,5-9", 1000))
+        assertNull(parseByteRange("items=0-9", 1000))
+        assertNull(parseByteRange("bytes=99999999999999999999-", 1000))
+    }
+}
@@ -0,0 +1,99 @@
+package com.pinapelz.frontend
+
+import java.io.ByteArrayOutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import kotlin.io.path.outputStream
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import org.junit.jupiter.api.io.TempDir
+
+class StoredZipWriterTest {
+
+    @TempDir
+    lateinit var dir: Path
+
+    private val modified = OffsetDateTime.of(2024, 5, 17, 13, 45, 30, 0, ZoneOffset.UTC)
+
+    private fun write(block: (StoredZipWriter) -> Unit): Path {
+        val file = dir.resolve("out.zip")
+        file.outputStream().use { out -> StoredZipWriter(out).use(block) }
+        return file
+    }
+
+    private fun StoredZipWriter.add(name: String, data: ByteArray, expectedSize: Long = data.size.toLong()) {
+        putEntry(name, modified, expectedSize).use { it.write(data) }
+    }
+
+    @Test
+    fun entriesRoundTrip() {
+        val small = "hello".toByteArray()
+        val large = ByteArray(300_000) { (it * 31).toByte() }
+        val file = write { zip ->
+            zip.add("a.txt", small)
+            zip.add("dir/b.bin", large)
+            zip.add("empty", ByteArray(0))
+        }
+
+        ZipFile(file.toFile()).use { zip ->
+            assertEquals(listOf("a.txt", "dir/b.bin", "empty"), zip.entries().toList().map { it.name })
+            for ((name, data) in listOf("a.txt" to small, "dir/b.bin" to large, "empty" to ByteArray(0))) {
+                val entry = zip.getEntry(name)
+                assertEquals(ZipEntry.STORED, entry.method)
+                assertEquals(data.size.toLong(), entry.size)
+                assertEquals(CRC32().apply { update(data) }.value, entry.crc)
+                assertContentEquals(data, zip.getInputStream(entry).readBytes())
+            }
+        }
+    }
+
+    @Test
+    fun namesAreUtf8() {
+        val file = write { it.add("café/日本.txt", "x".toByteArray()) }
+        ZipFile(file.toFile()).use { zip -> assertEquals("café/日本.txt", zip.entries().nextElement().name) }
+    }
+
+    @Test
+    fun entryAnnouncedAsLargeUsesZip64() {
+        val data = "still small".toByteArray()
+        val file = write { zip ->
+            zip.add("big.bin", data, expectedSize = 5L * 1024 * 1024 * 1024)
+            zip.add("after.txt", "after".toByteArray())
+        }
+        ZipFile(file.toFile()).use { zip ->
+            assertContentEquals(data, zip.getInputStream(zip.getEntry("big.bin")).readBytes())
+            assertContentEquals("after".toByteArray(), zip.getInputStream(zip.getEntry("after.txt")).readBytes())
+        }
+        // Local header of the first entry: version 45 and the ZIP64 extra field
+        val bytes = Files.readAllBytes(file)
+        assertEquals(45, bytes[4].toInt())
+        assertEquals(20, bytes[28].toInt())
+    }
+
+    @Test
+    fun manyEntriesWriteZip64EndRecords() {
+        val count = 0xFFFF + 10
+        val file = write { zip ->
+            for (i in 0 until count) zip.add("f$i", byteArrayOf(i.toByte()))
+        }
+        ZipFile(file.toFile()).use { zip ->
+            assertEquals(count, zip.size())
+            val last = zip.getEntry("f${count - 1}")
+            assertContentEquals(byteArrayOf((count - 1).toByte()), zip.getInputStream(last).readBytes())
+        }
+    }
+
+    @Test
+    fun entryMustBeClosedBeforeTheNext() {
+        val zip = StoredZipWriter(ByteArrayOutputStream())
+        zip.putEntry("a", modified, 1)
+        assertFailsWith<IllegalStateException> { zip.putEntry("b", modified, 1) }
+    }
+}
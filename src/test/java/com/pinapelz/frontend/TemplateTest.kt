@@ -0,0 +1,52 @@
+package com.pinapelz.frontend
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class TemplateTest {
+
+    @Test
+    fun htmlSlotsAreEscaped() {
+        val t = Template("<p title=\"{{ title }}\">{{body}}</p>")
+        val html = t.render { if (it == "title") "\"quoted\" & 'single'" else "<script>alert(1)</script>" }
+        assertEquals("<p title=\"&quot;quoted&quot; &amp; &#39;single&#39;\">&lt;script&gt;alert(1)&lt;/script&gt;</p>", html)
+    }
+
+    @Test
+    fun jsSlotsUseUnicodeEscapes() {
+        val t = Template("<a onclick=\"open('{{path|js}}')\">")
+        val html = t.render { "it's a \"dir\"\\<b>&\n" }
+        assertEquals(
+            "<a onclick=\"open('it\\u0027s a \\u0022dir\\u0022\\u005c\\u003cb\\u003e\\u0026\\u000a')\">",
+            html
+        )
+    }
+
+    @Test
+    fun rawSlotsAreWrittenAsIs() {
+        assertEquals("<b>x</b>", Template("{{markup|raw}}").render { "<b>x</b>" })
+    }
+
+    @Test
+    fun missingValuesRenderNothing() {
+        assertEquals("[]", Template("[{{missing}}]").render { null })
+    }
+
+    @Test
+    fun fragmentsWriteThemselvesUnescaped() {
+        val inner = Template("<i>{{name}}</i>")
+        val outer = Template("<div>{{content}}</div>")
+        val html = outer.render {
+            Template.Fragment { out -> inner.render(out) { "a&b" } }
+        }
+        assertEquals("<div><i>a&amp;b</i></div>", html)
+    }
+
+    @Test
+    fun nonStringValuesAreEscapedToo() {
+        val value = object {
+            override fun toString() = "<1>"
+        }
+        assertEquals("&lt;1&gt;", Template("{{n}}").render { value })
+    }
+}